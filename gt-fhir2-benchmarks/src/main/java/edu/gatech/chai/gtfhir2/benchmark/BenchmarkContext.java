@@ -0,0 +1,176 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.web.context.ContextLoader;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+
+import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+import edu.gatech.chai.omopv5.jpa.entity.Concept;
+import edu.gatech.chai.omopv5.jpa.service.CareSiteService;
+import edu.gatech.chai.omopv5.jpa.service.ConceptService;
+import edu.gatech.chai.omopv5.jpa.service.ConditionOccurrenceService;
+import edu.gatech.chai.omopv5.jpa.service.DeviceExposureService;
+import edu.gatech.chai.omopv5.jpa.service.DrugExposureService;
+import edu.gatech.chai.omopv5.jpa.service.FObservationViewService;
+import edu.gatech.chai.omopv5.jpa.service.FPersonService;
+import edu.gatech.chai.omopv5.jpa.service.FSearchService;
+import edu.gatech.chai.omopv5.jpa.service.LocationService;
+import edu.gatech.chai.omopv5.jpa.service.MeasurementService;
+import edu.gatech.chai.omopv5.jpa.service.NoteService;
+import edu.gatech.chai.omopv5.jpa.service.ObservationService;
+import edu.gatech.chai.omopv5.jpa.service.ProcedureOccurrenceService;
+import edu.gatech.chai.omopv5.jpa.service.ProviderService;
+import edu.gatech.chai.omopv5.jpa.service.TransactionService;
+import edu.gatech.chai.omopv5.jpa.service.VisitOccurrenceService;
+
+/**
+ * Spring context for the benchmarks. The mappers get their services from the
+ * current web application context, even in their static instances. So, this
+ * must be installed before any Omop* class is loaded.
+ *
+ * Services are in-memory stubs. Concept lookups return a synthetic concept.
+ * Patients, practitioners, organizations and encounters are found by id so
+ * that references resolve. Searches return empty lists. Others return null.
+ * So, constructOmop goes through the insert path.
+ *
+ * @author mc142
+ *
+ */
+public class BenchmarkContext {
+	private static final Class<?>[] SERVICES = { CareSiteService.class, ConceptService.class,
+			ConditionOccurrenceService.class, DeviceExposureService.class, DrugExposureService.class,
+			FObservationViewService.class, FPersonService.class, FSearchService.class, LocationService.class,
+			MeasurementService.class, NoteService.class, ObservationService.class, ProcedureOccurrenceService.class,
+			ProviderService.class, TransactionService.class, VisitOccurrenceService.class };
+
+	private static GenericWebApplicationContext context;
+	private static EntityManagerFactory entityManagerFactory;
+
+	private BenchmarkContext() {
+	}
+
+	public static synchronized GenericWebApplicationContext install() {
+		if (context != null)
+			return context;
+
+		GenericWebApplicationContext webContext = new GenericWebApplicationContext();
+		for (Class<?> service : SERVICES) {
+			webContext.getBeanFactory().registerSingleton(service.getSimpleName(), stub(service));
+		}
+
+		new ContextLoader(webContext).initWebApplicationContext(new MockServletContext());
+		context = webContext;
+		return context;
+	}
+
+	/**
+	 * JPA metamodel of the OMOP entities for building criteria queries. There
+	 * is no database connection. Queries cannot be run.
+	 */
+	public static synchronized EntityManagerFactory getEntityManagerFactory() {
+		if (entityManagerFactory != null)
+			return entityManagerFactory;
+
+		Properties jpaProperties = new Properties();
+		jpaProperties.put("hibernate.dialect", org.hibernate.dialect.PostgreSQL94Dialect.class.getName());
+		jpaProperties.put("hibernate.connection.provider_class", NoConnectionProvider.class.getName());
+		jpaProperties.put("hibernate.temp.use_jdbc_metadata_defaults", "false");
+		jpaProperties.put("hibernate.cache.use_second_level_cache", "false");
+		jpaProperties.put("hibernate.cache.use_query_cache", "false");
+		jpaProperties.put("hibernate.search.autoregister_listeners", "false");
+		// Entities come from packagesToScan. Hibernate cannot scan the uber jar.
+		jpaProperties.put("hibernate.archive.scanner", "org.hibernate.boot.archive.scan.internal.DisabledScanner");
+
+		LocalContainerEntityManagerFactoryBean factoryBean = new LocalContainerEntityManagerFactoryBean();
+		factoryBean.setPersistenceUnitName("BENCHMARK_PU");
+		factoryBean.setPackagesToScan("edu.gatech.chai.omopv5.jpa.entity");
+		factoryBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+		factoryBean.setJpaProperties(jpaProperties);
+		factoryBean.afterPropertiesSet();
+
+		entityManagerFactory = factoryBean.getObject();
+		return entityManagerFactory;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> service) {
+		return (T) Proxy.newProxyInstance(service.getClassLoader(), new Class<?>[] { service },
+				new StubHandler(service));
+	}
+
+	private static class StubHandler implements InvocationHandler {
+		private final Class<?> service;
+
+		StubHandler(Class<?> service) {
+			this.service = service;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				if (method.getName().equals("equals"))
+					return proxy == args[0];
+				if (method.getName().equals("hashCode"))
+					return System.identityHashCode(proxy);
+				return "Stub " + service.getSimpleName();
+			}
+
+			// IService methods return BaseEntity after erasure.
+			Class<?> type = method.getReturnType();
+			if (type == Concept.class || (service == ConceptService.class && type == BaseEntity.class)) {
+				Long conceptId = 0L;
+				if (args != null && args.length > 0 && args[0] instanceof Long)
+					conceptId = (Long) args[0];
+				return SyntheticEntities.concept(conceptId, "SNOMED", "C" + conceptId, "Concept " + conceptId);
+			}
+			if (method.getName().equals("findById") && args != null && args[0] instanceof Long) {
+				return existing((Long) args[0]);
+			}
+			if (type == List.class || type == Collection.class)
+				return new ArrayList<Object>();
+			if (type == Set.class)
+				return new HashSet<Object>();
+			if (type == Map.class)
+				return new HashMap<Object, Object>();
+			if (type == Long.class || type == long.class)
+				return 0L;
+			if (type == Integer.class || type == int.class)
+				return 0;
+			if (type == Boolean.class || type == boolean.class)
+				return false;
+			return null;
+		}
+
+		/**
+		 * Row referenced by a resource being mapped to OMOP. References to
+		 * patients, practitioners, organizations and encounters are found.
+		 */
+		private Object existing(Long id) {
+			if (service == FPersonService.class)
+				return SyntheticEntities.person(id);
+			if (service == ProviderService.class)
+				return SyntheticEntities.provider(id);
+			if (service == CareSiteService.class)
+				return SyntheticEntities.careSite(id);
+			if (service == VisitOccurrenceService.class)
+				return SyntheticEntities.visit(id, SyntheticEntities.person(id));
+			return null;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class of benchmarks.jar. Same as the JMH main except that the GC
+ * profiler is always on. So, every result has its allocation rate
+ * (gc.alloc.rate.norm is bytes per operation) next to ops/s.
+ *
+ * Takes the JMH command line options. For example, to run the mapper
+ * benchmarks only and save the results,
+ *
+ * java -jar benchmarks.jar MapperBenchmark -rf json -rff mapper.json
+ *
+ * @author mc142
+ *
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList()
+				|| commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		Options options = new OptionsBuilder().parent(commandLineOptions).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
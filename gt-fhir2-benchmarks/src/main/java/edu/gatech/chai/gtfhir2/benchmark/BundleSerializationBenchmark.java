@@ -0,0 +1,89 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.context.WebApplicationContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.gtfhir2.mapping.OmopObservation;
+import edu.gatech.chai.gtfhir2.mapping.OmopPatient;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+
+/**
+ * JSON encoding of search result bundles as the server writes them: pretty
+ * printed, with the narrative generator when narrative is true. Page sizes
+ * are the server's default and maximum page size.
+ *
+ * @author mc142
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dlogback.configurationFile=benchmark-logback.xml" })
+@State(Scope.Thread)
+public class BundleSerializationBenchmark {
+	@Param({ "Patient", "Observation" })
+	private String resourceType;
+
+	@Param({ "50", "200" })
+	private int pageSize;
+
+	@Param({ "true", "false" })
+	private boolean narrative;
+
+	private IParser parser;
+	private Bundle bundle;
+
+	@Setup
+	public void setup() {
+		WebApplicationContext context = BenchmarkContext.install();
+		OmopPatient omopPatient = new OmopPatient(context);
+		OmopObservation omopObservation = new OmopObservation(context);
+
+		FhirContext fhirContext = FhirContext.forDstu3();
+		if (narrative) {
+			fhirContext.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+		}
+		parser = fhirContext.newJsonParser().setPrettyPrint(true);
+
+		bundle = new Bundle();
+		bundle.setType(BundleType.SEARCHSET);
+		bundle.setTotal(pageSize);
+		for (int i = 0; i < pageSize; i++) {
+			long id = i + 1;
+			FPerson person = SyntheticEntities.person(id);
+			Resource resource;
+			if ("Patient".equals(resourceType)) {
+				resource = omopPatient.constructFHIR(id, person);
+			} else {
+				resource = omopObservation.constructFHIR(id, SyntheticEntities.observation(id, person));
+			}
+			bundle.addEntry().setFullUrl("http://localhost:8080/gt-fhir/fhir/" + resourceType + "/" + id)
+					.setResource(resource).getSearch().setMode(SearchEntryMode.MATCH);
+		}
+	}
+
+	@Benchmark
+	public String encodeBundle() {
+		return parser.encodeResourceToString(bundle);
+	}
+}
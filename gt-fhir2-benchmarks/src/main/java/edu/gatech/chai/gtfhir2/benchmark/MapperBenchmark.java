@@ -0,0 +1,304 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.DocumentReference;
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.MedicationRequest;
+import org.hl7.fhir.dstu3.model.MedicationStatement;
+import org.hl7.fhir.dstu3.model.MedicationStatement.MedicationStatementStatus;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.Procedure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.context.WebApplicationContext;
+
+import edu.gatech.chai.gtfhir2.mapping.OmopCondition;
+import edu.gatech.chai.gtfhir2.mapping.OmopDevice;
+import edu.gatech.chai.gtfhir2.mapping.OmopDeviceUseStatement;
+import edu.gatech.chai.gtfhir2.mapping.OmopDocumentReference;
+import edu.gatech.chai.gtfhir2.mapping.OmopEncounter;
+import edu.gatech.chai.gtfhir2.mapping.OmopMedication;
+import edu.gatech.chai.gtfhir2.mapping.OmopMedicationRequest;
+import edu.gatech.chai.gtfhir2.mapping.OmopMedicationStatement;
+import edu.gatech.chai.gtfhir2.mapping.OmopObservation;
+import edu.gatech.chai.gtfhir2.mapping.OmopOrganization;
+import edu.gatech.chai.gtfhir2.mapping.OmopPatient;
+import edu.gatech.chai.gtfhir2.mapping.OmopPractitioner;
+import edu.gatech.chai.gtfhir2.mapping.OmopProcedure;
+import edu.gatech.chai.gtfhir2.model.MyDeviceUseStatement;
+import edu.gatech.chai.gtfhir2.model.MyOrganization;
+import edu.gatech.chai.omopv5.jpa.entity.CareSite;
+import edu.gatech.chai.omopv5.jpa.entity.Concept;
+import edu.gatech.chai.omopv5.jpa.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.jpa.entity.DeviceExposure;
+import edu.gatech.chai.omopv5.jpa.entity.DrugExposure;
+import edu.gatech.chai.omopv5.jpa.entity.FObservationView;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+import edu.gatech.chai.omopv5.jpa.entity.Note;
+import edu.gatech.chai.omopv5.jpa.entity.ProcedureOccurrence;
+import edu.gatech.chai.omopv5.jpa.entity.Provider;
+import edu.gatech.chai.omopv5.jpa.entity.VisitOccurrence;
+
+/**
+ * Per-row cost of the Omop* mappers. constructFHIR maps a synthetic entity
+ * to its FHIR resource. constructOmop maps the resource back to a new entity.
+ * Each call takes the next of {@link #ROWS} rows so that the JIT does not
+ * see the same values every time.
+ *
+ * @author mc142
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dlogback.configurationFile=benchmark-logback.xml" })
+@State(Scope.Thread)
+public class MapperBenchmark {
+	private static final int ROWS = 64;
+
+	private OmopPatient omopPatient;
+	private OmopObservation omopObservation;
+	private OmopCondition omopCondition;
+	private OmopEncounter omopEncounter;
+	private OmopMedication omopMedication;
+	private OmopMedicationRequest omopMedicationRequest;
+	private OmopMedicationStatement omopMedicationStatement;
+	private OmopProcedure omopProcedure;
+	private OmopPractitioner omopPractitioner;
+	private OmopOrganization omopOrganization;
+	private OmopDevice omopDevice;
+	private OmopDeviceUseStatement omopDeviceUseStatement;
+	private OmopDocumentReference omopDocumentReference;
+
+	private FPerson[] persons = new FPerson[ROWS];
+	private FObservationView[] observations = new FObservationView[ROWS];
+	private ConditionOccurrence[] conditions = new ConditionOccurrence[ROWS];
+	private VisitOccurrence[] visits = new VisitOccurrence[ROWS];
+	private Concept[] drugs = new Concept[ROWS];
+	private DrugExposure[] drugExposures = new DrugExposure[ROWS];
+	private ProcedureOccurrence[] procedures = new ProcedureOccurrence[ROWS];
+	private Provider[] providers = new Provider[ROWS];
+	private CareSite[] careSites = new CareSite[ROWS];
+	private DeviceExposure[] deviceExposures = new DeviceExposure[ROWS];
+	private Note[] notes = new Note[ROWS];
+
+	private Patient[] patientResources = new Patient[ROWS];
+	private Observation[] observationResources = new Observation[ROWS];
+	private Condition[] conditionResources = new Condition[ROWS];
+	private Encounter[] encounterResources = new Encounter[ROWS];
+	private MedicationRequest[] medicationRequestResources = new MedicationRequest[ROWS];
+	private MedicationStatement[] medicationStatementResources = new MedicationStatement[ROWS];
+	private Procedure[] procedureResources = new Procedure[ROWS];
+	private Practitioner[] practitionerResources = new Practitioner[ROWS];
+	private MyOrganization[] organizationResources = new MyOrganization[ROWS];
+	private MyDeviceUseStatement[] deviceUseStatementResources = new MyDeviceUseStatement[ROWS];
+	private DocumentReference[] documentReferenceResources = new DocumentReference[ROWS];
+
+	private int row = 0;
+
+	@Setup
+	public void setup() {
+		WebApplicationContext context = BenchmarkContext.install();
+		omopPatient = new OmopPatient(context);
+		omopObservation = new OmopObservation(context);
+		omopCondition = new OmopCondition(context);
+		omopEncounter = new OmopEncounter(context);
+		omopMedication = new OmopMedication(context);
+		omopMedicationRequest = new OmopMedicationRequest(context);
+		omopMedicationStatement = new OmopMedicationStatement(context);
+		omopProcedure = new OmopProcedure(context);
+		omopPractitioner = new OmopPractitioner(context);
+		omopOrganization = new OmopOrganization(context);
+		omopDevice = new OmopDevice(context);
+		omopDeviceUseStatement = new OmopDeviceUseStatement(context);
+		omopDocumentReference = new OmopDocumentReference(context);
+
+		for (int i = 0; i < ROWS; i++) {
+			long id = i + 1;
+			FPerson person = SyntheticEntities.person(id);
+			persons[i] = person;
+			observations[i] = SyntheticEntities.observation(id, person);
+			conditions[i] = SyntheticEntities.condition(id, person);
+			visits[i] = SyntheticEntities.visit(id, person);
+			drugs[i] = SyntheticEntities.drug(id);
+			drugExposures[i] = SyntheticEntities.drugExposure(id, person);
+			procedures[i] = SyntheticEntities.procedure(id, person);
+			providers[i] = SyntheticEntities.provider(id);
+			careSites[i] = SyntheticEntities.careSite(id);
+			deviceExposures[i] = SyntheticEntities.deviceExposure(id, person);
+			notes[i] = SyntheticEntities.note(id, person);
+
+			patientResources[i] = omopPatient.constructFHIR(id, persons[i]);
+			observationResources[i] = omopObservation.constructFHIR(id, observations[i]);
+			conditionResources[i] = omopCondition.constructFHIR(id, conditions[i]);
+			encounterResources[i] = omopEncounter.constructFHIR(id, visits[i]);
+			medicationRequestResources[i] = omopMedicationRequest.constructFHIR(id, drugExposures[i]);
+			medicationStatementResources[i] = omopMedicationStatement.constructFHIR(id, drugExposures[i]);
+			procedureResources[i] = omopProcedure.constructFHIR(id, procedures[i]);
+			practitionerResources[i] = omopPractitioner.constructFHIR(id, providers[i]);
+			organizationResources[i] = omopOrganization.constructFHIR(id, careSites[i]);
+			deviceUseStatementResources[i] = omopDeviceUseStatement.constructFHIR(id, deviceExposures[i]);
+			documentReferenceResources[i] = omopDocumentReference.constructFHIR(id, notes[i]);
+
+			// constructFHIR leaves out elements that clients send and constructOmop requires.
+			medicationStatementResources[i].setStatus(MedicationStatementStatus.ACTIVE);
+			practitionerResources[i].addIdentifier().setValue(providers[i].getProviderSourceValue());
+			organizationResources[i].addIdentifier().setValue(careSites[i].getCareSiteSourceValue());
+		}
+	}
+
+	private int next() {
+		row = (row + 1) & (ROWS - 1);
+		return row;
+	}
+
+	@Benchmark
+	public Object patientConstructFHIR() {
+		int i = next();
+		return omopPatient.constructFHIR((long) i + 1, persons[i]);
+	}
+
+	@Benchmark
+	public Object patientConstructOmop() {
+		return omopPatient.constructOmop(null, patientResources[next()]);
+	}
+
+	@Benchmark
+	public Object observationConstructFHIR() {
+		int i = next();
+		return omopObservation.constructFHIR((long) i + 1, observations[i]);
+	}
+
+	// constructOmop returns null as f_observation_view is a view. Writes go
+	// to the measurement or observation table.
+	@Benchmark
+	public Object observationConstructOmop() {
+		return omopObservation.constructOmopMeasurementObservation(null, observationResources[next()]);
+	}
+
+	@Benchmark
+	public Object conditionConstructFHIR() {
+		int i = next();
+		return omopCondition.constructFHIR((long) i + 1, conditions[i]);
+	}
+
+	@Benchmark
+	public Object conditionConstructOmop() {
+		return omopCondition.constructOmop(null, conditionResources[next()]);
+	}
+
+	@Benchmark
+	public Object encounterConstructFHIR() {
+		int i = next();
+		return omopEncounter.constructFHIR((long) i + 1, visits[i]);
+	}
+
+	@Benchmark
+	public Object encounterConstructOmop() {
+		return omopEncounter.constructOmop(null, encounterResources[next()]);
+	}
+
+	// Medication is read-only. There is no constructOmop.
+	@Benchmark
+	public Object medicationConstructFHIR() {
+		int i = next();
+		return omopMedication.constructFHIR(drugs[i].getId(), drugs[i]);
+	}
+
+	@Benchmark
+	public Object medicationRequestConstructFHIR() {
+		int i = next();
+		return omopMedicationRequest.constructFHIR((long) i + 1, drugExposures[i]);
+	}
+
+	@Benchmark
+	public Object medicationRequestConstructOmop() {
+		return omopMedicationRequest.constructOmop(null, medicationRequestResources[next()]);
+	}
+
+	@Benchmark
+	public Object medicationStatementConstructFHIR() {
+		int i = next();
+		return omopMedicationStatement.constructFHIR((long) i + 1, drugExposures[i]);
+	}
+
+	@Benchmark
+	public Object medicationStatementConstructOmop() {
+		return omopMedicationStatement.constructOmop(null, medicationStatementResources[next()]);
+	}
+
+	@Benchmark
+	public Object procedureConstructFHIR() {
+		int i = next();
+		return omopProcedure.constructFHIR((long) i + 1, procedures[i]);
+	}
+
+	@Benchmark
+	public Object procedureConstructOmop() {
+		return omopProcedure.constructOmop(null, procedureResources[next()]);
+	}
+
+	@Benchmark
+	public Object practitionerConstructFHIR() {
+		int i = next();
+		return omopPractitioner.constructFHIR((long) i + 1, providers[i]);
+	}
+
+	@Benchmark
+	public Object practitionerConstructOmop() {
+		return omopPractitioner.constructOmop(null, practitionerResources[next()]);
+	}
+
+	@Benchmark
+	public Object organizationConstructFHIR() {
+		int i = next();
+		return omopOrganization.constructFHIR((long) i + 1, careSites[i]);
+	}
+
+	@Benchmark
+	public Object organizationConstructOmop() {
+		return omopOrganization.constructOmop(null, organizationResources[next()]);
+	}
+
+	// Device is read-only. constructOmop is not implemented.
+	@Benchmark
+	public Object deviceConstructFHIR() {
+		int i = next();
+		return omopDevice.constructFHIR((long) i + 1, deviceExposures[i]);
+	}
+
+	@Benchmark
+	public Object deviceUseStatementConstructFHIR() {
+		int i = next();
+		return omopDeviceUseStatement.constructFHIR((long) i + 1, deviceExposures[i]);
+	}
+
+	@Benchmark
+	public Object deviceUseStatementConstructOmop() {
+		return omopDeviceUseStatement.constructOmop(null, deviceUseStatementResources[next()]);
+	}
+
+	@Benchmark
+	public Object documentReferenceConstructFHIR() {
+		int i = next();
+		return omopDocumentReference.constructFHIR((long) i + 1, notes[i]);
+	}
+
+	@Benchmark
+	public Object documentReferenceConstructOmop() {
+		return omopDocumentReference.constructOmop(null, documentReferenceResources[next()]);
+	}
+}
@@ -0,0 +1,42 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+/**
+ * Lets Hibernate build the entity manager factory without a database. Any
+ * attempt to run a query fails.
+ *
+ * @author mc142
+ *
+ */
+public class NoConnectionProvider implements ConnectionProvider {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		throw new SQLException("No database in the benchmarks");
+	}
+
+	@Override
+	public void closeConnection(Connection conn) throws SQLException {
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean isUnwrappableAs(Class unwrapType) {
+		return false;
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> unwrapType) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,121 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+import edu.gatech.chai.omopv5.jpa.entity.FObservationView;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * ParameterWrapper.constructPredicate for the search shapes the mappers
+ * build. Each operation creates the criteria query and root the way
+ * BaseEntityServiceImp does, and builds the predicates. No SQL is run.
+ *
+ * @author mc142
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dlogback.configurationFile=benchmark-logback.xml" })
+@State(Scope.Benchmark)
+public class PredicateBenchmark {
+	// Patients per query in Group export.
+	private static final int ID_LIST_SIZE = 500;
+
+	private CriteriaBuilder builder;
+
+	// Patient?name=smith
+	private List<ParameterWrapper> patientName;
+	// Patient?_id=1,2,...
+	private List<ParameterWrapper> patientIds;
+	// Observation?code=http://loinc.org|4548-4
+	private List<ParameterWrapper> observationCode;
+	// Observation?date=ge2015-01-01&date=le2015-12-31
+	private List<ParameterWrapper> observationDateRange;
+	// Observation?patient=1&code=http://loinc.org|4548-4&date=ge2015-01-01&date=le2015-12-31
+	private List<ParameterWrapper> observationPatientCodeDate;
+
+	@Setup
+	public void setup() {
+		builder = BenchmarkContext.getEntityManagerFactory().getCriteriaBuilder();
+
+		patientName = Arrays.asList(new ParameterWrapper("String",
+				Arrays.asList("familyName", "givenName1", "givenName2", "prefixName", "suffixName"),
+				Arrays.asList("like", "like", "like", "like", "like"), Arrays.asList("%smith%"), "or"));
+
+		List<String> operators = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		for (int i = 1; i <= ID_LIST_SIZE; i++) {
+			operators.add("=");
+			values.add(String.valueOf(i));
+		}
+		patientIds = Arrays.asList(new ParameterWrapper("Long", Arrays.asList("id"), operators, values, "or"));
+
+		ParameterWrapper code = new ParameterWrapper("Token",
+				Arrays.asList("observationConcept.vocabulary.id", "observationConcept.conceptCode"),
+				Arrays.asList("=", "="), Arrays.asList("LOINC", "4548-4"), "and");
+		observationCode = Arrays.asList(code);
+
+		ParameterWrapper dateRange = new ParameterWrapper("Date", Arrays.asList("date", "date"),
+				Arrays.asList(">=", "<="), Arrays.asList(String.valueOf(SyntheticEntities.date(0).getTime()),
+						String.valueOf(SyntheticEntities.date(364).getTime())),
+				"and");
+		observationDateRange = Arrays.asList(dateRange);
+
+		ParameterWrapper patient = new ParameterWrapper("Long", Arrays.asList("fPerson.id"), Arrays.asList("="),
+				Arrays.asList("1"), "or");
+		observationPatientCodeDate = Arrays.asList(patient, code, dateRange);
+	}
+
+	private <T extends BaseEntity> Object predicates(Class<T> entityClass, List<ParameterWrapper> paramList) {
+		CriteriaQuery<T> query = builder.createQuery(entityClass);
+		Root<T> root = query.from(entityClass);
+		return ParameterWrapper.constructPredicate(builder, paramList, root);
+	}
+
+	@Benchmark
+	public Object patientName() {
+		return predicates(FPerson.class, patientName);
+	}
+
+	@Benchmark
+	public Object patientIds() {
+		return predicates(FPerson.class, patientIds);
+	}
+
+	@Benchmark
+	public Object observationCode() {
+		return predicates(FObservationView.class, observationCode);
+	}
+
+	@Benchmark
+	public Object observationDateRange() {
+		return predicates(FObservationView.class, observationDateRange);
+	}
+
+	@Benchmark
+	public Object observationPatientCodeDate() {
+		return predicates(FObservationView.class, observationPatientCodeDate);
+	}
+}
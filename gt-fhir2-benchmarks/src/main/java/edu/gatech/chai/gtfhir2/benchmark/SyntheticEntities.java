@@ -0,0 +1,247 @@
+package edu.gatech.chai.gtfhir2.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+
+import edu.gatech.chai.omopv5.jpa.entity.CareSite;
+import edu.gatech.chai.omopv5.jpa.entity.Concept;
+import edu.gatech.chai.omopv5.jpa.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.jpa.entity.DeviceExposure;
+import edu.gatech.chai.omopv5.jpa.entity.DrugExposure;
+import edu.gatech.chai.omopv5.jpa.entity.FObservationView;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+import edu.gatech.chai.omopv5.jpa.entity.Location;
+import edu.gatech.chai.omopv5.jpa.entity.Note;
+import edu.gatech.chai.omopv5.jpa.entity.ProcedureOccurrence;
+import edu.gatech.chai.omopv5.jpa.entity.Provider;
+import edu.gatech.chai.omopv5.jpa.entity.VisitOccurrence;
+import edu.gatech.chai.omopv5.jpa.entity.Vocabulary;
+
+/**
+ * OMOP entities with all the columns the mappers read filled in. Values
+ * depend only on the id. So, runs are repeatable.
+ *
+ * @author mc142
+ *
+ */
+public class SyntheticEntities {
+	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia",
+			"Miller", "Davis" };
+	private static final String[] GIVEN_NAMES = { "James", "Mary", "Robert", "Patricia", "John", "Jennifer",
+			"Michael", "Linda" };
+
+	private SyntheticEntities() {
+	}
+
+	public static Vocabulary vocabulary(String vocabularyId) {
+		Vocabulary vocabulary = new Vocabulary(vocabularyId, vocabularyId);
+		vocabulary.setVocabularyReference("http://omop.org/" + vocabularyId);
+		return vocabulary;
+	}
+
+	public static Concept concept(Long conceptId, String vocabularyId, String conceptCode, String name) {
+		Concept concept = new Concept(conceptId, name);
+		concept.setVocabulary(vocabulary(vocabularyId));
+		concept.setConceptCode(conceptCode);
+		concept.setDomain("Observation");
+		concept.setConceptClass("Clinical Finding");
+		concept.setStandardConcept('S');
+		return concept;
+	}
+
+	public static Date date(long id) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2015, Calendar.JANUARY, 1);
+		calendar.add(Calendar.DAY_OF_YEAR, (int) (id % 1000));
+		return calendar.getTime();
+	}
+
+	public static Location location(long id) {
+		Location location = new Location(id + " Peachtree St", "Suite " + (id % 100), "Atlanta", "GA",
+				String.valueOf(30300 + id % 100));
+		location.setLocationSourceValue("L" + id);
+		location.setId(id);
+		return location;
+	}
+
+	public static CareSite careSite(long id) {
+		CareSite careSite = new CareSite();
+		careSite.setId(id);
+		careSite.setLocation(location(id));
+		careSite.setPlaceOfServiceConcept(concept(8756L, "Place of Service", "22", "Outpatient Hospital"));
+		careSite.setCareSiteName("Care Site " + id);
+		careSite.setCareSiteSourceValue("CS" + id);
+		careSite.setPlaceOfServiceSourceValue("22");
+		return careSite;
+	}
+
+	public static Provider provider(long id) {
+		Provider provider = new Provider();
+		provider.setId(id);
+		provider.setProviderName("Dr. " + FAMILY_NAMES[(int) (id % FAMILY_NAMES.length)]);
+		provider.setNpi(String.valueOf(1000000000L + id));
+		provider.setDea("AB" + id);
+		provider.setSpecialtyConcept(concept(38004446L, "Specialty", "01", "General Practice"));
+		provider.setCareSite(careSite(id));
+		provider.setYearOfBirth(1960 + (int) (id % 30));
+		provider.setGenderConcept(gender(id));
+		provider.setProviderSourceValue("PR" + id);
+		return provider;
+	}
+
+	public static Concept gender(long id) {
+		if (id % 2 == 0)
+			return concept(8507L, "Gender", "M", "MALE");
+		return concept(8532L, "Gender", "F", "FEMALE");
+	}
+
+	public static FPerson person(long id) {
+		FPerson person = new FPerson();
+		person.setId(id);
+		person.setPersonSourceValue("MRN" + id);
+		person.setGenderConcept(gender(id));
+		person.setYearOfBirth(1940 + (int) (id % 60));
+		person.setMonthOfBirth(1 + (int) (id % 12));
+		person.setDayOfBirth(1 + (int) (id % 28));
+		person.setRaceConcept(concept(8527L, "Race", "5", "White"));
+		person.setEthnicityConcept(concept(38003564L, "Ethnicity", "Not Hispanic", "Not Hispanic or Latino"));
+		person.setLocation(location(id));
+		person.setProvider(provider(id % 100 + 1));
+		person.setCareSite(careSite(id % 10 + 1));
+		person.setFamilyName(FAMILY_NAMES[(int) (id % FAMILY_NAMES.length)]);
+		person.setGivenName1(GIVEN_NAMES[(int) (id % GIVEN_NAMES.length)]);
+		person.setGivenName2(GIVEN_NAMES[(int) ((id + 3) % GIVEN_NAMES.length)]);
+		person.setMaritalStatus("M");
+		person.setActive((short) 1);
+		person.setContactPoint1("phone:home:404-555-" + (1000 + id % 9000));
+		person.setContactPoint2("email:work:patient" + id + "@example.org");
+		return person;
+	}
+
+	public static VisitOccurrence visit(long id, FPerson person) {
+		VisitOccurrence visit = new VisitOccurrence(id);
+		visit.setFPerson(person);
+		visit.setVisitConcept(concept(9202L, "Visit", "OP", "Outpatient Visit"));
+		visit.setStartDate(date(id));
+		visit.setStartTime("09:30:00");
+		visit.setEndDate(date(id));
+		visit.setEndTime("10:15:00");
+		visit.setVisitTypeConcept(concept(44818518L, "Visit Type", "OMOP4822465", "Visit derived from EHR record"));
+		visit.setProvider(person.getProvider());
+		visit.setCareSite(person.getCareSite());
+		visit.setVisitSourceValue("V" + id);
+		return visit;
+	}
+
+	/**
+	 * A lab result with a numeric value, unit and reference range.
+	 */
+	public static FObservationView observation(long id, FPerson person) {
+		FObservationView observation = new FObservationView();
+		observation.setId(id);
+		observation.setFPerson(person);
+		observation.setObservationConcept(concept(3004410L, "LOINC", "4548-4", "Hemoglobin A1c/Hemoglobin.total in Blood"));
+		observation.setDate(date(id));
+		observation.setTime("09:45:00");
+		observation.setValueAsNumber(5.0 + (id % 40) / 10.0);
+		observation.setTypeConcept(concept(44818702L, "Meas Type", "OMOP4822481", "Lab result"));
+		observation.setProvider(person.getProvider());
+		observation.setVisitOccurrence(visit(id, person));
+		observation.setSourceValue("4548-4");
+		observation.setUnitConcept(concept(8554L, "UCUM", "%", "percent"));
+		observation.setUnitSourceValue("%");
+		observation.setRangeLow(new BigDecimal("4.0"));
+		observation.setRangeHigh(new BigDecimal("5.6"));
+		return observation;
+	}
+
+	public static ConditionOccurrence condition(long id, FPerson person) {
+		ConditionOccurrence condition = new ConditionOccurrence();
+		condition.setId(id);
+		condition.setFPerson(person);
+		condition.setConceptId(concept(201826L, "SNOMED", "44054006", "Type 2 diabetes mellitus"));
+		condition.setStartDate(date(id));
+		condition.setEndDate(date(id + 30));
+		condition.setTypeConceptId(concept(32020L, "Condition Type", "OMOP4822053", "EHR encounter diagnosis"));
+		condition.setProvider(person.getProvider());
+		condition.setVisitOccurrence(visit(id, person));
+		condition.setConditionSourceValue("E11.9");
+		condition.setSourceConceptId(concept(45576876L, "ICD10CM", "E11.9", "Type 2 diabetes mellitus without complications"));
+		return condition;
+	}
+
+	public static Concept drug(long id) {
+		Concept drug = concept(1503297L + id % 10, "RxNorm", String.valueOf(861007L + id % 10),
+				"Metformin hydrochloride 500 MG Oral Tablet");
+		drug.setDomain("Drug");
+		drug.setConceptClass("Clinical Drug");
+		return drug;
+	}
+
+	public static DrugExposure drugExposure(long id, FPerson person) {
+		DrugExposure drugExposure = new DrugExposure(id);
+		drugExposure.setFPerson(person);
+		drugExposure.setDrugConcept(drug(id));
+		drugExposure.setDrugExposureStartDate(date(id));
+		drugExposure.setDrugExposureEndDate(date(id + 90));
+		drugExposure.setDrugTypeConcept(concept(38000177L, "Drug Type", "OMOP4822241", "Prescription written"));
+		drugExposure.setRefills(2);
+		drugExposure.setQuantity(60.0);
+		drugExposure.setDaysSupply(30);
+		drugExposure.setSig("Take 1 tablet by mouth twice daily");
+		drugExposure.setRouteConcept(concept(4132161L, "SNOMED", "26643006", "Oral"));
+		drugExposure.setEffectiveDrugDose(500.0);
+		drugExposure.setDoseUnitConcept(concept(8576L, "UCUM", "mg", "milligram"));
+		drugExposure.setProvider(person.getProvider());
+		drugExposure.setVisitOccurrence(visit(id, person));
+		drugExposure.setDrugSourceValue("861007");
+		drugExposure.setRouteSourceValue("PO");
+		drugExposure.setDoseUnitSourceValue("mg");
+		return drugExposure;
+	}
+
+	public static ProcedureOccurrence procedure(long id, FPerson person) {
+		ProcedureOccurrence procedure = new ProcedureOccurrence(id);
+		procedure.setFPerson(person);
+		procedure.setProcedureConcept(concept(2213283L, "CPT4", "83036", "Hemoglobin; glycosylated (A1C)"));
+		procedure.setProcedureDate(date(id));
+		procedure.setProcedureTypeConcept(concept(38000275L, "Procedure Type", "OMOP4822259", "EHR order list entry"));
+		procedure.setQuantity(1L);
+		procedure.setProvider(person.getProvider());
+		procedure.setVisitOccurrence(visit(id, person));
+		procedure.setProcedureSourceValue("83036");
+		return procedure;
+	}
+
+	public static DeviceExposure deviceExposure(long id, FPerson person) {
+		DeviceExposure deviceExposure = new DeviceExposure();
+		deviceExposure.setId(id);
+		deviceExposure.setFPerson(person);
+		deviceExposure.setDeviceConcept(concept(4164160L, "SNOMED", "43252007", "Glucose meter"));
+		deviceExposure.setDeviceExposureStartDate(date(id));
+		deviceExposure.setDeviceExposureEndDate(date(id + 365));
+		deviceExposure.setUniqueDeviceId("UDI" + id);
+		deviceExposure.setDeviceTypeConcept(concept(44818707L, "Device Type", "OMOP4822482", "EHR Detail"));
+		deviceExposure.setProvider(person.getProvider());
+		deviceExposure.setVisitOccurrence(visit(id, person));
+		deviceExposure.setDeviceSourceValue("43252007");
+		deviceExposure.setQuantity(1);
+		return deviceExposure;
+	}
+
+	public static Note note(long id, FPerson person) {
+		Note note = new Note(id);
+		note.setFPerson(person);
+		note.setDate(date(id));
+		note.setTime("10:00:00");
+		note.setType(concept(44814640L, "Note Type", "OMOP4822457", "Outpatient note"));
+		note.setNoteText("Patient seen for follow up of type 2 diabetes. A1c improved. Continue metformin 500 mg "
+				+ "twice daily. Return in three months.");
+		note.setProvider(person.getProvider());
+		note.setVisitOccurrence(visit(id, person));
+		note.setNoteSourceValue("N" + id);
+		return note;
+	}
+}
@@ -0,0 +1,105 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Insert into one table, sent as JDBC batches. Values are set in column
+ * order with the add* methods, and end() adds the row to the batch. The
+ * batch is sent on flush(). So, the caller decides the order of tables for
+ * the foreign keys.
+ *
+ * With the PostgreSQL driver, reWriteBatchedInserts=true in the JDBC URL
+ * makes each batch one multi-row insert.
+ *
+ * @author mc142
+ *
+ */
+public class BatchInsert {
+	private final String table;
+	private final PreparedStatement statement;
+	private int column = 1;
+	private int pending = 0;
+	private long rows = 0;
+
+	public BatchInsert(Connection connection, String table, String columns) throws SQLException {
+		this.table = table;
+
+		int count = columns.split(",").length;
+		StringBuilder values = new StringBuilder("?");
+		for (int i = 1; i < count; i++) {
+			values.append(", ?");
+		}
+		this.statement = connection
+				.prepareStatement("insert into " + table + " (" + columns + ") values (" + values + ")");
+	}
+
+	public BatchInsert add(Long value) throws SQLException {
+		if (value == null) {
+			statement.setNull(column++, Types.BIGINT);
+		} else {
+			statement.setLong(column++, value);
+		}
+		return this;
+	}
+
+	public BatchInsert add(Integer value) throws SQLException {
+		if (value == null) {
+			statement.setNull(column++, Types.INTEGER);
+		} else {
+			statement.setInt(column++, value);
+		}
+		return this;
+	}
+
+	public BatchInsert add(Double value) throws SQLException {
+		if (value == null) {
+			statement.setNull(column++, Types.DOUBLE);
+		} else {
+			statement.setDouble(column++, value);
+		}
+		return this;
+	}
+
+	public BatchInsert add(String value) throws SQLException {
+		statement.setString(column++, value);
+		return this;
+	}
+
+	public BatchInsert add(java.util.Date value) throws SQLException {
+		if (value == null) {
+			statement.setNull(column++, Types.DATE);
+		} else {
+			statement.setDate(column++, new java.sql.Date(value.getTime()));
+		}
+		return this;
+	}
+
+	public void end() throws SQLException {
+		statement.addBatch();
+		column = 1;
+		rows++;
+		pending++;
+	}
+
+	public void flush() throws SQLException {
+		if (pending > 0) {
+			statement.executeBatch();
+			pending = 0;
+		}
+	}
+
+	public void close() throws SQLException {
+		statement.close();
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+}
@@ -0,0 +1,61 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of one operation in microseconds. Not thread safe. Each worker
+ * has its own, and they are merged for the report.
+ *
+ * @author mc142
+ *
+ */
+public class LatencyRecorder {
+	private long[] values = new long[1024];
+	private int size = 0;
+	private int errors = 0;
+	private boolean sorted = true;
+
+	public void record(long micros) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = micros;
+		sorted = false;
+	}
+
+	public void error() {
+		errors++;
+	}
+
+	public void merge(LatencyRecorder other) {
+		if (size + other.size > values.length) {
+			values = Arrays.copyOf(values, size + other.size);
+		}
+		System.arraycopy(other.values, 0, values, size, other.size);
+		size += other.size;
+		errors += other.errors;
+		sorted = false;
+	}
+
+	public int getCount() {
+		return size;
+	}
+
+	public int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Nearest-rank percentile, 0 when nothing was recorded.
+	 */
+	public long percentile(double percent) {
+		if (size == 0)
+			return 0L;
+		if (!sorted) {
+			Arrays.sort(values, 0, size);
+			sorted = true;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * size);
+		return values[Math.max(0, rank - 1)];
+	}
+}
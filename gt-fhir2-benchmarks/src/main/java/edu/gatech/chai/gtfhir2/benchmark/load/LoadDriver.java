@@ -0,0 +1,286 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a mix of FHIR reads, searches and writes against a running server
+ * and reports latency percentiles per operation. Patient ids are picked
+ * from --first-person to --first-person + --persons - 1. So, run it against
+ * data loaded by {@link OmopDataGenerator}.
+ *
+ * Each of --threads workers sends one request at a time for --warmup plus
+ * --duration seconds. Only requests that start after the warmup are
+ * counted. Responses with status 400 or above are counted as errors.
+ *
+ * java -cp benchmarks.jar edu.gatech.chai.gtfhir2.benchmark.load.LoadDriver \
+ *   --base-url http://localhost:8080/gt-fhir/fhir --persons 100000 --threads 16
+ *
+ * --read-only leaves out the writes. --token sets a bearer token.
+ *
+ * @author mc142
+ *
+ */
+public class LoadDriver {
+	private static final String FHIR_JSON = "application/fhir+json";
+	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia" };
+	private static final String[] GIVEN_NAMES = { "James", "Mary", "Robert", "Patricia", "John", "Jennifer" };
+
+	private final String baseUrl;
+	private final String token;
+	private final long firstPerson;
+	private final int personCount;
+	private final List<Operation> operations = new ArrayList<Operation>();
+	private int totalWeight = 0;
+
+	/**
+	 * One kind of request. path() returns the path relative to the base URL.
+	 * Writes also return a body.
+	 */
+	private abstract class Operation {
+		final String name;
+		final String method;
+		final int weight;
+
+		Operation(String name, String method, int weight) {
+			this.name = name;
+			this.method = method;
+			this.weight = weight;
+		}
+
+		abstract String path(Random random);
+
+		String body(Random random) {
+			return null;
+		}
+	}
+
+	public LoadDriver(String baseUrl, String token, long firstPerson, int personCount, boolean readOnly) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+		this.token = token;
+		this.firstPerson = firstPerson;
+		this.personCount = personCount;
+
+		add(new Operation("Patient read", "GET", 25) {
+			String path(Random random) {
+				return "Patient/" + person(random);
+			}
+		});
+		add(new Operation("Patient?family&given", "GET", 5) {
+			String path(Random random) {
+				return "Patient?family=" + pick(random, FAMILY_NAMES) + "&given=" + pick(random, GIVEN_NAMES);
+			}
+		});
+		add(new Operation("Observation?patient", "GET", 20) {
+			String path(Random random) {
+				return "Observation?patient=" + person(random);
+			}
+		});
+		add(new Operation("Observation?patient&code", "GET", 10) {
+			String path(Random random) {
+				return "Observation?patient=" + person(random) + "&code=" + encode("http://loinc.org|8480-6");
+			}
+		});
+		add(new Operation("Condition?patient", "GET", 10) {
+			String path(Random random) {
+				return "Condition?patient=" + person(random);
+			}
+		});
+		add(new Operation("MedicationStatement?patient", "GET", 10) {
+			String path(Random random) {
+				return "MedicationStatement?patient=" + person(random);
+			}
+		});
+		add(new Operation("Encounter?patient", "GET", 10) {
+			String path(Random random) {
+				return "Encounter?patient=" + person(random);
+			}
+		});
+		if (!readOnly) {
+			add(new Operation("Observation create", "POST", 7) {
+				String path(Random random) {
+					return "Observation";
+				}
+
+				String body(Random random) {
+					return "{\"resourceType\":\"Observation\",\"status\":\"final\",\"code\":{\"coding\":[{\"system\":"
+							+ "\"http://loinc.org\",\"code\":\"8867-4\",\"display\":\"Heart rate\"}]},"
+							+ "\"subject\":{\"reference\":\"Patient/" + person(random) + "\"},"
+							+ "\"effectiveDateTime\":\"2019-06-01T10:30:00Z\",\"valueQuantity\":{\"value\":"
+							+ (55 + random.nextInt(50)) + ",\"unit\":\"/min\",\"system\":\"http://unitsofmeasure.org\","
+							+ "\"code\":\"/min\"}}";
+				}
+			});
+			add(new Operation("Condition create", "POST", 3) {
+				String path(Random random) {
+					return "Condition";
+				}
+
+				String body(Random random) {
+					return "{\"resourceType\":\"Condition\",\"clinicalStatus\":\"active\",\"code\":{\"coding\":[{"
+							+ "\"system\":\"http://snomed.info/sct\",\"code\":\"59621000\","
+							+ "\"display\":\"Essential hypertension\"}]},"
+							+ "\"subject\":{\"reference\":\"Patient/" + person(random) + "\"},"
+							+ "\"onsetDateTime\":\"2019-06-01\"}";
+				}
+			});
+		}
+	}
+
+	private void add(Operation operation) {
+		operations.add(operation);
+		totalWeight += operation.weight;
+	}
+
+	private long person(Random random) {
+		return firstPerson + random.nextInt(personCount);
+	}
+
+	private static String pick(Random random, String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int pickOperation(Random random) {
+		int value = random.nextInt(totalWeight);
+		for (int i = 0; i < operations.size(); i++) {
+			value -= operations.get(i).weight;
+			if (value < 0)
+				return i;
+		}
+		return operations.size() - 1;
+	}
+
+	/**
+	 * Sends the request and reads the whole response. Returns the status.
+	 */
+	private int send(Operation operation, Random random, byte[] buffer) throws IOException {
+		String path = operation.path(random);
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setRequestMethod(operation.method);
+		connection.setRequestProperty("Accept", FHIR_JSON);
+		if (token != null) {
+			connection.setRequestProperty("Authorization", "Bearer " + token);
+		}
+
+		String body = operation.body(random);
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", FHIR_JSON + "; charset=UTF-8");
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			try {
+				while (in.read(buffer) != -1) {
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Runs the workers and returns the merged latencies, one per operation.
+	 */
+	public LatencyRecorder[] run(int threadCount, int warmupSeconds, int durationSeconds, long seed)
+			throws InterruptedException {
+		final long measureStart = System.nanoTime() + warmupSeconds * 1000000000L;
+		final long end = measureStart + durationSeconds * 1000000000L;
+		final LatencyRecorder[][] recorders = new LatencyRecorder[threadCount][operations.size()];
+
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final LatencyRecorder[] threadRecorders = recorders[t];
+			for (int i = 0; i < operations.size(); i++) {
+				threadRecorders[i] = new LatencyRecorder();
+			}
+			final Random random = new Random(seed + t);
+
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					long start;
+					while ((start = System.nanoTime()) < end) {
+						int index = pickOperation(random);
+						boolean ok;
+						try {
+							ok = send(operations.get(index), random, buffer) < 400;
+						} catch (IOException e) {
+							ok = false;
+						}
+						if (start < measureStart)
+							continue;
+						if (ok) {
+							threadRecorders[index].record((System.nanoTime() - start) / 1000L);
+						} else {
+							threadRecorders[index].error();
+						}
+					}
+				}
+			}, "load-" + t);
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		LatencyRecorder[] merged = new LatencyRecorder[operations.size()];
+		for (int i = 0; i < operations.size(); i++) {
+			merged[i] = new LatencyRecorder();
+			for (int t = 0; t < threadCount; t++) {
+				merged[i].merge(recorders[t][i]);
+			}
+		}
+		return merged;
+	}
+
+	public void report(LatencyRecorder[] results, int durationSeconds) {
+		System.out.println(String.format("%-30s %9s %7s %9s %9s %9s %9s", "Operation", "Count", "Errors",
+				"Ops/s", "p50 ms", "p95 ms", "p99 ms"));
+		for (int i = 0; i < operations.size(); i++) {
+			LatencyRecorder result = results[i];
+			System.out.println(String.format("%-30s %9d %7d %9.1f %9.1f %9.1f %9.1f", operations.get(i).name,
+					result.getCount(), result.getErrors(), result.getCount() / (double) durationSeconds,
+					result.percentile(50) / 1000.0, result.percentile(95) / 1000.0,
+					result.percentile(99) / 1000.0));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = new LoadOptions(args);
+		int threadCount = options.getInt("threads", 8);
+		int warmupSeconds = options.getInt("warmup", 30);
+		int durationSeconds = options.getInt("duration", 120);
+
+		LoadDriver driver = new LoadDriver(options.get("base-url", "http://localhost:8080/gt-fhir/fhir"),
+				options.get("token", null), options.getInt("first-person", 1), options.getInt("persons", 10000),
+				options.getBoolean("read-only"));
+		LatencyRecorder[] results = driver.run(threadCount, warmupSeconds, durationSeconds,
+				options.getInt("seed", 1));
+		driver.report(results, durationSeconds);
+	}
+}
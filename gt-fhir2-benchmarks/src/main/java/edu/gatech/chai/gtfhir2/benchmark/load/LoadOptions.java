@@ -0,0 +1,43 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the form --name value. A name without a value is
+ * set to true.
+ *
+ * @author mc142
+ *
+ */
+public class LoadOptions {
+	private Map<String, String> values = new HashMap<String, String>();
+
+	public LoadOptions(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+			String name = args[i].substring(2);
+			if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+				values.put(name, args[++i]);
+			} else {
+				values.put(name, "true");
+			}
+		}
+	}
+
+	public String get(String name, String defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public boolean getBoolean(String name) {
+		return Boolean.parseBoolean(values.get(name));
+	}
+}
@@ -0,0 +1,394 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static edu.gatech.chai.gtfhir2.benchmark.load.SyntheticVocabulary.*;
+
+/**
+ * Loads synthetic patients into an OMOP v5 database for end-to-end
+ * benchmarks. Each person gets a location, f_person row and 1 to 8 visits.
+ * Each visit has conditions, drug exposures, a systolic/diastolic blood
+ * pressure pair, and sometimes labs, an observation, a note and a device
+ * exposure. There is a care site for every 1000 persons and a provider for
+ * every 100.
+ *
+ * Rows are sent in batches of --batch-persons persons and committed every
+ * --commit-persons persons. The schema must exist. Ids continue from the
+ * largest id in each table, and the id sequences are moved past the new rows
+ * at the end. So, it can be run again to add more persons. Data depend only
+ * on the seed.
+ *
+ * java -cp benchmarks.jar edu.gatech.chai.gtfhir2.benchmark.load.OmopDataGenerator \
+ *   --url "jdbc:postgresql://localhost:5438/postgres?reWriteBatchedInserts=true" \
+ *   --user postgres --password postgres --persons 100000
+ *
+ * @author mc142
+ *
+ */
+public class OmopDataGenerator {
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+	private static final int DAYS = 3650;
+
+	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia",
+			"Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas",
+			"Taylor" };
+	private static final String[] GIVEN_NAMES = { "James", "Mary", "Robert", "Patricia", "John", "Jennifer",
+			"Michael", "Linda", "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph",
+			"Jessica" };
+	private static final String[] CITIES = { "Atlanta", "Decatur", "Marietta", "Athens", "Savannah", "Macon" };
+
+	private static final long[] CONDITIONS = { TYPE_2_DIABETES, ESSENTIAL_HYPERTENSION, COPD,
+			CORONARY_ARTERIOSCLEROSIS };
+	private static final String[] CONDITION_SOURCE_VALUES = { "E11.9", "I10", "J44.9", "I25.10" };
+	private static final long[] DRUGS = { METFORMIN, LISINOPRIL, ATORVASTATIN };
+	private static final String[] DRUG_SOURCE_VALUES = { "metformin 500 MG", "lisinopril 10 MG",
+			"atorvastatin 20 MG" };
+
+	// sequence, table, id column
+	private static final String[][] SEQUENCES = { { "location_id_seq", "location", "location_id" },
+			{ "caresite_id_seq", "care_site", "care_site_id" }, { "provider_id_seq", "provider", "provider_id" },
+			{ "person_id_seq", "person", "person_id" },
+			{ "visit_occurrence_id_seq", "visit_occurrence", "visit_occurrence_id" },
+			{ "condition_occurrence_id_seq", "condition_occurrence", "condition_occurrence_id" },
+			{ "drug_exposure_id_seq", "drug_exposure", "drug_exposure_id" },
+			{ "measurement_occurrence_id_seq", "measurement", "measurement_id" },
+			{ "observation_occurrence_id_seq", "observation", "observation_id" },
+			{ "note_id_seq", "note", "note_id" },
+			{ "device_exposure_id_seq", "device_exposure", "device_exposure_id" } };
+
+	private final Connection connection;
+	private final Random random;
+	private final long startDate;
+
+	private BatchInsert locations;
+	private BatchInsert careSites;
+	private BatchInsert providers;
+	private BatchInsert persons;
+	private BatchInsert fPersons;
+	private BatchInsert visits;
+	private BatchInsert conditions;
+	private BatchInsert drugExposures;
+	private BatchInsert measurements;
+	private BatchInsert observations;
+	private BatchInsert notes;
+	private BatchInsert deviceExposures;
+	private List<BatchInsert> inserts = new ArrayList<BatchInsert>();
+
+	private long locationId;
+	private long careSiteId;
+	private long providerId;
+	private long personId;
+	private long visitId;
+	private long conditionId;
+	private long drugExposureId;
+	private long measurementId;
+	private long observationId;
+	private long noteId;
+	private long deviceExposureId;
+
+	private long firstCareSiteId;
+	private int careSiteCount;
+	private long firstProviderId;
+	private int providerCount;
+
+	public OmopDataGenerator(Connection connection, long seed) {
+		this.connection = connection;
+		this.random = new Random(seed);
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2010, Calendar.JANUARY, 1, 12, 0);
+		this.startDate = calendar.getTimeInMillis();
+	}
+
+	public void generate(int personCount, int batchPersons, int commitPersons) throws SQLException {
+		locationId = nextId("location", "location_id");
+		careSiteId = nextId("care_site", "care_site_id");
+		providerId = nextId("provider", "provider_id");
+		personId = nextId("person", "person_id");
+		visitId = nextId("visit_occurrence", "visit_occurrence_id");
+		conditionId = nextId("condition_occurrence", "condition_occurrence_id");
+		drugExposureId = nextId("drug_exposure", "drug_exposure_id");
+		measurementId = nextId("measurement", "measurement_id");
+		observationId = nextId("observation", "observation_id");
+		noteId = nextId("note", "note_id");
+		deviceExposureId = nextId("device_exposure", "device_exposure_id");
+
+		locations = insert("location", "location_id, address_1, city, state, zip, location_source_value");
+		careSites = insert("care_site", "care_site_id, care_site_name, location_id, place_of_service_concept_id, "
+				+ "care_site_source_value, place_of_service_source_value");
+		providers = insert("provider", "provider_id, provider_name, npi, care_site_id, year_of_birth, "
+				+ "gender_concept_id, provider_source_value, gender_source_value");
+		persons = insert("person", "person_id, gender_concept_id, year_of_birth, month_of_birth, day_of_birth, "
+				+ "race_concept_id, ethnicity_concept_id, location_id, provider_id, care_site_id, "
+				+ "person_source_value, gender_source_value");
+		fPersons = insert("f_person", "person_id, family_name, given1_name, given2_name, preferred_language, "
+				+ "maritalstatus, active, contact_point1");
+		visits = insert("visit_occurrence", "visit_occurrence_id, person_id, visit_concept_id, visit_start_date, "
+				+ "visit_start_time, visit_end_date, visit_end_time, visit_type_concept_id, provider_id, "
+				+ "care_site_id, visit_source_value");
+		conditions = insert("condition_occurrence", "condition_occurrence_id, person_id, condition_concept_id, "
+				+ "condition_start_date, condition_end_date, condition_type_concept_id, provider_id, "
+				+ "visit_occurrence_id, condition_source_value");
+		drugExposures = insert("drug_exposure", "drug_exposure_id, person_id, drug_concept_id, "
+				+ "drug_exposure_start_date, drug_exposure_end_date, drug_type_concept_id, refills, quantity, "
+				+ "days_supply, sig, provider_id, visit_occurrence_id, drug_source_value");
+		measurements = insert("measurement", "measurement_id, person_id, measurement_concept_id, "
+				+ "measurement_date, measurement_time, measurement_type_concept_id, value_as_number, "
+				+ "unit_concept_id, range_low, range_high, provider_id, visit_occurrence_id, "
+				+ "measurement_source_value, unit_source_value");
+		observations = insert("observation", "observation_id, person_id, observation_concept_id, observation_date, "
+				+ "observation_time, observation_type_concept_id, value_as_string, provider_id, "
+				+ "visit_occurrence_id, observation_source_value");
+		notes = insert("note", "note_id, person_id, note_date, note_time, note_type_concept_id, note_text, "
+				+ "provider_id, visit_occurrence_id, note_source_value");
+		deviceExposures = insert("device_exposure", "device_exposure_id, person_id, device_concept_id, "
+				+ "device_exposure_start_date, device_exposure_end_date, unique_device_id, device_type_concept_id, "
+				+ "quantity, provider_id, visit_occurrence_id, device_source_value");
+
+		try {
+			firstCareSiteId = careSiteId;
+			careSiteCount = personCount / 1000 + 1;
+			for (int i = 0; i < careSiteCount; i++) {
+				careSite();
+			}
+			firstProviderId = providerId;
+			providerCount = personCount / 100 + 1;
+			for (int i = 0; i < providerCount; i++) {
+				provider(i);
+			}
+			flush();
+			connection.commit();
+
+			long start = System.currentTimeMillis();
+			for (int i = 1; i <= personCount; i++) {
+				person();
+				if (i % batchPersons == 0 || i == personCount) {
+					flush();
+				}
+				if (i % commitPersons == 0 || i == personCount) {
+					connection.commit();
+					long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+					System.out.println(i + " persons, " + rows() + " rows, " + (rows() * 1000L / elapsed)
+							+ " rows/s");
+				}
+			}
+
+			updateSequences();
+			connection.commit();
+		} finally {
+			for (BatchInsert insert : inserts) {
+				insert.close();
+			}
+		}
+
+		for (BatchInsert insert : inserts) {
+			System.out.println(insert.getTable() + ": " + insert.getRows());
+		}
+	}
+
+	private BatchInsert insert(String table, String columns) throws SQLException {
+		BatchInsert insert = new BatchInsert(connection, table, columns);
+		inserts.add(insert);
+		return insert;
+	}
+
+	private long nextId(String table, String idColumn) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery("select coalesce(max(" + idColumn + "), 0) from " + table);
+			resultSet.next();
+			return resultSet.getLong(1) + 1;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private void updateSequences() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			for (String[] sequence : SEQUENCES) {
+				statement.execute("select setval('" + sequence[0] + "', (select coalesce(max(" + sequence[2]
+						+ "), 1) from " + sequence[1] + "))");
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	private void flush() throws SQLException {
+		// Parents first for the foreign keys.
+		for (BatchInsert insert : inserts) {
+			insert.flush();
+		}
+	}
+
+	private long rows() {
+		long rows = 0;
+		for (BatchInsert insert : inserts) {
+			rows += insert.getRows();
+		}
+		return rows;
+	}
+
+	private Date day(int day) {
+		return new Date(startDate + day * DAY);
+	}
+
+	private String time() {
+		return String.format("%02d:%02d:00", 8 + random.nextInt(10), random.nextInt(60));
+	}
+
+	private <T> T pick(T[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private long location() throws SQLException {
+		long id = locationId++;
+		locations.add(id).add((100 + random.nextInt(9900)) + " Peachtree St").add(pick(CITIES)).add("GA")
+				.add(String.valueOf(30000 + random.nextInt(1000))).add("L" + id).end();
+		return id;
+	}
+
+	private void careSite() throws SQLException {
+		long location = location();
+		long id = careSiteId++;
+		careSites.add(id).add("Care Site " + id).add(location).add(OUTPATIENT_VISIT).add("CS" + id)
+				.add("Outpatient").end();
+	}
+
+	private void provider(int index) throws SQLException {
+		long id = providerId++;
+		boolean male = random.nextBoolean();
+		providers.add(id).add(pick(GIVEN_NAMES) + " " + pick(FAMILY_NAMES)).add(String.valueOf(1000000000L + id))
+				.add(firstCareSiteId + index % careSiteCount).add(1950 + random.nextInt(40))
+				.add(male ? MALE : FEMALE).add("P" + id).add(male ? "M" : "F").end();
+	}
+
+	private void person() throws SQLException {
+		long location = location();
+		long id = personId++;
+		int providerIndex = random.nextInt(providerCount);
+		long provider = firstProviderId + providerIndex;
+		long careSite = firstCareSiteId + providerIndex % careSiteCount;
+		boolean male = random.nextBoolean();
+
+		persons.add(id).add(male ? MALE : FEMALE).add(1930 + random.nextInt(85)).add(1 + random.nextInt(12))
+				.add(1 + random.nextInt(28)).add(random.nextInt(4) == 0 ? BLACK : WHITE).add(NOT_HISPANIC)
+				.add(location).add(provider).add(careSite).add("MRN" + id).add(male ? "M" : "F").end();
+		fPersons.add(id).add(pick(FAMILY_NAMES)).add(pick(GIVEN_NAMES))
+				.add(random.nextBoolean() ? pick(GIVEN_NAMES) : null).add("en").add(random.nextBoolean() ? "M" : "S")
+				.add(1).add("phone:home:404-555-" + String.format("%04d", random.nextInt(10000))).end();
+
+		// Chronic conditions are recorded at every visit.
+		int conditionCount = 1 + random.nextInt(2);
+		int[] conditionIndexes = new int[conditionCount];
+		for (int i = 0; i < conditionCount; i++) {
+			conditionIndexes[i] = random.nextInt(CONDITIONS.length);
+		}
+
+		int visitCount = 1 + random.nextInt(8);
+		for (int i = 0; i < visitCount; i++) {
+			visit(id, provider, careSite, conditionIndexes);
+		}
+	}
+
+	private void visit(long person, long provider, long careSite, int[] conditionIndexes) throws SQLException {
+		long id = visitId++;
+		int startDay = random.nextInt(DAYS);
+		int type = random.nextInt(10);
+		long visitConcept = type == 0 ? INPATIENT_VISIT : type == 1 ? EMERGENCY_VISIT : OUTPATIENT_VISIT;
+		int endDay = visitConcept == INPATIENT_VISIT ? startDay + 1 + random.nextInt(7) : startDay;
+		Date start = day(startDay);
+		Date end = day(endDay);
+		String time = time();
+
+		visits.add(id).add(person).add(visitConcept).add(start).add(time).add(end).add(time).add(VISIT_FROM_EHR)
+				.add(provider).add(careSite).add("V" + id).end();
+
+		for (int index : conditionIndexes) {
+			conditions.add(conditionId++).add(person).add(CONDITIONS[index]).add(start).add((Date) null)
+					.add(EHR_PROBLEM_LIST).add(provider).add(id).add(CONDITION_SOURCE_VALUES[index]).end();
+		}
+
+		int drugCount = random.nextInt(3);
+		for (int i = 0; i < drugCount; i++) {
+			int index = random.nextInt(DRUGS.length);
+			drugExposures.add(drugExposureId++).add(person).add(DRUGS[index]).add(start).add(day(startDay + 30))
+					.add(random.nextBoolean() ? PRESCRIPTION_WRITTEN : MEDICATION_LIST_ENTRY).add(random.nextInt(3))
+					.add(30.0).add(30).add("1 tablet daily").add(provider).add(id).add(DRUG_SOURCE_VALUES[index])
+					.end();
+		}
+
+		// Systolic and diastolic at the same time, as OmopObservation pairs them.
+		measurement(person, SYSTOLIC, start, time, 100 + random.nextInt(60), MMHG, 90.0, 120.0, provider, id,
+				"8480-6", "mm[Hg]");
+		measurement(person, DIASTOLIC, start, time, 60 + random.nextInt(40), MMHG, 60.0, 80.0, provider, id,
+				"8462-4", "mm[Hg]");
+		if (random.nextInt(10) < 3) {
+			measurement(person, HBA1C, start, time, 4.5 + random.nextInt(60) / 10.0, PERCENT, 4.0, 5.6, provider, id,
+					"4548-4", "%");
+		}
+		if (random.nextBoolean()) {
+			measurement(person, HEART_RATE, start, time, 55 + random.nextInt(50), PER_MINUTE, 60.0, 100.0, provider,
+					id, "8867-4", "/min");
+		}
+
+		if (random.nextInt(5) == 0) {
+			observations.add(observationId++).add(person).add(TOBACCO_USER).add(start).add(time)
+					.add(OBSERVATION_FROM_EHR).add(random.nextBoolean() ? "Current" : "Former").add(provider).add(id)
+					.add("110483000").end();
+		}
+
+		if (visitConcept == INPATIENT_VISIT || random.nextInt(4) == 0) {
+			notes.add(noteId++).add(person).add(end).add(time).add(DISCHARGE_SUMMARY)
+					.add("Patient seen for follow up. Blood pressure and medications reviewed. Plan: continue "
+							+ "current therapy and return in three months.")
+					.add(provider).add(id).add("N" + id).end();
+		}
+
+		if (random.nextInt(20) == 0) {
+			deviceExposures.add(deviceExposureId++).add(person).add(GLUCOSE_METER).add(start)
+					.add(day(startDay + 365)).add("UDI" + deviceExposureId).add(EHR_DETAIL).add(1).add(provider)
+					.add(id).add("337414009").end();
+		}
+	}
+
+	private void measurement(long person, long concept, Date date, String time, double value, long unit,
+			double rangeLow, double rangeHigh, long provider, long visit, String sourceValue, String unitSourceValue)
+			throws SQLException {
+		measurements.add(measurementId++).add(person).add(concept).add(date).add(time).add(LAB_RESULT).add(value)
+				.add(unit).add(rangeLow).add(rangeHigh).add(provider).add(visit).add(sourceValue)
+				.add(unitSourceValue).end();
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = new LoadOptions(args);
+		String url = options.get("url", "jdbc:postgresql://localhost:5432/postgres?reWriteBatchedInserts=true");
+		int personCount = options.getInt("persons", 10000);
+		int batchPersons = options.getInt("batch-persons", 100);
+		int commitPersons = options.getInt("commit-persons", 10000);
+		long seed = options.getInt("seed", 1);
+
+		Connection connection = DriverManager.getConnection(url, options.get("user", "postgres"),
+				options.get("password", ""));
+		try {
+			connection.setAutoCommit(false);
+			SyntheticVocabulary.load(connection);
+			connection.commit();
+
+			new OmopDataGenerator(connection, seed).generate(personCount, batchPersons, commitPersons);
+		} finally {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package edu.gatech.chai.gtfhir2.benchmark.load;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Minimal vocabulary subset for the generated data. Concept ids are those of
+ * the OMOP vocabularies. So, a database with the full vocabulary already has
+ * them. Rows are inserted only when missing.
+ *
+ * @author mc142
+ *
+ */
+public class SyntheticVocabulary {
+	public static final long NO_MATCHING_CONCEPT = 0L;
+
+	public static final long MALE = 8507L;
+	public static final long FEMALE = 8532L;
+	public static final long WHITE = 8527L;
+	public static final long BLACK = 8516L;
+	public static final long NOT_HISPANIC = 38003564L;
+
+	public static final long INPATIENT_VISIT = 9201L;
+	public static final long OUTPATIENT_VISIT = 9202L;
+	public static final long EMERGENCY_VISIT = 9203L;
+	public static final long VISIT_FROM_EHR = 44818518L;
+
+	public static final long TYPE_2_DIABETES = 201826L;
+	public static final long ESSENTIAL_HYPERTENSION = 320128L;
+	public static final long COPD = 255573L;
+	public static final long CORONARY_ARTERIOSCLEROSIS = 317576L;
+	public static final long EHR_PROBLEM_LIST = 38000245L;
+
+	public static final long METFORMIN = 1503297L;
+	public static final long LISINOPRIL = 1308216L;
+	public static final long ATORVASTATIN = 1545958L;
+	public static final long PRESCRIPTION_WRITTEN = 38000177L;
+	public static final long MEDICATION_LIST_ENTRY = 38000178L;
+
+	public static final long SYSTOLIC = 3004249L;
+	public static final long DIASTOLIC = 3012888L;
+	public static final long HBA1C = 3004410L;
+	public static final long HEART_RATE = 3027018L;
+	public static final long LAB_RESULT = 44818702L;
+	public static final long MMHG = 8876L;
+	public static final long PERCENT = 8554L;
+	public static final long PER_MINUTE = 8541L;
+
+	public static final long TOBACCO_USER = 4005823L;
+	public static final long OBSERVATION_FROM_EHR = 38000280L;
+
+	public static final long DISCHARGE_SUMMARY = 44814637L;
+
+	public static final long GLUCOSE_METER = 4217013L;
+	public static final long EHR_DETAIL = 44818707L;
+
+	// vocabulary_id, vocabulary_name
+	private static final String[][] VOCABULARIES = { { "None", "OMOP Standardized Vocabularies" },
+			{ "Gender", "OMOP Gender" }, { "Race", "Race and Ethnicity Code Set (USBC)" },
+			{ "Ethnicity", "OMOP Ethnicity" }, { "Visit", "OMOP Visit" }, { "Visit Type", "OMOP Visit Type" },
+			{ "SNOMED", "Systematic Nomenclature of Medicine - Clinical Terms (IHTSDO)" },
+			{ "Condition Type", "OMOP Condition Occurrence Type" },
+			{ "RxNorm", "RxNorm (NLM)" }, { "Drug Type", "OMOP Drug Exposure Type" },
+			{ "LOINC", "Logical Observation Identifiers Names and Codes (Regenstrief Institute)" },
+			{ "Meas Type", "OMOP Measurement Type" }, { "UCUM", "Unified Code for Units of Measure (Regenstrief Institute)" },
+			{ "Observation Type", "OMOP Observation Type" }, { "Note Type", "OMOP Note Type" },
+			{ "Device Type", "OMOP Device Type" } };
+
+	// concept_id, concept_name, domain_id, vocabulary_id, concept_class_id, concept_code
+	private static final Object[][] CONCEPTS = {
+			{ NO_MATCHING_CONCEPT, "No matching concept", "Metadata", "None", "Undefined", "No matching concept" },
+			{ MALE, "MALE", "Gender", "Gender", "Gender", "M" },
+			{ FEMALE, "FEMALE", "Gender", "Gender", "Gender", "F" },
+			{ WHITE, "White", "Race", "Race", "Race", "5" },
+			{ BLACK, "Black or African American", "Race", "Race", "Race", "3" },
+			{ NOT_HISPANIC, "Not Hispanic or Latino", "Ethnicity", "Ethnicity", "Ethnicity", "Not Hispanic" },
+			{ INPATIENT_VISIT, "Inpatient Visit", "Visit", "Visit", "Visit", "IP" },
+			{ OUTPATIENT_VISIT, "Outpatient Visit", "Visit", "Visit", "Visit", "OP" },
+			{ EMERGENCY_VISIT, "Emergency Room Visit", "Visit", "Visit", "Visit", "ER" },
+			{ VISIT_FROM_EHR, "Visit derived from EHR record", "Type Concept", "Visit Type", "Visit Type", "OMOP4822465" },
+			{ TYPE_2_DIABETES, "Type 2 diabetes mellitus", "Condition", "SNOMED", "Clinical Finding", "44054006" },
+			{ ESSENTIAL_HYPERTENSION, "Essential hypertension", "Condition", "SNOMED", "Clinical Finding", "59621000" },
+			{ COPD, "Chronic obstructive lung disease", "Condition", "SNOMED", "Clinical Finding", "13645005" },
+			{ CORONARY_ARTERIOSCLEROSIS, "Coronary arteriosclerosis", "Condition", "SNOMED", "Clinical Finding",
+					"53741008" },
+			{ EHR_PROBLEM_LIST, "EHR problem list entry", "Type Concept", "Condition Type", "Condition Type",
+					"OMOP4822127" },
+			{ METFORMIN, "metformin", "Drug", "RxNorm", "Ingredient", "6809" },
+			{ LISINOPRIL, "lisinopril", "Drug", "RxNorm", "Ingredient", "29046" },
+			{ ATORVASTATIN, "atorvastatin", "Drug", "RxNorm", "Ingredient", "83367" },
+			{ PRESCRIPTION_WRITTEN, "Prescription written", "Type Concept", "Drug Type", "Drug Type", "OMOP4822241" },
+			{ MEDICATION_LIST_ENTRY, "Medication list entry", "Type Concept", "Drug Type", "Drug Type", "OMOP4822242" },
+			{ SYSTOLIC, "BP systolic", "Measurement", "LOINC", "Clinical Observation", "8480-6" },
+			{ DIASTOLIC, "BP diastolic", "Measurement", "LOINC", "Clinical Observation", "8462-4" },
+			{ HBA1C, "Hemoglobin A1c/Hemoglobin.total in Blood", "Measurement", "LOINC", "Lab Test", "4548-4" },
+			{ HEART_RATE, "Heart rate", "Measurement", "LOINC", "Clinical Observation", "8867-4" },
+			{ LAB_RESULT, "Lab result", "Type Concept", "Meas Type", "Meas Type", "OMOP4822265" },
+			{ MMHG, "millimeter mercury column", "Unit", "UCUM", "Unit", "mm[Hg]" },
+			{ PERCENT, "percent", "Unit", "UCUM", "Unit", "%" },
+			{ PER_MINUTE, "per minute", "Unit", "UCUM", "Unit", "/min" },
+			{ TOBACCO_USER, "Tobacco user", "Observation", "SNOMED", "Clinical Finding", "110483000" },
+			{ OBSERVATION_FROM_EHR, "Observation recorded from EHR", "Type Concept", "Observation Type",
+					"Observation Type", "OMOP4822185" },
+			{ DISCHARGE_SUMMARY, "Discharge summary", "Type Concept", "Note Type", "Note Type", "OMOP4822048" },
+			{ GLUCOSE_METER, "Blood glucose meter", "Device", "SNOMED", "Physical Object", "337414009" },
+			{ EHR_DETAIL, "EHR Detail", "Type Concept", "Device Type", "Device Type", "OMOP4822212" } };
+
+	private SyntheticVocabulary() {
+	}
+
+	public static void load(Connection connection) throws SQLException {
+		PreparedStatement vocabularyInsert = connection.prepareStatement(
+				"insert into vocabulary (vocabulary_id, vocabulary_name, vocabulary_reference, vocabulary_concept_id) "
+						+ "select ?, ?, ?, 0 where not exists (select 1 from vocabulary where vocabulary_id = ?)");
+		try {
+			for (String[] vocabulary : VOCABULARIES) {
+				vocabularyInsert.setString(1, vocabulary[0]);
+				vocabularyInsert.setString(2, vocabulary[1]);
+				vocabularyInsert.setString(3, "OMOP generated");
+				vocabularyInsert.setString(4, vocabulary[0]);
+				vocabularyInsert.addBatch();
+			}
+			vocabularyInsert.executeBatch();
+		} finally {
+			vocabularyInsert.close();
+		}
+
+		PreparedStatement conceptInsert = connection.prepareStatement("insert into concept (concept_id, concept_name, "
+				+ "domain_id, vocabulary_id, concept_class_id, standard_concept, concept_code, valid_start_date, "
+				+ "valid_end_date) select ?, ?, ?, ?, ?, 'S', ?, date '1970-01-01', date '2099-12-31' "
+				+ "where not exists (select 1 from concept where concept_id = ?)");
+		try {
+			for (Object[] concept : CONCEPTS) {
+				conceptInsert.setLong(1, (Long) concept[0]);
+				conceptInsert.setString(2, (String) concept[1]);
+				conceptInsert.setString(3, (String) concept[2]);
+				conceptInsert.setString(4, (String) concept[3]);
+				conceptInsert.setString(5, (String) concept[4]);
+				conceptInsert.setString(6, (String) concept[5]);
+				conceptInsert.setLong(7, (Long) concept[0]);
+				conceptInsert.addBatch();
+			}
+			conceptInsert.executeBatch();
+		} finally {
+			conceptInsert.close();
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package edu.gatech.chai.omopv5.jpa.dao;
+
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+
+@Repository
+public class FSearchDao extends BaseEntityDao<FSearch> {
+
+}
@@ -1,29 +1,84 @@
 package edu.gatech.chai.omopv5.jpa.enity.noomop;
 
+import java.io.IOException;
 import java.io.Serializable;
 
-public class FhirJson implements Serializable {
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Immutable JSON value of a jsonb column. The JSON text is kept as it is
+ * read from the database. As the value never changes, Hibernate can share
+ * the instance for its snapshots and caches instead of copying it. To change
+ * the column, set a new value.
+ * 
+ * @author mc142
+ *
+ */
+public final class FhirJson implements Serializable {
+	private static final long serialVersionUID = 2L;
+
+	// ObjectMapper is thread-safe once configured.
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String json;
+
+	private FhirJson(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * Wraps the JSON text. The text is not validated.
+	 */
+	public static FhirJson of(String json) {
+		if (json == null)
+			return null;
+		return new FhirJson(json);
+	}
+
+	/**
+	 * Serializes the object with Jackson.
+	 */
+	public static FhirJson valueOf(Object value) {
+		if (value == null)
+			return null;
+		try {
+			return new FhirJson(mapper.writeValueAsString(value));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to convert to JSON: " + e.getMessage(), e);
+		}
+	}
+
+	public String getJson() {
+		return json;
+	}
+
 	/**
-	 * 
+	 * Deserializes the JSON with Jackson. Each call returns a new object.
 	 */
-	private static final long serialVersionUID = 1L;
-	
-	private String stringProp;
-	private Long longProp;
-	
-	public String getStringProp() {
-		return stringProp;
+	public <T> T as(Class<T> valueType) {
+		try {
+			return mapper.readValue(json, valueType);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to convert JSON: " + e.getMessage(), e);
+		}
 	}
 
-	public void setStringProp(String stringProp) {
-		this.stringProp = stringProp;
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof FhirJson))
+			return false;
+		return json.equals(((FhirJson) obj).json);
 	}
 
-	public Long getLongProp() {
-		return longProp;
+	@Override
+	public int hashCode() {
+		return json.hashCode();
 	}
 
-	public void setLongProp(Long longProp) {
-		this.longProp = longProp;
+	@Override
+	public String toString() {
+		return json;
 	}
 }
@@ -1,59 +1,55 @@
 package edu.gatech.chai.omopv5.jpa.enity.noomop;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.io.StringWriter;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 
 import org.hibernate.HibernateException;
+import org.hibernate.dialect.PostgreSQL81Dialect;
 import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.hibernate.usertype.UserType;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import org.postgresql.util.PGobject;
+
+/**
+ * Maps FhirJson to a jsonb column. FhirJson is immutable. So, values are not
+ * copied for snapshots or the second-level cache, and an unchanged value is
+ * the same instance at dirty check.
+ * 
+ * On PostgreSQL, the value is bound as jsonb. Other databases get the JSON
+ * text.
+ * 
+ * @author mc142
+ *
+ */
 public class FhirJsonType implements UserType {
+	private static final String JSONB = "jsonb";
 
 	@Override
 	public Object assemble(Serializable cached, Object owner) throws HibernateException {
-		return this.deepCopy(cached);
+		return cached;
 	}
 
 	@Override
 	public Object deepCopy(Object value) throws HibernateException {
-		try {
-    		// use serialization to create a deep copy
-        	ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        	ObjectOutputStream oos = new ObjectOutputStream(bos);
-        	oos.writeObject(value);
-        	oos.flush();
-        	oos.close();
-        	bos.close();
-        	
-        	ByteArrayInputStream bais = new ByteArrayInputStream(bos.toByteArray());
-        	return new ObjectInputStream(bais).readObject();
-        } catch (ClassNotFoundException | IOException ex) {
-            throw new HibernateException(ex);
-        }
+		return value;
 	}
 
 	@Override
 	public Serializable disassemble(Object value) throws HibernateException {
-		return (Serializable) this.deepCopy(value);
+		return (FhirJson) value;
 	}
 
 	@Override
 	public boolean equals(Object obj1, Object obj2) throws HibernateException {
+		if (obj1 == obj2) {
+			return true;
+		}
 		if (obj1 == null) {
-            return obj2 == null;
-        }
-        return obj1.equals(obj2);
+			return false;
+		}
+		return obj1.equals(obj2);
 	}
 
 	@Override
@@ -63,45 +59,37 @@ public class FhirJsonType implements UserType {
 
 	@Override
 	public boolean isMutable() {
-		return true;
+		return false;
 	}
 
 	@Override
 	public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
 			throws HibernateException, SQLException {
-		final String cellContent = rs.getString(names[0]);
-        if (cellContent == null) {
-            return null;
-        }
-        try {
-            final ObjectMapper mapper = new ObjectMapper();
-            return mapper.readValue(cellContent.getBytes("UTF-8"), returnedClass());
-        } catch (final Exception ex) {
-            throw new RuntimeException("Failed to convert String to FHIR: " + ex.getMessage(), ex);
-        }
-    }
+		return FhirJson.of(rs.getString(names[0]));
+	}
 
 	@Override
 	public void nullSafeSet(PreparedStatement ps, Object value, int idx, SharedSessionContractImplementor session)
 			throws HibernateException, SQLException {
 		if (value == null) {
-            ps.setNull(idx, Types.OTHER);
-            return;
-        }
-        try {
-            final ObjectMapper mapper = new ObjectMapper();
-            final StringWriter w = new StringWriter();
-            mapper.writeValue(w, value);
-            w.flush();
-            ps.setObject(idx, w.toString(), Types.OTHER);
-        } catch (final Exception ex) {
-            throw new RuntimeException("Failed to convert FHIR to String: " + ex.getMessage(), ex);
-        }
+			ps.setNull(idx, Types.OTHER);
+			return;
+		}
+
+		String json = ((FhirJson) value).getJson();
+		if (session.getJdbcServices().getDialect() instanceof PostgreSQL81Dialect) {
+			PGobject jsonb = new PGobject();
+			jsonb.setType(JSONB);
+			jsonb.setValue(json);
+			ps.setObject(idx, jsonb);
+		} else {
+			ps.setString(idx, json);
+		}
 	}
 
 	@Override
 	public Object replace(Object original, Object target, Object owner) throws HibernateException {
-		return this.deepCopy(original);
+		return original;
 	}
 
 	@Override
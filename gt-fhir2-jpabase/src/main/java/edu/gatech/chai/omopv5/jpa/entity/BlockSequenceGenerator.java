@@ -0,0 +1,108 @@
+package edu.gatech.chai.omopv5.jpa.entity;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.jdbc.env.spi.JdbcEnvironment;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+/**
+ * Sequence generator that takes ids from the sequence in blocks. The OMOP
+ * sequences are incremented by 1 and may be shared with other loaders. So,
+ * the pooled optimizers (which need a matching increment) cannot be used.
+ * Instead, a block of nextval() values is selected with one statement and
+ * handed out in order. Unused ids of a block are lost on shutdown.
+ *
+ * Block size is the omop.id.block_size setting (or block_size parameter).
+ * Only PostgreSQL is supported. Other dialects get one nextval per id.
+ *
+ * @author mc142
+ *
+ */
+public class BlockSequenceGenerator extends SequenceStyleGenerator {
+	public static final String BLOCK_SIZE_PARAM = "block_size";
+	public static final String BLOCK_SIZE_SETTING = "omop.id.block_size";
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+
+	private Dialect dialect;
+	private int blockSize;
+	private String blockSql;
+
+	private long[] block = new long[0];
+	private int next = 0;
+
+	@Override
+	public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+		super.configure(type, params, serviceRegistry);
+
+		dialect = serviceRegistry.getService(JdbcEnvironment.class).getDialect();
+		int defaultBlockSize = ConfigurationHelper.getInt(BLOCK_SIZE_PARAM, params, DEFAULT_BLOCK_SIZE);
+		blockSize = ConfigurationHelper.getInt(BLOCK_SIZE_SETTING,
+				serviceRegistry.getService(ConfigurationService.class).getSettings(), defaultBlockSize);
+	}
+
+	@Override
+	public synchronized Serializable generate(SharedSessionContractImplementor session, Object object)
+			throws HibernateException {
+		if (blockSize <= 1 || !(dialect instanceof PostgreSQL81Dialect)
+				|| !getDatabaseStructure().isPhysicalSequence()) {
+			return super.generate(session, object);
+		}
+
+		if (next >= block.length) {
+			block = fetchBlock(session);
+			next = 0;
+		}
+		return block[next++];
+	}
+
+	private long[] fetchBlock(SharedSessionContractImplementor session) {
+		if (blockSql == null) {
+			// Sequence name is known after the exportables are registered.
+			blockSql = "select " + dialect.getSelectSequenceNextValString(getDatabaseStructure().getName())
+					+ " from generate_series(1, " + blockSize + ")";
+		}
+
+		JdbcCoordinator jdbcCoordinator = session.getJdbcCoordinator();
+		long[] ids = new long[blockSize];
+		int count = 0;
+		try {
+			PreparedStatement statement = jdbcCoordinator.getStatementPreparer().prepareStatement(blockSql);
+			try {
+				ResultSet resultSet = jdbcCoordinator.getResultSetReturn().extract(statement);
+				while (resultSet.next() && count < ids.length) {
+					ids[count++] = resultSet.getLong(1);
+				}
+			} finally {
+				jdbcCoordinator.getLogicalConnection().getResourceRegistry().release(statement);
+				jdbcCoordinator.afterStatementExecution();
+			}
+		} catch (SQLException e) {
+			throw session.getJdbcServices().getSqlExceptionHelper().convert(e,
+					"could not get next sequence values", blockSql);
+		}
+
+		if (count == 0) {
+			throw new HibernateException("No values from sequence " + getDatabaseStructure().getName());
+		}
+		if (count < ids.length) {
+			long[] trimmed = new long[count];
+			System.arraycopy(ids, 0, trimmed, 0, count);
+			return trimmed;
+		}
+		return ids;
+	}
+}
@@ -2,6 +2,7 @@ package edu.gatech.chai.omopv5.jpa.entity;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -11,9 +12,14 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import net.jcip.annotations.Immutable;
 
 @Entity
+@Cacheable
+@Cache(usage=CacheConcurrencyStrategy.READ_ONLY, region="omop.concept_ancestor")
 @Immutable
 @Table(name="concept_ancestor")
 @Inheritance(strategy=InheritanceType.JOINED)
@@ -1,5 +1,7 @@
 package edu.gatech.chai.omopv5.jpa.entity;
 
+import java.util.Date;
+
 import javax.persistence.Access;
 import javax.persistence.AccessType;
 import javax.persistence.Column;
@@ -7,11 +9,25 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
+/**
+ * FHIR resource rendered from the OMOP tables and stored as JSON. A row is
+ * one resource, by resource name and FHIR id. Rows are written by the
+ * materialization job and on writes through the server. rendered_at is when
+ * the JSON was built. searchable is "true" if the resource is in the search
+ * results without parameters.
+ * 
+ * @author mc142
+ *
+ */
 @Entity
-@Table(name="f_resources")
+@Table(name="f_resources", indexes = {
+		@Index(name="f_resources_resource_idx", columnList="resource_name,resource_id", unique=true) })
 public class FResources extends BaseEntity {
 
 	@Id
@@ -24,11 +40,18 @@ public class FResources extends BaseEntity {
 	@Column(name="resource_name")
 	private String resourceName;
 
+	@Column(name="resource_id")
+	private Long resourceId;
+
 	@Column(name="searchable")
 	private String searchable;
 	
-	@Column(name="fhir_data")
+	@Column(name="fhir_data", columnDefinition="text")
 	private String fhirData;
+
+	@Column(name="rendered_at")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date renderedAt;
 	
 	public Long getId() {
 		return id;
@@ -46,6 +69,14 @@ public class FResources extends BaseEntity {
 		this.resourceName = resourceName;
 	}
 	
+	public Long getResourceId() {
+		return resourceId;
+	}
+	
+	public void setResourceId(Long resourceId) {
+		this.resourceId = resourceId;
+	}
+	
 	public String getSearchable() {
 		return searchable;
 	}
@@ -61,6 +92,14 @@ public class FResources extends BaseEntity {
 	public void setFhirData(String fhirData) {
 		this.fhirData = fhirData;
 	}
+	
+	public Date getRenderedAt() {
+		return renderedAt;
+	}
+	
+	public void setRenderedAt(Date renderedAt) {
+		this.renderedAt = renderedAt;
+	}
 		
 	@Override
 	public Long getIdAsLong() {
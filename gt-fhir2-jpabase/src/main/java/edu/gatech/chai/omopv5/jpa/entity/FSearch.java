@@ -0,0 +1,225 @@
+package edu.gatech.chai.omopv5.jpa.entity;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.json.JSONObject;
+
+/**
+ * Search definition of a paged search result. We keep only what we need to
+ * run the search again for any page (parameters, includes, total and keyset
+ * cursors). No resources or entities are stored.
+ * 
+ * @author mc142
+ *
+ */
+@Entity
+@Table(name="f_search", indexes = { @Index(name="f_search_uuid_idx", columnList="search_uuid", unique=true),
+		@Index(name="f_search_expires_idx", columnList="expires_at") })
+public class FSearch extends BaseEntity {
+
+	// Keyset cursors we keep per search. Those of the first pages are
+	// dropped first. The pages fall back to offset paging.
+	public static final int MAX_CURSORS = 256;
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="fsearch_seq_gen")
+	@SequenceGenerator(name="fsearch_seq_gen", sequenceName="fsearch_id_seq", allocationSize=1)
+	@Column(name="f_search_id")
+	@Access(AccessType.PROPERTY)
+	private Long id;
+
+	@Column(name="search_uuid", nullable=false, length=36)
+	private String searchUuid;
+
+	@Column(name="resource_type", nullable=false)
+	private String resourceType;
+
+	@Column(name="parameters", columnDefinition="text")
+	private String parameters;
+
+	@Column(name="includes", columnDefinition="text")
+	private String includes;
+
+	@Column(name="reverse_includes", columnDefinition="text")
+	private String reverseIncludes;
+
+	@Column(name="paging_mode")
+	private String pagingMode;
+
+	@Column(name="page_source")
+	private String pageSource;
+
+	@Column(name="total_size")
+	private Integer totalSize;
+
+	@Column(name="preferred_page_size")
+	private Integer preferredPageSize;
+
+	@Column(name="cursors", columnDefinition="text")
+	private String cursors;
+
+	@Column(name="created_at", nullable=false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdAt;
+
+	@Column(name="expires_at", nullable=false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date expiresAt;
+
+	public FSearch() {
+		super();
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getSearchUuid() {
+		return searchUuid;
+	}
+
+	public void setSearchUuid(String searchUuid) {
+		this.searchUuid = searchUuid;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	public void setResourceType(String resourceType) {
+		this.resourceType = resourceType;
+	}
+
+	public String getParameters() {
+		return parameters;
+	}
+
+	public void setParameters(String parameters) {
+		this.parameters = parameters;
+	}
+
+	public String getIncludes() {
+		return includes;
+	}
+
+	public void setIncludes(String includes) {
+		this.includes = includes;
+	}
+
+	public String getReverseIncludes() {
+		return reverseIncludes;
+	}
+
+	public void setReverseIncludes(String reverseIncludes) {
+		this.reverseIncludes = reverseIncludes;
+	}
+
+	public String getPagingMode() {
+		return pagingMode;
+	}
+
+	public void setPagingMode(String pagingMode) {
+		this.pagingMode = pagingMode;
+	}
+
+	public String getPageSource() {
+		return pageSource;
+	}
+
+	public void setPageSource(String pageSource) {
+		this.pageSource = pageSource;
+	}
+
+	public Integer getTotalSize() {
+		return totalSize;
+	}
+
+	public void setTotalSize(Integer totalSize) {
+		this.totalSize = totalSize;
+	}
+
+	public Integer getPreferredPageSize() {
+		return preferredPageSize;
+	}
+
+	public void setPreferredPageSize(Integer preferredPageSize) {
+		this.preferredPageSize = preferredPageSize;
+	}
+
+	public String getCursors() {
+		return cursors;
+	}
+
+	public void setCursors(String cursors) {
+		this.cursors = cursors;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public Date getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(Date expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Keyset cursors (fromIndex of a page -> id of the last row of the page
+	 * before it) as stored in the cursors column.
+	 */
+	public static String cursorsToJson(Map<Integer, Long> cursors) {
+		JSONObject object = new JSONObject();
+		for (Map.Entry<Integer, Long> entry : cursors.entrySet()) {
+			object.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return object.toString();
+	}
+
+	public static SortedMap<Integer, Long> cursorsFromJson(String json) {
+		SortedMap<Integer, Long> cursors = new TreeMap<Integer, Long>();
+		if (json == null || json.isEmpty()) {
+			return cursors;
+		}
+
+		JSONObject object = new JSONObject(json);
+		String[] keys = JSONObject.getNames(object);
+		if (keys != null) {
+			for (String key : keys) {
+				cursors.put(Integer.valueOf(key), object.getLong(key));
+			}
+		}
+		return cursors;
+	}
+
+	@Override
+	public Long getIdAsLong() {
+		return getId();
+	}
+}
@@ -4,14 +4,34 @@ import javax.persistence.Access;
 import javax.persistence.AccessType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+/**
+ * FHIR id of an OMOP row, by resource name. FHIR ids come from
+ * id_mapping_fhir_id_seq and are unique across the resources, so the row id
+ * is the FHIR id. Setting the id sets the FHIR id if it has none yet, so a
+ * persisted mapping gets the generated id as its FHIR id.
+ * 
+ * @author mc142
+ *
+ */
 @Entity
-@Table(name="id_mapping")
-public class IdMapping {
+@Table(name="id_mapping", indexes = {
+		@Index(name="id_mapping_omop_idx", columnList="related_resource,omop_id", unique=true),
+		@Index(name="id_mapping_fhir_idx", columnList="related_resource,fhir_id", unique=true) })
+public class IdMapping extends BaseEntity {
 
 	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="id_mapping_seq_gen")
+	@GenericGenerator(name="id_mapping_seq_gen", strategy="edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator", parameters = {
+			@Parameter(name="sequence_name", value="id_mapping_fhir_id_seq") })
 	@Column(name="id")
 	@Access(AccessType.PROPERTY)
 	private Long id;
@@ -33,6 +53,8 @@ public class IdMapping {
 	
 	public void setId(Long id) {
 		this.id = id;
+		if (this.fhirId == null)
+			this.fhirId = id;
 	}
 	
 	public Long getFhirId() {
@@ -58,4 +80,9 @@ public class IdMapping {
 	public void setRelatedResource(String relatedResource) {
 		this.relatedResource = relatedResource;
 	}
+
+	@Override
+	public Long getIdAsLong() {
+		return getId();
+	}
 }
@@ -14,11 +14,13 @@ import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Table(
 		name="measurement",
@@ -30,7 +32,8 @@ import javax.persistence.TemporalType;
 public class Measurement extends BaseEntity {
 	@Id
 	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="measurement_occurrence_seq_gen")
-	@SequenceGenerator(name="measurement_occurrence_seq_gen", sequenceName="measurement_occurrence_id_seq", allocationSize=1)
+	@GenericGenerator(name="measurement_occurrence_seq_gen", strategy="edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator", parameters = {
+			@Parameter(name="sequence_name", value="measurement_occurrence_id_seq") })
 	@Column(name = "measurement_id")
 	@Access(AccessType.PROPERTY)
 	private Long id;
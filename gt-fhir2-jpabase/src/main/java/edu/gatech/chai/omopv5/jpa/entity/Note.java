@@ -16,8 +16,22 @@ import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.search.annotations.Analyze;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.Store;
+
+/**
+ * note_text is indexed for full-text search. Hibernate Search updates the
+ * index when notes are written through JPA. Notes loaded directly into the
+ * database are indexed by NoteService.rebuildTextIndex().
+ * 
+ * @author mc142
+ *
+ */
 @Entity
 @Table(name="note")
+@Indexed(index="note")
 public class Note extends BaseEntity {
 	@Id
 	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="note_seq_gen")
@@ -43,6 +57,7 @@ public class Note extends BaseEntity {
 	private Concept typeConcept;
 
 	@Column(name = "note_text", nullable=false)
+	@Field(name = "noteText", analyze = Analyze.YES, store = Store.NO)
 	private String noteText;
 	
 	@ManyToOne
@@ -13,11 +13,13 @@ import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Table(
 		name="observation",
@@ -29,7 +31,8 @@ import javax.persistence.TemporalType;
 public class Observation extends BaseEntity {
 	@Id
 	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="observation_occurrence_seq_gen")
-	@SequenceGenerator(name="observation_occurrence_seq_gen", sequenceName="observation_occurrence_id_seq", allocationSize=1)
+	@GenericGenerator(name="observation_occurrence_seq_gen", strategy="edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator", parameters = {
+			@Parameter(name="sequence_name", value="observation_occurrence_id_seq") })
 	@Column(name = "observation_id")
 	@Access(AccessType.PROPERTY)
 	private Long id;
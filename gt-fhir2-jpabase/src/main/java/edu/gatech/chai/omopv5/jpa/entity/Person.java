@@ -14,9 +14,11 @@ import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Table(
 		name="person",
@@ -30,7 +32,8 @@ public class Person extends BaseEntity {
 
 	@Id
 	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="person_id_seq")
-	@SequenceGenerator(name="person_id_seq", sequenceName="person_id_seq", allocationSize=1)
+	@GenericGenerator(name="person_id_seq", strategy="edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator", parameters = {
+			@Parameter(name="sequence_name", value="person_id_seq") })
 	@Column(name="person_id", nullable = false)
 	@Access(AccessType.PROPERTY)
 	private Long id;
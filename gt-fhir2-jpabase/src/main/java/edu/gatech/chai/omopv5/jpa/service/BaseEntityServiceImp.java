@@ -1,18 +1,34 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
+import javax.persistence.FetchType;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
 import javax.persistence.Query;
 import javax.persistence.Table;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -21,12 +37,56 @@ import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
 
 public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseEntityDao<T>>  implements IService<T> {
 
+	// Hint to tell Hibernate that we do not modify the entities that we search.
+	// No snapshots are kept for dirty checking.
+	protected static final String HINT_READONLY = "org.hibernate.readOnly";
+	// Query cache. Results are invalidated when any table in the query is updated.
+	protected static final String HINT_CACHEABLE = "org.hibernate.cacheable";
+	protected static final String HINT_CACHE_REGION = "org.hibernate.cacheRegion";
+	protected static final String VOCABULARY_QUERY_REGION = "omop.query.vocabulary";
+	protected static final String LOOKUP_QUERY_REGION = "omop.query.lookup";
+	// Source values per IN (...) query.
+	private static final int SOURCE_VALUE_CHUNK_SIZE = 500;
+	private static final Pattern EXPLAIN_ROWS = Pattern.compile("rows=(\\d+)");
+
 	@Autowired
 	private V vDao;
 	private Class<T> entityClass;
+	private List<String> eagerAssociations;
 	
 	public BaseEntityServiceImp(Class<T> entityClass) {
 		this.entityClass = entityClass;
+		this.eagerAssociations = findEagerAssociations(entityClass);
+	}
+	
+	/**
+	 * Finds to-one associations that are fetched eagerly. When we search for a
+	 * page, these are fetch-joined in the page query. Otherwise, Hibernate
+	 * loads them with one select per row after the page query.
+	 */
+	private static List<String> findEagerAssociations(Class<?> entityClass) {
+		List<String> associations = new ArrayList<String>();
+		for (Class<?> clazz = entityClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				ManyToOne manyToOne = field.getAnnotation(ManyToOne.class);
+				OneToOne oneToOne = field.getAnnotation(OneToOne.class);
+				if ((manyToOne != null && manyToOne.fetch() == FetchType.EAGER)
+						|| (oneToOne != null && oneToOne.fetch() == FetchType.EAGER && oneToOne.mappedBy().isEmpty())) {
+					associations.add(field.getName());
+				}
+			}
+		}
+		return associations;
+	}
+	
+	/**
+	 * Adds fetch joins of the eager to-one associations to the page query so
+	 * that the whole page is materialized with a single statement.
+	 */
+	protected void fetchEagerAssociations(Root<T> root) {
+		for (String association : eagerAssociations) {
+			root.fetch(association, JoinType.LEFT);
+		}
 	}
 	
 	public V getEntityDao() {
@@ -61,6 +121,48 @@ public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseE
 		return retvals;	
 	}
 
+	/**
+	 * Exact, case insensitive lookup of source values (eg. personSourceValue)
+	 * in IN (...) queries of SOURCE_VALUE_CHUNK_SIZE values. The key is
+	 * lower(value) so that an expression index like
+	 * "CREATE INDEX ON person (lower(person_source_value))" is used. If rows
+	 * share a value, the lowest id is returned.
+	 * 
+	 * @return lower(value) -> id. Values not found are left out.
+	 */
+	@Transactional(readOnly = true)
+	public Map<String, Long> findIdsBySourceValues(String column, Collection<String> values) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		Set<String> keySet = new HashSet<String>();
+		for (String value : values) {
+			if (value != null) {
+				keySet.add(value.toLowerCase());
+			}
+		}
+		if (keySet.isEmpty())
+			return retVal;
+
+		EntityManager em = vDao.getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		List<String> keys = new ArrayList<String>(keySet);
+		for (int i = 0; i < keys.size(); i += SOURCE_VALUE_CHUNK_SIZE) {
+			CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+			Root<T> root = query.from(entityClass);
+			Expression<String> key = builder.lower(root.<String>get(column));
+			query.multiselect(key, root.get("id"));
+			query.where(key.in(keys.subList(i, Math.min(i + SOURCE_VALUE_CHUNK_SIZE, keys.size()))));
+
+			for (Object[] row : em.createQuery(query).getResultList()) {
+				Long id = (Long) row[1];
+				Long found = retVal.get(row[0]);
+				if (found == null || id < found) {
+					retVal.put((String) row[0], id);
+				}
+			}
+		}
+		return retVal;
+	}
+
 	@Transactional
 	public T create(T entity) {
 		vDao.add(entity);
@@ -83,21 +185,69 @@ public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseE
 		EntityManager em = vDao.getEntityManager();
 		CriteriaBuilder builder = em.getCriteriaBuilder();
 
-//		Table t = entityClass.getAnnotation(Table.class);
-//		if (t != null) {
-//			String tableName = t.name();
-//			String queryString = "SELECT p.reltuples AS approximate_row_count FROM pg_class p WHERE p.relname = :table_name";
-//			Query query = em.createNativeQuery(queryString);
-//			query = query.setParameter("table_name", tableName);
-//			float res = (float) query.getSingleResult();
-//			return (long) res;
-//		} else {
-			CriteriaQuery<Long> query = builder.createQuery(Long.class);
-			Root<T> root = query.from(entityClass);
-	
-			query.select(builder.count(root));		
-			return em.createQuery(query).getSingleResult();		
-//		}
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<T> root = query.from(entityClass);
+
+		query.select(builder.count(root));		
+		return em.createQuery(query).getSingleResult();		
+	}
+
+	/**
+	 * Largest id in the table. This is one index lookup.
+	 * 
+	 * @return null if the table is empty.
+	 */
+	@Transactional(readOnly = true)
+	public Long getMaxId() {
+		EntityManager em = vDao.getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<T> root = query.from(entityClass);
+
+		query.select(builder.max(root.<Long>get("id")));
+		return em.createQuery(query).getSingleResult();
+	}
+
+	/**
+	 * True if the database is PostgreSQL. Check this before running the
+	 * native SQL that only PostgreSQL understands.
+	 */
+	protected boolean isPostgreSQL() {
+		EntityManager em = vDao.getEntityManager();
+		return em.unwrap(SharedSessionContractImplementor.class).getJdbcServices()
+				.getDialect() instanceof PostgreSQL81Dialect;
+	}
+
+	/**
+	 * Row count estimated by the PostgreSQL planner. This does not scan the
+	 * table. pg_class.reltuples does not work for views (f_observation_view).
+	 * So, we take the row estimate from the EXPLAIN output. Other databases
+	 * get the exact count.
+	 * 
+	 * @return estimated row count, or null if estimate is not available.
+	 */
+	@Transactional(readOnly = true)
+	public Long getEstimatedSize() {
+		if (!isPostgreSQL()) return getSize();
+
+		Table t = entityClass.getAnnotation(Table.class);
+		if (t == null || t.name().isEmpty()) return null;
+		
+		String tableName = t.name();
+		if (!t.schema().isEmpty()) {
+			tableName = t.schema() + "." + tableName;
+		}
+
+		EntityManager em = vDao.getEntityManager();
+		Query query = em.createNativeQuery("EXPLAIN SELECT 1 FROM " + tableName);
+		List<?> plan = query.getResultList();
+		if (plan.isEmpty()) return null;
+
+		Matcher matcher = EXPLAIN_ROWS.matcher(plan.get(0).toString());
+		if (!matcher.find()) return null;
+		
+		return Long.valueOf(matcher.group(1));
 	}
 
 	@Transactional(readOnly = true)
@@ -126,15 +276,18 @@ public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseE
 		CriteriaBuilder builder = em.getCriteriaBuilder();
 		CriteriaQuery<T> query = builder.createQuery(entityClass);
 		Root<T> root = query.from(entityClass);
+		fetchEagerAssociations(root);
 		
 		query.select(root);
 		query.orderBy(builder.asc(root.get("id")));
 		
 		if (length <= 0) {
 			retvals = em.createQuery(query)
+					.setHint(HINT_READONLY, true)
 					.getResultList();
 		} else {
 			retvals = em.createQuery(query)
+					.setHint(HINT_READONLY, true)
 					.setFirstResult(fromIndex)
 					.setMaxResults(length)
 					.getResultList();
@@ -155,14 +308,21 @@ public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseE
 		List<Predicate> predicates = ParameterWrapper.constructPredicate(builder, paramList, root);		
 		if (predicates == null || predicates.isEmpty()) return retvals; // Nothing. return empty list
 	
+		fetchEagerAssociations(root);
 		query.select(root);
 		query.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+		
+		// Stable order by primary key. Paging (offset or id > last seen id)
+		// depends on this order.
+		query.orderBy(builder.asc(root.get("id")));
 
 		if (length <= 0) {
 			retvals = em.createQuery(query)
+					.setHint(HINT_READONLY, true)
 					.getResultList();			
 		} else {
 			retvals = em.createQuery(query)
+					.setHint(HINT_READONLY, true)
 					.setFirstResult(fromIndex)
 					.setMaxResults(length)
 					.getResultList();
@@ -170,4 +330,95 @@ public abstract class BaseEntityServiceImp<T extends BaseEntity, V extends BaseE
 		return retvals;
 	}
 
+	/**
+	 * Keyset paging. Returns up to count rows, in id order, that match the
+	 * parameters and come after lastId. Unlike searchWithParams, the database
+	 * does not have to read and throw away the rows of the earlier pages.
+	 * Empty parameter list matches all the rows.
+	 */
+	@Transactional(readOnly = true)
+	public List<T> searchAfterId(Long lastId, int count, List<ParameterWrapper> paramList) {
+		EntityManager em = vDao.getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<T> query = builder.createQuery(entityClass);
+		Root<T> root = query.from(entityClass);
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		if (paramList != null && !paramList.isEmpty()) {
+			List<Predicate> paramPredicates = ParameterWrapper.constructPredicate(builder, paramList, root);
+			if (paramPredicates == null || paramPredicates.isEmpty())
+				return new ArrayList<T>();
+			predicates.addAll(paramPredicates);
+		}
+		predicates.add(builder.greaterThan(root.<Long>get("id"), lastId));
+
+		fetchEagerAssociations(root);
+		query.select(root);
+		query.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+		query.orderBy(builder.asc(root.get("id")));
+
+		return em.createQuery(query)
+				.setHint(HINT_READONLY, true)
+				.setMaxResults(count)
+				.getResultList();
+	}
+
+	/**
+	 * Reads all the rows that match the parameters with a forward-only
+	 * cursor and hands them to the handler in batches. Empty parameter list
+	 * reads the whole table. This is for exports that are too large for
+	 * paging. Persistence context is cleared after each batch so that the
+	 * memory use does not grow with the table.
+	 * 
+	 * @return number of entities read.
+	 */
+	@Transactional(readOnly = true)
+	public long scrollWithParams(List<ParameterWrapper> paramList, int batchSize, EntityBatchHandler<T> handler)
+			throws Exception {
+		EntityManager em = vDao.getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<T> query = builder.createQuery(entityClass);
+		Root<T> root = query.from(entityClass);
+
+		if (paramList != null && !paramList.isEmpty()) {
+			List<Predicate> predicates = ParameterWrapper.constructPredicate(builder, paramList, root);
+			if (predicates == null || predicates.isEmpty())
+				return 0L;
+			query.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+		}
+
+		fetchEagerAssociations(root);
+		query.select(root);
+		query.orderBy(builder.asc(root.get("id")));
+
+		ScrollableResults results = em.createQuery(query)
+				.setHint(HINT_READONLY, true)
+				.unwrap(org.hibernate.query.Query.class)
+				.setFetchSize(batchSize)
+				.scroll(ScrollMode.FORWARD_ONLY);
+
+		long count = 0L;
+		List<T> batch = new ArrayList<T>(batchSize);
+		try {
+			while (results.next()) {
+				batch.add(entityClass.cast(results.get(0)));
+				if (batch.size() >= batchSize) {
+					handler.handle(batch);
+					count += batch.size();
+					batch.clear();
+					em.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				handler.handle(batch);
+				count += batch.size();
+				em.clear();
+			}
+		} finally {
+			results.close();
+		}
+
+		return count;
+	}
+
 }
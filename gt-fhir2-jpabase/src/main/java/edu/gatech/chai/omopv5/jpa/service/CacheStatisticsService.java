@@ -0,0 +1,17 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Map;
+
+import org.hibernate.stat.Statistics;
+
+/**
+ * Second-level cache and query cache statistics. Used to tune the region
+ * sizes in ehcache.xml. Hibernate collects these only when
+ * hibernate.generate_statistics is true.
+ */
+public interface CacheStatisticsService {
+	public boolean isEnabled();
+	public Statistics getStatistics();
+	public Map<String, Map<String, Long>> getRegionStatistics();
+	public void clear();
+}
@@ -0,0 +1,69 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.stereotype.Service;
+
+@Service
+public class CacheStatisticsServiceImp implements CacheStatisticsService {
+	@PersistenceUnit
+	private EntityManagerFactory emf;
+
+	@Override
+	public boolean isEnabled() {
+		return getStatistics().isStatisticsEnabled();
+	}
+
+	@Override
+	public Statistics getStatistics() {
+		return emf.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	/**
+	 * Returns hit, miss, put and element counts per cache region. Query
+	 * cache totals are under "query".
+	 */
+	@Override
+	public Map<String, Map<String, Long>> getRegionStatistics() {
+		Statistics statistics = getStatistics();
+		Map<String, Map<String, Long>> retv = new LinkedHashMap<String, Map<String, Long>>();
+
+		for (String regionName : statistics.getSecondLevelCacheRegionNames()) {
+			CacheRegionStatistics region;
+			try {
+				region = statistics.getCacheRegionStatistics(regionName);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			if (region == null)
+				continue;
+
+			Map<String, Long> counts = new LinkedHashMap<String, Long>();
+			counts.put("hit", region.getHitCount());
+			counts.put("miss", region.getMissCount());
+			counts.put("put", region.getPutCount());
+			counts.put("elements", region.getElementCountInMemory());
+			retv.put(regionName, counts);
+		}
+
+		Map<String, Long> query = new LinkedHashMap<String, Long>();
+		query.put("hit", statistics.getQueryCacheHitCount());
+		query.put("miss", statistics.getQueryCacheMissCount());
+		query.put("put", statistics.getQueryCachePutCount());
+		retv.put("query", query);
+
+		return retv;
+	}
+
+	@Override
+	public void clear() {
+		getStatistics().clear();
+	}
+}
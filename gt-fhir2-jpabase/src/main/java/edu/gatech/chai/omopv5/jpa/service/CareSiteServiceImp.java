@@ -25,7 +25,10 @@ public class CareSiteServiceImp extends BaseEntityServiceImp<CareSite, CareSiteD
 		EntityManager em = getEntityDao().getEntityManager();
 		String query = "SELECT t FROM CareSite t WHERE location_id like :value:";
 		List<? extends CareSite> results = em.createQuery(query, CareSite.class)
-				.setParameter("value",location.getId()).getResultList();
+				.setParameter("value",location.getId())
+				.setHint(HINT_CACHEABLE, true)
+				.setHint(HINT_CACHE_REGION, LOOKUP_QUERY_REGION)
+				.getResultList();
 		if (results.size() > 0) {
 			return results.get(0);
 		} else
@@ -55,6 +58,7 @@ public class CareSiteServiceImp extends BaseEntityServiceImp<CareSite, CareSiteD
 		TypedQuery<? extends CareSite> query = em.createQuery(queryString, CareSite.class);
 		if (careSiteName != null) query = query.setParameter("cName", careSiteName);
 		if (location != null) query = query.setParameter("location", location);
+		query.setHint(HINT_CACHEABLE, true).setHint(HINT_CACHE_REGION, LOOKUP_QUERY_REGION);
 		
 		System.out.println("cName:"+careSiteName);
 		List<? extends CareSite> results = query.getResultList();
@@ -0,0 +1,110 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import edu.gatech.chai.omopv5.jpa.entity.Concept;
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * In-process concept cache shared by all the mappers through ConceptService.
+ *
+ * Concepts are kept by concept_id and by (vocabulary_id, concept_code). OMOP
+ * vocabulary is read-only reference data. So, we never need to invalidate
+ * entries unless the vocabulary tables are reloaded, in which case clear()
+ * should be called.
+ *
+ * Codes that do not exist in the vocabulary are cached as well (negative
+ * caching) so that bulk loads with unknown codes do not hit the database for
+ * every row.
+ *
+ * @author mc142
+ *
+ */
+public class ConceptCache {
+	public static final int DEFAULT_MAX_SIZE = 50000;
+
+	// Placeholder for the (vocabulary_id, concept_code) pair that has no concept.
+	private static final Concept NOT_FOUND = new Concept(-1L);
+
+	private final LruCache<Long, Concept> byId;
+	private final LruCache<String, Concept> byCode;
+
+	public ConceptCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public ConceptCache(int maxSize) {
+		byId = new LruCache<Long, Concept>(maxSize);
+		byCode = new LruCache<String, Concept>(maxSize);
+	}
+
+	private static String codeKey(String vocabularyId, String conceptCode) {
+		return vocabularyId + "^" + conceptCode;
+	}
+
+	public Concept getById(Long id) {
+		if (id == null)
+			return null;
+		return byId.get(id);
+	}
+
+	/**
+	 * Returns cached concept for the vocabulary and code. If this returns
+	 * null, the concept is not in the cache. Use {@link #isNotFound(Concept)}
+	 * to check if the returned concept is a cached negative lookup.
+	 */
+	public Concept getByCode(String vocabularyId, String conceptCode) {
+		return byCode.get(codeKey(vocabularyId, conceptCode));
+	}
+
+	public static boolean isNotFound(Concept concept) {
+		return concept == NOT_FOUND;
+	}
+
+	public void put(Concept concept) {
+		if (concept == null || concept.getId() == null)
+			return;
+
+		byId.put(concept.getId(), concept);
+		if (concept.getVocabulary() != null && concept.getConceptCode() != null) {
+			byCode.put(codeKey(concept.getVocabulary().getId(), concept.getConceptCode()), concept);
+		}
+	}
+
+	public void putNotFound(String vocabularyId, String conceptCode) {
+		byCode.put(codeKey(vocabularyId, conceptCode), NOT_FOUND);
+	}
+
+	public void setMaxSize(int maxSize) {
+		byId.setMaxSize(maxSize);
+		byCode.setMaxSize(maxSize);
+	}
+
+	public int getMaxSize() {
+		return byId.getMaxSize();
+	}
+
+	public int size() {
+		return byId.size();
+	}
+
+	public void clear() {
+		byId.clear();
+		byCode.clear();
+	}
+
+	public long getHitCount() {
+		return byId.getHitCount() + byCode.getHitCount();
+	}
+
+	public long getMissCount() {
+		return byId.getMissCount() + byCode.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return byId.getEvictionCount() + byCode.getEvictionCount();
+	}
+
+	@Override
+	public String toString() {
+		return "ConceptCache byId[" + byId + "] byCode[" + byCode + "]";
+	}
+}
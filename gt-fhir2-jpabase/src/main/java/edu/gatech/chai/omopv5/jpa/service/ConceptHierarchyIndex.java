@@ -0,0 +1,236 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Arrays;
+
+/**
+ * Descendants and ancestors of concepts from concept_ancestor. Built from the
+ * vocabulary tables by {@link ConceptService#refreshHierarchyIndex()}.
+ *
+ * concept_ancestor has tens of millions of rows for the full vocabulary. Like
+ * {@link IngredientIndex}, pairs are kept in sorted primitive arrays.
+ * concept_id is an integer column, so int is enough and halves the size.
+ * Descendants of ancestorIds[i] are descendantIds[descendantOffsets[i]] to
+ * descendantIds[descendantOffsets[i+1]-1], sorted. The ancestor side is the
+ * same pairs turned around.
+ *
+ * This is immutable once built. Rebuild and swap to refresh.
+ *
+ * @author mc142
+ *
+ */
+public class ConceptHierarchyIndex {
+	private static final long[] NONE = new long[0];
+
+	private final int[] ancestorIds;
+	private final int[] descendantOffsets;
+	private final int[] descendantIds;
+	private final int[] descendantKeys;
+	private final int[] ancestorOffsets;
+	private final int[] ancestorIdsOfDescendant;
+	private final String vocabularyVersion;
+	private final long builtAt;
+
+	private ConceptHierarchyIndex(int[] ancestorIds, int[] descendantOffsets, int[] descendantIds,
+			String vocabularyVersion) {
+		this.ancestorIds = ancestorIds;
+		this.descendantOffsets = descendantOffsets;
+		this.descendantIds = descendantIds;
+		this.vocabularyVersion = vocabularyVersion;
+
+		// Turn the pairs around. Counting sort keeps ancestors sorted per
+		// descendant because they are visited in order.
+		int[] keys = descendantIds.clone();
+		Arrays.sort(keys);
+		int keyCount = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keyCount == 0 || keys[keyCount - 1] != keys[i]) {
+				keys[keyCount++] = keys[i];
+			}
+		}
+		descendantKeys = Arrays.copyOf(keys, keyCount);
+
+		ancestorOffsets = new int[keyCount + 1];
+		for (int descendantId : descendantIds) {
+			ancestorOffsets[Arrays.binarySearch(descendantKeys, descendantId) + 1]++;
+		}
+		for (int i = 0; i < keyCount; i++) {
+			ancestorOffsets[i + 1] += ancestorOffsets[i];
+		}
+
+		ancestorIdsOfDescendant = new int[descendantIds.length];
+		int[] next = Arrays.copyOf(ancestorOffsets, keyCount);
+		for (int i = 0; i < ancestorIds.length; i++) {
+			for (int j = descendantOffsets[i]; j < descendantOffsets[i + 1]; j++) {
+				int k = Arrays.binarySearch(descendantKeys, descendantIds[j]);
+				ancestorIdsOfDescendant[next[k]++] = ancestorIds[i];
+			}
+		}
+
+		this.builtAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sorted descendant concept ids of the concept, the concept included.
+	 */
+	public long[] getDescendantIds(Long conceptId) {
+		return withSelf(conceptId, ancestorIds, descendantOffsets, descendantIds);
+	}
+
+	/**
+	 * Sorted ancestor concept ids of the concept, the concept included.
+	 */
+	public long[] getAncestorIds(Long conceptId) {
+		return withSelf(conceptId, descendantKeys, ancestorOffsets, ancestorIdsOfDescendant);
+	}
+
+	/**
+	 * Number of descendants of the concept, the concept included. Lets the
+	 * caller check the size before copying.
+	 */
+	public int getDescendantCount(Long conceptId) {
+		return count(conceptId, ancestorIds, descendantOffsets, descendantIds);
+	}
+
+	public int getAncestorCount(Long conceptId) {
+		return count(conceptId, descendantKeys, ancestorOffsets, ancestorIdsOfDescendant);
+	}
+
+	private static int count(Long conceptId, int[] keys, int[] offsets, int[] values) {
+		if (conceptId == null)
+			return 0;
+
+		int i = find(keys, conceptId);
+		if (i < 0)
+			return 1;
+
+		int from = offsets[i];
+		int to = offsets[i + 1];
+		boolean hasSelf = Arrays.binarySearch(values, from, to, (int) conceptId.longValue()) >= 0;
+		return to - from + (hasSelf ? 0 : 1);
+	}
+
+	/*
+	 * concept_ancestor has the level 0 row for standard concepts only. Add
+	 * the concept itself when it is missing.
+	 */
+	private static long[] withSelf(Long conceptId, int[] keys, int[] offsets, int[] values) {
+		if (conceptId == null)
+			return NONE;
+
+		int i = find(keys, conceptId);
+		if (i < 0)
+			return new long[] { conceptId };
+
+		int from = offsets[i];
+		int to = offsets[i + 1];
+		int self = (int) conceptId.longValue();
+		int at = Arrays.binarySearch(values, from, to, self);
+		// Where self goes if missing. -1 if it is there already.
+		int insertAt = at >= 0 ? -1 : -at - 1;
+		long[] retVal = new long[to - from + (at >= 0 ? 0 : 1)];
+		int n = 0;
+		for (int j = from; j < to; j++) {
+			if (j == insertAt) {
+				retVal[n++] = self;
+			}
+			retVal[n++] = values[j];
+		}
+		if (insertAt == to) {
+			retVal[n] = self;
+		}
+		return retVal;
+	}
+
+	private static int find(int[] keys, Long conceptId) {
+		long id = conceptId.longValue();
+		if (id < Integer.MIN_VALUE || id > Integer.MAX_VALUE)
+			return -1;
+		return Arrays.binarySearch(keys, (int) id);
+	}
+
+	/**
+	 * Number of ancestors in the index.
+	 */
+	public int size() {
+		return ancestorIds.length;
+	}
+
+	/**
+	 * Number of (ancestor, descendant) pairs in the index.
+	 */
+	public int getPairCount() {
+		return descendantIds.length;
+	}
+
+	/**
+	 * vocabulary_version of the vocabularies when the index was built. Used
+	 * to find out if the vocabulary has been reloaded.
+	 */
+	public String getVocabularyVersion() {
+		return vocabularyVersion;
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	@Override
+	public String toString() {
+		return "ancestors=" + size() + ", descendants=" + descendantKeys.length + ", pairs=" + getPairCount()
+				+ ", version=" + vocabularyVersion;
+	}
+
+	/**
+	 * Pairs must be added in (ancestor id, descendant id) order. Duplicate
+	 * pairs next to each other are dropped.
+	 */
+	public static class Builder {
+		private int[] ancestorIds = new int[1024];
+		private int[] offsets = new int[1025];
+		private int[] descendantIds = new int[4096];
+		private int ancestorCount = 0;
+		private int pairCount = 0;
+		private String vocabularyVersion;
+
+		public Builder setVocabularyVersion(String vocabularyVersion) {
+			this.vocabularyVersion = vocabularyVersion;
+			return this;
+		}
+
+		public Builder add(long ancestorId, long descendantId) {
+			int ancestor = (int) ancestorId;
+			int descendant = (int) descendantId;
+			if (ancestorCount == 0 || ancestorIds[ancestorCount - 1] != ancestor) {
+				if (ancestorCount > 0 && ancestorIds[ancestorCount - 1] > ancestor) {
+					throw new IllegalArgumentException("Ancestor ids must be added in order. " + ancestorId
+							+ " after " + ancestorIds[ancestorCount - 1]);
+				}
+				if (ancestorCount == ancestorIds.length) {
+					ancestorIds = Arrays.copyOf(ancestorIds, ancestorIds.length * 2);
+					offsets = Arrays.copyOf(offsets, ancestorIds.length + 1);
+				}
+				ancestorIds[ancestorCount] = ancestor;
+				offsets[ancestorCount] = pairCount;
+				ancestorCount++;
+			} else if (descendantIds[pairCount - 1] == descendant) {
+				return this;
+			} else if (descendantIds[pairCount - 1] > descendant) {
+				throw new IllegalArgumentException("Descendant ids must be added in order. " + descendantId
+						+ " after " + descendantIds[pairCount - 1]);
+			}
+
+			if (pairCount == descendantIds.length) {
+				descendantIds = Arrays.copyOf(descendantIds, descendantIds.length * 2);
+			}
+			descendantIds[pairCount++] = descendant;
+			return this;
+		}
+
+		public ConceptHierarchyIndex build() {
+			int[] finalOffsets = Arrays.copyOf(offsets, ancestorCount + 1);
+			finalOffsets[ancestorCount] = pairCount;
+			return new ConceptHierarchyIndex(Arrays.copyOf(ancestorIds, ancestorCount), finalOffsets,
+					Arrays.copyOf(descendantIds, pairCount), vocabularyVersion);
+		}
+	}
+}
@@ -1,9 +1,27 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import edu.gatech.chai.omopv5.jpa.entity.Concept;
 
 public interface ConceptService extends IService<Concept> {
 	public List<Concept> getIngredient(Concept concept);
+	public Map<Long, List<Concept>> getIngredients(Collection<Concept> drugs);
+	public IngredientIndex getIngredientIndex();
+	public IngredientIndex refreshIngredientIndex();
+	public boolean refreshIngredientIndexIfChanged();
+	public void setIngredientIndexCheckInterval(long checkInterval);
+	public ConceptHierarchyIndex getHierarchyIndex();
+	public ConceptHierarchyIndex refreshHierarchyIndex();
+	public void setHierarchyIndexCheckInterval(long checkInterval);
+	public void setHierarchyIndexVocabularies(List<String> vocabularyIds);
+	public String getVocabularyVersion();
+	public Concept findByVocabularyIdAndCode(String vocabularyId, String conceptCode);
+	public Map<String, Long> findIdsByVocabularyIdAndCodes(String vocabularyId, Collection<String> conceptCodes);
+	public List<Long> findIdsByVocabularyId(String vocabularyId, int maxResults);
+	public int warmUpCache(List<String> vocabularyIds);
+	public ConceptCache getConceptCache();
+	public void shutdown();
 }
@@ -1,76 +1,686 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import edu.gatech.chai.omopv5.jpa.dao.ConceptDao;
 import edu.gatech.chai.omopv5.jpa.entity.Concept;
 
 @Service
 public class ConceptServiceImp extends BaseEntityServiceImp<Concept, ConceptDao> implements ConceptService {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptServiceImp.class);
+
+	// Concepts per IN (...) query.
+	private static final int IN_LIST_SIZE = 1000;
+
+	/*
+	 * (drug, ingredient) pairs ordered by drug. RxNorm drugs are descendants
+	 * of the ingredients in concept_ancestor. NDC codes are mapped to the
+	 * standard RxNorm drugs with 'Maps to' first.
+	 */
+	private static final String INGREDIENT_INDEX_SQL = "SELECT ca.descendant_concept_id AS drug_id, ca.ancestor_concept_id AS ingredient_id "
+			+ "FROM concept_ancestor ca "
+			+ "JOIN concept src ON src.concept_id = ca.descendant_concept_id "
+			+ "JOIN concept c ON c.concept_id = ca.ancestor_concept_id "
+			+ "WHERE src.vocabulary_id = 'RxNorm' AND src.invalid_reason IS NULL "
+			+ "AND c.vocabulary_id = 'RxNorm' AND c.concept_class_id = 'Ingredient' AND c.invalid_reason IS NULL "
+			+ "UNION ALL "
+			+ "SELECT cr.concept_id_1 AS drug_id, ca.ancestor_concept_id AS ingredient_id "
+			+ "FROM concept_relationship cr "
+			+ "JOIN concept src ON src.concept_id = cr.concept_id_1 "
+			+ "JOIN concept tar ON tar.concept_id = cr.concept_id_2 "
+			+ "JOIN concept_ancestor ca ON ca.descendant_concept_id = tar.concept_id "
+			+ "JOIN concept c ON c.concept_id = ca.ancestor_concept_id "
+			+ "WHERE cr.relationship_id = 'Maps to' AND cr.invalid_reason IS NULL "
+			+ "AND src.vocabulary_id = 'NDC' AND src.invalid_reason IS NULL "
+			+ "AND tar.standard_concept = 'S' AND tar.invalid_reason IS NULL "
+			+ "AND c.vocabulary_id = 'RxNorm' AND c.concept_class_id = 'Ingredient' AND c.invalid_reason IS NULL "
+			+ "ORDER BY drug_id, ingredient_id";
+
+	// INGREDIENT_INDEX_SQL for some drugs. Used until the index is built.
+	private static final String INGREDIENT_SQL = "SELECT drug_id, ingredient_id FROM ("
+			+ INGREDIENT_INDEX_SQL.substring(0, INGREDIENT_INDEX_SQL.indexOf(" ORDER BY"))
+			+ ") t WHERE drug_id IN (:drug_ids) ORDER BY drug_id, ingredient_id";
+
+	/*
+	 * (ancestor, descendant) pairs ordered by ancestor. Limited to the
+	 * ancestors of hierarchyIndexVocabularies when it is set.
+	 */
+	private static final String HIERARCHY_INDEX_SQL = "SELECT ca.ancestor_concept_id, ca.descendant_concept_id "
+			+ "FROM concept_ancestor ca "
+			+ "ORDER BY ca.ancestor_concept_id, ca.descendant_concept_id";
+	private static final String HIERARCHY_INDEX_VOCABULARY_SQL = "SELECT ca.ancestor_concept_id, ca.descendant_concept_id "
+			+ "FROM concept_ancestor ca "
+			+ "JOIN concept c ON c.concept_id = ca.ancestor_concept_id "
+			+ "WHERE c.vocabulary_id IN (:vocabulary_ids) "
+			+ "ORDER BY ca.ancestor_concept_id, ca.descendant_concept_id";
+
+	private final ConceptCache conceptCache = new ConceptCache();
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	// Index builds take minutes. They run here, not on the request threads.
+	private final ExecutorService indexBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "concept-index-build");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Object ingredientIndexLock = new Object();
+	private volatile IngredientIndex ingredientIndex;
+	private volatile long ingredientIndexCheckInterval = 0L;
+	private volatile long ingredientIndexCheckedAt = 0L;
+	private final AtomicBoolean ingredientIndexBuilding = new AtomicBoolean();
+
+	private final Object hierarchyIndexLock = new Object();
+	private volatile ConceptHierarchyIndex hierarchyIndex;
+	private volatile long hierarchyIndexCheckInterval = 0L;
+	private volatile long hierarchyIndexCheckedAt = 0L;
+	private final AtomicBoolean hierarchyIndexBuilding = new AtomicBoolean();
+	private volatile List<String> hierarchyIndexVocabularies = new ArrayList<String>();
+
 	public ConceptServiceImp() {
 		super(Concept.class);
 	}
-	
+
+	public ConceptCache getConceptCache() {
+		return conceptCache;
+	}
+
 	@Transactional(readOnly = true)
-	public List<Concept> getIngredient(Concept concept) {
+	@Override
+	public Concept findById(Long id) {
+		Concept concept = conceptCache.getById(id);
+		if (concept != null)
+			return concept;
+
+		concept = super.findById(id);
+		conceptCache.put(concept);
+		return concept;
+	}
+
+	/**
+	 * Exact (vocabulary_id, concept_code) lookup. Result is served from
+	 * conceptCache whenever possible. Codes not in the vocabulary are
+	 * remembered as well, and null is returned for them.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public Concept findByVocabularyIdAndCode(String vocabularyId, String conceptCode) {
+		if (vocabularyId == null || conceptCode == null)
+			return null;
+
+		Concept concept = conceptCache.getByCode(vocabularyId, conceptCode);
+		if (concept != null) {
+			if (ConceptCache.isNotFound(concept))
+				return null;
+			return concept;
+		}
+
 		EntityManager em = getEntityDao().getEntityManager();
-		
+		List<Concept> results = em
+				.createQuery("SELECT c FROM Concept c JOIN FETCH c.vocabulary v "
+						+ "WHERE v.id = :vocabulary_id AND c.conceptCode = :concept_code", Concept.class)
+				.setParameter("vocabulary_id", vocabularyId)
+				.setParameter("concept_code", conceptCode)
+				.setHint(HINT_CACHEABLE, true)
+				.setHint(HINT_CACHE_REGION, VOCABULARY_QUERY_REGION)
+				.getResultList();
+
+		if (results.isEmpty()) {
+			conceptCache.putNotFound(vocabularyId, conceptCode);
+			return null;
+		}
+
+		// We should have only one entry... so...
+		concept = results.get(0);
+		conceptCache.put(concept);
+		return concept;
+	}
+
+	/**
+	 * concept_id of each code of the vocabulary, in IN (...) queries of
+	 * IN_LIST_SIZE codes. Codes not in the vocabulary are left out.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public Map<String, Long> findIdsByVocabularyIdAndCodes(String vocabularyId, Collection<String> conceptCodes) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		if (vocabularyId == null || conceptCodes == null || conceptCodes.isEmpty())
+			return retVal;
+
+		EntityManager em = getEntityDao().getEntityManager();
+		List<String> codes = new ArrayList<String>(new HashSet<String>(conceptCodes));
+		for (int i = 0; i < codes.size(); i += IN_LIST_SIZE) {
+			List<Object[]> results = em
+					.createQuery("SELECT c.conceptCode, c.id FROM Concept c "
+							+ "WHERE c.vocabulary.id = :vocabulary_id AND c.conceptCode IN :concept_codes", Object[].class)
+					.setParameter("vocabulary_id", vocabularyId)
+					.setParameter("concept_codes", codes.subList(i, Math.min(i + IN_LIST_SIZE, codes.size())))
+					.getResultList();
+			for (Object[] row : results) {
+				retVal.put((String) row[0], (Long) row[1]);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * concept_id of all the concepts of the vocabulary, up to maxResults + 1
+	 * so that the caller can tell that there are more.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<Long> findIdsByVocabularyId(String vocabularyId, int maxResults) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em
+				.createQuery("SELECT c.id FROM Concept c WHERE c.vocabulary.id = :vocabulary_id ORDER BY c.id",
+						Long.class)
+				.setParameter("vocabulary_id", vocabularyId)
+				.setMaxResults(maxResults + 1)
+				.getResultList();
+	}
+
+	/**
+	 * Pre-loads valid concepts of the vocabularies into the concept cache. We
+	 * do not load more than the cache can hold, taken in concept_id order so
+	 * that every start loads the same ones.
+	 * 
+	 * @return number of concepts loaded.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public int warmUpCache(List<String> vocabularyIds) {
+		if (vocabularyIds == null || vocabularyIds.isEmpty())
+			return 0;
+
+		int capacity = conceptCache.getMaxSize() - conceptCache.size();
+		if (capacity <= 0)
+			return 0;
+
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Concept> results = em
+				.createQuery("SELECT c FROM Concept c JOIN FETCH c.vocabulary v "
+						+ "WHERE v.id IN :vocabulary_ids AND c.invalidReason IS NULL ORDER BY c.id", Concept.class)
+				.setParameter("vocabulary_ids", vocabularyIds)
+				.setMaxResults(capacity)
+				.getResultList();
+
+		for (Concept concept : results) {
+			conceptCache.put(concept);
+		}
+
+		logger.info("Concept cache warmed up with " + results.size() + " concepts from " + vocabularyIds);
+		return results.size();
+	}
+
+	/**
+	 * Returns RxNorm ingredients of the RxNorm or NDC drug concept. Empty if
+	 * the concept is an ingredient itself or not a drug.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<Concept> getIngredient(Concept concept) {
 		List<Concept> concepts = new ArrayList<Concept>();
-		
-		if ("Ingredient".equals(concept.getConceptClass())) {
-			// This is ingredient. Just return null
+		if (!isIngredientSource(concept))
 			return concepts;
+
+		for (long ingredientId : ingredientIds(Collections.singleton(concept.getId())).get(concept.getId())) {
+			Concept ingredient = findById(ingredientId);
+			if (ingredient != null) {
+				concepts.add(ingredient);
+			}
+		}
+
+		return concepts;
+	}
+
+	/**
+	 * getIngredient for a page of drugs. Ingredient concepts that are not in
+	 * the concept cache are loaded with one query.
+	 * 
+	 * @return drug concept_id to its ingredients. Drugs without ingredients
+	 *         are not in the map.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public Map<Long, List<Concept>> getIngredients(Collection<Concept> drugs) {
+		Map<Long, List<Concept>> retv = new HashMap<Long, List<Concept>>();
+
+		Set<Long> drugIds = new HashSet<Long>();
+		for (Concept drug : drugs) {
+			if (isIngredientSource(drug)) {
+				drugIds.add(drug.getId());
+			}
+		}
+
+		Map<Long, long[]> ingredientIdsByDrug = ingredientIds(drugIds);
+		Set<Long> missing = new HashSet<Long>();
+		for (Iterator<long[]> iter = ingredientIdsByDrug.values().iterator(); iter.hasNext();) {
+			long[] ingredientIds = iter.next();
+			if (ingredientIds.length == 0) {
+				iter.remove();
+				continue;
+			}
+
+			for (long ingredientId : ingredientIds) {
+				if (conceptCache.getById(ingredientId) == null) {
+					missing.add(ingredientId);
+				}
+			}
+		}
+
+		loadIntoCache(missing);
+
+		for (Map.Entry<Long, long[]> entry : ingredientIdsByDrug.entrySet()) {
+			List<Concept> ingredients = new ArrayList<Concept>();
+			for (long ingredientId : entry.getValue()) {
+				Concept ingredient = conceptCache.getById(ingredientId);
+				if (ingredient == null) {
+					// Evicted already or not in the concept table.
+					ingredient = findById(ingredientId);
+				}
+				if (ingredient != null) {
+					ingredients.add(ingredient);
+				}
+			}
+			retv.put(entry.getKey(), ingredients);
+		}
+
+		return retv;
+	}
+
+	/*
+	 * Ingredients of each drug, from the index. Until the index is built,
+	 * they are queried with INGREDIENT_SQL.
+	 */
+	private Map<Long, long[]> ingredientIds(Collection<Long> drugIds) {
+		Map<Long, long[]> retv = new HashMap<Long, long[]>();
+		IngredientIndex index = getIngredientIndex();
+		if (index != null) {
+			for (Long drugId : drugIds) {
+				retv.put(drugId, index.getIngredientIds(drugId));
+			}
+			return retv;
+		}
+
+		Map<Long, List<Long>> found = new HashMap<Long, List<Long>>();
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Long> ids = new ArrayList<Long>(drugIds);
+		for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+			List<?> results = em.createNativeQuery(INGREDIENT_SQL)
+					.setParameter("drug_ids", ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size())))
+					.getResultList();
+			for (Object result : results) {
+				Object[] row = (Object[]) result;
+				Long drugId = ((Number) row[0]).longValue();
+				List<Long> ingredientIds = found.get(drugId);
+				if (ingredientIds == null) {
+					ingredientIds = new ArrayList<Long>();
+					found.put(drugId, ingredientIds);
+				}
+				// A drug can reach an ingredient by more than one path.
+				long ingredientId = ((Number) row[1]).longValue();
+				if (ingredientIds.isEmpty() || ingredientIds.get(ingredientIds.size() - 1) != ingredientId) {
+					ingredientIds.add(ingredientId);
+				}
+			}
+		}
+
+		for (Long drugId : drugIds) {
+			List<Long> ingredientIds = found.get(drugId);
+			long[] array = new long[ingredientIds == null ? 0 : ingredientIds.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = ingredientIds.get(i);
+			}
+			retv.put(drugId, array);
+		}
+		return retv;
+	}
+
+	private static boolean isIngredientSource(Concept concept) {
+		if (concept == null || concept.getId() == null || concept.getVocabulary() == null)
+			return false;
+
+		if ("Ingredient".equals(concept.getConceptClass()))
+			return false;
+
+		String vocabularyId = concept.getVocabulary().getId();
+		return "RxNorm".equals(vocabularyId) || "NDC".equals(vocabularyId);
+	}
+
+	private void loadIntoCache(Set<Long> conceptIds) {
+		if (conceptIds.isEmpty())
+			return;
+
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Long> ids = new ArrayList<Long>(conceptIds);
+		for (int i = 0; i < ids.size(); i += IN_LIST_SIZE) {
+			List<Concept> results = em
+					.createQuery("SELECT c FROM Concept c JOIN FETCH c.vocabulary WHERE c.id IN :ids", Concept.class)
+					.setParameter("ids", ids.subList(i, Math.min(i + IN_LIST_SIZE, ids.size())))
+					.setHint(HINT_READONLY, true)
+					.getResultList();
+			for (Concept concept : results) {
+				conceptCache.put(concept);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ingredient index, or null if it has not been built yet. The
+	 * first call starts the build in background. If
+	 * ingredientIndexCheckInterval is set, the vocabulary version is checked
+	 * in background at most once per interval and the index is rebuilt when
+	 * the vocabulary has been reloaded.
+	 */
+	@Override
+	public IngredientIndex getIngredientIndex() {
+		IngredientIndex index = ingredientIndex;
+		if (index == null) {
+			buildInBackground(ingredientIndexBuilding, new Runnable() {
+				@Override
+				public void run() {
+					synchronized (ingredientIndexLock) {
+						if (ingredientIndex == null) {
+							buildIngredientIndex();
+						}
+					}
+				}
+			});
+		} else if (ingredientIndexCheckInterval > 0
+				&& System.currentTimeMillis() > ingredientIndexCheckedAt + ingredientIndexCheckInterval) {
+			// So that other requests do not queue the same check.
+			ingredientIndexCheckedAt = System.currentTimeMillis();
+			buildInBackground(ingredientIndexBuilding, new Runnable() {
+				@Override
+				public void run() {
+					refreshIngredientIndexIfChanged();
+				}
+			});
+		}
+
+		return index;
+	}
+
+	/**
+	 * Rebuilds the ingredient index from the vocabulary tables. Call this
+	 * after the vocabulary tables are reloaded. Lookups keep using the
+	 * current index while the new one is being built.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public IngredientIndex refreshIngredientIndex() {
+		synchronized (ingredientIndexLock) {
+			return buildIngredientIndex();
 		}
-		
-		String sqlQuery = null;
-		if ("NDC".equals(concept.getVocabulary().getId())) {
-			// Use JPQL
-			sqlQuery = "select c "
-					+ "FROM Concept src "
-					+ "JOIN ConceptRelationship cr on src.id = cr.conceptId1 "
-			        + "AND cr.relationship_id = 'Maps to' "
-			        + "AND cr.invalid_reason is null "
-			        + "JOIN Concept tar on cr.conceptId2 = tar.id "
-			        + "AND tar.standardConcept = 'S' "
-			        + "AND tar.invalidReason is null "
-			        + "JOIN ConceptAncestor ca ON ca.ancestorConcept = tar.id "
-			        + "JOIN Concept c ON ca.ancestorConcept = c.id "
-			        + "WHERE src.conceptCode = :med_code "
-			        + "AND 'NDC' = src.vocabulary "
-			        + "AND c.vocabulary = 'RxNorm' "
-			        + "AND c.conceptClass = 'Ingredient' "
-			        + "AND src.invalidReason is null";
-		} else if ("RxNorm".equals(concept.getVocabulary().getId())) {
-			// when RxNorm.
-			sqlQuery = "select c "
-					+ "FROM Concept src " 
-					+ "JOIN ConceptAncestor ca ON ca.descendantConcept = src.id "
-					+ "JOIN Concept c ON ca.ancestorConcept = c.id "
-					+ "WHERE src.conceptCode = :med_code "
-					+ "AND 'RxNorm' = src.vocabulary "
-					+ "AND c.vocabulary = 'RxNorm' "
-					+ "AND c.conceptClass = 'Ingredient' "
-					+ "AND src.invalidReason is null "
-					+ "AND c.invalidReason is null";
+	}
+
+	/**
+	 * Rebuilds the ingredient index only if vocabulary_version of RxNorm or
+	 * NDC has changed since the index was built.
+	 * 
+	 * @return true if the index was rebuilt.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public boolean refreshIngredientIndexIfChanged() {
+		synchronized (ingredientIndexLock) {
+			ingredientIndexCheckedAt = System.currentTimeMillis();
+			IngredientIndex index = ingredientIndex;
+			if (index != null && index.getVocabularyVersion().equals(getIngredientVocabularyVersion())) {
+				return false;
+			}
+
+			buildIngredientIndex();
+			return true;
+		}
+	}
+
+	/**
+	 * @param checkInterval milliseconds between vocabulary version checks. 0
+	 *                      to disable.
+	 */
+	@Override
+	public void setIngredientIndexCheckInterval(long checkInterval) {
+		this.ingredientIndexCheckInterval = checkInterval;
+	}
+
+	private IngredientIndex buildIngredientIndex() {
+		long start = System.currentTimeMillis();
+		IngredientIndex.Builder builder = new IngredientIndex.Builder()
+				.setVocabularyVersion(getIngredientVocabularyVersion());
+
+		Session session = getEntityDao().getEntityManager().unwrap(Session.class);
+		ScrollableResults results = session.createNativeQuery(INGREDIENT_INDEX_SQL)
+				.setFetchSize(10000)
+				.setReadOnly(true)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				builder.add(((Number) results.get(0)).longValue(), ((Number) results.get(1)).longValue());
+			}
+		} finally {
+			results.close();
+		}
+
+		IngredientIndex index = builder.build();
+		ingredientIndex = index;
+		ingredientIndexCheckedAt = System.currentTimeMillis();
+		logger.info("Ingredient index built in " + (System.currentTimeMillis() - start) + "ms: " + index);
+		return index;
+	}
+
+	/**
+	 * Returns the concept hierarchy index, or null if it has not been built
+	 * yet. The first call starts the build in background. If
+	 * hierarchyIndexCheckInterval is set, the vocabulary version is checked
+	 * in background at most once per interval and the index is rebuilt when
+	 * the vocabulary has been reloaded. The current index is returned until
+	 * the new one is built.
+	 */
+	@Override
+	public ConceptHierarchyIndex getHierarchyIndex() {
+		ConceptHierarchyIndex index = hierarchyIndex;
+		if (index == null) {
+			buildInBackground(hierarchyIndexBuilding, new Runnable() {
+				@Override
+				public void run() {
+					synchronized (hierarchyIndexLock) {
+						if (hierarchyIndex == null) {
+							buildHierarchyIndex();
+						}
+					}
+				}
+			});
+		} else if (hierarchyIndexCheckInterval > 0
+				&& System.currentTimeMillis() > hierarchyIndexCheckedAt + hierarchyIndexCheckInterval) {
+			hierarchyIndexCheckedAt = System.currentTimeMillis();
+			buildInBackground(hierarchyIndexBuilding, new Runnable() {
+				@Override
+				public void run() {
+					synchronized (hierarchyIndexLock) {
+						ConceptHierarchyIndex current = hierarchyIndex;
+						if (current == null || !current.getVocabularyVersion().equals(getVocabularyVersion())) {
+							buildHierarchyIndex();
+						}
+					}
+				}
+			});
+		}
+
+		return index;
+	}
+
+	/**
+	 * Rebuilds the hierarchy index from concept_ancestor. Lookups keep using
+	 * the current index while the new one is being built.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public ConceptHierarchyIndex refreshHierarchyIndex() {
+		synchronized (hierarchyIndexLock) {
+			return buildHierarchyIndex();
+		}
+	}
+
+	/**
+	 * @param checkInterval milliseconds between vocabulary version checks. 0
+	 *                      to disable.
+	 */
+	@Override
+	public void setHierarchyIndexCheckInterval(long checkInterval) {
+		this.hierarchyIndexCheckInterval = checkInterval;
+	}
+
+	/**
+	 * @param vocabularyIds vocabularies whose concepts can be searched with
+	 *                      :below and :above. Empty for all of them. Takes
+	 *                      effect at the next build.
+	 */
+	@Override
+	public void setHierarchyIndexVocabularies(List<String> vocabularyIds) {
+		this.hierarchyIndexVocabularies = new ArrayList<String>(vocabularyIds);
+	}
+
+	private ConceptHierarchyIndex buildHierarchyIndex() {
+		long start = System.currentTimeMillis();
+		ConceptHierarchyIndex.Builder builder = new ConceptHierarchyIndex.Builder()
+				.setVocabularyVersion(getVocabularyVersion());
+
+		List<String> vocabularyIds = hierarchyIndexVocabularies;
+		Session session = getEntityDao().getEntityManager().unwrap(Session.class);
+		NativeQuery<?> query;
+		if (vocabularyIds.isEmpty()) {
+			query = session.createNativeQuery(HIERARCHY_INDEX_SQL);
 		} else {
-			return concepts;
+			query = session.createNativeQuery(HIERARCHY_INDEX_VOCABULARY_SQL)
+					.setParameterList("vocabulary_ids", vocabularyIds);
+		}
+		ScrollableResults results = query
+				.setFetchSize(10000)
+				.setReadOnly(true)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				builder.add(((Number) results.get(0)).longValue(), ((Number) results.get(1)).longValue());
+			}
+		} finally {
+			results.close();
+		}
+
+		ConceptHierarchyIndex index = builder.build();
+		hierarchyIndex = index;
+		hierarchyIndexCheckedAt = System.currentTimeMillis();
+		logger.info("Concept hierarchy index built in " + (System.currentTimeMillis() - start) + "ms: " + index);
+		return index;
+	}
+
+	/**
+	 * Stops the index builds. Call this when the server is shut down.
+	 */
+	@Override
+	public void shutdown() {
+		indexBuilder.shutdownNow();
+	}
+
+	/*
+	 * Runs the build in its own read-only transaction on indexBuilder, unless
+	 * a build of the same index is queued or running already.
+	 */
+	private void buildInBackground(final AtomicBoolean building, final Runnable build) {
+		if (!building.compareAndSet(false, true))
+			return;
+
+		final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setReadOnly(true);
+		try {
+			indexBuilder.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+							@Override
+							protected void doInTransactionWithoutResult(TransactionStatus status) {
+								build.run();
+							}
+						});
+					} catch (RuntimeException e) {
+						logger.warn("Concept index build failed: " + e.getMessage());
+					} finally {
+						building.set(false);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// Shut down already.
+			building.set(false);
+		}
+	}
+
+	/**
+	 * vocabulary_version of all the vocabularies. Changes when any vocabulary
+	 * is reloaded.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(readOnly = true)
+	@Override
+	public String getVocabularyVersion() {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Object[]> results = em
+				.createNativeQuery("SELECT vocabulary_id, vocabulary_version FROM vocabulary ORDER BY vocabulary_id")
+				.getResultList();
+
+		StringBuilder version = new StringBuilder();
+		for (Object[] row : results) {
+			version.append(row[0]).append('=').append(row[1]).append(';');
+		}
+		return version.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private String getIngredientVocabularyVersion() {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Object[]> results = em
+				.createNativeQuery("SELECT vocabulary_id, vocabulary_version FROM vocabulary "
+						+ "WHERE vocabulary_id IN ('RxNorm', 'NDC') ORDER BY vocabulary_id")
+				.getResultList();
+
+		StringBuilder version = new StringBuilder();
+		for (Object[] row : results) {
+			version.append(row[0]).append('=').append(row[1]).append(';');
 		}
-		
-		TypedQuery<Concept> query = em.createQuery(sqlQuery, Concept.class);
-		query = query.setParameter("med_code", concept.getConceptCode());
-		return query.getResultList();
-//		List<Concept> results = query.getResultList();
-//		if (results.size() > 0) {
-//			return results.get(0);
-//		} else {
-//			return null;
-//		}
+		return version.toString();
 	}
 }
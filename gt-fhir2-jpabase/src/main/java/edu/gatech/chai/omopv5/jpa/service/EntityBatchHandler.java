@@ -0,0 +1,14 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.List;
+
+import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+
+/**
+ * Receives the entities of {@link IService#scrollWithParams} one batch at a
+ * time. Entities are detached after the batch is handled. So, do not keep
+ * them.
+ */
+public interface EntityBatchHandler<v extends BaseEntity> {
+	public void handle(List<v> entities) throws Exception;
+}
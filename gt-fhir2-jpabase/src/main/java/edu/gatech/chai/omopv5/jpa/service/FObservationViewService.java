@@ -1,6 +1,8 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.springframework.transaction.annotation.Transactional;
 
@@ -9,5 +11,6 @@ import edu.gatech.chai.omopv5.jpa.entity.FObservationView;
 @Transactional
 public interface FObservationViewService extends IService<FObservationView> {
 	public FObservationView findDiastolic (Long conceptId, Long personId, Date date, String time);
+	public List<FObservationView> findDiastolics (Long conceptId, Collection<Long> personIds, Collection<Date> dates);
 
 }
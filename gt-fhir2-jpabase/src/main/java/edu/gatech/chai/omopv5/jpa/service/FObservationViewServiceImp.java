@@ -1,5 +1,7 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -10,6 +12,7 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import edu.gatech.chai.omopv5.jpa.dao.FObservationViewDao;
 import edu.gatech.chai.omopv5.jpa.entity.FObservationView;
@@ -41,4 +44,32 @@ public class FObservationViewServiceImp extends BaseEntityServiceImp<FObservatio
 			return null;
 		}
 	}
+
+	/**
+	 * Set-based version of findDiastolic. Returns diastolic rows of the persons
+	 * on the dates so that a whole page of systolic rows can be paired with
+	 * their diastolic rows with one query. The caller matches them by
+	 * (person_id, date, time).
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<FObservationView> findDiastolics(Long conceptId, Collection<Long> personIds, Collection<Date> dates) {
+		if (personIds == null || personIds.isEmpty() || dates == null || dates.isEmpty()) {
+			return new ArrayList<FObservationView>();
+		}
+
+		EntityManager em = getEntityDao().getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<FObservationView> criteria = builder.createQuery(FObservationView.class);
+		Root<FObservationView> from = criteria.from(FObservationView.class);
+		fetchEagerAssociations(from);
+		criteria.select(from).where(
+				builder.equal(from.get("observationConcept").get("id"), conceptId),
+				from.get("fPerson").get("id").in(personIds),
+				from.get("date").in(dates)
+				);
+		TypedQuery<FObservationView> query = em.createQuery(criteria);
+		query.setHint(HINT_READONLY, true);
+		return query.getResultList();
+	}
 }
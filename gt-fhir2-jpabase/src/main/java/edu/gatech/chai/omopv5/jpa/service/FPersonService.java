@@ -1,9 +1,11 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.List;
 
 import edu.gatech.chai.omopv5.jpa.entity.FPerson;
 import edu.gatech.chai.omopv5.jpa.entity.Location;
 
 public interface FPersonService extends IService<FPerson> {
 	public FPerson searchByNameAndLocation(String familyName, String given1Name, String given2Name, Location location);
+	public List<Long> findIdsByCohort(Long cohortDefinitionId);
 }
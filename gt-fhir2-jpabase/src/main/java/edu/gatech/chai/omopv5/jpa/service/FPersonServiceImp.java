@@ -1,5 +1,6 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -61,4 +62,23 @@ public class FPersonServiceImp extends BaseEntityServiceImp<FPerson, FPersonDao>
 			return null;	
 		}
 
+	/**
+	 * Returns person ids in the OMOP cohort table for the cohort definition.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<Long> findIdsByCohort(Long cohortDefinitionId) {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<?> results = em.createNativeQuery("SELECT DISTINCT subject_id FROM cohort "
+				+ "WHERE cohort_definition_id = :cohort_definition_id ORDER BY subject_id")
+				.setParameter("cohort_definition_id", cohortDefinitionId)
+				.getResultList();
+
+		List<Long> ids = new ArrayList<Long>(results.size());
+		for (Object result : results) {
+			ids.add(((Number) result).longValue());
+		}
+		return ids;
+	}
+
 }
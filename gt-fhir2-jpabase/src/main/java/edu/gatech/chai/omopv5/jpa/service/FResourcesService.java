@@ -0,0 +1,16 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import edu.gatech.chai.omopv5.jpa.entity.FResources;
+
+public interface FResourcesService extends IService<FResources> {
+	public String findFhirData(String resourceName, Long resourceId, Date renderedAfter);
+	public List<String> searchFhirData(String resourceName, Long afterResourceId, int fromIndex, int count);
+	public int save(String resourceName, Map<Long, String> fhirData, boolean searchable, Date renderedAt);
+	public int remove(String resourceName, Long resourceId);
+	public int removeRenderedBefore(String resourceName, Date renderedAt);
+	public Long getSize(String resourceName);
+}
@@ -0,0 +1,221 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.gatech.chai.omopv5.jpa.dao.FResourcesDao;
+import edu.gatech.chai.omopv5.jpa.entity.FResources;
+
+/**
+ * Stored FHIR JSON. Writes run in their own transaction as they are called
+ * while the OMOP rows are being read (eg. from a read-only scroll). On
+ * PostgreSQL, writes are upserts so that a read storing a resource at the
+ * same time as the background render does not fail either of them.
+ * 
+ * @author mc142
+ *
+ */
+@Service
+public class FResourcesServiceImp extends BaseEntityServiceImp<FResources, FResourcesDao> implements FResourcesService {
+
+	// Ids per "IN" list when we look up the existing rows.
+	private static final int LOOKUP_CHUNK_SIZE = 500;
+	// Rows per upsert statement.
+	private static final int UPSERT_CHUNK_SIZE = 100;
+
+	// A read stores resources as not searchable. It must not take an
+	// existing row out of the search results.
+	private static final String UPSERT_CONFLICT = " ON CONFLICT (resource_name, resource_id) DO UPDATE SET "
+			+ "fhir_data = EXCLUDED.fhir_data, rendered_at = EXCLUDED.rendered_at, "
+			+ "searchable = CASE WHEN EXCLUDED.searchable = 'true' THEN 'true' ELSE f_resources.searchable END";
+
+	public FResourcesServiceImp() {
+		super(FResources.class);
+	}
+
+	/**
+	 * @param renderedAfter oldest JSON to return. null for any.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public String findFhirData(String resourceName, Long resourceId, Date renderedAfter) {
+		EntityManager em = getEntityDao().getEntityManager();
+		String queryString = "SELECT r.fhirData FROM FResources r WHERE r.resourceName = :resource_name AND r.resourceId = :resource_id";
+		if (renderedAfter != null) {
+			queryString += " AND r.renderedAt > :rendered_after";
+		}
+		TypedQuery<String> query = em.createQuery(queryString, String.class)
+				.setParameter("resource_name", resourceName)
+				.setParameter("resource_id", resourceId);
+		if (renderedAfter != null) {
+			query.setParameter("rendered_after", renderedAfter, TemporalType.TIMESTAMP);
+		}
+		List<String> results = query.getResultList();
+		if (results.isEmpty()) {
+			return null;
+		}
+
+		return results.get(0);
+	}
+
+	/**
+	 * JSON of the searchable resources in resource id order. If
+	 * afterResourceId is not null, the page starts after it and fromIndex is
+	 * ignored.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<String> searchFhirData(String resourceName, Long afterResourceId, int fromIndex, int count) {
+		EntityManager em = getEntityDao().getEntityManager();
+		TypedQuery<String> query;
+		if (afterResourceId == null) {
+			query = em.createQuery("SELECT r.fhirData FROM FResources r WHERE r.resourceName = :resource_name "
+					+ "AND r.searchable = 'true' ORDER BY r.resourceId", String.class)
+					.setFirstResult(fromIndex);
+		} else {
+			query = em.createQuery("SELECT r.fhirData FROM FResources r WHERE r.resourceName = :resource_name "
+					+ "AND r.searchable = 'true' AND r.resourceId > :resource_id ORDER BY r.resourceId", String.class)
+					.setParameter("resource_id", afterResourceId);
+		}
+
+		return query.setParameter("resource_name", resourceName)
+				.setMaxResults(count)
+				.getResultList();
+	}
+
+	/**
+	 * Inserts or updates the JSON of the resources.
+	 * 
+	 * @param fhirData   resource id -> JSON
+	 * @param searchable false if the resources are not in the search results
+	 *                   without parameters (eg. filtered by the mapper). Rows
+	 *                   that are searchable already stay searchable.
+	 * @return number of rows written.
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	@Override
+	public int save(String resourceName, Map<Long, String> fhirData, boolean searchable, Date renderedAt) {
+		if (fhirData.isEmpty()) {
+			return 0;
+		}
+
+		if (isPostgreSQL()) {
+			return upsert(resourceName, fhirData, searchable, renderedAt);
+		}
+
+		EntityManager em = getEntityDao().getEntityManager();
+		Map<Long, FResources> existing = new HashMap<Long, FResources>();
+		List<Long> resourceIds = new ArrayList<Long>(fhirData.keySet());
+		for (int i = 0; i < resourceIds.size(); i += LOOKUP_CHUNK_SIZE) {
+			List<FResources> rows = em.createQuery("SELECT r FROM FResources r WHERE r.resourceName = :resource_name "
+					+ "AND r.resourceId IN :resource_ids", FResources.class)
+					.setParameter("resource_name", resourceName)
+					.setParameter("resource_ids", resourceIds.subList(i, Math.min(i + LOOKUP_CHUNK_SIZE, resourceIds.size())))
+					.getResultList();
+			for (FResources row : rows) {
+				existing.put(row.getResourceId(), row);
+			}
+		}
+
+		for (Map.Entry<Long, String> entry : fhirData.entrySet()) {
+			FResources row = existing.get(entry.getKey());
+			if (row == null) {
+				row = new FResources();
+				row.setResourceName(resourceName);
+				row.setResourceId(entry.getKey());
+				row.setFhirData(entry.getValue());
+				row.setSearchable(String.valueOf(searchable));
+				row.setRenderedAt(renderedAt);
+				em.persist(row);
+			} else {
+				row.setFhirData(entry.getValue());
+				if (searchable) {
+					row.setSearchable(String.valueOf(searchable));
+				}
+				row.setRenderedAt(renderedAt);
+			}
+		}
+		em.flush();
+		em.clear();
+
+		return fhirData.size();
+	}
+
+	private int upsert(String resourceName, Map<Long, String> fhirData, boolean searchable, Date renderedAt) {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>(fhirData.entrySet());
+		int count = 0;
+		for (int i = 0; i < entries.size(); i += UPSERT_CHUNK_SIZE) {
+			List<Map.Entry<Long, String>> chunk = entries.subList(i, Math.min(i + UPSERT_CHUNK_SIZE, entries.size()));
+
+			StringBuilder sql = new StringBuilder("INSERT INTO f_resources "
+					+ "(f_resources_id, resource_name, resource_id, searchable, fhir_data, rendered_at) VALUES ");
+			for (int j = 0; j < chunk.size(); j++) {
+				if (j > 0) {
+					sql.append(", ");
+				}
+				sql.append("(nextval('fresources_id_seq'), :resource_name, :resource_id").append(j)
+						.append(", :searchable, :fhir_data").append(j).append(", :rendered_at)");
+			}
+			sql.append(UPSERT_CONFLICT);
+
+			Query query = em.createNativeQuery(sql.toString())
+					.setParameter("resource_name", resourceName)
+					.setParameter("searchable", String.valueOf(searchable))
+					.setParameter("rendered_at", renderedAt, TemporalType.TIMESTAMP);
+			for (int j = 0; j < chunk.size(); j++) {
+				query.setParameter("resource_id" + j, chunk.get(j).getKey());
+				query.setParameter("fhir_data" + j, chunk.get(j).getValue());
+			}
+			count += query.executeUpdate();
+		}
+
+		return count;
+	}
+
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	@Override
+	public int remove(String resourceName, Long resourceId) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("DELETE FROM FResources r WHERE r.resourceName = :resource_name AND r.resourceId = :resource_id")
+				.setParameter("resource_name", resourceName)
+				.setParameter("resource_id", resourceId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Removes the rows that a full render did not write. Their OMOP rows are
+	 * gone.
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	@Override
+	public int removeRenderedBefore(String resourceName, Date renderedAt) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("DELETE FROM FResources r WHERE r.resourceName = :resource_name AND r.renderedAt < :rendered_at")
+				.setParameter("resource_name", resourceName)
+				.setParameter("rendered_at", renderedAt)
+				.executeUpdate();
+	}
+
+	@Transactional(readOnly = true)
+	@Override
+	public Long getSize(String resourceName) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("SELECT COUNT(r) FROM FResources r WHERE r.resourceName = :resource_name "
+				+ "AND r.searchable = 'true'", Long.class)
+				.setParameter("resource_name", resourceName)
+				.getSingleResult();
+	}
+}
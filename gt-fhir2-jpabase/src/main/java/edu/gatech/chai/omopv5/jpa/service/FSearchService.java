@@ -0,0 +1,13 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Date;
+
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+
+public interface FSearchService extends IService<FSearch> {
+	public FSearch findBySearchUuid(String searchUuid);
+	public int putCursor(String searchUuid, int fromIndex, Long lastId);
+	public int updatePageSource(String searchUuid, String pageSource);
+	public int updateTotalSize(String searchUuid, Integer totalSize);
+	public int removeExpired(Date now);
+}
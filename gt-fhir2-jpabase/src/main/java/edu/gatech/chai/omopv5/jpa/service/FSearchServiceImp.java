@@ -0,0 +1,97 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.gatech.chai.omopv5.jpa.dao.FSearchDao;
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+
+@Service
+public class FSearchServiceImp extends BaseEntityServiceImp<FSearch, FSearchDao> implements FSearchService {
+
+	public FSearchServiceImp() {
+		super(FSearch.class);
+	}
+
+	// Not read-only, so that it goes to the primary. The search may have
+	// been stored there just now, and not be on the replicas yet.
+	@Transactional
+	@Override
+	public FSearch findBySearchUuid(String searchUuid) {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<FSearch> results = em.createQuery("SELECT s FROM FSearch s WHERE s.searchUuid = :search_uuid", FSearch.class)
+				.setParameter("search_uuid", searchUuid)
+				.getResultList();
+		if (results.isEmpty()) {
+			return null;
+		}
+
+		return results.get(0);
+	}
+
+	/**
+	 * Adds a keyset cursor to the stored ones. The row is locked so that the
+	 * cursors that other servers add to the same search at the same time are
+	 * kept.
+	 */
+	@Transactional
+	@Override
+	public int putCursor(String searchUuid, int fromIndex, Long lastId) {
+		EntityManager em = getEntityDao().getEntityManager();
+		List<FSearch> results = em.createQuery("SELECT s FROM FSearch s WHERE s.searchUuid = :search_uuid", FSearch.class)
+				.setParameter("search_uuid", searchUuid)
+				.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+				.getResultList();
+		if (results.isEmpty()) {
+			return 0;
+		}
+
+		FSearch search = results.get(0);
+		SortedMap<Integer, Long> cursors = FSearch.cursorsFromJson(search.getCursors());
+		if (lastId.equals(cursors.get(fromIndex))) {
+			return 0;
+		}
+		cursors.put(fromIndex, lastId);
+		while (cursors.size() > FSearch.MAX_CURSORS) {
+			cursors.remove(cursors.firstKey());
+		}
+		search.setCursors(FSearch.cursorsToJson(cursors));
+		return 1;
+	}
+
+	@Transactional
+	@Override
+	public int updatePageSource(String searchUuid, String pageSource) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("UPDATE FSearch s SET s.pageSource = :page_source WHERE s.searchUuid = :search_uuid")
+				.setParameter("page_source", pageSource)
+				.setParameter("search_uuid", searchUuid)
+				.executeUpdate();
+	}
+
+	@Transactional
+	@Override
+	public int updateTotalSize(String searchUuid, Integer totalSize) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("UPDATE FSearch s SET s.totalSize = :total_size WHERE s.searchUuid = :search_uuid")
+				.setParameter("total_size", totalSize)
+				.setParameter("search_uuid", searchUuid)
+				.executeUpdate();
+	}
+
+	@Transactional
+	@Override
+	public int removeExpired(Date now) {
+		EntityManager em = getEntityDao().getEntityManager();
+		return em.createQuery("DELETE FROM FSearch s WHERE s.expiresAt < :now")
+				.setParameter("now", now)
+				.executeUpdate();
+	}
+}
@@ -1,6 +1,8 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
 
@@ -10,10 +12,15 @@ public interface IService<v extends BaseEntity> {
 	v findById (Long id);
 	public Long removeById (Long id);
 	List<v> searchByColumnString (String column, String value);
+	public Map<String, Long> findIdsBySourceValues(String column, Collection<String> values);
 	public List<v> searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> paramList);
 	public List<v> searchWithoutParams(int fromIndex, int toIndex);
+	public List<v> searchAfterId(Long lastId, int count, List<ParameterWrapper> paramList);
+	public long scrollWithParams(List<ParameterWrapper> paramList, int batchSize, EntityBatchHandler<v> handler) throws Exception;
 	v create(v entity);
 	v update(v entity);
 	Long getSize();
 	Long getSize(List<ParameterWrapper> paramList);
+	Long getEstimatedSize();
+	Long getMaxId();
 }
@@ -0,0 +1,12 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+import edu.gatech.chai.omopv5.jpa.entity.IdMapping;
+
+public interface IdMappingService extends IService<IdMapping> {
+	public Map<Long, Long> findFhirIds(String resourceName, Collection<Long> omopIds);
+	public Map<Long, Long> findOmopIds(String resourceName, Collection<Long> fhirIds);
+	public Map<Long, Long> createFhirIds(String resourceName, Collection<Long> omopIds);
+}
@@ -0,0 +1,111 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.gatech.chai.omopv5.jpa.dao.IdMappingDao;
+import edu.gatech.chai.omopv5.jpa.entity.IdMapping;
+
+/**
+ * Persisted FHIR id to OMOP id mapping. Lookups and creation take a whole page
+ * of ids at a time. New FHIR ids are generated from id_mapping_fhir_id_seq in
+ * blocks (see {@link edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator}).
+ *
+ * @author mc142
+ *
+ */
+@Service
+public class IdMappingServiceImp extends BaseEntityServiceImp<IdMapping, IdMappingDao> implements IdMappingService {
+
+	// Ids per "IN" list.
+	private static final int LOOKUP_CHUNK_SIZE = 500;
+
+	public IdMappingServiceImp() {
+		super(IdMapping.class);
+	}
+
+	/**
+	 * Lookups are not read-only, so that they go to the primary. Ids mapped
+	 * by {@link #createFhirIds(String, Collection)} may not be on the
+	 * replicas yet.
+	 *
+	 * @return OMOP id -> FHIR id of the ids that are mapped already.
+	 */
+	@Transactional
+	@Override
+	public Map<Long, Long> findFhirIds(String resourceName, Collection<Long> omopIds) {
+		return find(resourceName, "omopId", "fhirId", omopIds);
+	}
+
+	/**
+	 * @return FHIR id -> OMOP id of the ids that are mapped.
+	 */
+	@Transactional
+	@Override
+	public Map<Long, Long> findOmopIds(String resourceName, Collection<Long> fhirIds) {
+		return find(resourceName, "fhirId", "omopId", fhirIds);
+	}
+
+	private Map<Long, Long> find(String resourceName, String from, String to, Collection<Long> ids) {
+		Map<Long, Long> retVal = new HashMap<Long, Long>();
+		if (ids.isEmpty())
+			return retVal;
+
+		EntityManager em = getEntityDao().getEntityManager();
+		List<Long> idList = new ArrayList<Long>(new HashSet<Long>(ids));
+		for (int i = 0; i < idList.size(); i += LOOKUP_CHUNK_SIZE) {
+			List<Object[]> rows = em.createQuery("SELECT m." + from + ", m." + to + " FROM IdMapping m "
+					+ "WHERE m.relatedResource = :resource_name AND m." + from + " IN :ids", Object[].class)
+					.setParameter("resource_name", resourceName)
+					.setParameter("ids", idList.subList(i, Math.min(i + LOOKUP_CHUNK_SIZE, idList.size())))
+					.getResultList();
+			for (Object[] row : rows) {
+				retVal.put((Long) row[0], (Long) row[1]);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Maps the OMOP ids to new FHIR ids. The ids must not be mapped yet. If
+	 * another request maps one of them first, the unique index fails the whole
+	 * call and nothing is written. Look them up again then.
+	 *
+	 * @return OMOP id -> new FHIR id.
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	@Override
+	public Map<Long, Long> createFhirIds(String resourceName, Collection<Long> omopIds) {
+		Map<Long, Long> retVal = new HashMap<Long, Long>();
+		if (omopIds.isEmpty())
+			return retVal;
+
+		// Sorted so that FHIR ids of a page follow the OMOP id order.
+		List<Long> idList = new ArrayList<Long>(new HashSet<Long>(omopIds));
+		Collections.sort(idList);
+
+		EntityManager em = getEntityDao().getEntityManager();
+		for (Long omopId : idList) {
+			IdMapping mapping = new IdMapping();
+			mapping.setOmopId(omopId);
+			mapping.setRelatedResource(resourceName);
+			em.persist(mapping);
+			retVal.put(omopId, mapping.getFhirId());
+		}
+		em.flush();
+		em.clear();
+
+		return retVal;
+	}
+}
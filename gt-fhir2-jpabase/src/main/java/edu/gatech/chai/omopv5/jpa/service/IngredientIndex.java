@@ -0,0 +1,134 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Arrays;
+
+/**
+ * Drug concept_id to RxNorm ingredient concept_ids. Built from the vocabulary
+ * tables by {@link ConceptService#refreshIngredientIndex()}.
+ *
+ * The whole RxNorm and NDC vocabulary has millions of (drug, ingredient)
+ * pairs. So, we keep them in sorted primitive arrays instead of a map of
+ * lists. drugIds is sorted. Ingredients of drugIds[i] are
+ * ingredientIds[offsets[i]] to ingredientIds[offsets[i+1]-1].
+ *
+ * This is immutable once built. Rebuild and swap to refresh.
+ *
+ * @author mc142
+ *
+ */
+public class IngredientIndex {
+	private static final long[] NONE = new long[0];
+
+	private final long[] drugIds;
+	private final int[] offsets;
+	private final long[] ingredientIds;
+	private final String vocabularyVersion;
+	private final long builtAt;
+
+	private IngredientIndex(long[] drugIds, int[] offsets, long[] ingredientIds, String vocabularyVersion) {
+		this.drugIds = drugIds;
+		this.offsets = offsets;
+		this.ingredientIds = ingredientIds;
+		this.vocabularyVersion = vocabularyVersion;
+		this.builtAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns ingredient concept ids of the drug. Empty if the drug is not in
+	 * the index.
+	 */
+	public long[] getIngredientIds(Long drugConceptId) {
+		if (drugConceptId == null)
+			return NONE;
+
+		int i = Arrays.binarySearch(drugIds, drugConceptId);
+		if (i < 0)
+			return NONE;
+
+		return Arrays.copyOfRange(ingredientIds, offsets[i], offsets[i + 1]);
+	}
+
+	public boolean contains(Long drugConceptId) {
+		return drugConceptId != null && Arrays.binarySearch(drugIds, drugConceptId) >= 0;
+	}
+
+	/**
+	 * Number of drugs in the index.
+	 */
+	public int size() {
+		return drugIds.length;
+	}
+
+	/**
+	 * Number of (drug, ingredient) pairs in the index.
+	 */
+	public int getPairCount() {
+		return ingredientIds.length;
+	}
+
+	/**
+	 * vocabulary_version of the vocabularies when the index was built. Used
+	 * to find out if the vocabulary has been reloaded.
+	 */
+	public String getVocabularyVersion() {
+		return vocabularyVersion;
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	@Override
+	public String toString() {
+		return "drugs=" + size() + ", pairs=" + getPairCount() + ", version=" + vocabularyVersion;
+	}
+
+	/**
+	 * Pairs must be added in drug id order. Duplicate pairs next to each other
+	 * are dropped.
+	 */
+	public static class Builder {
+		private long[] drugIds = new long[1024];
+		private int[] offsets = new int[1025];
+		private long[] ingredientIds = new long[4096];
+		private int drugCount = 0;
+		private int pairCount = 0;
+		private String vocabularyVersion;
+
+		public Builder setVocabularyVersion(String vocabularyVersion) {
+			this.vocabularyVersion = vocabularyVersion;
+			return this;
+		}
+
+		public Builder add(long drugId, long ingredientId) {
+			if (drugCount == 0 || drugIds[drugCount - 1] != drugId) {
+				if (drugCount > 0 && drugIds[drugCount - 1] > drugId) {
+					throw new IllegalArgumentException("Drug ids must be added in order. " + drugId + " after "
+							+ drugIds[drugCount - 1]);
+				}
+				if (drugCount == drugIds.length) {
+					drugIds = Arrays.copyOf(drugIds, drugIds.length * 2);
+					offsets = Arrays.copyOf(offsets, drugIds.length + 1);
+				}
+				drugIds[drugCount] = drugId;
+				offsets[drugCount] = pairCount;
+				drugCount++;
+			} else if (ingredientIds[pairCount - 1] == ingredientId) {
+				return this;
+			}
+
+			if (pairCount == ingredientIds.length) {
+				ingredientIds = Arrays.copyOf(ingredientIds, ingredientIds.length * 2);
+			}
+			ingredientIds[pairCount++] = ingredientId;
+			return this;
+		}
+
+		public IngredientIndex build() {
+			int[] finalOffsets = Arrays.copyOf(offsets, drugCount + 1);
+			finalOffsets[drugCount] = pairCount;
+			return new IngredientIndex(Arrays.copyOf(drugIds, drugCount), finalOffsets,
+					Arrays.copyOf(ingredientIds, pairCount), vocabularyVersion);
+		}
+	}
+}
@@ -32,6 +32,8 @@ public class LocationServiceImp extends BaseEntityServiceImp<Location, LocationD
 					.setParameter("city", city)
 					.setParameter("state", state)
 					.setParameter("zip", zipCode)
+					.setHint(HINT_CACHEABLE, true)
+					.setHint(HINT_CACHE_REGION, LOOKUP_QUERY_REGION)
 					.getResultList();
 		} else { 
 			query = "SELECT t FROM Location t WHERE address1 LIKE :line1 AND city LIKE :city AND state LIKE :state AND zipCode LIKE :zip";
@@ -40,6 +42,8 @@ public class LocationServiceImp extends BaseEntityServiceImp<Location, LocationD
 					.setParameter("city", city)
 					.setParameter("state", state)
 					.setParameter("zip", zipCode)
+					.setHint(HINT_CACHEABLE, true)
+					.setHint(HINT_CACHE_REGION, LOOKUP_QUERY_REGION)
 					.getResultList();
 		}
 
@@ -1,7 +1,11 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.List;
+
 import edu.gatech.chai.omopv5.jpa.entity.Note;
 
 public interface NoteService extends IService<Note> {
-
+	public List<Long> searchNoteText(String text, int maxResults);
+	public List<Long> filterIds(List<Long> ids, List<ParameterWrapper> paramList);
+	public long rebuildTextIndex() throws InterruptedException;
 }
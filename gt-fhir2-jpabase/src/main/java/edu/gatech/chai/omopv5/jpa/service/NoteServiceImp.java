@@ -1,15 +1,129 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.FullTextQuery;
+import org.hibernate.search.jpa.Search;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import edu.gatech.chai.omopv5.jpa.dao.NoteDao;
 import edu.gatech.chai.omopv5.jpa.entity.Note;
 
 @Service
 public class NoteServiceImp extends BaseEntityServiceImp<Note, NoteDao> implements NoteService {
+	private static final Logger logger = LoggerFactory.getLogger(NoteServiceImp.class);
+
+	// Notes per load while the index is rebuilt.
+	private static final int INDEX_BATCH_SIZE = 500;
 
 	public NoteServiceImp() {
 		super(Note.class);
 	}
 
+	/**
+	 * Finds notes by note_text in the Lucene index. All the words must match.
+	 * Quoted phrases, "-" (not) and "|" (or) are supported.
+	 * 
+	 * @return note ids, best match first.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<Long> searchNoteText(String text, int maxResults) {
+		FullTextEntityManager fullTextEm = Search.getFullTextEntityManager(getEntityDao().getEntityManager());
+		Query query = fullTextEm.getSearchFactory().buildQueryBuilder().forEntity(Note.class).get()
+				.simpleQueryString()
+				.onField("noteText")
+				.withAndAsDefaultOperator()
+				.matching(text)
+				.createQuery();
+
+		// Only the ids. Notes are not loaded.
+		FullTextQuery fullTextQuery = fullTextEm.createFullTextQuery(query, Note.class)
+				.setProjection(FullTextQuery.ID)
+				.setMaxResults(maxResults);
+
+		List<Long> ids = new ArrayList<Long>();
+		for (Object row : fullTextQuery.getResultList()) {
+			ids.add((Long) ((Object[]) row)[0]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the ids that match the parameters, in the given order. Only the
+	 * ids are selected.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public List<Long> filterIds(List<Long> ids, List<ParameterWrapper> paramList) {
+		if (ids.isEmpty() || paramList.isEmpty()) {
+			return ids;
+		}
+
+		EntityManager em = getEntityDao().getEntityManager();
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<Note> root = query.from(Note.class);
+
+		List<Predicate> predicates = ParameterWrapper.constructPredicate(builder, paramList, root);
+		if (predicates == null || predicates.isEmpty()) {
+			return new ArrayList<Long>();
+		}
+		predicates.add(root.get("id").in(ids));
+		query.select(root.<Long>get("id"));
+		query.where(builder.and(predicates.toArray(new Predicate[predicates.size()])));
+
+		Set<Long> matched = new HashSet<Long>(em.createQuery(query).getResultList());
+		List<Long> retVal = new ArrayList<Long>(matched.size());
+		for (Long id : ids) {
+			if (matched.contains(id)) {
+				retVal.add(id);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Indexes all the notes again. The index is emptied first. So, searches
+	 * miss notes until this is done.
+	 * 
+	 * @return number of notes indexed.
+	 */
+	@Transactional(readOnly = true)
+	@Override
+	public long rebuildTextIndex() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		FullTextEntityManager fullTextEm = Search.getFullTextEntityManager(getEntityDao().getEntityManager());
+		fullTextEm.createIndexer(Note.class)
+				.batchSizeToLoadObjects(INDEX_BATCH_SIZE)
+				.idFetchSize(INDEX_BATCH_SIZE)
+				.startAndWait();
+
+		IndexReaderAccessor readerAccessor = fullTextEm.getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(Note.class);
+		long count;
+		try {
+			count = reader.numDocs();
+		} finally {
+			readerAccessor.close(reader);
+		}
+		logger.info("Note text index rebuilt in " + (System.currentTimeMillis() - start) + "ms: " + count + " notes");
+		return count;
+	}
 }
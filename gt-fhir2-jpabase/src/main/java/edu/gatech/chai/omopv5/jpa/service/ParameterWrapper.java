@@ -1,27 +1,24 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
 
 /**
  * ParameterWrapper for database operations.
  * 
- * paramterType stores variable type such as String, Short, etc.
+ * paramterType stores variable type such as Token, String, Short, etc.
  * constructPredicate() method should convert this to appropriate type for the
- * database.
+ * database. Use Token for codes and ids that are matched exactly, and String
+ * for case insensitive text.
  * 
  * parameters store column name(s).
  * 
@@ -54,7 +51,6 @@ import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
  */
 public class ParameterWrapper {
 
-	private static final Logger logger = LoggerFactory.getLogger(ParameterWrapper.class);
 	private String parameterType;
 	private List<String> parameters;
 	private List<String> operators;
@@ -75,6 +71,58 @@ public class ParameterWrapper {
 		this.upperRelationship = null; // this is used only at the special case.
 	}
 
+	/**
+	 * Serialize parameter list to JSON so that the search can be stored and
+	 * run again later.
+	 */
+	public static String toJson(List<ParameterWrapper> paramList) {
+		JSONArray array = new JSONArray();
+		for (ParameterWrapper param : paramList) {
+			JSONObject object = new JSONObject();
+			object.put("type", param.getParameterType());
+			object.put("parameters", new JSONArray(param.getParameters()));
+			object.put("operators", new JSONArray(param.getOperators()));
+			object.put("values", new JSONArray(param.getValues()));
+			object.putOpt("relationship", param.getRelationship());
+			object.putOpt("upperRelationship", param.getUpperRelationship());
+			array.put(object);
+		}
+
+		return array.toString();
+	}
+
+	public static List<ParameterWrapper> fromJson(String json) {
+		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
+		if (json == null || json.isEmpty()) {
+			return paramList;
+		}
+
+		JSONArray array = new JSONArray(json);
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject object = array.getJSONObject(i);
+			ParameterWrapper param = new ParameterWrapper(object.getString("type"),
+					toStringList(object.getJSONArray("parameters")), toStringList(object.getJSONArray("operators")),
+					toStringList(object.getJSONArray("values")), object.optString("relationship", null));
+			param.setUpperRelationship(object.optString("upperRelationship", null));
+			paramList.add(param);
+		}
+
+		return paramList;
+	}
+
+	private static List<String> toStringList(JSONArray array) {
+		List<String> list = new ArrayList<String>();
+		for (int i = 0; i < array.length(); i++) {
+			list.add(array.getString(i));
+		}
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		return parameterType + parameters + operators + values + "," + relationship + "," + upperRelationship;
+	}
+
 	public String getParameterType() {
 		return parameterType;
 	}
@@ -123,306 +171,14 @@ public class ParameterWrapper {
 		this.upperRelationship = upperRelationship;
 	}
 
+	/**
+	 * Builds the predicates of the parameters. See {@link SearchPredicateCompiler}.
+	 * 
+	 * @return null if paramList is empty.
+	 */
 	public static List<Predicate> constructPredicate(CriteriaBuilder builder, List<ParameterWrapper> paramList,
 			Root<? extends BaseEntity> rootUser) {
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		Predicate where = null;
-
-		// paramList has FHIR parameters mapped Omop parameters (or columns).
-		for (ParameterWrapper param : paramList) {
-			Predicate subWhere;
-			if (param.getRelationship() == null || param.getRelationship().equalsIgnoreCase("or"))
-				subWhere = builder.disjunction();
-			else
-				subWhere = builder.conjunction();
-
-			switch (param.getParameterType()) {
-			case "String":
-				logger.debug("String parameter type found.");
-				String attributeName = null;
-				String valueName = null;
-				for (Iterator<String> attributeIter = param.getParameters().iterator(), operIter = param.getOperators()
-						.iterator(), valueIter = param.getValues()
-								.iterator(); (attributeIter.hasNext() || valueIter.hasNext()) && operIter.hasNext();) {
-
-					if (attributeIter.hasNext())
-						attributeName = attributeIter.next();
-					if (valueIter.hasNext())
-						valueName = valueIter.next();
-					String oper = operIter.next();
-					logger.debug("--- Attribute name:" + attributeName);
-					logger.debug("--- value:" + valueName);
-					logger.debug("--- operator:" + oper);
-					Path<String> path;
-					String[] columnPath = attributeName.split("\\.");
-					if (columnPath.length == 2) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]);
-					} else if (columnPath.length == 3) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]).get(columnPath[2]);
-					} else {
-						path = rootUser.get(attributeName);
-					}
-
-					if (oper.equalsIgnoreCase("like")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.like(builder.lower(path), valueName.toLowerCase()));
-						} else {
-							subWhere = builder.and(subWhere, builder.like(builder.lower(path), valueName.toLowerCase()));
-						}
-					} else if (oper.equalsIgnoreCase("=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.equal(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.equal(path, valueName));
-						}
-					} else if (oper.equalsIgnoreCase("!=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notEqual(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.notEqual(path, valueName));
-						}
-					} else {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notLike(builder.lower(path), valueName.toLowerCase()));
-						} else {
-							subWhere = builder.and(subWhere, builder.notLike(builder.lower(path), valueName.toLowerCase()));
-						}
-					}
-				}
-				break;
-			case "Code:In":
-				logger.debug("Code:In parameter type found.");
-				attributeName = null;
-				valueName = null;
-				for (Iterator<String> attributeIter = param.getParameters().iterator(), operIter = param.getOperators()
-						.iterator(), valueIter = param.getValues()
-								.iterator(); (attributeIter.hasNext() || valueIter.hasNext()) && operIter.hasNext();) {
-
-					if (attributeIter.hasNext())
-						attributeName = attributeIter.next();
-					if (valueIter.hasNext())
-						valueName = valueIter.next();
-					String oper = operIter.next();
-					logger.debug("--- Attribute name:" + attributeName);
-					logger.debug("--- value:" + valueName);
-					logger.debug("--- operator:" + oper);
-					Path<String> path;
-					String[] columnPath = attributeName.split("\\.");
-					if (columnPath.length == 2) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]);
-					} else if (columnPath.length == 3) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]).get(columnPath[2]);
-					} else {
-						path = rootUser.get(attributeName);
-					}
-
-					if (oper.equalsIgnoreCase("like")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.like(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.like(path, valueName));
-						}
-					} else if (oper.equalsIgnoreCase("=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.equal(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.equal(path, valueName));
-						}
-					} else if (oper.equalsIgnoreCase("!=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notEqual(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.notEqual(path, valueName));
-						}
-					} else if (oper.equalsIgnoreCase("in")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notLike(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.notLike(path, valueName));
-						}
-					} else {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notLike(path, valueName));
-						} else {
-							subWhere = builder.and(subWhere, builder.notLike(path, valueName));
-						}
-					}
-				}
-				break;
-			case "Date":
-				logger.debug("Numeric parameter type found.");
-				attributeName = null;
-				valueName = null;
-				for (Iterator<String> attributeIter = param.getParameters().iterator(), operIter = param.getOperators()
-						.iterator(), valueIter = param.getValues()
-								.iterator(); (attributeIter.hasNext() || valueIter.hasNext()) && operIter.hasNext();) {
-
-					if (attributeIter.hasNext())
-						attributeName = attributeIter.next();
-					if (valueIter.hasNext())
-						valueName = valueIter.next();
-					String oper = operIter.next();
-					logger.debug("--- Attribute name:" + attributeName);
-					logger.debug("--- value:" + valueName);
-					logger.debug("--- operator:" + oper);
-					Long dateInMili = Long.valueOf(valueName);
-					Date value = new Date(dateInMili);
-
-					Path<Date> path;
-					String[] columnPath = attributeName.split("\\.");
-					if (columnPath.length == 2) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]);
-					} else if (columnPath.length == 3) {
-						path = rootUser.get(columnPath[0]).get(columnPath[1]).get(columnPath[2]);
-					} else {
-						path = rootUser.get(attributeName);
-					}
-
-					if (oper.equalsIgnoreCase("=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.equal(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.equal(path, value));
-						}
-					} else if (oper.equalsIgnoreCase("!=")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.notEqual(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.notEqual(path, value));
-						}
-					} else if (oper.equalsIgnoreCase("<"))
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.lessThan(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.lessThan(path, value));
-						}
-					else if (oper.equalsIgnoreCase("<="))
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.lessThanOrEqualTo(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.lessThanOrEqualTo(path, value));
-						}
-					else if (oper.equalsIgnoreCase(">")) {
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.greaterThan(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.greaterThan(path, value));
-						}
-					} else { // (param.getOperator().equalsIgnoreCase(">="))
-						if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-							subWhere = builder.or(subWhere, builder.greaterThanOrEqualTo(path, value));
-						} else {
-							subWhere = builder.and(subWhere, builder.greaterThanOrEqualTo(path, value));
-						}
-					}
-				}
-				break;
-			case "Short":
-			case "Long":
-			case "Double":
-			case "Integer":
-				subWhere = numbericPredicateBuidler(builder, param, rootUser, subWhere, param.getParameterType());
-				break;
-			}
-
-			if (param.getUpperRelationship() != null && param.getUpperRelationship().equalsIgnoreCase("or")) {
-				if (where == null) where = builder.disjunction();
-				where = builder.or(where, subWhere);
-			} else {
-				if (where == null) where = builder.conjunction();
-				where = builder.and(where, subWhere);
-			}
-		}
-
-		if (where == null)
-			return null;
-		
-		predicates.add(where);
-		return predicates;
-	}
-
-	public static Predicate numbericPredicateBuidler(CriteriaBuilder builder, ParameterWrapper param,
-			Root<? extends BaseEntity> rootUser, Predicate subWhere, String paramType) {
-		logger.debug("Numeric parameter type found.");
-		// We may have multiple columns to compare with 'or'. If
-		// so, get them now.
-		// for (String columnName : param.getParameters(),
-		// String oper: param.getOperators()) {
-		String attributeName = null;
-		String valueName = null;
-		for (Iterator<String> attributeIter = param.getParameters().iterator(), operIter = param.getOperators()
-				.iterator(), valueIter = param.getValues().iterator(); (attributeIter.hasNext() || valueIter.hasNext())
-						&& operIter.hasNext();) {
-
-			if (attributeIter.hasNext())
-				attributeName = attributeIter.next();
-			if (valueIter.hasNext())
-				valueName = valueIter.next();
-			String oper = operIter.next();
-			logger.debug("--- Attribute name:" + attributeName);
-			logger.debug("--- value:" + valueName);
-			logger.debug("--- operator:" + oper);
-			Number value;
-			if (paramType.equals("Short")) {
-				value = Short.valueOf(valueName);
-			} else if (paramType.equals("Long")) {
-				value = Long.valueOf(valueName);
-			} else if (paramType.equals("Double")) {
-				value = Double.valueOf(valueName);
-			} else {
-				value = Integer.valueOf(valueName);
-			}
-
-			Path<Number> path;
-			String[] columnPath = attributeName.split("\\.");
-			if (columnPath.length == 2) {
-				path = rootUser.get(columnPath[0]).get(columnPath[1]);
-			} else if (columnPath.length == 3) {
-				path = rootUser.get(columnPath[0]).get(columnPath[1]).get(columnPath[2]);
-			} else {
-				path = rootUser.get(attributeName);
-			}
-
-			if (oper.equalsIgnoreCase("=")) {
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.equal(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.equal(path, value));
-				}
-			} else if (oper.equalsIgnoreCase("!=")) {
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.notEqual(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.notEqual(path, value));
-				}
-			} else if (oper.equalsIgnoreCase("<"))
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.lt(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.lt(path, value));
-				}
-			else if (oper.equalsIgnoreCase("<="))
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.le(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.le(path, value));
-				}
-			else if (oper.equalsIgnoreCase(">")) {
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.gt(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.gt(path, value));
-				}
-			} else { // (param.getOperator().equalsIgnoreCase(">="))
-				if (param.getRelationship() == null || param.getRelationship().equals("or")) {
-					subWhere = builder.or(subWhere, builder.ge(path, value));
-				} else {
-					subWhere = builder.and(subWhere, builder.ge(path, value));
-				}
-			}
-		}
-
-		return subWhere;
+		return SearchPredicateCompiler.getInstance().constructPredicate(builder, paramList, rootUser);
 	}
 
 }
@@ -0,0 +1,446 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * Compiles ParameterWrapper to JPA predicates that the database can answer
+ * from its B-tree indexes.
+ *
+ * The parameter type and operators are parsed once per parameter shape (type,
+ * columns, operators and relationship) and the compiled parameter is cached.
+ * Values are not part of the shape. The query itself is built with the
+ * criteria builder of each request. With
+ * hibernate.criteria.literal_handling_mode=BIND, values are bind parameters
+ * and IN lists are padded (see {@link #pad(List)}). So, the JPQL of two
+ * searches of the same shape is the same, and Hibernate reuses its query plan.
+ *
+ * Types:
+ *
+ * Token: exact match. "=" and "like" without wildcards are equality. Several
+ * values of one column are an IN list.
+ *
+ * String: case insensitive on lower(column). "like" without wildcards is
+ * equality on lower(column). A prefix ("smith%") can use an index on
+ * lower(column) text_pattern_ops.
+ *
+ * Date: values are milliseconds since epoch. Short, Integer, Long, Double:
+ * numbers. Equality on several values of one column is an IN list.
+ *
+ * Code:In: columns are the vocabulary id and the concept code. Values are the
+ * vocabulary id followed by the codes. Operator "in" matches the codes of the
+ * vocabulary, "out" the rest.
+ *
+ * @author mc142
+ *
+ */
+public class SearchPredicateCompiler {
+	public static final int DEFAULT_CACHE_SIZE = 1000;
+
+	private static final SearchPredicateCompiler instance = new SearchPredicateCompiler();
+
+	private final LruCache<String, CompiledParameter> compiled = new LruCache<String, CompiledParameter>(
+			DEFAULT_CACHE_SIZE);
+
+	enum ValueType {
+		TOKEN, STRING, CODE_IN, DATE, SHORT, INTEGER, LONG, DOUBLE;
+
+		static ValueType parse(String parameterType) {
+			if ("Token".equals(parameterType))
+				return TOKEN;
+			if ("String".equals(parameterType))
+				return STRING;
+			if ("Code:In".equals(parameterType))
+				return CODE_IN;
+			if ("Date".equals(parameterType))
+				return DATE;
+			if ("Short".equals(parameterType))
+				return SHORT;
+			if ("Integer".equals(parameterType))
+				return INTEGER;
+			if ("Long".equals(parameterType))
+				return LONG;
+			if ("Double".equals(parameterType))
+				return DOUBLE;
+			throw new IllegalArgumentException("Unknown parameter type: " + parameterType);
+		}
+	}
+
+	enum Operator {
+		EQ, NE, LT, LE, GT, GE, LIKE, NOT_LIKE, IN, OUT;
+
+		static Operator parse(String operator) {
+			if ("=".equals(operator))
+				return EQ;
+			if ("!=".equals(operator))
+				return NE;
+			if ("<".equals(operator))
+				return LT;
+			if ("<=".equals(operator))
+				return LE;
+			if (">".equals(operator))
+				return GT;
+			if (">=".equals(operator))
+				return GE;
+			if ("like".equalsIgnoreCase(operator))
+				return LIKE;
+			if ("in".equalsIgnoreCase(operator))
+				return IN;
+			if ("out".equalsIgnoreCase(operator))
+				return OUT;
+			// Anything else has always been "not like" for strings and
+			// ">=" for dates and numbers.
+			return NOT_LIKE;
+		}
+	}
+
+	/**
+	 * Parsed form of one parameter shape.
+	 */
+	static class CompiledParameter {
+		final ValueType type;
+		final String[][] columns;
+		// One operator for all the terms when uniform.
+		final Operator[] operators;
+		final boolean uniform;
+		final boolean or;
+
+		CompiledParameter(ValueType type, String[][] columns, Operator[] operators, boolean uniform, boolean or) {
+			this.type = type;
+			this.columns = columns;
+			this.operators = operators;
+			this.uniform = uniform;
+			this.or = or;
+		}
+
+		Operator operator(int index) {
+			return uniform ? operators[0] : operators[index];
+		}
+	}
+
+	private SearchPredicateCompiler() {
+	}
+
+	public static SearchPredicateCompiler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Number of compiled parameter shapes.
+	 */
+	public int size() {
+		return compiled.size();
+	}
+
+	public long getHitCount() {
+		return compiled.getHitCount();
+	}
+
+	public long getMissCount() {
+		return compiled.getMissCount();
+	}
+
+	/**
+	 * Shape of the parameter. Runs of one operator (eg. 500 "=" of an id
+	 * list) are one key.
+	 */
+	private static String shapeKey(ParameterWrapper param) {
+		StringBuilder key = new StringBuilder();
+		key.append(param.getParameterType()).append('|').append(param.getParameters()).append('|');
+		if (isUniform(param.getOperators())) {
+			key.append(param.getOperators().get(0)).append('*');
+		} else {
+			key.append(param.getOperators());
+		}
+		key.append('|').append(param.getRelationship());
+		return key.toString();
+	}
+
+	private static boolean isUniform(List<String> operators) {
+		if (operators.isEmpty())
+			return false;
+		for (String operator : operators) {
+			if (!operator.equals(operators.get(0)))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isOr(String relationship) {
+		return relationship == null || relationship.equalsIgnoreCase("or");
+	}
+
+	CompiledParameter compile(ParameterWrapper param) {
+		String key = shapeKey(param);
+		CompiledParameter compiledParameter = compiled.get(key);
+		if (compiledParameter != null)
+			return compiledParameter;
+
+		List<String> parameters = param.getParameters();
+		String[][] columns = new String[parameters.size()][];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = parameters.get(i).split("\\.");
+		}
+
+		List<String> operatorList = param.getOperators();
+		boolean uniform = isUniform(operatorList);
+		Operator[] operators = new Operator[uniform ? 1 : operatorList.size()];
+		for (int i = 0; i < operators.length; i++) {
+			operators[i] = Operator.parse(operatorList.get(i));
+		}
+
+		compiledParameter = new CompiledParameter(ValueType.parse(param.getParameterType()), columns, operators,
+				uniform, isOr(param.getRelationship()));
+		compiled.put(key, compiledParameter);
+		return compiledParameter;
+	}
+
+	/**
+	 * Same contract as {@link ParameterWrapper#constructPredicate}.
+	 */
+	public List<Predicate> constructPredicate(CriteriaBuilder builder, List<ParameterWrapper> paramList,
+			Root<? extends BaseEntity> root) {
+		Predicate where = null;
+
+		for (ParameterWrapper param : paramList) {
+			Predicate subWhere = toPredicate(builder, compile(param), param, root);
+			if (param.getUpperRelationship() != null && param.getUpperRelationship().equalsIgnoreCase("or")) {
+				where = where == null ? subWhere : builder.or(where, subWhere);
+			} else {
+				where = where == null ? subWhere : builder.and(where, subWhere);
+			}
+		}
+
+		if (where == null)
+			return null;
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(where);
+		return predicates;
+	}
+
+	private Predicate toPredicate(CriteriaBuilder builder, CompiledParameter compiledParameter,
+			ParameterWrapper param, Root<? extends BaseEntity> root) {
+		if (compiledParameter.type == ValueType.CODE_IN)
+			return codeInPredicate(builder, compiledParameter, param, root);
+
+		List<String> values = param.getValues();
+		int columnCount = compiledParameter.columns.length;
+		int valueCount = values.size();
+		// Terms pair up columns, operators and values. The last column or
+		// value is repeated when the other list is longer.
+		int termCount = valueCount == 0 ? 0
+				: Math.min(param.getOperators().size(), Math.max(columnCount, valueCount));
+
+		List<Predicate> terms = new ArrayList<Predicate>();
+		// Equality (or inequality for "and") on one column with several
+		// values is folded into one IN list. Keyed by column * 2, plus 1 when
+		// the column is compared in lower case.
+		Map<Integer, List<Object>> inLists = new LinkedHashMap<Integer, List<Object>>();
+		Operator foldable = compiledParameter.or ? Operator.EQ : Operator.NE;
+		for (int i = 0; i < termCount; i++) {
+			int column = Math.min(i, columnCount - 1);
+			String value = values.get(Math.min(i, valueCount - 1));
+			Operator operator = compiledParameter.operator(i);
+			boolean lowerCase = compiledParameter.type == ValueType.STRING
+					&& (operator == Operator.LIKE || operator == Operator.NOT_LIKE);
+			if (operator == Operator.LIKE && !hasWildcard(value)
+					&& (compiledParameter.type == ValueType.TOKEN || compiledParameter.type == ValueType.STRING)) {
+				// No wildcard. Equality keeps the index usable.
+				operator = Operator.EQ;
+			}
+
+			if (operator == foldable) {
+				int inKey = column * 2 + (lowerCase ? 1 : 0);
+				List<Object> inList = inLists.get(inKey);
+				if (inList == null) {
+					inList = new ArrayList<Object>();
+					inLists.put(inKey, inList);
+				}
+				inList.add(lowerCase ? value.toLowerCase() : convert(compiledParameter.type, value));
+			} else {
+				terms.add(term(builder, compiledParameter.type, path(root, compiledParameter.columns[column]),
+						operator, lowerCase, value));
+			}
+		}
+
+		for (Map.Entry<Integer, List<Object>> inList : inLists.entrySet()) {
+			boolean lowerCase = inList.getKey() % 2 == 1;
+			Path<String> path = path(root, compiledParameter.columns[inList.getKey() / 2]);
+			Expression<?> expression = lowerCase ? builder.lower(path) : path;
+			Predicate predicate;
+			if (inList.getValue().size() == 1) {
+				predicate = builder.equal(expression, inList.getValue().get(0));
+			} else {
+				predicate = expression.in(pad(inList.getValue()));
+			}
+			terms.add(foldable == Operator.EQ ? predicate : builder.not(predicate));
+		}
+
+		if (terms.isEmpty())
+			return compiledParameter.or ? builder.disjunction() : builder.conjunction();
+		if (terms.size() == 1)
+			return terms.get(0);
+		Predicate[] termArray = terms.toArray(new Predicate[terms.size()]);
+		return compiledParameter.or ? builder.or(termArray) : builder.and(termArray);
+	}
+
+	/**
+	 * vocabulary = values[0] and code in (values[1..]). "out" negates it.
+	 */
+	private Predicate codeInPredicate(CriteriaBuilder builder, CompiledParameter compiledParameter,
+			ParameterWrapper param, Root<? extends BaseEntity> root) {
+		List<String> values = param.getValues();
+		Path<String> vocabulary = path(root, compiledParameter.columns[0]);
+		Path<String> code = path(root, compiledParameter.columns[compiledParameter.columns.length - 1]);
+
+		Predicate predicate;
+		if (values.size() < 2) {
+			// No codes. Nothing is in the value set.
+			predicate = builder.disjunction();
+		} else {
+			predicate = builder.and(builder.equal(vocabulary, values.get(0)),
+					code.in(pad(new ArrayList<Object>(values.subList(1, values.size())))));
+		}
+
+		int last = compiledParameter.operators.length - 1;
+		return last >= 0 && compiledParameter.operators[last] == Operator.OUT ? builder.not(predicate) : predicate;
+	}
+
+	/**
+	 * Repeats the last value up to the next power of 2. Each value of an IN
+	 * list is its own bind parameter, so IN lists of 5 to 8 values then have
+	 * the same JPQL and share the query plan.
+	 */
+	private static List<Object> pad(List<Object> inList) {
+		int size = Integer.highestOneBit(inList.size());
+		if (size < inList.size()) {
+			size <<= 1;
+		}
+		Object last = inList.get(inList.size() - 1);
+		while (inList.size() < size) {
+			inList.add(last);
+		}
+		return inList;
+	}
+
+	private static boolean hasWildcard(String value) {
+		return value.indexOf('%') >= 0 || value.indexOf('_') >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <Y> Path<Y> path(Root<? extends BaseEntity> root, String[] column) {
+		Path<?> path = root.get(column[0]);
+		for (int i = 1; i < column.length; i++) {
+			path = path.get(column[i]);
+		}
+		return (Path<Y>) path;
+	}
+
+	private static Object convert(ValueType type, String value) {
+		switch (type) {
+		case DATE:
+			return new Date(Long.valueOf(value));
+		case SHORT:
+			return Short.valueOf(value);
+		case INTEGER:
+			return Integer.valueOf(value);
+		case LONG:
+			return Long.valueOf(value);
+		case DOUBLE:
+			return Double.valueOf(value);
+		default:
+			return value;
+		}
+	}
+
+	private static Predicate term(CriteriaBuilder builder, ValueType type, Path<?> path, Operator operator,
+			boolean lowerCase, String value) {
+		switch (type) {
+		case TOKEN:
+		case STRING:
+			@SuppressWarnings("unchecked")
+			Path<String> stringPath = (Path<String>) path;
+			if (lowerCase)
+				return stringTerm(builder, builder.lower(stringPath), operator, value.toLowerCase());
+			return stringTerm(builder, stringPath, operator, value);
+		case DATE:
+			@SuppressWarnings("unchecked")
+			Path<Date> datePath = (Path<Date>) path;
+			return dateTerm(builder, datePath, operator, (Date) convert(type, value));
+		default:
+			@SuppressWarnings("unchecked")
+			Path<Number> numberPath = (Path<Number>) path;
+			return numberTerm(builder, numberPath, operator, (Number) convert(type, value));
+		}
+	}
+
+	private static Predicate stringTerm(CriteriaBuilder builder, Expression<String> expression, Operator operator,
+			String value) {
+		switch (operator) {
+		case EQ:
+			return builder.equal(expression, value);
+		case NE:
+			return builder.notEqual(expression, value);
+		case LT:
+			return builder.lessThan(expression, value);
+		case LE:
+			return builder.lessThanOrEqualTo(expression, value);
+		case GT:
+			return builder.greaterThan(expression, value);
+		case GE:
+			return builder.greaterThanOrEqualTo(expression, value);
+		case LIKE:
+			return builder.like(expression, value);
+		default:
+			return builder.notLike(expression, value);
+		}
+	}
+
+	private static Predicate dateTerm(CriteriaBuilder builder, Path<Date> path, Operator operator, Date value) {
+		switch (operator) {
+		case EQ:
+			return builder.equal(path, value);
+		case NE:
+			return builder.notEqual(path, value);
+		case LT:
+			return builder.lessThan(path, value);
+		case LE:
+			return builder.lessThanOrEqualTo(path, value);
+		case GT:
+			return builder.greaterThan(path, value);
+		default:
+			return builder.greaterThanOrEqualTo(path, value);
+		}
+	}
+
+	private static Predicate numberTerm(CriteriaBuilder builder, Path<Number> path, Operator operator,
+			Number value) {
+		switch (operator) {
+		case EQ:
+			return builder.equal(path, value);
+		case NE:
+			return builder.notEqual(path, value);
+		case LT:
+			return builder.lt(path, value);
+		case LE:
+			return builder.le(path, value);
+		case GT:
+			return builder.gt(path, value);
+		default:
+			return builder.ge(path, value);
+		}
+	}
+}
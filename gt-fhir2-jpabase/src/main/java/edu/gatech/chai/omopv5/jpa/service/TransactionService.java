@@ -7,4 +7,5 @@ import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
 
 public interface TransactionService {
 	public int writeTransaction (Map<String, List<BaseEntity>> transactionMap);
+	public void setFlushInterval (int flushInterval);
 }
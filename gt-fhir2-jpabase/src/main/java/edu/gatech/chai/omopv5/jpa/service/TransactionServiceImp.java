@@ -1,33 +1,45 @@
 package edu.gatech.chai.omopv5.jpa.service;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import edu.gatech.chai.omopv5.jpa.dao.ConditionOccurrenceDao;
 import edu.gatech.chai.omopv5.jpa.dao.FPersonDao;
-import edu.gatech.chai.omopv5.jpa.dao.FResourcesDao;
 import edu.gatech.chai.omopv5.jpa.dao.MeasurementDao;
 import edu.gatech.chai.omopv5.jpa.dao.ObservationDao;
 import edu.gatech.chai.omopv5.jpa.dao.ProcedureOccurrenceDao;
-import edu.gatech.chai.omopv5.jpa.dao.TransactionDao;
 import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
 import edu.gatech.chai.omopv5.jpa.entity.FPerson;
-import edu.gatech.chai.omopv5.jpa.entity.FResources;
 import edu.gatech.chai.omopv5.jpa.entity.Measurement;
 import edu.gatech.chai.omopv5.jpa.entity.Observation;
 
+/**
+ * Writes the entities of a transaction bundle. Entities are persisted type by
+ * type (patients first) so that the inserts of a type go to JDBC batches
+ * together. Ids come from BlockSequenceGenerator. The persistence context is
+ * flushed and cleared every flushInterval entities to keep it small.
+ *
+ * @author mc142
+ *
+ */
 @Service
 public class TransactionServiceImp implements TransactionService {
+	private static final Logger logger = LoggerFactory.getLogger(TransactionServiceImp.class);
+
+	public static final int DEFAULT_FLUSH_INTERVAL = 500;
 
 //	@Autowired
 //	private TransactionDao transactionDao;
-	
+
 	@Autowired
 	private FPersonDao fPersonDao;
 	@Autowired
@@ -39,101 +51,127 @@ public class TransactionServiceImp implements TransactionService {
 	@Autowired
 	private ObservationDao observationDao;
 
+	private volatile int flushInterval = DEFAULT_FLUSH_INTERVAL;
+
 //	public TransactionDao getEntityDao() {
 //		return transactionDao;
 //	}
-	
+
+	public void setFlushInterval(int flushInterval) {
+		this.flushInterval = flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
+	}
+
 	@Transactional
 	public int writeTransaction(Map<String, List<BaseEntity>> transactionMap) {
-//		EntityManager em = transactionDao.getEntityManager();
+		long start = System.nanoTime();
 
-		System.out.println("At the writeTransaction");
-		// It's not efficient. But, we need to process patients first. so...
-		for (String key : transactionMap.keySet()) {
-			String[] keyInfo = key.split("\\^");
-			System.out.println("working on patient key=" + key + " with keyInfo length=" + keyInfo.length);
+		// Group by entity type. Patients must be written first.
+		List<FPerson> fPersons = new ArrayList<FPerson>();
+		List<Measurement> measurements = new ArrayList<Measurement>();
+		List<Observation> observations = new ArrayList<Observation>();
+		for (Map.Entry<String, List<BaseEntity>> entry : transactionMap.entrySet()) {
+			String[] keyInfo = entry.getKey().split("\\^");
 			if (keyInfo.length != 2) {
 				// something is wrong.
+				logger.warn("Invalid transaction key=" + entry.getKey());
 				return -1;
 			}
-			String entityName = keyInfo[1];
-			if (entityName.equals("FPerson")) {
-				// process it.
-				List<BaseEntity> entityClasses = transactionMap.get(key);
-				if (entityClasses != null) {
-					// We have patients, process this. 
-					for (BaseEntity entity : entityClasses) {
-						FPerson fPerson = (FPerson) entity;
-						System.out.println("Writing fPerson name="+fPerson.getFamilyName()+", "+fPerson.getGivenName1());
-						fPersonDao.add(fPerson);
-					}
-				}
-
-			} else {
+			List<BaseEntity> entities = entry.getValue();
+			if (entities == null) {
 				continue;
-			}			
-		}
-		
-		for (String key : transactionMap.keySet()) {
-			String[] keyInfo = key.split("\\^");
-			System.out.println("working on key=" + key + " with keyInfo length=" + keyInfo.length);
-			if (keyInfo.length != 2) {
-				// something is wrong.
-				return -1;
 			}
+
 			// 2nd part of keyInfo should be the entity table name.
 			String entityName = keyInfo[1];
 			if (entityName.equals("FPerson")) {
-				// we have alreay done this.
-				continue;
-			}
-			
-			List<BaseEntity> entities = transactionMap.get(key);
-			if (entities == null) {
-				System.out.println("null entities for transactionMap.....");
+				for (BaseEntity entity : entities) {
+					// Patients of a bundle can share one FPerson. Write it once.
+					if (!containsSame(fPersons, entity)) {
+						fPersons.add((FPerson) entity);
+					}
+				}
 				continue;
 			}
-			System.out.println("About to process " + entityName + " from Service");
-			
-			String subjectKey = keyInfo[0]+"^"+"FPerson";
-			
-			// list of the entity classes
-			try {
+
+			// Get patient information from subject key.
+			FPerson subjectEntity = getSubject(transactionMap, keyInfo[0] + "^FPerson");
+			if (entityName.equals("Measurement")) {
+				if (subjectEntity == null) {
+					// This is an error. We must have subject.
+					logger.warn("FPerson info not available for the Measurement");
+					return -1;
+				}
 				for (BaseEntity entity : entities) {
-					if (entityName.equals("Measurement")) {
-						System.out.println("Adding Measurement with subjectKey ("+key+") to OMOP");
-						// Get patient information from subject key.
-						FPerson subjectEntity = (FPerson) transactionMap.get(subjectKey).get(0);
-						if (subjectEntity == null) {
-							// This is an error. We must have subject.
-							System.out.println("FPerson info not available for the Measurement");
-							throw new Exception("FPerson info not available for the Measurement");
-						}
-						
-						Measurement measurement = (Measurement) entity;
-						measurement.setFPerson(subjectEntity);
-						
-						measurementDao.add(measurement);
-					} else if (entityName.equals("Observation")) {
-						System.out.println("Adding Observation to OMOP");
-						FPerson subjectEntity = (FPerson) transactionMap.get(subjectKey).get(0);
-						if (subjectEntity == null) {
-							// This is an error. We must have subject.
-							System.out.println("FPerson info not available for the Observation");
-							throw new Exception("FPerson info not available for the Observation");
-						}
-						
-						Observation observation = (Observation) entity;
-						observation.setFPerson(subjectEntity);
-
-						observationDao.add(observation);
-					}
+					Measurement measurement = (Measurement) entity;
+					measurement.setFPerson(subjectEntity);
+					measurements.add(measurement);
+				}
+			} else if (entityName.equals("Observation")) {
+				if (subjectEntity == null) {
+					// This is an error. We must have subject.
+					logger.warn("FPerson info not available for the Observation");
+					return -1;
+				}
+				for (BaseEntity entity : entities) {
+					Observation observation = (Observation) entity;
+					observation.setFPerson(subjectEntity);
+					observations.add(observation);
 				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				return -1;
 			}
 		}
+
+		EntityManager em = fPersonDao.getEntityManager();
+		int written = 0;
+		for (FPerson fPerson : fPersons) {
+			fPersonDao.add(fPerson);
+			written = flushIfNeeded(em, written + 1);
+		}
+		for (Measurement measurement : measurements) {
+			measurementDao.add(measurement);
+			written = flushIfNeeded(em, written + 1);
+		}
+		for (Observation observation : observations) {
+			observationDao.add(observation);
+			written = flushIfNeeded(em, written + 1);
+		}
+		em.flush();
+
+		int total = fPersons.size() + measurements.size() + observations.size();
+		long elapsed = System.nanoTime() - start;
+		logger.info("Transaction wrote " + total + " entities (" + fPersons.size() + " FPerson, " + measurements.size()
+				+ " Measurement, " + observations.size() + " Observation) in " + elapsed / 1000000L + " ms, "
+				+ (elapsed > 0 ? total * 1000000000L / elapsed : total) + " rows/sec");
+		return 0;
+	}
+
+	private static boolean containsSame(List<FPerson> fPersons, BaseEntity entity) {
+		for (FPerson fPerson : fPersons) {
+			if (fPerson == entity) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private FPerson getSubject(Map<String, List<BaseEntity>> transactionMap, String subjectKey) {
+		List<BaseEntity> subjects = transactionMap.get(subjectKey);
+		if (subjects == null || subjects.isEmpty()) {
+			return null;
+		}
+		return (FPerson) subjects.get(0);
+	}
+
+	/*
+	 * Sends the pending inserts and detaches the written entities. Detached
+	 * patients can still be referenced by the measurements and observations
+	 * that are persisted after this.
+	 */
+	private int flushIfNeeded(EntityManager em, int written) {
+		if (written < flushInterval) {
+			return written;
+		}
+		em.flush();
+		em.clear();
 		return 0;
-	}	
-}
\ No newline at end of file
+	}
+}
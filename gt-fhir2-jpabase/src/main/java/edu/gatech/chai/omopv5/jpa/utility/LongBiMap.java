@@ -0,0 +1,174 @@
+package edu.gatech.chai.omopv5.jpa.utility;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe long to long map that can be looked up both ways.
+ * Keys and values are kept in open addressing primitive arrays that are at
+ * most half full, so an entry costs 64 to 128 bytes and no objects.
+ *
+ * Both keys and values must be unique, and Long.MIN_VALUE cannot be stored.
+ * When maxSize is reached, the map is cleared and starts over. maxSize of 0
+ * or less disables it - every get is a miss and put is ignored.
+ *
+ * @author mc142
+ *
+ */
+public class LongBiMap {
+	public static final long NONE = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] keys;
+	private long[] values;
+	private long[] reverseKeys;
+	private long[] reverseValues;
+	private int size = 0;
+	private volatile int maxSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong clearCount = new AtomicLong();
+
+	public LongBiMap(int maxSize) {
+		this.maxSize = maxSize;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return value of the key, or NONE.
+	 */
+	public long get(long key) {
+		long value;
+		synchronized (this) {
+			value = find(keys, values, key);
+		}
+		count(value);
+		return value;
+	}
+
+	/**
+	 * @return key of the value, or NONE.
+	 */
+	public long getKey(long value) {
+		long key;
+		synchronized (this) {
+			key = find(reverseKeys, reverseValues, value);
+		}
+		count(key);
+		return key;
+	}
+
+	public synchronized void put(long key, long value) {
+		if (key == NONE || value == NONE || maxSize <= 0)
+			return;
+
+		if (find(keys, values, key) != NONE)
+			return;
+
+		if (size >= maxSize) {
+			clear();
+			clearCount.incrementAndGet();
+		}
+		// Keep the tables at most half full.
+		if ((size + 1) * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		insert(keys, values, key, value);
+		insert(reverseKeys, reverseValues, value, key);
+		size++;
+	}
+
+	public synchronized void clear() {
+		allocate(INITIAL_CAPACITY);
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		synchronized (this) {
+			if (size > maxSize) {
+				clear();
+			}
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getClearCount() {
+		return clearCount.get();
+	}
+
+	private void count(long found) {
+		if (found == NONE) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = newTable(capacity);
+		values = new long[capacity];
+		reverseKeys = newTable(capacity);
+		reverseValues = new long[capacity];
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != NONE) {
+				insert(keys, values, oldKeys[i], oldValues[i]);
+				insert(reverseKeys, reverseValues, oldValues[i], oldKeys[i]);
+			}
+		}
+	}
+
+	private static long[] newTable(int capacity) {
+		long[] table = new long[capacity];
+		Arrays.fill(table, NONE);
+		return table;
+	}
+
+	private static long find(long[] table, long[] tableValues, long key) {
+		int mask = table.length - 1;
+		for (int i = slot(key, mask); table[i] != NONE; i = (i + 1) & mask) {
+			if (table[i] == key)
+				return tableValues[i];
+		}
+		return NONE;
+	}
+
+	private static void insert(long[] table, long[] tableValues, long key, long value) {
+		int mask = table.length - 1;
+		int i = slot(key, mask);
+		while (table[i] != NONE) {
+			i = (i + 1) & mask;
+		}
+		table[i] = key;
+		tableValues[i] = value;
+	}
+
+	private static int slot(long key, int mask) {
+		// Ids are sequential. Spread them over the table.
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,146 @@
+package edu.gatech.chai.omopv5.jpa.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache with hit/miss/eviction counters.
+ *
+ * When the number of entries exceeds maxSize, the least recently accessed
+ * entry is evicted. maxSize of 0 or less disables caching - every get is a
+ * miss and put is ignored.
+ *
+ * @author mc142
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V> {
+	private final Map<K, V> map;
+	private volatile int maxSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public LruCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > LruCache.this.maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public V get(K key) {
+		V value;
+		synchronized (map) {
+			value = map.get(key);
+		}
+
+		if (value == null) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return value;
+	}
+
+	public void put(K key, V value) {
+		if (key == null || value == null || maxSize <= 0)
+			return;
+
+		synchronized (map) {
+			map.put(key, value);
+		}
+	}
+
+	public V remove(K key) {
+		synchronized (map) {
+			return map.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	/**
+	 * Copy of the entries from the least recently used to the most recently
+	 * used one. This does not change the access order.
+	 */
+	public Map<K, V> asMap() {
+		synchronized (map) {
+			return new LinkedHashMap<K, V>(map);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Resize the cache. If the new size is smaller than the current number of
+	 * entries, the least recently used entries are evicted right away.
+	 */
+	public void setMaxSize(int maxSize) {
+		synchronized (map) {
+			this.maxSize = maxSize;
+			Iterator<K> iter = map.keySet().iterator();
+			while (map.size() > Math.max(maxSize, 0) && iter.hasNext()) {
+				iter.next();
+				iter.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		if (total == 0)
+			return 0.0;
+		return (double) hits / total;
+	}
+
+	public void resetStatistics() {
+		hitCount.set(0);
+		missCount.set(0);
+		evictionCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + "/" + maxSize + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+				+ ", evictions=" + getEvictionCount();
+	}
+}
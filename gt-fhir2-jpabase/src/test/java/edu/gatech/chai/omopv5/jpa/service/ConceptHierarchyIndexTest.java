@@ -0,0 +1,105 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ConceptHierarchyIndexTest extends TestCase {
+
+	/*
+	 * 1 and 2 have their level 0 rows, 5 and 9 do not (non-standard).
+	 *
+	 * 1 -> 1, 2, 3
+	 * 2 -> 2, 3
+	 * 5 -> 3, 6
+	 * 9 -> 3, 4
+	 */
+	private static ConceptHierarchyIndex build() {
+		return new ConceptHierarchyIndex.Builder()
+				.setVocabularyVersion("SNOMED=v1;")
+				.add(1, 1).add(1, 2).add(1, 3)
+				.add(2, 2).add(2, 3)
+				.add(5, 3).add(5, 6)
+				.add(9, 3).add(9, 4)
+				.build();
+	}
+
+	private static void assertIds(long[] expected, long[] actual) {
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	public void testDescendantsIncludeTheConcept() {
+		ConceptHierarchyIndex index = build();
+		assertIds(new long[] { 1, 2, 3 }, index.getDescendantIds(1L));
+		assertIds(new long[] { 2, 3 }, index.getDescendantIds(2L));
+		assertEquals("SNOMED=v1;", index.getVocabularyVersion());
+	}
+
+	public void testMissingSelfIsInsertedInOrder() {
+		ConceptHierarchyIndex index = build();
+		// In the middle, at the end and at the start.
+		assertIds(new long[] { 3, 5, 6 }, index.getDescendantIds(5L));
+		assertIds(new long[] { 3, 4, 9 }, index.getDescendantIds(9L));
+		assertIds(new long[] { 4, 9 }, index.getAncestorIds(4L));
+	}
+
+	public void testAncestorsAreTheInvertedPairsInOrder() {
+		ConceptHierarchyIndex index = build();
+		assertIds(new long[] { 1, 2, 3, 5, 9 }, index.getAncestorIds(3L));
+		assertIds(new long[] { 1, 2 }, index.getAncestorIds(2L));
+		assertIds(new long[] { 5, 6 }, index.getAncestorIds(6L));
+		assertIds(new long[] { 1 }, index.getAncestorIds(1L));
+	}
+
+	public void testUnknownConceptIsItsOwnHierarchy() {
+		ConceptHierarchyIndex index = build();
+		assertIds(new long[] { 100 }, index.getDescendantIds(100L));
+		assertIds(new long[] { 100 }, index.getAncestorIds(100L));
+		assertIds(new long[] { 5000000000L }, index.getDescendantIds(5000000000L));
+		assertIds(new long[0], index.getDescendantIds(null));
+	}
+
+	public void testCountsMatchTheIds() {
+		ConceptHierarchyIndex index = build();
+		for (long conceptId = 0; conceptId <= 10; conceptId++) {
+			assertEquals(index.getDescendantIds(conceptId).length, index.getDescendantCount(conceptId));
+			assertEquals(index.getAncestorIds(conceptId).length, index.getAncestorCount(conceptId));
+		}
+		assertEquals(0, index.getDescendantCount(null));
+	}
+
+	public void testDuplicatePairsAreDropped() {
+		ConceptHierarchyIndex index = new ConceptHierarchyIndex.Builder()
+				.add(1, 2).add(1, 2).add(1, 3)
+				.build();
+		assertEquals(1, index.size());
+		assertEquals(2, index.getPairCount());
+		assertIds(new long[] { 1, 2, 3 }, index.getDescendantIds(1L));
+	}
+
+	public void testPairsOutOfOrderAreRejected() {
+		try {
+			new ConceptHierarchyIndex.Builder().add(2, 1).add(1, 1);
+			fail("ancestor out of order");
+		} catch (IllegalArgumentException e) {
+		}
+
+		try {
+			new ConceptHierarchyIndex.Builder().add(1, 3).add(1, 2);
+			fail("descendant out of order");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testBuilderGrowsPastItsInitialArrays() {
+		ConceptHierarchyIndex.Builder builder = new ConceptHierarchyIndex.Builder();
+		for (int ancestor = 0; ancestor < 3000; ancestor++) {
+			builder.add(ancestor, ancestor + 1).add(ancestor, ancestor + 2);
+		}
+		ConceptHierarchyIndex index = builder.build();
+		assertEquals(3000, index.size());
+		assertEquals(6000, index.getPairCount());
+		assertIds(new long[] { 2500, 2501, 2502 }, index.getDescendantIds(2500L));
+		assertIds(new long[] { 2498, 2499, 2500 }, index.getAncestorIds(2500L));
+	}
+}
@@ -0,0 +1,172 @@
+package edu.gatech.chai.omopv5.jpa.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+import junit.framework.TestCase;
+
+/**
+ * Predicates are built with a criteria builder that records the calls, so
+ * that we can check the shape of the query without a database.
+ */
+public class SearchPredicateCompilerTest extends TestCase {
+
+	/*
+	 * Every call on the builder, the root and what they return gives a new
+	 * proxy of the returned interface. Its toString() is the call, eg.
+	 * in(lower(root.name), [a, b]).
+	 */
+	private static class Recorder implements InvocationHandler {
+		private final String label;
+
+		Recorder(String label) {
+			this.label = label;
+		}
+
+		static <T> T create(Class<T> type, String label) {
+			return type.cast(Proxy.newProxyInstance(Recorder.class.getClassLoader(), new Class<?>[] { type },
+					new Recorder(label)));
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("toString"))
+				return label;
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (!method.getReturnType().isInterface())
+				return null;
+
+			String call;
+			if (name.equals("get")) {
+				call = label + "." + args[0];
+			} else {
+				List<String> arguments = new ArrayList<String>();
+				if (!label.equals("builder")) {
+					arguments.add(label);
+				}
+				if (args != null) {
+					for (Object arg : args) {
+						arguments.add(format(arg));
+					}
+				}
+				call = name + "(" + join(arguments) + ")";
+			}
+			return create(method.getReturnType(), call);
+		}
+
+		private static String format(Object arg) {
+			if (arg instanceof Object[])
+				return join(Arrays.asList((Object[]) arg));
+			if (arg instanceof Collection)
+				return "[" + join((Collection<?>) arg) + "]";
+			return String.valueOf(arg);
+		}
+
+		private static String join(Collection<?> items) {
+			StringBuilder joined = new StringBuilder();
+			for (Object item : items) {
+				if (joined.length() > 0) {
+					joined.append(", ");
+				}
+				joined.append(format(item));
+			}
+			return joined.toString();
+		}
+	}
+
+	private String compile(ParameterWrapper... params) {
+		CriteriaBuilder builder = Recorder.create(CriteriaBuilder.class, "builder");
+		@SuppressWarnings("unchecked")
+		Root<BaseEntity> root = Recorder.create(Root.class, "root");
+		List<Predicate> predicates = SearchPredicateCompiler.getInstance().constructPredicate(builder,
+				Arrays.asList(params), root);
+		assertEquals(1, predicates.size());
+		return predicates.get(0).toString();
+	}
+
+	private static ParameterWrapper param(String type, String column, String operator, String relationship,
+			String... values) {
+		List<String> operators = new ArrayList<String>();
+		for (int i = 0; i < values.length; i++) {
+			operators.add(operator);
+		}
+		return new ParameterWrapper(type, Arrays.asList(column), operators, Arrays.asList(values), relationship);
+	}
+
+	public void testSingleValueIsEquality() {
+		assertEquals("equal(root.conceptCode, a)", compile(param("Token", "conceptCode", "=", "or", "a")));
+	}
+
+	public void testEqualValuesAreFoldedIntoPaddedInList() {
+		assertEquals("in(root.conceptCode, [a, b, c, c])",
+				compile(param("Token", "conceptCode", "=", "or", "a", "b", "c")));
+	}
+
+	public void testInListIsPaddedToNextPowerOfTwo() {
+		assertEquals("in(root.id, [1, 2, 3, 4, 5, 5, 5, 5])",
+				compile(param("Long", "id", "=", "or", "1", "2", "3", "4", "5")));
+		assertEquals("in(root.id, [1, 2, 3, 4])", compile(param("Long", "id", "=", "or", "1", "2", "3", "4")));
+	}
+
+	public void testNotEqualValuesJoinedWithAndAreNotIn() {
+		assertEquals("not(in(root.conceptCode, [a, b]))",
+				compile(param("Token", "conceptCode", "!=", "and", "a", "b")));
+	}
+
+	public void testNotEqualValuesJoinedWithOrAreNotFolded() {
+		assertEquals("or(notEqual(root.conceptCode, a), notEqual(root.conceptCode, b))",
+				compile(param("Token", "conceptCode", "!=", "or", "a", "b")));
+	}
+
+	public void testStringLikeWithoutWildcardIsLowerCaseInList() {
+		assertEquals("in(lower(root.familyName), [smith, jones])",
+				compile(param("String", "familyName", "like", "or", "Smith", "JONES")));
+	}
+
+	public void testStringLikeWithWildcardStaysLike() {
+		assertEquals("like(lower(root.familyName), smi%)",
+				compile(param("String", "familyName", "like", "or", "Smi%")));
+	}
+
+	public void testCodeInMatchesVocabularyAndCodes() {
+		ParameterWrapper param = new ParameterWrapper("Code:In", Arrays.asList("vocabulary.id", "conceptCode"),
+				Arrays.asList("in"), Arrays.asList("LOINC", "1-8", "2-6", "3-4"), "or");
+		assertEquals("and(equal(root.vocabulary.id, LOINC), in(root.conceptCode, [1-8, 2-6, 3-4, 3-4]))",
+				compile(param));
+	}
+
+	public void testCodeOutIsNegated() {
+		ParameterWrapper param = new ParameterWrapper("Code:In", Arrays.asList("vocabulary.id", "conceptCode"),
+				Arrays.asList("out"), Arrays.asList("LOINC", "1-8"), "or");
+		assertEquals("not(and(equal(root.vocabulary.id, LOINC), in(root.conceptCode, [1-8])))", compile(param));
+	}
+
+	public void testCodeInWithoutCodesMatchesNothing() {
+		ParameterWrapper in = new ParameterWrapper("Code:In", Arrays.asList("vocabulary.id", "conceptCode"),
+				Arrays.asList("in"), Arrays.asList("LOINC"), "or");
+		assertEquals("disjunction()", compile(in));
+
+		ParameterWrapper out = new ParameterWrapper("Code:In", Arrays.asList("vocabulary.id", "conceptCode"),
+				Arrays.asList("out"), Arrays.asList("LOINC"), "or");
+		assertEquals("not(disjunction())", compile(out));
+	}
+
+	public void testParametersAreJoinedWithAnd() {
+		assertEquals("and(equal(root.conceptCode, a), in(root.id, [1, 2]))",
+				compile(param("Token", "conceptCode", "=", "or", "a"), param("Long", "id", "=", "or", "1", "2")));
+	}
+}
@@ -0,0 +1,107 @@
+package edu.gatech.chai.omopv5.jpa.utility;
+
+import junit.framework.TestCase;
+
+public class LongBiMapTest extends TestCase {
+
+	public void testLooksUpBothWays() {
+		LongBiMap map = new LongBiMap(100);
+		map.put(10L, 1000L);
+		map.put(-20L, 2000L);
+
+		assertEquals(1000L, map.get(10L));
+		assertEquals(10L, map.getKey(1000L));
+		assertEquals(2000L, map.get(-20L));
+		assertEquals(-20L, map.getKey(2000L));
+		assertEquals(LongBiMap.NONE, map.get(30L));
+		assertEquals(LongBiMap.NONE, map.getKey(10L));
+		assertEquals(2, map.size());
+		assertEquals(4, map.getHitCount());
+		assertEquals(2, map.getMissCount());
+	}
+
+	public void testExistingKeyIsKept() {
+		LongBiMap map = new LongBiMap(100);
+		map.put(1L, 100L);
+		map.put(1L, 200L);
+
+		assertEquals(100L, map.get(1L));
+		assertEquals(LongBiMap.NONE, map.getKey(200L));
+		assertEquals(1, map.size());
+	}
+
+	public void testNoneIsNotStored() {
+		LongBiMap map = new LongBiMap(100);
+		map.put(LongBiMap.NONE, 1L);
+		map.put(1L, LongBiMap.NONE);
+
+		assertEquals(0, map.size());
+		assertEquals(LongBiMap.NONE, map.get(1L));
+	}
+
+	public void testCollidingKeysAreProbed() {
+		// Sequential, negative and extreme ids share slots in a table of
+		// 1024. Every one must still be found.
+		LongBiMap map = new LongBiMap(1000);
+		long[] keys = { 0L, 1L, 1024L, 2048L, -1L, -1024L, Long.MAX_VALUE, Long.MIN_VALUE + 1 };
+		for (int i = 0; i < keys.length; i++) {
+			map.put(keys[i], i);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i, map.get(keys[i]));
+			assertEquals(keys[i], map.getKey(i));
+		}
+	}
+
+	public void testRehashKeepsAllEntries() {
+		// Initial tables hold 512 entries at half full.
+		LongBiMap map = new LongBiMap(100000);
+		for (long i = 1; i <= 5000; i++) {
+			map.put(i, -i * 7);
+		}
+
+		assertEquals(5000, map.size());
+		for (long i = 1; i <= 5000; i++) {
+			assertEquals(-i * 7, map.get(i));
+			assertEquals(i, map.getKey(-i * 7));
+		}
+		assertEquals(0, map.getClearCount());
+	}
+
+	public void testClearedWhenFull() {
+		LongBiMap map = new LongBiMap(3);
+		map.put(1L, 10L);
+		map.put(2L, 20L);
+		map.put(3L, 30L);
+		assertEquals(3, map.size());
+
+		map.put(4L, 40L);
+		assertEquals(1, map.size());
+		assertEquals(1, map.getClearCount());
+		assertEquals(LongBiMap.NONE, map.get(1L));
+		assertEquals(LongBiMap.NONE, map.getKey(30L));
+		assertEquals(40L, map.get(4L));
+		assertEquals(4L, map.getKey(40L));
+	}
+
+	public void testZeroMaxSizeDisables() {
+		LongBiMap map = new LongBiMap(0);
+		map.put(1L, 10L);
+
+		assertEquals(0, map.size());
+		assertEquals(LongBiMap.NONE, map.get(1L));
+	}
+
+	public void testSmallerMaxSizeClears() {
+		LongBiMap map = new LongBiMap(10);
+		for (long i = 0; i < 5; i++) {
+			map.put(i, i + 100);
+		}
+
+		map.setMaxSize(10);
+		assertEquals(5, map.size());
+		map.setMaxSize(2);
+		assertEquals(0, map.size());
+		assertEquals(LongBiMap.NONE, map.get(0L));
+	}
+}
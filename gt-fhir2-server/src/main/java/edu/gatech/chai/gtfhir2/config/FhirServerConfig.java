@@ -5,17 +5,25 @@ import java.util.Properties;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.hibernate.jpa.HibernatePersistenceProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.ComponentScans;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.ImportResource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
+import edu.gatech.chai.gtfhir2.metrics.ServiceTimingPostProcessor;
+import edu.gatech.chai.gtfhir2.metrics.StatementCountingInterceptor;
+import edu.gatech.chai.omopv5.jpa.entity.BlockSequenceGenerator;
+
 //import edu.gatech.chai.omopv5.jpa.service.CareSiteService;
 //import edu.gatech.chai.omopv5.jpa.service.CareSiteServiceImp;
 
@@ -30,7 +38,46 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 })
 public class FhirServerConfig {
 	@Autowired
+	@Qualifier("dataSource")
 	DataSource dataSource;
+
+	// Second-level and query cache. Regions are configured in ehcache.xml.
+	@Value("${hibernate.cache.enabled:true}")
+	private boolean cacheEnabled;
+	@Value("${hibernate.cache.config:ehcache.xml}")
+	private String cacheConfig;
+	@Value("${hibernate.generate_statistics:false}")
+	private boolean generateStatistics;
+	// Inserts per JDBC batch and ids per sequence round-trip.
+	@Value("${hibernate.jdbc.batch_size:50}")
+	private int jdbcBatchSize;
+	// Query plans kept by Hibernate. Searches of the same shape share a plan.
+	@Value("${hibernate.query.plan_cache_max_size:2048}")
+	private int queryPlanCacheSize;
+	@Value("${omop.id.block_size:50}")
+	private int idBlockSize;
+	// Lucene index of note_text. Use a directory that is kept across deploys.
+	@Value("${hibernate.search.indexBase:target/lucenefiles}")
+	private String searchIndexBase;
+
+	// Read replicas. Read-only transactions are sent to them when set.
+	@Value("${jdbc.replica.urls:}")
+	private String replicaUrls;
+	@Value("${jdbc.replica.username:${jdbc.username}}")
+	private String replicaUsername;
+	@Value("${jdbc.replica.password:${jdbc.password}}")
+	private String replicaPassword;
+	@Value("${jdbc.replica.maxTotal:8}")
+	private int replicaMaxTotal;
+	@Value("${jdbc.replica.maxIdle:8}")
+	private int replicaMaxIdle;
+	// Seconds
+	@Value("${jdbc.replica.maxLag:30}")
+	private double replicaMaxLag;
+	@Value("${jdbc.replica.healthCheckInterval:10}")
+	private long replicaHealthCheckInterval;
+	@Value("${jdbc.replica.lagQuery:}")
+	private String replicaLagQuery;
 //	@Bean(destroyMethod = "close")
 //	public DataSource dataSource() {
 //		BasicDataSource retVal = new BasicDataSource();
@@ -46,13 +93,61 @@ public class FhirServerConfig {
 		LocalContainerEntityManagerFactoryBean retVal = new LocalContainerEntityManagerFactoryBean();
 		retVal.setPersistenceUnitName("GT-FHIR2");
 //		retVal.setDataSource(dataSource());
-		retVal.setDataSource(dataSource);
+		ReplicaRoutingDataSource routingDataSource = replicaRoutingDataSource();
+		if (routingDataSource.hasReplicas()) {
+			// The connection is taken at the first statement, when the
+			// transaction is known to be read-only.
+			retVal.setDataSource(new LazyConnectionDataSourceProxy(routingDataSource));
+		} else {
+			retVal.setDataSource(dataSource);
+		}
 		retVal.setPackagesToScan("edu.gatech.chai.omopv5.jpa.entity", "edu.gatech.chai.smart.jpa.entity");
 		retVal.setPersistenceProvider(new HibernatePersistenceProvider());
 		retVal.setJpaProperties(jpaProperties());
 		return retVal;
 	}
 
+	/**
+	 * Primary and the replica pools of jdbc.replica.urls (comma separated).
+	 * Without replicas, the primary is used directly.
+	 */
+	@Bean(destroyMethod = "close")
+	public ReplicaRoutingDataSource replicaRoutingDataSource() {
+		ReplicaRoutingDataSource retVal = new ReplicaRoutingDataSource(dataSource);
+		for (String url : replicaUrls.split(",")) {
+			url = url.trim();
+			if (url.isEmpty())
+				continue;
+
+			BasicDataSource replica = new BasicDataSource();
+			replica.setDriverClassName("org.postgresql.Driver");
+			replica.setUrl(url);
+			replica.setUsername(replicaUsername);
+			replica.setPassword(replicaPassword);
+			replica.setMaxTotal(replicaMaxTotal);
+			replica.setMaxIdle(replicaMaxIdle);
+			replica.setDefaultReadOnly(true);
+			// Fail over to another replica or the primary instead of waiting.
+			replica.setMaxWaitMillis(5000L);
+			replica.setConnectionProperties("connectTimeout=5");
+			retVal.addReplica(url, replica);
+		}
+		retVal.setMaxLag(replicaMaxLag);
+		if (!replicaLagQuery.trim().isEmpty()) {
+			retVal.setLagQuery(replicaLagQuery);
+		}
+		retVal.startHealthCheck(replicaHealthCheckInterval);
+		return retVal;
+	}
+
+	/**
+	 * Times OMOP service calls for the performance metrics.
+	 */
+	@Bean
+	public static ServiceTimingPostProcessor serviceTimingPostProcessor() {
+		return new ServiceTimingPostProcessor();
+	}
+
 	private Properties jpaProperties() {
 		Properties extraProperties = new Properties();
 		extraProperties.put("hibernate.dialect", org.hibernate.dialect.PostgreSQL94Dialect.class.getName());
@@ -62,15 +157,42 @@ public class FhirServerConfig {
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
 //		extraProperties.put("hibernate.hbm2ddl.auto", "none");
 //		extraProperties.put("hibernate.enable_lazy_load_no_trans", "true");
-		extraProperties.put("hibernate.jdbc.batch_size", "20");
-		extraProperties.put("hibernate.cache.use_query_cache", "false");
-		extraProperties.put("hibernate.cache.use_second_level_cache", "false");
+		extraProperties.put("hibernate.jdbc.batch_size", String.valueOf(jdbcBatchSize));
+		// Group inserts and updates by entity so that batches are not broken
+		// up when a transaction writes several entity types.
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
+		// Search values are bound as parameters, and IN list parameters are
+		// padded to the next power of 2. The JPQL then depends only on the
+		// search shape, and the query plan cache is not filled with one plan
+		// per value.
+		extraProperties.put("hibernate.criteria.literal_handling_mode", "BIND");
+		extraProperties.put("hibernate.query.in_clause_parameter_padding", "true");
+		extraProperties.put("hibernate.query.plan_cache_max_size", String.valueOf(queryPlanCacheSize));
+		extraProperties.put(BlockSequenceGenerator.BLOCK_SIZE_SETTING, String.valueOf(idBlockSize));
+		// Associations that are not fetch-joined are loaded for the whole page
+		// with IN (...) queries instead of one select per row.
+		extraProperties.put("hibernate.default_batch_fetch_size", "100");
+		extraProperties.put("hibernate.cache.use_query_cache", String.valueOf(cacheEnabled));
+		extraProperties.put("hibernate.cache.use_second_level_cache", String.valueOf(cacheEnabled));
+		if (cacheEnabled) {
+			extraProperties.put("hibernate.cache.region.factory_class",
+					"org.hibernate.cache.ehcache.internal.EhcacheRegionFactory");
+			extraProperties.put("net.sf.ehcache.configurationResourceName", cacheConfig);
+			// Only the entities with @Cacheable are cached.
+			extraProperties.put("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+		}
+		extraProperties.put("hibernate.generate_statistics", String.valueOf(generateStatistics));
+		// SQL statements and entity loads per request for the performance metrics.
+		StatementCountingInterceptor statementCounter = new StatementCountingInterceptor();
+		extraProperties.put("hibernate.session_factory.interceptor", statementCounter);
+		extraProperties.put("hibernate.session_factory.statement_inspector", statementCounter);
 		extraProperties.put("hibernate.cache.use_structured_entries", "false");
 		extraProperties.put("hibernate.cache.use_minimal_puts", "false");
 		// extraProperties.put("hibernate.search.model_mapping",
 		// SearchMappingFactory.class.getName());
 		extraProperties.put("hibernate.search.default.directory_provider", "filesystem");
-		extraProperties.put("hibernate.search.default.indexBase", "target/lucenefiles");
+		extraProperties.put("hibernate.search.default.indexBase", searchIndexBase);
 		extraProperties.put("hibernate.search.lucene_version", "LUCENE_CURRENT");
 		// extraProperties.put("hibernate.search.default.worker.execution",
 		// "async");
@@ -0,0 +1,271 @@
+package edu.gatech.chai.gtfhir2.config;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Sends the connections of read-only transactions to the replicas and all
+ * the others to the primary. Replicas are used round-robin. A replica is
+ * skipped while it cannot be connected to or its replication lag is more
+ * than maxLag seconds. Read-only transactions go to the primary when no
+ * replica is available. Lookups of rows that the server has just written
+ * (stored searches, id mappings) are not read-only, so that they are done on
+ * the primary.
+ *
+ * The transaction is known to be read-only only after the transaction
+ * manager has begun it. So, this must be wrapped in a
+ * LazyConnectionDataSourceProxy, which gets the connection at the first
+ * statement.
+ *
+ * @author mc142
+ *
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+	private static final Logger logger = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+	/**
+	 * Seconds since the last replayed transaction, or 0 if all the received
+	 * WAL is replayed or the server is not a standby. PostgreSQL 10+.
+	 */
+	public static final String DEFAULT_LAG_QUERY = "SELECT CASE WHEN NOT pg_is_in_recovery() "
+			+ "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+			+ "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+
+	private final DataSource primary;
+	private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile double maxLag = 30.0;
+	private volatile String lagQuery = DEFAULT_LAG_QUERY;
+	private volatile long healthCheckInterval = 0L;
+
+	private final AtomicLong primaryConnections = new AtomicLong();
+	private final AtomicLong replicaConnections = new AtomicLong();
+	private final AtomicLong fallbackConnections = new AtomicLong();
+
+	private ScheduledExecutorService healthChecker;
+
+	public static class Replica {
+		private final String url;
+		private final BasicDataSource dataSource;
+		// Not used until the first health check.
+		private volatile boolean healthy = false;
+		private volatile double lag = 0.0;
+
+		Replica(String url, BasicDataSource dataSource) {
+			this.url = url;
+			this.dataSource = dataSource;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * Replication lag in seconds at the last health check.
+		 */
+		public double getLag() {
+			return lag;
+		}
+	}
+
+	public ReplicaRoutingDataSource(DataSource primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Adds a replica pool. The pool is closed with this data source.
+	 */
+	public void addReplica(String url, BasicDataSource dataSource) {
+		replicas.add(new Replica(url, dataSource));
+	}
+
+	public List<Replica> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
+	public boolean hasReplicas() {
+		return !replicas.isEmpty();
+	}
+
+	/**
+	 * @param maxLag seconds of replication lag before a replica is skipped.
+	 */
+	public void setMaxLag(double maxLag) {
+		this.maxLag = maxLag;
+	}
+
+	/**
+	 * @param lagQuery query that returns the replication lag in seconds.
+	 */
+	public void setLagQuery(String lagQuery) {
+		this.lagQuery = lagQuery;
+	}
+
+	/**
+	 * Checks the replicas in the background every interval seconds. The
+	 * first check starts now.
+	 */
+	public synchronized void startHealthCheck(long interval) {
+		if (healthChecker != null || replicas.isEmpty())
+			return;
+
+		healthCheckInterval = interval;
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "replica-health-check");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkHealth();
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Milliseconds that a replica in use can be behind the primary: maxLag,
+	 * plus the health check interval in which the lag can grow unnoticed.
+	 * 0 without replicas.
+	 */
+	public long getMaxStaleness() {
+		if (replicas.isEmpty())
+			return 0L;
+		return (long) (maxLag * 1000L) + healthCheckInterval * 1000L;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return getConnection(null, null);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		if (!replicas.isEmpty() && TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			int size = replicas.size();
+			int start = next.getAndIncrement() & Integer.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				Replica replica = replicas.get((start + i) % size);
+				if (!replica.healthy)
+					continue;
+				try {
+					Connection connection = connect(replica.dataSource, username, password);
+					replicaConnections.incrementAndGet();
+					return connection;
+				} catch (SQLException e) {
+					// Skipped until the next health check finds it working.
+					setHealthy(replica, false, "connection failed: " + e.getMessage());
+				}
+			}
+			fallbackConnections.incrementAndGet();
+		}
+
+		Connection connection = connect(primary, username, password);
+		primaryConnections.incrementAndGet();
+		return connection;
+	}
+
+	private static Connection connect(DataSource dataSource, String username, String password) throws SQLException {
+		if (username == null)
+			return dataSource.getConnection();
+		return dataSource.getConnection(username, password);
+	}
+
+	void checkHealth() {
+		for (Replica replica : replicas) {
+			try {
+				Connection connection = replica.dataSource.getConnection();
+				try {
+					Statement statement = connection.createStatement();
+					try {
+						ResultSet resultSet = statement.executeQuery(lagQuery);
+						double lag = resultSet.next() ? resultSet.getDouble(1) : 0.0;
+						replica.lag = lag;
+						if (lag > maxLag) {
+							setHealthy(replica, false, "lag " + lag + "s is over " + maxLag + "s");
+						} else {
+							setHealthy(replica, true, "lag " + lag + "s");
+						}
+					} finally {
+						statement.close();
+					}
+				} finally {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				setHealthy(replica, false, "health check failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private static void setHealthy(Replica replica, boolean healthy, String reason) {
+		if (replica.healthy != healthy) {
+			replica.healthy = healthy;
+			if (healthy) {
+				logger.info("Replica " + replica.url + " is in use: " + reason);
+			} else {
+				logger.warn("Replica " + replica.url + " is not used: " + reason);
+			}
+		}
+	}
+
+	public long getPrimaryConnectionCount() {
+		return primaryConnections.get();
+	}
+
+	public long getReplicaConnectionCount() {
+		return replicaConnections.get();
+	}
+
+	/**
+	 * Read-only connections that went to the primary as no replica was
+	 * available.
+	 */
+	public long getFallbackConnectionCount() {
+		return fallbackConnections.get();
+	}
+
+	/**
+	 * Stops the health check and closes the replica pools. The primary is
+	 * closed by its own bean.
+	 */
+	public synchronized void close() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+		for (Replica replica : replicas) {
+			try {
+				replica.dataSource.close();
+			} catch (SQLException e) {
+				logger.warn("Failed to close replica pool " + replica.url + ": " + e.getMessage());
+			}
+		}
+	}
+}
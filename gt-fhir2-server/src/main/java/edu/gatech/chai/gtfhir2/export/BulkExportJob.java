@@ -0,0 +1,182 @@
+package edu.gatech.chai.gtfhir2.export;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One $export request. Each resource type is exported to its own NDJSON file
+ * by its own task. The job is complete when all the type tasks are done.
+ *
+ * @author mc142
+ *
+ */
+public class BulkExportJob {
+	public enum Status {
+		ACCEPTED, RUNNING, COMPLETE, ERROR
+	}
+
+	/**
+	 * Export of one resource type.
+	 */
+	public static class TypeOutput {
+		private final String resourceType;
+		private final File file;
+		private final AtomicLong count = new AtomicLong();
+		private volatile Status status = Status.ACCEPTED;
+		private volatile String error;
+
+		TypeOutput(String resourceType, File file) {
+			this.resourceType = resourceType;
+			this.file = file;
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		void addCount(long delta) {
+			count.addAndGet(delta);
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		void setStatus(Status status) {
+			this.status = status;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		void setError(String error) {
+			this.error = error;
+			this.status = Status.ERROR;
+		}
+	}
+
+	private final String jobId;
+	private final String request;
+	private final Date transactionTime;
+	private final File directory;
+	private final List<Long> patientIds;
+	private final boolean patientCompartment;
+	private final Map<String, TypeOutput> outputs = new LinkedHashMap<String, TypeOutput>();
+	private volatile long completedAt = 0L;
+
+	BulkExportJob(String jobId, String request, File directory, List<String> resourceTypes, boolean patientCompartment,
+			List<Long> patientIds) {
+		this.jobId = jobId;
+		this.request = request;
+		this.transactionTime = new Date();
+		this.directory = directory;
+		this.patientCompartment = patientCompartment;
+		this.patientIds = patientIds;
+		for (String resourceType : resourceTypes) {
+			outputs.put(resourceType, new TypeOutput(resourceType, new File(directory, resourceType + ".ndjson")));
+		}
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * Kick-off request URL.
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	public Date getTransactionTime() {
+		return transactionTime;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * true for Patient and Group level exports. Only the resources that
+	 * belong to a patient are exported.
+	 */
+	public boolean isPatientCompartment() {
+		return patientCompartment;
+	}
+
+	/**
+	 * Patients of the group. null if not limited to a group.
+	 */
+	public List<Long> getPatientIds() {
+		return patientIds;
+	}
+
+	public List<TypeOutput> getOutputs() {
+		return Collections.unmodifiableList(new ArrayList<TypeOutput>(outputs.values()));
+	}
+
+	public TypeOutput getOutput(String resourceType) {
+		return outputs.get(resourceType);
+	}
+
+	public Status getStatus() {
+		boolean running = false;
+		boolean accepted = false;
+		for (TypeOutput output : outputs.values()) {
+			switch (output.getStatus()) {
+			case ERROR:
+				return Status.ERROR;
+			case RUNNING:
+				running = true;
+				break;
+			case ACCEPTED:
+				accepted = true;
+				break;
+			default:
+			}
+		}
+
+		if (running)
+			return Status.RUNNING;
+		if (accepted)
+			return Status.ACCEPTED;
+		return Status.COMPLETE;
+	}
+
+	/**
+	 * Progress for X-Progress header of the status response.
+	 */
+	public String getProgress() {
+		StringBuilder progress = new StringBuilder();
+		for (TypeOutput output : outputs.values()) {
+			if (progress.length() > 0)
+				progress.append(", ");
+			progress.append(output.getResourceType()).append(": ").append(output.getStatus().name().toLowerCase())
+					.append(" (").append(output.getCount()).append(")");
+		}
+		return progress.toString();
+	}
+
+	public long getCompletedAt() {
+		return completedAt;
+	}
+
+	void setCompletedAt(long completedAt) {
+		this.completedAt = completedAt;
+	}
+}
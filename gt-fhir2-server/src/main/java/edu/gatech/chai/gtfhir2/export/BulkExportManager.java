@@ -0,0 +1,364 @@
+package edu.gatech.chai.gtfhir2.export;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.gtfhir2.export.BulkExportJob.Status;
+import edu.gatech.chai.gtfhir2.export.BulkExportJob.TypeOutput;
+import edu.gatech.chai.gtfhir2.mapping.BaseOmopResource;
+import edu.gatech.chai.gtfhir2.mapping.ResourceBatchHandler;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * Runs $export jobs. Each resource type of a job is a task in the export
+ * thread pool. So, types of a job are exported in parallel. Rows are read
+ * with a forward-only cursor, mapped with the Omop* mappers, and written to
+ * one NDJSON file per type under the export directory.
+ *
+ * Jobs and their files are removed after the TTL once they are done.
+ *
+ * @author mc142
+ *
+ */
+public class BulkExportManager {
+	private static final Logger logger = LoggerFactory.getLogger(BulkExportManager.class);
+
+	public static final int DEFAULT_THREAD_COUNT = 4;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final long DEFAULT_TTL = 86400000L;
+
+	// Patients per query for Group export.
+	private static final int PATIENT_CHUNK_SIZE = 500;
+
+	// Medication is the drug part of the concept table, not patient data.
+	// Exported only when asked with _type.
+	private static final List<String> NOT_EXPORTED_BY_DEFAULT = Arrays.asList("Medication");
+
+	private static final BulkExportManager instance = new BulkExportManager();
+
+	private FhirContext fhirContext;
+	private volatile File exportDirectory = new File(System.getProperty("java.io.tmpdir"), "gt-fhir2-export");
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long ttl = DEFAULT_TTL;
+	private int threadCount = DEFAULT_THREAD_COUNT;
+
+	private final Map<String, BaseOmopResource<?, ?, ?>> mappers = new LinkedHashMap<String, BaseOmopResource<?, ?, ?>>();
+	// Resource type -> patient reference path. Only the resources in the patient compartment.
+	private final Map<String, String> patientPaths = new LinkedHashMap<String, String>();
+	private final ConcurrentMap<String, BulkExportJob> jobs = new ConcurrentHashMap<String, BulkExportJob>();
+
+	private ExecutorService executor;
+	private ScheduledExecutorService cleaner;
+
+	private BulkExportManager() {
+	}
+
+	public static BulkExportManager getInstance() {
+		return instance;
+	}
+
+	public void setFhirContext(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	public void setExportDirectory(File exportDirectory) {
+		this.exportDirectory = exportDirectory;
+	}
+
+	/**
+	 * @param batchSize rows per fetch and per write.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param ttl milliseconds to keep the job and its files after it is done.
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Number of resource types exported at the same time. Must be set before
+	 * the first job.
+	 */
+	public synchronized void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Adds the mapper of the resource type to the export. Resource types whose
+	 * entity has fPerson, and Patient, are in the patient compartment.
+	 */
+	public synchronized void addSupportedMapper(String resourceType, BaseOmopResource<?, ?, ?> mapper) {
+		mappers.put(resourceType, mapper);
+
+		Class<?> entityClass = mapper.getMyEntityClass();
+		if (FPerson.class.isAssignableFrom(entityClass)) {
+			patientPaths.put(resourceType, "id");
+		} else if (hasField(entityClass, "fPerson")) {
+			patientPaths.put(resourceType, "fPerson.id");
+		}
+	}
+
+	private static boolean hasField(Class<?> entityClass, String name) {
+		for (Class<?> clazz = entityClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (field.getName().equals(name))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Resource types exported when _type is not given.
+	 */
+	public synchronized List<String> getDefaultTypes(boolean patientCompartment) {
+		List<String> types = new ArrayList<String>();
+		for (String resourceType : (patientCompartment ? patientPaths.keySet() : mappers.keySet())) {
+			if (!NOT_EXPORTED_BY_DEFAULT.contains(resourceType)) {
+				types.add(resourceType);
+			}
+		}
+		return types;
+	}
+
+	public synchronized boolean isSupported(String resourceType, boolean patientCompartment) {
+		if (patientCompartment) {
+			return patientPaths.containsKey(resourceType);
+		}
+		return mappers.containsKey(resourceType);
+	}
+
+	/**
+	 * Starts a job.
+	 *
+	 * @param request            kick-off request URL.
+	 * @param resourceTypes      types to export. Must be supported.
+	 * @param patientCompartment true for Patient and Group level export.
+	 * @param patientIds         OMOP person ids of the group. null for all.
+	 */
+	public BulkExportJob submit(String request, List<String> resourceTypes, boolean patientCompartment,
+			List<Long> patientIds) throws IOException {
+		String jobId = UUID.randomUUID().toString();
+		File directory = new File(exportDirectory, jobId);
+		if (!directory.mkdirs()) {
+			throw new IOException("Cannot create export directory " + directory.getAbsolutePath());
+		}
+
+		final BulkExportJob job = new BulkExportJob(jobId, request, directory, resourceTypes, patientCompartment,
+				patientIds);
+		jobs.put(jobId, job);
+
+		ExecutorService exportExecutor = getExecutor();
+		for (final TypeOutput output : job.getOutputs()) {
+			exportExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					export(job, output);
+				}
+			});
+		}
+
+		logger.info("Export " + jobId + " started for " + resourceTypes);
+		return job;
+	}
+
+	public BulkExportJob getJob(String jobId) {
+		if (jobId == null)
+			return null;
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Removes the job and its files. A running job keeps running until its
+	 * current types are done, but the files are gone.
+	 */
+	public boolean removeJob(String jobId) {
+		BulkExportJob job = jobs.remove(jobId);
+		if (job == null)
+			return false;
+
+		deleteFiles(job);
+		return true;
+	}
+
+	private void export(BulkExportJob job, TypeOutput output) {
+		String resourceType = output.getResourceType();
+		BaseOmopResource<?, ?, ?> mapper;
+		String patientPath;
+		synchronized (this) {
+			mapper = mappers.get(resourceType);
+			patientPath = patientPaths.get(resourceType);
+		}
+
+		output.setStatus(Status.RUNNING);
+		final IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(output.getFile()), StandardCharsets.UTF_8));
+			ResourceBatchHandler handler = new NdjsonWriter(writer, parser, output);
+
+			List<Long> patientIds = job.getPatientIds();
+			if (patientIds == null) {
+				mapper.scrollWithParams(new ArrayList<ParameterWrapper>(), batchSize, handler);
+			} else {
+				for (int i = 0; i < patientIds.size(); i += PATIENT_CHUNK_SIZE) {
+					List<Long> chunk = patientIds.subList(i, Math.min(i + PATIENT_CHUNK_SIZE, patientIds.size()));
+					mapper.scrollWithParams(Arrays.asList(patientParameter(patientPath, chunk)), batchSize, handler);
+				}
+			}
+
+			writer.flush();
+			output.setStatus(Status.COMPLETE);
+		} catch (Exception e) {
+			logger.error("Export " + job.getJobId() + " failed for " + resourceType, e);
+			output.setError(resourceType + " export failed: " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					logger.warn("Failed to close " + output.getFile().getAbsolutePath());
+				}
+			}
+		}
+
+		Status status = job.getStatus();
+		if (status == Status.COMPLETE || status == Status.ERROR) {
+			job.setCompletedAt(System.currentTimeMillis());
+			logger.info("Export " + job.getJobId() + " done. " + job.getProgress());
+		}
+	}
+
+	private static ParameterWrapper patientParameter(String patientPath, List<Long> patientIds) {
+		List<String> operators = new ArrayList<String>(patientIds.size());
+		List<String> values = new ArrayList<String>(patientIds.size());
+		for (Long patientId : patientIds) {
+			operators.add("=");
+			values.add(String.valueOf(patientId));
+		}
+
+		return new ParameterWrapper("Long", Arrays.asList(patientPath), operators, values, "or");
+	}
+
+	private static class NdjsonWriter implements ResourceBatchHandler {
+		private final Writer writer;
+		private final IParser parser;
+		private final TypeOutput output;
+
+		NdjsonWriter(Writer writer, IParser parser, TypeOutput output) {
+			this.writer = writer;
+			this.parser = parser;
+			this.output = output;
+		}
+
+		@Override
+		public void handle(List<IBaseResource> resources) throws Exception {
+			int count = 0;
+			for (IBaseResource resource : resources) {
+				if (resource == null)
+					continue;
+				writer.write(parser.encodeResourceToString(resource));
+				writer.write('\n');
+				count++;
+			}
+			output.addCount(count);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threadCount, new DaemonThreadFactory("bulk-export-"));
+			cleaner = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bulk-export-cleaner-"));
+			cleaner.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					removeExpired();
+				}
+			}, 10, 10, TimeUnit.MINUTES);
+		}
+		return executor;
+	}
+
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		for (BulkExportJob job : new ArrayList<BulkExportJob>(jobs.values())) {
+			if (job.getCompletedAt() > 0L && job.getCompletedAt() + ttl < now) {
+				removeJob(job.getJobId());
+			}
+		}
+	}
+
+	private static void deleteFiles(BulkExportJob job) {
+		File[] files = job.getDirectory().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					logger.warn("Failed to delete " + file.getAbsolutePath());
+				}
+			}
+		}
+		job.getDirectory().delete();
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			cleaner.shutdownNow();
+			executor = null;
+			cleaner = null;
+		}
+	}
+
+	public List<BulkExportJob> getJobs() {
+		return Collections.unmodifiableList(new ArrayList<BulkExportJob>(jobs.values()));
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,7 +1,12 @@
 package edu.gatech.chai.gtfhir2.mapping;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Resource;
@@ -9,7 +14,14 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.WebApplicationContext;
 
 import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import edu.gatech.chai.gtfhir2.metrics.RequestMetrics;
+import edu.gatech.chai.gtfhir2.provider.PatientResourceProvider;
+import edu.gatech.chai.gtfhir2.provider.SearchTotalCounter;
 import edu.gatech.chai.omopv5.jpa.entity.BaseEntity;
+import edu.gatech.chai.omopv5.jpa.service.EntityBatchHandler;
 import edu.gatech.chai.omopv5.jpa.service.IService;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
@@ -21,6 +33,10 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	private Class<p> myServiceClass;
 	private String myFhirResourceType;
 
+	// OMOP id of the last entity of the page constructed on this thread. See
+	// takeLastMatchedId().
+	private final ThreadLocal<Long> lastMatchedId = new ThreadLocal<Long>();
+
 	public static String MAP_EXCEPTION_FILTER = "FILTER";
 	public static String MAP_EXCEPTION_EXCLUDE = "EXCLUDE";
 
@@ -49,13 +65,30 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 
 	public void removeDbase(Long id) {
 		myOmopService.removeById(id);
+		invalidateCache(IdMapping.getFHIRfromOMOP(id, getMyFhirResourceType()));
+		IdentifierIndex.getInstance().invalidate(getMyFhirResourceType());
 	}
 
 	public Long removeByFhirId(IdType fhirId) {
 		Long id_long_part = fhirId.getIdPartAsLong();
 		Long myId = IdMapping.getOMOPfromFHIR(id_long_part, getMyFhirResourceType());
 
-		return myOmopService.removeById(myId);
+		Long retVal = myOmopService.removeById(myId);
+		invalidateCache(id_long_part);
+		IdentifierIndex.getInstance().invalidate(getMyFhirResourceType());
+		return retVal;
+	}
+
+	/***
+	 * invalidateCache: call this after the resource is created, updated or
+	 * deleted so that read does not return the cached resource. The stored
+	 * JSON is rendered again if the resource type is materialized, and the
+	 * cached search totals of the resource type are dropped.
+	 */
+	public void invalidateCache(Long fhirId) {
+		ResourceCache.getInstance().invalidate(getMyFhirResourceType(), fhirId);
+		SearchTotalCounter.getInstance().invalidate(getMyFhirResourceType());
+		MaterializedResourceStore.getInstance().refresh(getMyFhirResourceType(), fhirId);
 	}
 
 	public Long getSize() {
@@ -66,6 +99,15 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		return myOmopService.getSize(mapList);
 	}
 
+	/**
+	 * Estimated number of resources without search parameters. Returns null if
+	 * the estimate is not available. Overwrite this and return null if this
+	 * resource always filters the table.
+	 */
+	public Long getEstimatedSize() {
+		return myOmopService.getEstimatedSize();
+	}
+
 	/***
 	 * constructResource: Overwrite this if you want to implement includes.
 	 */
@@ -85,6 +127,32 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	 */
 	public v toFHIR(IdType id) {
 		Long id_long_part = id.getIdPartAsLong();
+		ResourceCache resourceCache = ResourceCache.getInstance();
+		v cached = (v) resourceCache.get(getMyFhirResourceType(), id_long_part);
+		if (cached != null)
+			return cached;
+		long cacheGeneration = resourceCache.getGeneration(getMyFhirResourceType());
+
+		MaterializedResourceStore store = MaterializedResourceStore.getInstance();
+		v fhirResource = (v) store.read(getMyFhirResourceType(), id_long_part);
+		if (fhirResource == null) {
+			fhirResource = renderFHIR(id_long_part);
+			if (fhirResource == null)
+				return null;
+
+			if (resourceCache.isCacheable(getMyFhirResourceType(), cacheGeneration)) {
+				store.save(getMyFhirResourceType(), id_long_part, fhirResource);
+			}
+		}
+		resourceCache.put(getMyFhirResourceType(), id_long_part, fhirResource, cacheGeneration);
+		return fhirResource;
+	}
+
+	/***
+	 * renderFHIR: builds the resource from the OMOP tables. Returns null if
+	 * the entity does not exist.
+	 */
+	public v renderFHIR(Long id_long_part) {
 		Long myId = IdMapping.getOMOPfromFHIR(id_long_part, getMyFhirResourceType());
 
 		t entityClass = (t) getMyOmopService().findById(myId);
@@ -93,7 +161,12 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 
 		Long fhirId = IdMapping.getFHIRfromOMOP(myId, getMyFhirResourceType());
 
-		return constructFHIR(fhirId, entityClass);
+		long mappingStart = RequestMetrics.enterMapping();
+		try {
+			return constructFHIR(fhirId, entityClass);
+		} finally {
+			RequestMetrics.exitMapping(mappingStart);
+		}
 	}
 
 	public void searchWithoutParams(int fromIndex, int toIndex, List<IBaseResource> listResources,
@@ -103,31 +176,168 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		// We got the results back from OMOP database. Now, we need to construct
 		// the list of
 		// FHIR Patient resources to be included in the bundle.
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		constructResources(entities, listResources, includes);
 	}
 
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
 			List<IBaseResource> listResources, List<String> includes) {
 		List<t> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList);
 
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
+		constructResources(entities, listResources, includes);
+	}
+
+	/***
+	 * searchAfterId: keyset paging. Searches the next count rows after lastId
+	 * (OMOP id) in id order. An empty parameter list means all the rows, with
+	 * the filters of this resource.
+	 */
+	public void searchAfterId(Long lastId, int count, List<ParameterWrapper> mapList,
+			List<IBaseResource> listResources, List<String> includes) {
+		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>(mapList);
+		addSearchFilters(paramList);
+
+		List<t> entities = getMyOmopService().searchAfterId(lastId, count, paramList);
+
+		constructResources(entities, listResources, includes);
+	}
+
+	/***
+	 * scrollWithParams: reads all the matching rows with a forward-only cursor
+	 * and hands the FHIR resources to the handler in batches. This is for
+	 * bulk export. Unlike searchWithParams, an empty parameter list means all
+	 * the rows.
+	 * 
+	 * @return number of rows read.
+	 */
+	public long scrollWithParams(List<ParameterWrapper> mapList, int batchSize, final ResourceBatchHandler handler)
+			throws Exception {
+		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>(mapList);
+		addSearchFilters(paramList);
+
+		final List<String> includes = new ArrayList<String>();
+		return getMyOmopService().scrollWithParams(paramList, batchSize, new EntityBatchHandler<t>() {
+			@Override
+			public void handle(List<t> entities) throws Exception {
+				List<IBaseResource> resources = new ArrayList<IBaseResource>(entities.size());
+				constructResources(entities, resources, includes);
+				handler.handle(resources);
 			}
+		});
+	}
+
+	/***
+	 * addSearchFilters: Override this if this resource is only a part of the
+	 * table (eg. Medication from concept table). Add the parameters that
+	 * select the rows for this resource.
+	 */
+	protected void addSearchFilters(List<ParameterWrapper> paramList) {
+
+	}
+
+	/***
+	 * constructResources: builds FHIR resources for a page of entities. The
+	 * page is handed to prefetch() first so that anything constructFHIR needs
+	 * beyond the entity itself can be loaded for the whole page at once. FHIR
+	 * ids of the page and of the resources it references are mapped at once
+	 * as well.
+	 */
+	protected void constructResources(List<t> entities, List<IBaseResource> listResources, List<String> includes) {
+		if (entities.isEmpty()) {
+			lastMatchedId.remove();
+			return;
 		}
+		lastMatchedId.set(entities.get(entities.size() - 1).getIdAsLong());
+
+		long mappingStart = RequestMetrics.enterMapping();
+		try {
+			prefetch(entities);
+			Map<Long, Long> fhirIds = prefetchFHIRIds(entities);
+
+			for (t entity : entities) {
+				Long omopId = entity.getIdAsLong();
+				Long fhirId = fhirIds.get(omopId);
+				v fhirResource = constructResource(fhirId, entity, includes);
+				if (fhirResource != null) {
+					listResources.add(fhirResource);
+					// Do the rev_include and add the resource to the list.
+					addRevIncludes(omopId, includes, listResources);
+				}
+			}
+		} finally {
+			releasePrefetch();
+			RequestMetrics.exitMapping(mappingStart);
+		}
+	}
+
+	/***
+	 * takeLastMatchedId: OMOP id of the last entity matched by the latest
+	 * search on this thread, or null if it matched nothing. _include and
+	 * _revinclude resources are not counted. The id is cleared once taken.
+	 */
+	public Long takeLastMatchedId() {
+		Long id = lastMatchedId.get();
+		lastMatchedId.remove();
+		return id;
+	}
+
+	/***
+	 * prefetchFHIRIds: maps the FHIR ids of the entities and of the resources
+	 * they reference (see addReferencedIds), one lookup per resource type. So,
+	 * constructFHIR finds every id in the IdMapping cache.
+	 * 
+	 * @return OMOP id -> FHIR id of the entities.
+	 */
+	public Map<Long, Long> prefetchFHIRIds(List<t> entities) {
+		List<Long> omopIds = new ArrayList<Long>(entities.size());
+		Map<String, Set<Long>> referencedIds = new HashMap<String, Set<Long>>();
+		for (t entity : entities) {
+			omopIds.add(entity.getIdAsLong());
+			if (IdMapping.isEnabled())
+				addReferencedIds(entity, referencedIds);
+		}
+
+		for (Map.Entry<String, Set<Long>> entry : referencedIds.entrySet()) {
+			IdMapping.prefetchFHIRfromOMOP(entry.getValue(), entry.getKey());
+		}
+		return IdMapping.prefetchFHIRfromOMOP(omopIds, getMyFhirResourceType());
+	}
+
+	/***
+	 * addReferencedIds: Override this to add the OMOP ids of the resources
+	 * that constructFHIR references, with addReferencedId.
+	 */
+	protected void addReferencedIds(t entity, Map<String, Set<Long>> referencedIds) {
+
+	}
+
+	protected static void addReferencedId(Map<String, Set<Long>> referencedIds, String resourceType, BaseEntity entity) {
+		if (entity == null || entity.getIdAsLong() == null)
+			return;
+
+		Set<Long> ids = referencedIds.get(resourceType);
+		if (ids == null) {
+			ids = new HashSet<Long>();
+			referencedIds.put(resourceType, ids);
+		}
+		ids.add(entity.getIdAsLong());
+	}
+
+	/***
+	 * prefetch: Override this to load data that constructFHIR would otherwise
+	 * query row by row. The prefetched data must be kept per thread as mappers
+	 * are shared by concurrent requests. Entities' own associations are
+	 * already loaded by the page query.
+	 */
+	protected void prefetch(List<t> entities) {
+
+	}
+
+	/***
+	 * releasePrefetch: called after the page is constructed. Override this to
+	 * drop the data loaded by prefetch.
+	 */
+	protected void releasePrefetch() {
+
 	}
 
 	// Override the this method to provide rev_includes.
@@ -136,11 +346,64 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	}
 
 	// Some common functions that are repetitively used.
+
+	/**
+	 * Value of a "String" parameter for FHIR string search: starts with,
+	 * unless :contains or :exact. A prefix can use an index on lower(column).
+	 */
+	protected static String stringSearchValue(StringParam param) {
+		if (param.isExact())
+			return param.getValue();
+		if (param.isContains())
+			return "%" + param.getValue() + "%";
+		return param.getValue() + "%";
+	}
+
+	/**
+	 * code:in=[ValueSet url], code:below=[system]|[code] or
+	 * code:above=[system]|[code]
+	 */
+	protected static boolean isConceptSetSearch(TokenParam param) {
+		TokenParamModifier modifier = param.getModifier();
+		return modifier == TokenParamModifier.IN || modifier == TokenParamModifier.BELOW
+				|| modifier == TokenParamModifier.ABOVE;
+	}
+
+	/**
+	 * Matches the concepts of the local expansion of the ValueSet, or of the
+	 * code and its descendants (:below) or ancestors (:above).
+	 */
+	protected static void setConceptSetParameter(ParameterWrapper paramWrapper, String conceptIdColumn,
+			TokenParam param) {
+		List<Long> conceptIds;
+		ValueSetStore valueSetStore = ValueSetStore.getInstance();
+		if (param.getModifier() == TokenParamModifier.BELOW) {
+			conceptIds = valueSetStore.expandBelow(param.getSystem(), param.getValue());
+		} else if (param.getModifier() == TokenParamModifier.ABOVE) {
+			conceptIds = valueSetStore.expandAbove(param.getSystem(), param.getValue());
+		} else {
+			conceptIds = valueSetStore.expand(param.getValue());
+		}
+
+		List<String> operators = new ArrayList<String>(conceptIds.size());
+		List<String> values = new ArrayList<String>(conceptIds.size());
+		for (Long conceptId : conceptIds) {
+			operators.add("=");
+			values.add(String.valueOf(conceptId));
+		}
+		// An empty set matches nothing.
+		paramWrapper.setParameterType("Long");
+		paramWrapper.setParameters(Arrays.asList(conceptIdColumn));
+		paramWrapper.setOperators(operators);
+		paramWrapper.setValues(values);
+		paramWrapper.setRelationship("or");
+	}
+
 	protected void addParamlistForPatientIDName(String parameter, String value, ParameterWrapper paramWrapper,
 			List<ParameterWrapper> mapList) {
 		switch (parameter) {
 		case "Patient:" + Patient.SP_RES_ID:
-			String pId = value;
+			String pId = IdMapping.getOMOPfromFHIR(value, PatientResourceProvider.getType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("fPerson.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
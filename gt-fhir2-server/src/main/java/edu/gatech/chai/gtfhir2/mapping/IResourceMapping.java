@@ -18,10 +18,13 @@ public interface IResourceMapping<v extends Resource, t extends BaseEntity> {
 	public Long removeByFhirId (IdType fhirId) throws FHIRException;
 	public Long getSize();
 	public Long getSize(List<ParameterWrapper> mapList);
+	public Long getEstimatedSize();
 
 	public v constructResource(Long fhirId, t entity, List<String> includes);
 	public void searchWithoutParams(int fromIndex, int toIndex, List<IBaseResource> listResources, List<String> includes);
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> map, List<IBaseResource> listResources, List<String> includes);
+	public void searchAfterId(Long lastId, int count, List<ParameterWrapper> map, List<IBaseResource> listResources, List<String> includes);
+	public Long takeLastMatchedId();
 
 	public List<ParameterWrapper> mapParameter(String parameter, Object value, boolean or);
 	public v constructFHIR(Long fhirId, t entity);
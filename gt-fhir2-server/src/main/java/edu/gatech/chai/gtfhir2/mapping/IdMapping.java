@@ -1,38 +1,208 @@
 package edu.gatech.chai.gtfhir2.mapping;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.jpa.service.IdMappingService;
+import edu.gatech.chai.omopv5.jpa.utility.LongBiMap;
+
 /**
  * ID Mapping Class to manage the IDs between FHIR and OMOP.
- * 
+ *
+ * By default, the FHIR id is the OMOP id. When the id_mapping table is
+ * enabled, FHIR ids are made up the first time an OMOP row is sent out and are
+ * kept in id_mapping. So, native OMOP ids are not revealed, and Observation
+ * ids no longer carry the measurement/observation sign of f_observation_view.
+ *
+ * Mappings are cached per resource in both directions. Use
+ * {@link #prefetchFHIRfromOMOP(Collection, String)} for a page of rows so that
+ * the mapper can map the ids without a query each.
+ *
  * @author mc142
  *
  */
 public class IdMapping {
-	
+	private static final Logger logger = LoggerFactory.getLogger(IdMapping.class);
+
+	public static final int DEFAULT_CACHE_SIZE = 1000000;
+
+	/**
+	 * OMOP id of a FHIR id that is not mapped. No OMOP row has it, so reads
+	 * and searches with it find nothing.
+	 */
+	public static final Long UNKNOWN_OMOP_ID = LongBiMap.NONE;
+
+	private static volatile IdMappingService idMappingService;
+	private static volatile int cacheSize = DEFAULT_CACHE_SIZE;
+	// resource name -> OMOP id <-> FHIR id
+	private static final Map<String, LongBiMap> caches = new ConcurrentHashMap<String, LongBiMap>();
+
+	/**
+	 * Enables the id_mapping table. null to go back to the OMOP ids.
+	 */
+	public static void setIdMappingService(IdMappingService service) {
+		idMappingService = service;
+		caches.clear();
+	}
+
+	public static boolean isEnabled() {
+		return idMappingService != null;
+	}
+
+	/**
+	 * @param size most mappings cached per resource.
+	 */
+	public static void setCacheSize(int size) {
+		cacheSize = size;
+		for (LongBiMap cache : caches.values()) {
+			cache.setMaxSize(size);
+		}
+	}
+
 	public static Long getFHIRfromOMOP(Long omop_id, String resource_name) {
-		// We use the same ID for now.
-		// TODO: Develop the ID mapping so that we do not reveal native
-		//       OMOP ID. If the mapping exists, send it. If not, create a new
-		//       mapping.
-		
-		return omop_id;
+		if (idMappingService == null || omop_id == null)
+			return omop_id;
+
+		long fhirId = getCache(resource_name).get(omop_id);
+		if (fhirId != LongBiMap.NONE)
+			return fhirId;
+
+		List<Long> omopIds = new ArrayList<Long>(1);
+		omopIds.add(omop_id);
+		return prefetchFHIRfromOMOP(omopIds, resource_name).get(omop_id);
 	}
 
 	/**
 	 * What is OMOP ID for the long part of FHIR ID
 	 * @param fhir_id
-	 * @return
+	 * @return UNKNOWN_OMOP_ID if the FHIR id is not mapped.
 	 */
 	public static Long getOMOPfromFHIR(Long fhir_id, String resource_name) {
-		// We use the same ID now.
-		// TODO: Develop the ID mapping so that we do not reveal native
-		//       OMOP ID.
-		
-		return fhir_id;
+		if (idMappingService == null || fhir_id == null)
+			return fhir_id;
+
+		LongBiMap cache = getCache(resource_name);
+		long omopId = cache.getKey(fhir_id);
+		if (omopId != LongBiMap.NONE)
+			return omopId;
+
+		List<Long> fhirIds = new ArrayList<Long>(1);
+		fhirIds.add(fhir_id);
+		Long found = idMappingService.findOmopIds(resource_name, fhirIds).get(fhir_id);
+		if (found == null)
+			return UNKNOWN_OMOP_ID;
+
+		cache.put(found, fhir_id);
+		return found;
+	}
+
+	/**
+	 * getOMOPfromFHIR for a FHIR id in a search parameter.
+	 */
+	public static String getOMOPfromFHIR(String fhir_id, String resource_name) {
+		if (idMappingService == null || fhir_id == null)
+			return fhir_id;
+
+		try {
+			return String.valueOf(getOMOPfromFHIR(Long.valueOf(fhir_id.trim()), resource_name));
+		} catch (NumberFormatException e) {
+			return fhir_id;
+		}
 	}
-	
+
+	/**
+	 * Maps the OMOP ids of a page. The ids that are not mapped yet get their
+	 * FHIR ids here, in one insert.
+	 *
+	 * @return OMOP id -> FHIR id.
+	 */
+	public static Map<Long, Long> prefetchFHIRfromOMOP(Collection<Long> omopIds, String resource_name) {
+		Map<Long, Long> retVal = new HashMap<Long, Long>();
+		if (idMappingService == null) {
+			for (Long omopId : omopIds) {
+				retVal.put(omopId, omopId);
+			}
+			return retVal;
+		}
+
+		LongBiMap cache = getCache(resource_name);
+		List<Long> missing = new ArrayList<Long>();
+		for (Long omopId : omopIds) {
+			if (omopId == null)
+				continue;
+			long fhirId = cache.get(omopId);
+			if (fhirId == LongBiMap.NONE) {
+				missing.add(omopId);
+			} else {
+				retVal.put(omopId, fhirId);
+			}
+		}
+		if (missing.isEmpty())
+			return retVal;
+
+		Map<Long, Long> found = idMappingService.findFhirIds(resource_name, missing);
+		missing.removeAll(found.keySet());
+		if (!missing.isEmpty()) {
+			try {
+				found.putAll(idMappingService.createFhirIds(resource_name, missing));
+			} catch (RuntimeException e) {
+				// Another request has mapped some of them.
+				logger.debug("FHIR ids of " + resource_name + " were created concurrently: " + e.getMessage());
+				found.putAll(idMappingService.findFhirIds(resource_name, missing));
+				missing.removeAll(found.keySet());
+				if (!missing.isEmpty()) {
+					found.putAll(idMappingService.createFhirIds(resource_name, missing));
+				}
+			}
+		}
+
+		for (Map.Entry<Long, Long> entry : found.entrySet()) {
+			cache.put(entry.getKey(), entry.getValue());
+		}
+		retVal.putAll(found);
+		return retVal;
+	}
+
 	public static void writeOMOPfromFHIR(Long fhir_id) {
 		// Placeholder for later to use to store OMOP ID mapping info.
-		// This information will be used by getFHIRfromOMOP
-		// TODO: Develop mapping creation here.
+		// FHIR ids are created by getFHIRfromOMOP when the OMOP row is
+		// written.
+	}
+
+	private static LongBiMap getCache(String resource_name) {
+		LongBiMap cache = caches.get(resource_name);
+		if (cache == null) {
+			synchronized (caches) {
+				cache = caches.get(resource_name);
+				if (cache == null) {
+					cache = new LongBiMap(cacheSize);
+					caches.put(resource_name, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	public static long getHitCount() {
+		long count = 0L;
+		for (LongBiMap cache : caches.values()) {
+			count += cache.getHitCount();
+		}
+		return count;
+	}
+
+	public static long getMissCount() {
+		long count = 0L;
+		for (LongBiMap cache : caches.values()) {
+			count += cache.getMissCount();
+		}
+		return count;
 	}
 }
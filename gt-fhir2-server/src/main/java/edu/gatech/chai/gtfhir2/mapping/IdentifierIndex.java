@@ -0,0 +1,214 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.gatech.chai.omopv5.jpa.service.IService;
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * OMOP ids by identifier (source value, eg. personSourceValue), per resource
+ * type. Used to find out if a created resource is already in the database.
+ *
+ * Values are matched exactly, ignoring case. Found ids are kept until the
+ * resource type has a delete through this server. An update through this
+ * server moves the id from its previous value to the new one. Values that are not found
+ * are remembered for the negative TTL, after which rows loaded directly into
+ * the OMOP database (eg. ETL) are seen. Resources created through this server
+ * are added right away, so a later request with the same value finds them.
+ * A transaction bundle resolves all its values before anything is written,
+ * so OmopTransaction itself merges the patients of a bundle that share a
+ * value.
+ *
+ * Use {@link #resolveAll(String, IService, String, Collection)} for a whole
+ * transaction bundle. It looks up all the values that are not cached in one
+ * query. The lookups need the lower(...) expression indexes in README.md.
+ *
+ * @author mc142
+ *
+ */
+public class IdentifierIndex {
+	public static final int DEFAULT_MAX_SIZE = 100000;
+	public static final long DEFAULT_NEGATIVE_TTL = 60000L;
+
+	private static final IdentifierIndex instance = new IdentifierIndex();
+
+	// resource type -> lower(value) -> entry
+	private final Map<String, LruCache<String, Entry>> caches = new ConcurrentHashMap<String, LruCache<String, Entry>>();
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+	private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+	private static class Entry {
+		// null if not found.
+		final Long id;
+		final long expiresAt;
+
+		Entry(Long id, long expiresAt) {
+			this.id = id;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private IdentifierIndex() {
+	}
+
+	public static IdentifierIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param maxSize most identifiers kept per resource type. 0 disables the
+	 *                cache.
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		for (LruCache<String, Entry> cache : caches.values()) {
+			cache.setMaxSize(maxSize);
+		}
+	}
+
+	/**
+	 * @param negativeTtl milliseconds to remember that a value is not in the
+	 *                    database.
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @return OMOP id of the source value, or null if there is none.
+	 */
+	public Long resolve(String resourceType, IService<?> service, String column, String value) {
+		if (value == null)
+			return null;
+
+		List<String> values = new ArrayList<String>(1);
+		values.add(value);
+		return resolveAll(resourceType, service, column, values).get(value.toLowerCase());
+	}
+
+	/**
+	 * @return lower(value) -> OMOP id of the source values that are in the
+	 *         database.
+	 */
+	public Map<String, Long> resolveAll(String resourceType, IService<?> service, String column,
+			Collection<String> values) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		LruCache<String, Entry> cache = getCache(resourceType);
+		long now = System.currentTimeMillis();
+
+		List<String> missing = new ArrayList<String>();
+		for (String value : values) {
+			if (value == null)
+				continue;
+
+			String key = value.toLowerCase();
+			Entry entry = cache.get(key);
+			if (entry == null || entry.expiresAt < now) {
+				missing.add(key);
+			} else if (entry.id != null) {
+				retVal.put(key, entry.id);
+			}
+		}
+		if (missing.isEmpty())
+			return retVal;
+
+		Map<String, Long> found = service.findIdsBySourceValues(column, missing);
+		long negativeExpiresAt = now + negativeTtl;
+		for (String key : missing) {
+			Long id = found.get(key);
+			if (id == null) {
+				cache.put(key, new Entry(null, negativeExpiresAt));
+			} else {
+				cache.put(key, new Entry(id, Long.MAX_VALUE));
+				retVal.put(key, id);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Call this after a resource with the source value is created.
+	 */
+	public void put(String resourceType, String value, Long id) {
+		if (value == null || id == null)
+			return;
+
+		getCache(resourceType).put(value.toLowerCase(), new Entry(id, Long.MAX_VALUE));
+	}
+
+	/**
+	 * Call this after a resource is updated, instead of
+	 * {@link #put(String, String, Long)}. Other values cached for the id are
+	 * removed, so that a later create with the previous value does not find
+	 * the updated resource.
+	 *
+	 * @param value source value after the update. null if it has none.
+	 */
+	public void update(String resourceType, String value, Long id) {
+		if (id == null)
+			return;
+
+		LruCache<String, Entry> cache = getCache(resourceType);
+		String key = value == null ? null : value.toLowerCase();
+		if (key != null) {
+			Entry entry = cache.get(key);
+			if (entry != null && id.equals(entry.id)) {
+				// Same value as before. No other value can have the id.
+				return;
+			}
+		}
+
+		for (Map.Entry<String, Entry> cached : cache.asMap().entrySet()) {
+			if (id.equals(cached.getValue().id) && !cached.getKey().equals(key)) {
+				cache.remove(cached.getKey());
+			}
+		}
+		put(resourceType, value, id);
+	}
+
+	/**
+	 * Call this after a resource of the type is deleted. The cached ids may
+	 * point to it.
+	 */
+	public void invalidate(String resourceType) {
+		LruCache<String, Entry> cache = caches.get(resourceType);
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	private LruCache<String, Entry> getCache(String resourceType) {
+		LruCache<String, Entry> cache = caches.get(resourceType);
+		if (cache == null) {
+			synchronized (caches) {
+				cache = caches.get(resourceType);
+				if (cache == null) {
+					cache = new LruCache<String, Entry>(maxSize);
+					caches.put(resourceType, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	public long getHitCount() {
+		long count = 0L;
+		for (LruCache<String, Entry> cache : caches.values()) {
+			count += cache.getHitCount();
+		}
+		return count;
+	}
+
+	public long getMissCount() {
+		long count = 0L;
+		for (LruCache<String, Entry> cache : caches.values()) {
+			count += cache.getMissCount();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,434 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.omopv5.jpa.service.ConceptService;
+import edu.gatech.chai.omopv5.jpa.service.FResourcesService;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * Resources rendered by the Omop* mappers and stored as JSON in f_resources.
+ * Read gets the stored JSON with one indexed lookup instead of loading and
+ * mapping the entity graph. Changes made directly in the OMOP tables show up
+ * at the next full render. So, stored JSON older than the refresh interval
+ * (plus the check interval) has missed a render and is not read. Search
+ * without parameters (and without _include/_revinclude) can page through
+ * the stored JSON once the type has been rendered in full, while no row has
+ * been added to the OMOP table since (by max(id)). The stored JSON is keyed
+ * by FHIR id, so it is not searched when FHIR ids are mapped
+ * ({@link IdMapping#isEnabled()}). Those pages would not be in OMOP id order.
+ *
+ * A background job renders all rows of the materialized types at start. It
+ * renders them again when any vocabulary_version changes, every refresh
+ * interval, and when a search finds rows that were added by ETL loads. A
+ * failed render is tried again at the next check. Writes through this server
+ * render the resource again right away. Resources missing from the store are
+ * rendered on read and stored.
+ *
+ * Stored JSON is parsed back to a resource so that _format, _summary and the
+ * interceptors keep working.
+ *
+ * @author mc142
+ *
+ */
+public class MaterializedResourceStore {
+	private static final Logger logger = LoggerFactory.getLogger(MaterializedResourceStore.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_CHECK_INTERVAL = 600000L;
+
+	private static final MaterializedResourceStore instance = new MaterializedResourceStore();
+
+	private FhirContext fhirContext;
+	private FResourcesService resourcesService;
+	private ConceptService conceptService;
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+	private volatile long refreshInterval = 0L;
+
+	private final Map<String, BaseOmopResource<?, ?, ?>> mappers = new ConcurrentHashMap<String, BaseOmopResource<?, ?, ?>>();
+	// Materialized types. None by default.
+	private volatile List<String> resourceTypes = Collections.emptyList();
+	// Types whose rows are all in the store. Only these are searched.
+	private final Set<String> completeTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Largest OMOP id of the type that is in the store.
+	private final Map<String, Long> storedMaxIds = new ConcurrentHashMap<String, Long>();
+	// Types whose render has been asked for by a search.
+	private final Set<String> pendingRenders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile String vocabularyVersion;
+	private volatile long renderedAt = 0L;
+	private ScheduledExecutorService renderer;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong renderedCount = new AtomicLong();
+
+	private MaterializedResourceStore() {
+	}
+
+	public static MaterializedResourceStore getInstance() {
+		return instance;
+	}
+
+	public void setFhirContext(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	public void setResourcesService(FResourcesService resourcesService) {
+		this.resourcesService = resourcesService;
+	}
+
+	public void setConceptService(ConceptService conceptService) {
+		this.conceptService = conceptService;
+	}
+
+	/**
+	 * @param batchSize rows per fetch and per write of the background render.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param checkInterval milliseconds between vocabulary version checks.
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * @param refreshInterval milliseconds between full renders. 0 to render
+	 *                        again only on vocabulary changes.
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	public void addSupportedMapper(String resourceType, BaseOmopResource<?, ?, ?> mapper) {
+		mappers.put(resourceType, mapper);
+	}
+
+	/**
+	 * Resource types to store. Types without a supported mapper are ignored.
+	 */
+	public void setResourceTypes(List<String> resourceTypes) {
+		List<String> supportedTypes = new ArrayList<String>();
+		for (String resourceType : resourceTypes) {
+			if (mappers.containsKey(resourceType)) {
+				supportedTypes.add(resourceType);
+			} else {
+				logger.warn(resourceType + " cannot be materialized");
+			}
+		}
+		this.resourceTypes = Collections.unmodifiableList(supportedTypes);
+	}
+
+	public boolean isEnabled(String resourceType) {
+		return resourcesService != null && resourceType != null && resourceTypes.contains(resourceType);
+	}
+
+	/**
+	 * True when all the rows of the type have been rendered.
+	 */
+	public boolean isComplete(String resourceType) {
+		return resourceType != null && completeTypes.contains(resourceType);
+	}
+
+	/**
+	 * Starts the background render. The first render starts now.
+	 */
+	public synchronized void start() {
+		if (renderer != null || resourceTypes.isEmpty() || resourcesService == null)
+			return;
+
+		renderer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "resource-materializer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		renderer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					renderIfChanged();
+				} catch (Exception e) {
+					logger.error("Resource materialization failed", e);
+				}
+			}
+		}, 0L, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (renderer != null) {
+			renderer.shutdownNow();
+			renderer = null;
+		}
+	}
+
+	private void renderIfChanged() {
+		String version = conceptService == null ? "" : conceptService.getVocabularyVersion();
+		boolean vocabularyChanged = vocabularyVersion != null && !vocabularyVersion.equals(version);
+		boolean due = refreshInterval > 0L && renderedAt + refreshInterval < System.currentTimeMillis();
+		if (vocabularyVersion != null && !vocabularyChanged && !due)
+			return;
+
+		if (vocabularyChanged) {
+			logger.info("Vocabulary version changed. Rendering the stored resources again.");
+		}
+		boolean rendered = true;
+		for (String resourceType : resourceTypes) {
+			rendered &= renderType(resourceType);
+		}
+		if (!rendered) {
+			// Try again at the next check.
+			return;
+		}
+		vocabularyVersion = version;
+		renderedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Renders the type in background unless a render of it is waiting.
+	 */
+	private synchronized void requestRender(final String resourceType) {
+		if (renderer == null || !pendingRenders.add(resourceType))
+			return;
+
+		renderer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					renderType(resourceType);
+				} finally {
+					pendingRenders.remove(resourceType);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Renders all the rows of the type and removes the stored resources whose
+	 * rows are gone.
+	 * 
+	 * @return false if the render failed.
+	 */
+	public boolean renderType(final String resourceType) {
+		BaseOmopResource<?, ?, ?> mapper = mappers.get(resourceType);
+		if (mapper == null)
+			return true;
+
+		long start = System.currentTimeMillis();
+		final Date renderStart = new Date(start);
+		final IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		try {
+			// Taken first. Rows added during the render are rendered again.
+			Long maxId = mapper.getMyOmopService().getMaxId();
+			long count = mapper.scrollWithParams(new ArrayList<ParameterWrapper>(), batchSize,
+					new ResourceBatchHandler() {
+						@Override
+						public void handle(List<IBaseResource> resources) throws Exception {
+							Map<Long, String> fhirData = encode(parser, resources);
+							resourcesService.save(resourceType, fhirData, true, renderStart);
+							renderedCount.addAndGet(fhirData.size());
+						}
+					});
+			int removed = resourcesService.removeRenderedBefore(resourceType, renderStart);
+			storedMaxIds.put(resourceType, maxId == null ? Long.MIN_VALUE : maxId);
+			completeTypes.add(resourceType);
+			logger.info("Materialized " + count + " " + resourceType + " resources in "
+					+ (System.currentTimeMillis() - start) + "ms. " + removed + " removed.");
+			return true;
+		} catch (Exception e) {
+			logger.error("Failed to materialize " + resourceType, e);
+			return false;
+		}
+	}
+
+	/**
+	 * True if no row has been added to the OMOP table since the type was
+	 * rendered, other than through this server. If one has, the type is
+	 * rendered again in background.
+	 */
+	private boolean isCurrent(String resourceType) {
+		Long storedMaxId = storedMaxIds.get(resourceType);
+		if (storedMaxId == null)
+			return false;
+
+		Long maxId = mappers.get(resourceType).getMyOmopService().getMaxId();
+		if (maxId == null || maxId <= storedMaxId)
+			return true;
+
+		requestRender(resourceType);
+		return false;
+	}
+
+	private void storedUpTo(String resourceType, Long omopId) {
+		Long storedMaxId = storedMaxIds.get(resourceType);
+		while (storedMaxId != null && omopId > storedMaxId) {
+			if (storedMaxIds.replace(resourceType, storedMaxId, omopId))
+				return;
+			storedMaxId = storedMaxIds.get(resourceType);
+		}
+	}
+
+	private static Map<Long, String> encode(IParser parser, List<IBaseResource> resources) {
+		Map<Long, String> fhirData = new LinkedHashMap<Long, String>();
+		for (IBaseResource resource : resources) {
+			// Only the matched resources. No includes are asked for.
+			if (resource == null || !resource.getIdElement().isIdPartValidLong())
+				continue;
+			fhirData.put(resource.getIdElement().getIdPartAsLong(), parser.encodeResourceToString(resource));
+		}
+		return fhirData;
+	}
+
+	/**
+	 * Oldest JSON that is read. Every row is rendered again at least every
+	 * refresh interval, once the check after it is due has started. null if
+	 * the type is rendered again only on vocabulary changes.
+	 */
+	Date getRenderedAfter(long now) {
+		if (refreshInterval <= 0L)
+			return null;
+		return new Date(now - refreshInterval - checkInterval);
+	}
+
+	/**
+	 * Returns the stored resource, or null if it is not stored.
+	 */
+	public Resource read(String resourceType, Long fhirId) {
+		if (!isEnabled(resourceType))
+			return null;
+
+		Date renderedAfter = getRenderedAfter(System.currentTimeMillis());
+		String fhirData = resourcesService.findFhirData(resourceType, fhirId, renderedAfter);
+		if (fhirData == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return (Resource) fhirContext.newJsonParser().parseResource(fhirData);
+	}
+
+	/**
+	 * Stores a resource rendered on read. It is not in the search results
+	 * unless the next full render finds it.
+	 */
+	public void save(String resourceType, Long fhirId, Resource resource) {
+		if (!isEnabled(resourceType) || fhirId == null)
+			return;
+
+		try {
+			String fhirData = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(resource);
+			resourcesService.save(resourceType, Collections.singletonMap(fhirId, fhirData), false, new Date());
+		} catch (Exception e) {
+			// Another request may have stored it first.
+			logger.warn("Failed to store " + resourceType + "/" + fhirId + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Renders the resource again after it was created, updated or deleted.
+	 * The resource is rendered as the search does, so that the mapper's search
+	 * filters decide whether it is searchable.
+	 */
+	public void refresh(String resourceType, Long fhirId) {
+		if (!isEnabled(resourceType) || fhirId == null)
+			return;
+
+		BaseOmopResource<?, ?, ?> mapper = mappers.get(resourceType);
+
+		Long omopId = IdMapping.getOMOPfromFHIR(fhirId, resourceType);
+		ParameterWrapper idParam = new ParameterWrapper("Long", Arrays.asList("id"), Arrays.asList("="),
+				Arrays.asList(String.valueOf(omopId)), "or");
+		final IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		final Map<Long, String> fhirData = new LinkedHashMap<Long, String>();
+		try {
+			mapper.scrollWithParams(Arrays.asList(idParam), 1, new ResourceBatchHandler() {
+				@Override
+				public void handle(List<IBaseResource> resources) throws Exception {
+					fhirData.putAll(encode(parser, resources));
+				}
+			});
+
+			if (fhirData.isEmpty()) {
+				// Deleted, or not searchable. Read stores it again if it is there.
+				resourcesService.remove(resourceType, fhirId);
+			} else {
+				resourcesService.save(resourceType, fhirData, true, new Date());
+				storedUpTo(resourceType, omopId);
+			}
+		} catch (Exception e) {
+			logger.warn("Failed to render " + resourceType + "/" + fhirId + " again: " + e.getMessage());
+			// Stale JSON must not be served.
+			try {
+				resourcesService.remove(resourceType, fhirId);
+			} catch (Exception removeException) {
+				logger.error("Stored " + resourceType + "/" + fhirId + " may be stale", removeException);
+			}
+		}
+	}
+
+	/**
+	 * True if a search without parameters can page through the stored JSON.
+	 * A search that starts on the store stays on it, so that no row is
+	 * skipped or repeated between its pages.
+	 */
+	public boolean isSearchable(String resourceType) {
+		return isEnabled(resourceType) && !IdMapping.isEnabled() && isComplete(resourceType)
+				&& isCurrent(resourceType);
+	}
+
+	/**
+	 * Adds a page of the stored resources to the list. Pages are in id order
+	 * as the pages from the OMOP table.
+	 *
+	 * @param afterId keyset cursor. null to page by fromIndex.
+	 */
+	public void searchPage(String resourceType, Long afterId, int fromIndex, int count,
+			List<IBaseResource> listResources) {
+		if (!isEnabled(resourceType))
+			return;
+
+		IParser parser = fhirContext.newJsonParser();
+		for (String fhirData : resourcesService.searchFhirData(resourceType, afterId, fromIndex, count)) {
+			listResources.add(parser.parseResource(fhirData));
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getRenderedCount() {
+		return renderedCount.get();
+	}
+}
@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurrence, ConditionOccurrenceService> implements IResourceMapping<Condition, ConditionOccurrence> {
 
@@ -59,6 +61,13 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
         return omopCondition;
     }
 
+    @Override
+    protected void addReferencedIds(ConditionOccurrence conditionOccurrence, Map<String, Set<Long>> referencedIds) {
+        addReferencedId(referencedIds, PatientResourceProvider.getType(), conditionOccurrence.getFPerson());
+        addReferencedId(referencedIds, PractitionerResourceProvider.getType(), conditionOccurrence.getProvider());
+        addReferencedId(referencedIds, EncounterResourceProvider.getType(), conditionOccurrence.getVisitOccurrence());
+    }
+
     @Override
     public Condition constructFHIR(Long fhirId, ConditionOccurrence conditionOccurrence){
         Condition condition = new Condition();
@@ -133,7 +142,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
             case Condition.SP_ASSERTER:
                 //Condition.asserter -> Omop Provider
                 ReferenceParam patientReference = ((ReferenceParam) value);
-                String patientId = String.valueOf(patientReference.getIdPartAsLong());
+                String patientId = String.valueOf(IdMapping.getOMOPfromFHIR(patientReference.getIdPartAsLong(),
+                		PractitionerResourceProvider.getType()));
 
                 paramWrapper.setParameterType("Long");
                 paramWrapper.setParameters(Arrays.asList("provider.id"));
@@ -153,6 +163,11 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
             case Condition.SP_CLINICAL_STATUS:
                 break;
             case Condition.SP_CODE:
+    			if (isConceptSetSearch((TokenParam) value)) {
+    				setConceptSetParameter(paramWrapper, "conceptId.id", (TokenParam) value);
+    				mapList.add(paramWrapper);
+    				break;
+    			}
     			String system = ((TokenParam) value).getSystem();
     			String code = ((TokenParam) value).getValue();
 //    			System.out.println("\n\n\n\n\nSystem:"+system+"\n\ncode:"+code+"\n\n\n\n\n");
@@ -168,7 +183,7 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
     				}
     			} 
 
-    			paramWrapper.setParameterType("String");
+    			paramWrapper.setParameterType("Token");
     			if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
     				paramWrapper.setParameters(Arrays.asList("conceptId.conceptCode"));
     				paramWrapper.setOperators(Arrays.asList("="));
@@ -193,7 +208,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
             case Condition.SP_CONTEXT:
                 //Condition.context -> Omop VisitOccurrence
                 ReferenceParam visitReference = (ReferenceParam)value;
-                String visitId = String.valueOf(visitReference.getIdPartAsLong());
+                String visitId = String.valueOf(IdMapping.getOMOPfromFHIR(visitReference.getIdPartAsLong(),
+                		EncounterResourceProvider.getType()));
                 paramWrapper.setParameterType("Long");
                 paramWrapper.setParameters(Arrays.asList("visitOccurrence.id"));
                 paramWrapper.setOperators(Arrays.asList("="));
@@ -238,7 +254,7 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
     			mapList.add(paramWrapper);
     			break;
     		case Procedure.SP_RES_ID:
-    			String conditionId = ((TokenParam) value).getValue();
+    			String conditionId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
     			paramWrapper.setParameterType("Long");
     			paramWrapper.setParameters(Arrays.asList("id"));
     			paramWrapper.setOperators(Arrays.asList("="));
@@ -318,7 +334,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
         //Condition.subject
         FPerson fPerson = conditionOccurrence.getFPerson();
         //set the person
-        Reference subjectRef = new Reference(new IdType(PatientResourceProvider.getType(), fPerson.getId()));
+        Reference subjectRef = new Reference(new IdType(PatientResourceProvider.getType(),
+        		IdMapping.getFHIRfromOMOP(fPerson.getId(), PatientResourceProvider.getType())));
         subjectRef.setDisplay(fPerson.getNameAsSingleString());
         condition.setSubject(subjectRef);
     }
@@ -362,7 +379,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
         //Condition.asserter
         Provider provider = conditionOccurrence.getProvider();
         if( provider != null ) {
-            Reference providerRef = new Reference(new IdType(PractitionerResourceProvider.getType(), provider.getId()));
+            Reference providerRef = new Reference(new IdType(PractitionerResourceProvider.getType(),
+            		IdMapping.getFHIRfromOMOP(provider.getId(), PractitionerResourceProvider.getType())));
             providerRef.setDisplay(provider.getProviderName());
             condition.setAsserter(providerRef);
         }
@@ -372,7 +390,8 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
         //Condition.context
         VisitOccurrence visitOccurrence = conditionOccurrence.getVisitOccurrence();
         if( visitOccurrence != null ) {
-            Reference visitRef = new Reference(new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId()));
+            Reference visitRef = new Reference(new IdType(EncounterResourceProvider.getType(),
+            		IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType())));
             condition.setContext(visitRef);
         }
     }
@@ -3,6 +3,8 @@ package edu.gatech.chai.gtfhir2.mapping;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
@@ -53,13 +55,19 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 		return omopDevice;
 	}
 	
+	@Override
+	protected void addReferencedIds(DeviceExposure entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+	}
+
 	@Override
 	public MyDevice constructFHIR(Long fhirId, DeviceExposure entity) {
 		MyDevice device = new MyDevice();
 		device.setId(new IdType(fhirId));
 		
 		// Set patient information.
-		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(),
+				IdMapping.getFHIRfromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType())));
 		String singleName = entity.getFPerson().getNameAsSingleString();
 		if (singleName != null && !singleName.isEmpty()) {
 			patientReference.setDisplay(singleName);
@@ -161,7 +169,7 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 
 		switch (parameter) {
 		case Device.SP_RES_ID:
-			String encounterId = ((TokenParam) value).getValue();
+			String encounterId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -190,9 +198,9 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 					break;
 				} else {
 					// no system but code.
-					paramWrapper.setParameterType("String");
+					paramWrapper.setParameterType("Token");
 					paramWrapper.setParameters(Arrays.asList("deviceConcept.conceptCode"));
-					paramWrapper.setOperators(Arrays.asList("like"));
+					paramWrapper.setOperators(Arrays.asList("="));
 					paramWrapper.setValues(Arrays.asList(code));
 					paramWrapper.setRelationship("or");
 					mapList.add(paramWrapper);
@@ -200,18 +208,18 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 			} else {
 				if (code == null || code.isEmpty()) {
 					// yes system but no code.
-					paramWrapper.setParameterType("String");
+					paramWrapper.setParameterType("Token");
 					paramWrapper.setParameters(Arrays.asList("deviceConcept.vocabulary.id"));
-					paramWrapper.setOperators(Arrays.asList("like"));
+					paramWrapper.setOperators(Arrays.asList("="));
 					paramWrapper.setValues(Arrays.asList(omopVocabulary));
 					paramWrapper.setRelationship("or");
 					mapList.add(paramWrapper);
 				} else {
 					// We have both system and code.
-					paramWrapper.setParameterType("String");
+					paramWrapper.setParameterType("Token");
 					paramWrapper.setParameters(
 							Arrays.asList("deviceConcept.vocabulary.id", "deviceConcept.conceptCode"));
-					paramWrapper.setOperators(Arrays.asList("like", "like"));
+					paramWrapper.setOperators(Arrays.asList("=", "="));
 					paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 					paramWrapper.setRelationship("and");
 					mapList.add(paramWrapper);
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
@@ -24,6 +26,7 @@ import org.springframework.web.context.WebApplicationContext;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.gtfhir2.model.MyDevice;
 import edu.gatech.chai.gtfhir2.model.MyDeviceUseStatement;
+import edu.gatech.chai.gtfhir2.provider.DeviceResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.DeviceUseStatementResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PatientResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PractitionerResourceProvider;
@@ -68,10 +71,11 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 		if (!includes.isEmpty()) {
 			if (includes.contains("DeviceUseStatement:device")) {
 				if (deviceUseStatement.hasDevice()) {
+					// The device comes from the same device_exposure row, but its
+					// FHIR id is mapped under the Device type.
 					Reference deviceReference = deviceUseStatement.getDevice();
-					IIdType deviceReferenceId = deviceReference.getReferenceElement();
-					Long deviceReferenceFhirId = deviceReferenceId.getIdPartAsLong();
-					MyDevice device = OmopDevice.getInstance().constructFHIR(deviceReferenceFhirId, entity);
+					Long deviceFhirId = IdMapping.getFHIRfromOMOP(entity.getId(), DeviceResourceProvider.getType());
+					MyDevice device = OmopDevice.getInstance().constructFHIR(deviceFhirId, entity);
 					deviceReference.setResource(device);
 				}
 			}
@@ -80,6 +84,12 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 		return deviceUseStatement;
 	}
 
+	@Override
+	protected void addReferencedIds(DeviceExposure entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), entity.getProvider());
+	}
+
 	@Override
 	public MyDeviceUseStatement constructFHIR(Long fhirId, DeviceExposure entity) {
 		MyDeviceUseStatement myDeviceUseStatement = new MyDeviceUseStatement();
@@ -99,7 +109,8 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 //		myDeviceUseStatement.setDevice(new Reference(new IdType(DeviceResourceProvider.getType(), fhirId)));
 		
 		// set subject, which is a patient.
-		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(),
+				IdMapping.getFHIRfromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType())));
 		String singleName = entity.getFPerson().getNameAsSingleString();
 		if (singleName != null && !singleName.isEmpty()) {
 			patientReference.setDisplay(singleName);
@@ -159,7 +170,7 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 		
 		switch (parameter) {
 		case DeviceUseStatement.SP_RES_ID:
-			String deviceUseStatementId = ((TokenParam) value).getValue();
+			String deviceUseStatementId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -5,7 +5,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.Attachment;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -19,6 +22,7 @@ import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
@@ -115,7 +119,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 
 		switch (parameter) {
 		case DocumentReference.SP_RES_ID:
-			String documentReferenceId = ((TokenParam) value).getValue();
+			String documentReferenceId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -213,7 +217,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 				}
 			} 
 			
-			paramWrapper.setParameterType("String");
+			paramWrapper.setParameterType("Token");
 			if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
 				paramWrapper.setParameters(Arrays.asList("typeConcept.conceptCode"));
 				paramWrapper.setOperators(Arrays.asList("="));
@@ -431,6 +435,13 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 		return documentReference;
 	}
 
+	@Override
+	protected void addReferencedIds(Note entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), entity.getProvider());
+		addReferencedId(referencedIds, EncounterResourceProvider.getType(), entity.getVisitOccurrence());
+	}
+
 	@Override
 	public DocumentReference constructFHIR(Long fhirId, Note entity) {
 		MyDocumentReference documentReference = new MyDocumentReference();
@@ -531,4 +542,104 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 		
 		return documentReference;
 	}
-}
\ No newline at end of file
+
+	/***
+	 * searchContent: notes whose text matches, best match first. Notes that
+	 * do not match paramList are dropped.
+	 * 
+	 * @return OMOP note ids.
+	 */
+	public List<Long> searchContent(String text, List<ParameterWrapper> paramList, int maxResults) {
+		List<Long> noteIds = getMyOmopService().searchNoteText(text, maxResults);
+		return getMyOmopService().filterIds(noteIds, paramList);
+	}
+
+	/***
+	 * idListParameter: id = any of the ids. A search with only this parameter
+	 * returns the resources in the order of the ids. So, ranked results keep
+	 * their rank when the search is paged (or stored and paged later).
+	 */
+	public static ParameterWrapper idListParameter(List<Long> ids) {
+		List<String> operators = new ArrayList<String>(ids.size());
+		List<String> values = new ArrayList<String>(ids.size());
+		for (Long id : ids) {
+			operators.add("=");
+			values.add(String.valueOf(id));
+		}
+
+		return new ParameterWrapper("Long", Arrays.asList("id"), operators, values, "or");
+	}
+
+	private static List<Long> getIdList(List<ParameterWrapper> paramList) {
+		if (paramList.size() != 1)
+			return null;
+
+		ParameterWrapper param = paramList.get(0);
+		if (!"Long".equals(param.getParameterType()) || !Arrays.asList("id").equals(param.getParameters())
+				|| !"or".equalsIgnoreCase(param.getRelationship()) || param.getValues().size() <= 1)
+			return null;
+
+		List<Long> ids = new ArrayList<Long>(param.getValues().size());
+		for (int i = 0; i < param.getValues().size(); i++) {
+			if (!"=".equals(param.getOperators().get(i)))
+				return null;
+			ids.add(Long.valueOf(param.getValues().get(i)));
+		}
+		return ids;
+	}
+
+	@Override
+	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
+			List<IBaseResource> listResources, List<String> includes) {
+		List<Long> orderedIds = getIdList(mapList);
+		if (orderedIds == null) {
+			super.searchWithParams(fromIndex, toIndex, mapList, listResources, includes);
+			return;
+		}
+
+		if (fromIndex >= orderedIds.size())
+			return;
+		searchRankedPage(orderedIds.subList(fromIndex, Math.min(toIndex, orderedIds.size())), listResources,
+				includes);
+	}
+
+	/***
+	 * searchAfterId: ranked results are not in id order. The page after
+	 * lastId starts after it in the ranked list.
+	 */
+	@Override
+	public void searchAfterId(Long lastId, int count, List<ParameterWrapper> mapList,
+			List<IBaseResource> listResources, List<String> includes) {
+		List<Long> orderedIds = getIdList(mapList);
+		if (orderedIds == null) {
+			super.searchAfterId(lastId, count, mapList, listResources, includes);
+			return;
+		}
+
+		int fromIndex = orderedIds.indexOf(lastId) + 1;
+		if (fromIndex == 0 || fromIndex >= orderedIds.size())
+			return;
+		searchRankedPage(orderedIds.subList(fromIndex, Math.min(fromIndex + count, orderedIds.size())),
+				listResources, includes);
+	}
+
+	private void searchRankedPage(List<Long> pageIds, List<IBaseResource> listResources, List<String> includes) {
+		List<Note> notes = getMyOmopService().searchWithParams(0, pageIds.size(),
+				Arrays.asList(idListParameter(pageIds)));
+
+		Map<Long, Note> noteMap = new HashMap<Long, Note>();
+		for (Note note : notes) {
+			noteMap.put(note.getId(), note);
+		}
+		List<Note> orderedNotes = new ArrayList<Note>(notes.size());
+		for (Long id : pageIds) {
+			Note note = noteMap.get(id);
+			// Deleted after the search.
+			if (note != null) {
+				orderedNotes.add(note);
+			}
+		}
+
+		constructResources(orderedNotes, listResources, includes);
+	}
+}
@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.Encounter;
@@ -67,6 +69,13 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 		return omopEncounter;
 	}
 
+	@Override
+	protected void addReferencedIds(VisitOccurrence visitOccurrence, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), visitOccurrence.getFPerson());
+		addReferencedId(referencedIds, OrganizationResourceProvider.getType(), visitOccurrence.getCareSite());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), visitOccurrence.getProvider());
+	}
+
 	@Override
 	public Encounter constructFHIR(Long fhirId, VisitOccurrence visitOccurrence) {
 		Encounter encounter = new Encounter();
@@ -121,7 +130,8 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 
 		// set Patient Reference
 		Reference patientReference = new Reference(
-				new IdType(PatientResourceProvider.getType(), visitOccurrence.getFPerson().getId()));
+				new IdType(PatientResourceProvider.getType(),
+					IdMapping.getFHIRfromOMOP(visitOccurrence.getFPerson().getId(), PatientResourceProvider.getType())));
 		patientReference.setDisplay(visitOccurrence.getFPerson().getNameAsSingleString());
 		encounter.setSubject(patientReference);
 
@@ -203,7 +213,7 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 
 		switch (parameter) {
 		case Encounter.SP_RES_ID:
-			String encounterId = ((TokenParam) value).getValue();
+			String encounterId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -3,6 +3,7 @@ package edu.gatech.chai.gtfhir2.mapping;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -24,6 +25,9 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		implements IResourceMapping<Medication, Concept> {
 
 	private static OmopMedication omopMedication = new OmopMedication();
+
+	// Ingredients of the drugs in the page being constructed. See prefetch().
+	private final ThreadLocal<Map<Long, List<Concept>>> pagedIngredients = new ThreadLocal<Map<Long, List<Concept>>>();
 	
 	public OmopMedication(WebApplicationContext context) {
 		super(context, Concept.class, ConceptService.class, MedicationResourceProvider.getType());
@@ -66,7 +70,7 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		medication.setCode(medicationCodeableConcept);
 
 		// See if we can add ingredient version of this medication.
-		List<Concept> ingredients = getMyOmopService().getIngredient(entity);
+		List<Concept> ingredients = findIngredients(entity);
 		if (ingredients.size() > 0) {
 			CodeableConcept ingredientCodeableConcept;
 			try {
@@ -87,6 +91,32 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		return medication;
 	}
 	
+	private List<Concept> findIngredients(Concept drug) {
+		Map<Long, List<Concept>> ingredients = pagedIngredients.get();
+		if (ingredients != null) {
+			List<Concept> retv = ingredients.get(drug.getId());
+			if (retv == null) {
+				return new ArrayList<Concept>();
+			}
+			return retv;
+		}
+
+		return getMyOmopService().getIngredient(drug);
+	}
+
+	/***
+	 * Resolves ingredients of all the drugs in the page at once.
+	 */
+	@Override
+	protected void prefetch(List<Concept> entities) {
+		pagedIngredients.set(getMyOmopService().getIngredients(entities));
+	}
+
+	@Override
+	protected void releasePrefetch() {
+		pagedIngredients.remove();
+	}
+
 	@Override
 	public List<ParameterWrapper> mapParameter(String parameter, Object value, boolean or) {
 		List<ParameterWrapper> mapList = new ArrayList<ParameterWrapper>();
@@ -96,7 +126,7 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 
         switch (parameter) {
 		case Medication.SP_RES_ID:
-			String medicationId = ((TokenParam) value).getValue();
+			String medicationId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -120,18 +150,18 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 				}
 			} 
 
-			paramWrapper.setParameterType("String");
+			paramWrapper.setParameterType("Token");
 			if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
 				paramWrapper.setParameters(Arrays.asList("conceptCode"));
-				paramWrapper.setOperators(Arrays.asList("like"));
+				paramWrapper.setOperators(Arrays.asList("="));
 				paramWrapper.setValues(Arrays.asList(code));
 			} else if (!"None".equals(omopVocabulary) && (code == null || code.isEmpty())) {
 				paramWrapper.setParameters(Arrays.asList("vocabulary.id"));
-				paramWrapper.setOperators(Arrays.asList("like"));
+				paramWrapper.setOperators(Arrays.asList("="));
 				paramWrapper.setValues(Arrays.asList(omopVocabulary));				
 			} else {
 				paramWrapper.setParameters(Arrays.asList("vocabulary.id", "conceptCode"));
-				paramWrapper.setOperators(Arrays.asList("like","like"));
+				paramWrapper.setOperators(Arrays.asList("=","="));
 				paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 			}
 			paramWrapper.setRelationship("and");
@@ -158,6 +188,13 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		return getSize(paramList);
 	}
 
+	@Override
+	public Long getEstimatedSize() {
+		// Concept table has all the domains. Estimate of the table is not
+		// the number of medications.
+		return null;
+	}
+
 	@Override
 	public Long getSize(List<ParameterWrapper> paramList) {
 		paramList.add(filterParam);
@@ -175,6 +212,11 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		searchWithParams (fromIndex, toIndex, mapList, listResources, includes);
 	}
 
+	@Override
+	protected void addSearchFilters(List<ParameterWrapper> paramList) {
+		paramList.add(filterParam);
+	}
+
 	@Override
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
 			List<IBaseResource> listResources, List<String> includes) {
@@ -182,17 +224,7 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 
 		List<Concept> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList);
 
-		for (Concept entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			Medication fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);			
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-
-		}
+		constructResources(entities, listResources, includes);
 	}
 
 	@Override
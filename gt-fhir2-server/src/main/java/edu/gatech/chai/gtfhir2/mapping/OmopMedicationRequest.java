@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Dosage;
@@ -119,6 +121,13 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		return IdMapping.getFHIRfromOMOP(retOmopId, MedicationStatementResourceProvider.getType());
 	}
 
+	@Override
+	protected void addReferencedIds(DrugExposure entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), entity.getProvider());
+		addReferencedId(referencedIds, EncounterResourceProvider.getType(), entity.getVisitOccurrence());
+	}
+
 	@Override
 	public MedicationRequest constructFHIR(Long fhirId, DrugExposure entity) {
 		MedicationRequest medicationRequest = new MedicationRequest();
@@ -126,7 +135,8 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		medicationRequest.setId(new IdType(fhirId));
 		
 		// Subject from FPerson
-		Reference patientRef = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientRef = new Reference(new IdType(PatientResourceProvider.getType(),
+				IdMapping.getFHIRfromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType())));
 		patientRef.setDisplay(entity.getFPerson().getNameAsSingleString());
 		medicationRequest.setSubject(patientRef);		
 		
@@ -255,7 +265,8 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		Provider provider = entity.getProvider();
 		if (provider != null) {
 			Reference recorderReference = 
-					new Reference(new IdType(PractitionerResourceProvider.getType(), provider.getId()));
+					new Reference(new IdType(PractitionerResourceProvider.getType(),
+							IdMapping.getFHIRfromOMOP(provider.getId(), PractitionerResourceProvider.getType())));
 			recorderReference.setDisplay(provider.getProviderName());
 			medicationRequest.setRecorder(recorderReference);
 		}
@@ -264,7 +275,8 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		VisitOccurrence visitOccurrence = entity.getVisitOccurrence();
 		if (visitOccurrence != null) {
 			Reference contextReference = 
-					new Reference(new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId()));
+					new Reference(new IdType(EncounterResourceProvider.getType(),
+							IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType())));
 			medicationRequest.setContext(contextReference);
 		}
 		
@@ -280,7 +292,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 
 		switch (parameter) {
 		case MedicationRequest.SP_RES_ID:
-			String medicationRequestId = ((TokenParam) value).getValue();
+			String medicationRequestId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -304,18 +316,18 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 				}
 			} 
 
-			paramWrapper.setParameterType("String");
+			paramWrapper.setParameterType("Token");
 			if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
 				paramWrapper.setParameters(Arrays.asList("drugConcept.conceptCode"));
-				paramWrapper.setOperators(Arrays.asList("like"));
+				paramWrapper.setOperators(Arrays.asList("="));
 				paramWrapper.setValues(Arrays.asList(code));
 			} else if (!"None".equals(omopVocabulary) && (code == null || code.isEmpty())) {
 				paramWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id"));
-				paramWrapper.setOperators(Arrays.asList("like"));
+				paramWrapper.setOperators(Arrays.asList("="));
 				paramWrapper.setValues(Arrays.asList(omopVocabulary));				
 			} else {
 				paramWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id", "drugConcept.conceptCode"));
-				paramWrapper.setOperators(Arrays.asList("like","like"));
+				paramWrapper.setOperators(Arrays.asList("=","="));
 				paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 			}
 			paramWrapper.setRelationship("and");
@@ -399,6 +411,13 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		return getSize(paramList);
 	}
 
+	@Override
+	public Long getEstimatedSize() {
+		// drug_exposure is shared with MedicationStatement. Estimate of the
+		// table is not the number of medication requests.
+		return null;
+	}
+
 	@Override
 	public Long getSize(List<ParameterWrapper> paramList) {
 		paramList.add(filterParam);
@@ -416,6 +435,11 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		searchWithParams (fromIndex, toIndex, paramList, listResources, includes);
 	}
 
+	@Override
+	protected void addSearchFilters(List<ParameterWrapper> paramList) {
+		paramList.add(filterParam);
+	}
+
 	@Override
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
 			List<IBaseResource> listResources, List<String> includes) {
@@ -423,17 +447,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 
 		List<DrugExposure> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList);
 
-		for (DrugExposure entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			MedicationRequest fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);			
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-
-		}
+		constructResources(entities, listResources, includes);
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.Annotation;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -23,8 +24,6 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.SimpleQuantity;
 import org.hl7.fhir.dstu3.model.Type;
-import org.hl7.fhir.dstu3.model.ValueSet.ConceptReferenceComponent;
-import org.hl7.fhir.dstu3.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
@@ -33,15 +32,12 @@ import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
-import ca.uhn.fhir.rest.param.TokenParamModifier;
 import edu.gatech.chai.gtfhir2.provider.EncounterResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.MedicationRequestResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.MedicationStatementResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PatientResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PractitionerResourceProvider;
 import edu.gatech.chai.gtfhir2.utilities.CodeableConceptUtil;
-import edu.gatech.chai.gtfhir2.utilities.TerminologyServiceClient;
-import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.entity.Concept;
 import edu.gatech.chai.omopv5.jpa.entity.DrugExposure;
 import edu.gatech.chai.omopv5.jpa.entity.FPerson;
@@ -134,6 +130,16 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 		return IdMapping.getFHIRfromOMOP(retOmopId, MedicationStatementResourceProvider.getType());
 	}
 
+	@Override
+	protected void addReferencedIds(DrugExposure entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), entity.getProvider());
+		addReferencedId(referencedIds, EncounterResourceProvider.getType(), entity.getVisitOccurrence());
+		if (entity.getDrugTypeConcept() != null
+				&& entity.getDrugTypeConcept().getId() == OmopMedicationRequest.MEDICATIONREQUEST_CONCEPT_TYPE_ID)
+			addReferencedId(referencedIds, MedicationRequestResourceProvider.getType(), entity);
+	}
+
 	@Override
 	public MedicationStatement constructFHIR(Long fhirId, DrugExposure entity) {
 		MedicationStatement medicationStatement = new MedicationStatement();
@@ -156,7 +162,7 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 		if (fPerson != null) {
 			Long omopFpersonId = fPerson.getId();
 			Long fhirPatientId = IdMapping.getFHIRfromOMOP(omopFpersonId,
-					MedicationStatementResourceProvider.getType());
+					PatientResourceProvider.getType());
 			Reference subjectReference = new Reference(new IdType(PatientResourceProvider.getType(), fhirPatientId));
 			String familyName = fPerson.getFamilyName();
 			String given1 = fPerson.getGivenName1();
@@ -374,7 +380,7 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 
 		switch (parameter) {
 		case MedicationStatement.SP_RES_ID:
-			String medicationStatementId = ((TokenParam) value).getValue();
+			String medicationStatementId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -391,70 +397,9 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 			if ((system == null || system.isEmpty()) && (code == null || code.isEmpty()))
 				break;
 
-			if (theCode.getModifier() != null && 
-					theCode.getModifier().compareTo(TokenParamModifier.IN) == 0) {
-				// code has URI for the valueset search.
-				TerminologyServiceClient terminologyService = TerminologyServiceClient.getInstance();
-				Map<String, List<ConceptSetComponent>> theIncExcl = terminologyService.getValueSetByUrl(code);
-				
-				List<ConceptSetComponent> includes = theIncExcl.get("include");				
-				List<String> values = new ArrayList<String>();
-				for (ConceptSetComponent include : includes) {
-					// We need to loop 
-					ParameterWrapper myParamWrapper = new ParameterWrapper();
-					myParamWrapper.setParameterType("Code:In");
-					myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id", "drugConcept.conceptCode"));
-					myParamWrapper.setOperators(Arrays.asList("=", "in"));
-
-					String valueSetSystem = include.getSystem();
-					try {
-						omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-					} catch (FHIRException e) {
-						e.printStackTrace();
-					}
-					if ("None".equals(omopVocabulary)) {
-						ThrowFHIRExceptions.unprocessableEntityException("We don't understand the system, "+valueSetSystem+" in code:in valueset");
-					}
-					values.add(valueSetSystem);
-					
-					List<ConceptReferenceComponent> concepts = include.getConcept();
-					for (ConceptReferenceComponent concept : concepts) {
-						String valueSetCode = concept.getCode();
-						values.add(valueSetCode);
-					}
-					myParamWrapper.setValues(values);
-					myParamWrapper.setUpperRelationship("or");
-					mapList.add(myParamWrapper);
-				}
-				
-				List<ConceptSetComponent> excludes = theIncExcl.get("exclude");
-				for (ConceptSetComponent exclude : excludes) {
-					// We need to loop 
-					ParameterWrapper myParamWrapper = new ParameterWrapper();
-					myParamWrapper.setParameterType("Code:In");
-					myParamWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id", "drugConcept.conceptCode"));
-					myParamWrapper.setOperators(Arrays.asList("=", "out"));
-
-					String valueSetSystem = exclude.getSystem();
-					try {
-						omopVocabulary = OmopCodeableConceptMapping.omopVocabularyforFhirUri(valueSetSystem);
-					} catch (FHIRException e) {
-						e.printStackTrace();
-					}
-					if ("None".equals(omopVocabulary)) {
-						ThrowFHIRExceptions.unprocessableEntityException("We don't understand the system, "+valueSetSystem+" in code:in valueset");
-					}
-					values.add(valueSetSystem);
-					
-					List<ConceptReferenceComponent> concepts = exclude.getConcept();
-					for (ConceptReferenceComponent concept : concepts) {
-						String valueSetCode = concept.getCode();
-						values.add(valueSetCode);
-					}
-					myParamWrapper.setValues(values);
-					myParamWrapper.setUpperRelationship("and");
-					mapList.add(myParamWrapper);
-				}
+			if (isConceptSetSearch(theCode)) {
+				setConceptSetParameter(paramWrapper, "drugConcept.id", theCode);
+				mapList.add(paramWrapper);
 			} else {
 				if (system != null && !system.isEmpty()) {
 					try {
@@ -464,18 +409,18 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 					}
 				}
 	
-				paramWrapper.setParameterType("String");
+				paramWrapper.setParameterType("Token");
 				if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
 					paramWrapper.setParameters(Arrays.asList("drugConcept.conceptCode"));
-					paramWrapper.setOperators(Arrays.asList("like"));
+					paramWrapper.setOperators(Arrays.asList("="));
 					paramWrapper.setValues(Arrays.asList(code));
 				} else if (!"None".equals(omopVocabulary) && (code == null || code.isEmpty())) {
 					paramWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id"));
-					paramWrapper.setOperators(Arrays.asList("like"));
+					paramWrapper.setOperators(Arrays.asList("="));
 					paramWrapper.setValues(Arrays.asList(omopVocabulary));
 				} else {
 					paramWrapper.setParameters(Arrays.asList("drugConcept.vocabulary.id", "drugConcept.conceptCode"));
-					paramWrapper.setOperators(Arrays.asList("like", "like"));
+					paramWrapper.setOperators(Arrays.asList("=", "="));
 					paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 				}
 				paramWrapper.setRelationship("and");
@@ -540,7 +485,8 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 			break;
 		case MedicationStatement.SP_SOURCE:
 			ReferenceParam sourceReference = ((ReferenceParam) value);
-			String sourceReferenceId = String.valueOf(sourceReference.getIdPartAsLong());
+			String sourceReferenceId = String.valueOf(
+					IdMapping.getOMOPfromFHIR(sourceReference.getIdPartAsLong(), PractitionerResourceProvider.getType()));
 
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("provider.id"));
@@ -6,8 +6,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
@@ -62,6 +64,33 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 	public static final String BP_SYSTOLIC_DIASTOLIC_CODE = "85354-9";
 	public static final String BP_SYSTOLIC_DIASTOLIC_DISPLAY = "Blood pressure systolic & diastolic";
 
+	// Diastolic rows of the page being constructed, keyed by (person_id, date, time).
+	// See prefetch().
+	private final ThreadLocal<Map<String, FObservationView>> pagedDiastolics = new ThreadLocal<Map<String, FObservationView>>();
+
+	/**
+	 * f_observation_view id of an observation table row. The view keeps the
+	 * measurement ids and negates the observation ids, so FHIR ids are always
+	 * mapped from the view id.
+	 */
+	static Long toViewId(Long observationId) {
+		return observationId == null ? null : -observationId;
+	}
+
+	/**
+	 * @return true if the f_observation_view id is an observation table row.
+	 */
+	static boolean isObservationViewId(Long viewId) {
+		return viewId != null && viewId < 0;
+	}
+
+	/**
+	 * @return the measurement or observation table id of the view id.
+	 */
+	static Long toTableId(Long viewId) {
+		return viewId == null ? null : Math.abs(viewId);
+	}
+
 	private ConceptService conceptService;
 	private MeasurementService measurementService;
 	private ObservationService observationService;
@@ -95,6 +124,13 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		return omopObservation;
 	}
 
+	@Override
+	protected void addReferencedIds(FObservationView fObservationView, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), fObservationView.getFPerson());
+		addReferencedId(referencedIds, EncounterResourceProvider.getType(), fObservationView.getVisitOccurrence());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), fObservationView.getProvider());
+	}
+
 	@Override
 	public Observation constructFHIR(Long fhirId, FObservationView fObservationView) {
 		Observation observation = new Observation();
@@ -149,10 +185,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			components.add(comp);
 
 			// Now search for diastolic component.
-			WebApplicationContext myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
-			FObservationViewService myService = myAppCtx.getBean(FObservationViewService.class);
-			FObservationView diastolicDb = myService.findDiastolic(DIASTOLIC_CONCEPT_ID,
-					fObservationView.getFPerson().getId(), fObservationView.getDate(), fObservationView.getTime());
+			FObservationView diastolicDb = findDiastolic(fObservationView);
 			if (diastolicDb != null) {
 				comp = new ObservationComponentComponent();
 				coding = new Coding(diastolicDb.getObservationConcept().getVocabulary().getSystemUri(),
@@ -234,13 +267,15 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		}
 		if (fObservationView.getFPerson() != null) {
 			Reference personRef = new Reference(
-					new IdType(PatientResourceProvider.getType(), fObservationView.getFPerson().getId()));
+					new IdType(PatientResourceProvider.getType(),
+							IdMapping.getFHIRfromOMOP(fObservationView.getFPerson().getId(), PatientResourceProvider.getType())));
 			personRef.setDisplay(fObservationView.getFPerson().getNameAsSingleString());
 			observation.setSubject(personRef);
 		}
 		if (fObservationView.getVisitOccurrence() != null)
 			observation.getContext().setReferenceElement(
-					new IdType(EncounterResourceProvider.getType(), fObservationView.getVisitOccurrence().getId()));
+					new IdType(EncounterResourceProvider.getType(),
+							IdMapping.getFHIRfromOMOP(fObservationView.getVisitOccurrence().getId(), EncounterResourceProvider.getType())));
 
 		if (fObservationView.getTypeConcept() != null) {
 			if (fObservationView.getTypeConcept().getId() == 44818701L) {
@@ -281,7 +316,8 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 		if (fObservationView.getProvider() != null) {
 			Reference performerRef = new Reference(
-					new IdType(PractitionerResourceProvider.getType(), fObservationView.getProvider().getId()));
+					new IdType(PractitionerResourceProvider.getType(),
+							IdMapping.getFHIRfromOMOP(fObservationView.getProvider().getId(), PractitionerResourceProvider.getType())));
 			String providerName = fObservationView.getProvider().getProviderName();
 			if (providerName != null && !providerName.isEmpty())
 				performerRef.setDisplay(providerName);
@@ -291,6 +327,65 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		return observation;
 	}
 
+	private static String bloodPressureKey(Long personId, Date date, String time) {
+		String dateString = null;
+		if (date != null) {
+			dateString = new SimpleDateFormat("yyyy-MM-dd").format(date);
+		}
+		return personId + "^" + dateString + "^" + time;
+	}
+
+	/**
+	 * Finds the diastolic row that goes with the systolic row. If the page
+	 * has been prefetched, the diastolic row is taken from the page.
+	 * Otherwise, we query for it.
+	 */
+	private FObservationView findDiastolic(FObservationView systolic) {
+		Map<String, FObservationView> diastolics = pagedDiastolics.get();
+		if (diastolics != null) {
+			return diastolics.get(bloodPressureKey(systolic.getFPerson().getId(), systolic.getDate(),
+					systolic.getTime()));
+		}
+
+		return getMyOmopService().findDiastolic(DIASTOLIC_CONCEPT_ID, systolic.getFPerson().getId(),
+				systolic.getDate(), systolic.getTime());
+	}
+
+	/**
+	 * Pairs all the systolic rows of the page with their diastolic rows using
+	 * a single query instead of one query per systolic row.
+	 */
+	@Override
+	protected void prefetch(List<FObservationView> entities) {
+		Set<Long> personIds = new HashSet<Long>();
+		Set<Date> dates = new HashSet<Date>();
+		for (FObservationView entity : entities) {
+			if (SYSTOLIC_CONCEPT_ID.equals(entity.getObservationConcept().getId()) && entity.getFPerson() != null) {
+				personIds.add(entity.getFPerson().getId());
+				dates.add(entity.getDate());
+			}
+		}
+
+		if (personIds.isEmpty())
+			return;
+
+		Map<String, FObservationView> diastolics = new HashMap<String, FObservationView>();
+		List<FObservationView> diastolicRows = getMyOmopService().findDiastolics(DIASTOLIC_CONCEPT_ID, personIds,
+				dates);
+		for (FObservationView diastolic : diastolicRows) {
+			String key = bloodPressureKey(diastolic.getFPerson().getId(), diastolic.getDate(), diastolic.getTime());
+			if (!diastolics.containsKey(key)) {
+				diastolics.put(key, diastolic);
+			}
+		}
+		pagedDiastolics.set(diastolics);
+	}
+
+	@Override
+	protected void releasePrefetch() {
+		pagedDiastolics.remove();
+	}
+
 	// @Override
 	// public Observation constructResource(Long fhirId, FObservationView
 	// entity, List<String> includes) {
@@ -726,12 +821,14 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 	public Long removeByFhirId(IdType fhirId) {
 		Long id_long_part = fhirId.getIdPartAsLong();
 		Long myId = IdMapping.getOMOPfromFHIR(id_long_part, getMyFhirResourceType());
-		if (myId < 0) {
-			// This is observation table.
-			return observationService.removeById(myId);
+		Long retVal;
+		if (isObservationViewId(myId)) {
+			retVal = observationService.removeById(toTableId(myId));
 		} else {
-			return measurementService.removeById(myId);
+			retVal = measurementService.removeById(myId);
 		}
+		invalidateCache(id_long_part);
+		return retVal;
 	}
 
 	public List<Measurement> constructOmopMeasurement(Long omopId, Observation fhirResource, String system,
@@ -1410,11 +1507,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		Long omopId = null;
 		if (fhirId != null) {
 			fhirIdLong = fhirId.getIdPartAsLong();
-			omopId = IdMapping.getOMOPfromFHIR(fhirIdLong, ObservationResourceProvider.getType());
-			if (omopId < 0) {
-				// This is observation table data in OMOP.
-				omopId = -omopId; // convert to positive number;
-			}
+			omopId = toTableId(IdMapping.getOMOPfromFHIR(fhirIdLong, ObservationResourceProvider.getType()));
 		} else {
 			// check if we already have this entry by comparing 
 			// code, date, time and patient			
@@ -1480,11 +1573,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 				if (resources.size() > 0) {
 					IBaseResource res = resources.get(0);
 					fhirIdLong = res.getIdElement().getIdPartAsLong();
-					omopId = IdMapping.getOMOPfromFHIR(fhirIdLong, ObservationResourceProvider.getType());
-					if (omopId < 0) {
-						// This is observation table data in OMOP.
-						omopId = -omopId; // convert to positive number;
-					}
+					omopId = toTableId(IdMapping.getOMOPfromFHIR(fhirIdLong, ObservationResourceProvider.getType()));
 				}
 			}
 
@@ -1520,20 +1609,16 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 			// Ok, done. now we return.
 			if (retvalSystolic != null)
-				return retvalSystolic;
+				retId = retvalSystolic;
 			else if (retvalDiastolic != null)
-				return retvalDiastolic;
-			else if (retId != null)
-				return retId;
-			else
-				return null;
+				retId = retvalDiastolic;
 
 		} else {
 			observation = (edu.gatech.chai.omopv5.jpa.entity.Observation) entityMap.get("entity");
 			if (observation.getId() != null) {
-				retId = observationService.update(observation).getId();
+				retId = toViewId(observationService.update(observation).getId());
 			} else {
-				retId = observationService.create(observation).getId();
+				retId = toViewId(observationService.create(observation).getId());
 			}
 		}
 
@@ -1613,6 +1698,11 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 		//
 	}
 
+	@Override
+	protected void addSearchFilters(List<ParameterWrapper> paramList) {
+		paramList.add(exceptionParam4Search);
+	}
+
 	@Override
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> paramList,
 			List<IBaseResource> listResources, List<String> includes) {
@@ -1620,16 +1710,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 		List<FObservationView> fObservationViews = getMyOmopService().searchWithParams(fromIndex, toIndex, paramList);
 
-		for (FObservationView fObservationView : fObservationViews) {
-			Long omopId = fObservationView.getId();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, ObservationResourceProvider.getType());
-			Observation fhirResource = constructResource(fhirId, fObservationView, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		constructResources(fObservationViews, listResources, includes);
 	}
 
 	private static Date createDateTime(FObservationView fObservationView) {
@@ -1662,7 +1743,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 
 		switch (parameter) {
 		case Observation.SP_RES_ID:
-			String organizationId = ((TokenParam) value).getValue();
+			String organizationId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -1715,6 +1796,11 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			
 			break;
 		case Observation.SP_CODE:
+			if (isConceptSetSearch((TokenParam) value)) {
+				setConceptSetParameter(paramWrapper, "observationConcept.id", (TokenParam) value);
+				mapList.add(paramWrapper);
+				break;
+			}
 			String system = ((TokenParam) value).getSystem();
 			String code = ((TokenParam) value).getValue();
 			String omopVocabulary = null;
@@ -1739,27 +1825,27 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 						// We search for systolic. When constructing FHIR<,
 						// constructFHIR
 						// will search matching diastolic value.
-						paramWrapper.setParameterType("String");
+						paramWrapper.setParameterType("Token");
 						paramWrapper.setParameters(
 								Arrays.asList("observationConcept.vocabulary.id", "observationConcept.conceptCode"));
-						paramWrapper.setOperators(Arrays.asList("like", "like"));
+						paramWrapper.setOperators(Arrays.asList("=", "="));
 						paramWrapper.setValues(Arrays.asList(omopVocabulary, SYSTOLIC_LOINC_CODE));
 						paramWrapper.setRelationship("and");
 						mapList.add(paramWrapper);
 					} else {
-						paramWrapper.setParameterType("String");
+						paramWrapper.setParameterType("Token");
 						paramWrapper.setParameters(
 								Arrays.asList("observationConcept.vocabulary.id", "observationConcept.conceptCode"));
-						paramWrapper.setOperators(Arrays.asList("like", "like"));
+						paramWrapper.setOperators(Arrays.asList("=", "="));
 						paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 						paramWrapper.setRelationship("and");
 						mapList.add(paramWrapper);
 					}
 				} else {
 					// We have no code specified. Search by system.
-					paramWrapper.setParameterType("String");
+					paramWrapper.setParameterType("Token");
 					paramWrapper.setParameters(Arrays.asList("observationConcept.vocabulary.id"));
-					paramWrapper.setOperators(Arrays.asList("like"));
+					paramWrapper.setOperators(Arrays.asList("="));
 					paramWrapper.setValues(Arrays.asList(omopVocabulary));
 					paramWrapper.setRelationship("or");
 					mapList.add(paramWrapper);
@@ -1771,9 +1857,9 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 						break;
 					} else {
 						// no system but code.
-						paramWrapper.setParameterType("String");
+						paramWrapper.setParameterType("Token");
 						paramWrapper.setParameters(Arrays.asList("observationConcept.conceptCode"));
-						paramWrapper.setOperators(Arrays.asList("like"));
+						paramWrapper.setOperators(Arrays.asList("="));
 						if (BP_SYSTOLIC_DIASTOLIC_CODE.equals(code))
 							paramWrapper.setValues(Arrays.asList(SYSTOLIC_LOINC_CODE));
 						else
@@ -1784,18 +1870,18 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 				} else {
 					if (code == null || code.isEmpty()) {
 						// yes system but no code.
-						paramWrapper.setParameterType("String");
+						paramWrapper.setParameterType("Token");
 						paramWrapper.setParameters(Arrays.asList("observationConcept.vocabulary.id"));
-						paramWrapper.setOperators(Arrays.asList("like"));
+						paramWrapper.setOperators(Arrays.asList("="));
 						paramWrapper.setValues(Arrays.asList(omopVocabulary));
 						paramWrapper.setRelationship("or");
 						mapList.add(paramWrapper);
 					} else {
 						// We have both system and code.
-						paramWrapper.setParameterType("String");
+						paramWrapper.setParameterType("Token");
 						paramWrapper.setParameters(
 								Arrays.asList("observationConcept.vocabulary.id", "observationConcept.conceptCode"));
-						paramWrapper.setOperators(Arrays.asList("like", "like"));
+						paramWrapper.setOperators(Arrays.asList("=", "="));
 						paramWrapper.setValues(Arrays.asList(omopVocabulary, code));
 						paramWrapper.setRelationship("and");
 						mapList.add(paramWrapper);
@@ -39,7 +39,7 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 
 	public OmopOrganization(WebApplicationContext context) {
 		super(context, CareSite.class, CareSiteService.class, OrganizationResourceProvider.getType());
-		
+		initialize(context);
 	}
 
 	public OmopOrganization() {
@@ -111,15 +111,15 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 			// Get the identifier to store the source information.
 			// If we found a matching one, replace this with the careSite.
 			List<Identifier> identifiers = organization.getIdentifier();
-			CareSite existingCareSite = null;
 			String careSiteSourceValue = null;
 			for (Identifier identifier: identifiers) {
 				if (identifier.getValue().isEmpty() == false) {
 					careSiteSourceValue = identifier.getValue();
 					
-					existingCareSite = getMyOmopService().searchByColumnString("careSiteSourceValue", careSiteSourceValue).get(0);
-					if (existingCareSite != null) {
-						omopId = existingCareSite.getId();
+					Long careSiteId = IdentifierIndex.getInstance().resolve(getMyFhirResourceType(), getMyOmopService(),
+							"careSiteSourceValue", careSiteSourceValue);
+					if (careSiteId != null) {
+						omopId = careSiteId;
 						break;
 					}
 				}
@@ -130,9 +130,11 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 		
 		Long omopRecordId = null;
 		if (careSite.getId() != null) {
-			omopRecordId = getMyOmopService().update(careSite).getId();	
+			omopRecordId = getMyOmopService().update(careSite).getId();
+			IdentifierIndex.getInstance().update(getMyFhirResourceType(), careSite.getCareSiteSourceValue(), omopRecordId);
 		} else {
 			omopRecordId = getMyOmopService().create(careSite).getId();
+			IdentifierIndex.getInstance().put(getMyFhirResourceType(), careSite.getCareSiteSourceValue(), omopRecordId);
 		}
 		
 		Long fhirRecordId = IdMapping.getFHIRfromOMOP(omopRecordId, OrganizationResourceProvider.getType());
@@ -179,7 +181,7 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 
 		switch (parameter) {
 		case MyOrganization.SP_RES_ID:
-			String orgnizationId = ((TokenParam) value).getValue();
+			String orgnizationId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
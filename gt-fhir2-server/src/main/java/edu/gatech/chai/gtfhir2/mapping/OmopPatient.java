@@ -6,6 +6,8 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.Address;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -34,7 +36,6 @@ import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.gtfhir2.model.MyOrganization;
-import edu.gatech.chai.gtfhir2.provider.EncounterResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.OrganizationResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PatientResourceProvider;
 import edu.gatech.chai.gtfhir2.provider.PractitionerResourceProvider;
@@ -143,6 +144,12 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 		return patient;
 	}
 
+	@Override
+	protected void addReferencedIds(FPerson fPerson, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), fPerson.getProvider());
+		addReferencedId(referencedIds, OrganizationResourceProvider.getType(), fPerson.getCareSite());
+	}
+
 	@Override
 	public Patient constructFHIR(Long fhirId, FPerson fPerson) {
 		Patient patient = new Patient();
@@ -284,6 +291,53 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 		return patient;
 	}
 
+	/**
+	 * personSourceValue of the identifier. MR and SS identifiers are prefixed
+	 * with their type. Null if the identifier has no value.
+	 */
+	private static String personSourceValue(Identifier identifier) {
+		if (identifier.getValue() == null || identifier.getValue().isEmpty())
+			return null;
+
+		String personSourceValue = identifier.getValue();
+		CodeableConcept typeCodeableConcept = identifier.getType();
+		if (typeCodeableConcept != null && !typeCodeableConcept.isEmpty()) {
+			for (Coding coding : typeCodeableConcept.getCoding()) {
+				if (coding != null && !coding.isEmpty()) {
+					String systemUri = coding.getSystem();
+					Object code = coding.getCode();
+					if ("http://hl7.org/fhir/v2/0203".equals(systemUri)) {
+						if ("MR".equals(code)) {
+							personSourceValue = "MR:" + personSourceValue;
+						} else if ("SS".equals(code)) {
+							personSourceValue = "SS:" + personSourceValue;
+						}
+					}
+				}
+			}
+		}
+		return personSourceValue;
+	}
+
+	/**
+	 * Looks up the identifiers of all the patients in one query, so that
+	 * toDbase and constructOmop find them in the identifier index. Call this
+	 * before a bundle of patients is written.
+	 */
+	public void prefetchIdentifiers(List<Patient> patients) {
+		List<String> personSourceValues = new ArrayList<String>();
+		for (Patient patient : patients) {
+			for (Identifier identifier : patient.getIdentifier()) {
+				String personSourceValue = personSourceValue(identifier);
+				if (personSourceValue != null) {
+					personSourceValues.add(personSourceValue);
+				}
+			}
+		}
+		IdentifierIndex.getInstance().resolveAll(getMyFhirResourceType(), getMyOmopService(), "personSourceValue",
+				personSourceValues);
+	}
+
 	/**
 	 * OMOP on FHIR mapping - from FHIR to OMOP
 	 * 
@@ -301,11 +355,11 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 
 		if (fhirId != null) {
 			// update
-			omopId = fhirId.getIdPartAsLong();
-			if (omopId == null) {
+			if (fhirId.getIdPartAsLong() == null) {
 				// Invalid fhirId.
 				return null;
 			}
+			omopId = IdMapping.getOMOPfromFHIR(fhirId.getIdPartAsLong(), getMyFhirResourceType());
 		} else {
 			// In OMOP, we have person source column.
 			// We will use identifier field as our source column if exists. The
@@ -315,41 +369,18 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			// Identifier has many fields. We can't have them all in OMOP. We
 			// only have string field and size is very limited. So, for now, 
 			// we only get value part.
-			List<Identifier> identifiers = patient.getIdentifier();
-			FPerson person = null;
-			String personSourceValue = null;
-			for (Identifier identifier : identifiers) {
-				if (identifier.getValue().isEmpty() == false) {
-					personSourceValue = identifier.getValue();
-					CodeableConcept typeCodeableConcept = identifier.getType();
-					if (typeCodeableConcept != null && !typeCodeableConcept.isEmpty()) {
-						for (Coding coding : typeCodeableConcept.getCoding()) {
-							if (coding != null && !coding.isEmpty()) {
-								String systemUri = coding.getSystem();
-								Object code = coding.getCode();
-								if (systemUri.equals("http://hl7.org/fhir/v2/0203")) {
-									if (code.equals("MR")) {
-										personSourceValue = "MR:" + personSourceValue;
-									} else if (code.equals("SS")) {
-										personSourceValue = "SS:" + personSourceValue;
-									}
-								}
-							}
-
-						}
-					}
-
-					// See if we have existing patient
-					// with this identifier.
-					List<FPerson> listPatient = getMyOmopService().searchByColumnString("personSourceValue", personSourceValue);
-					if (listPatient != null && listPatient.size() > 0) {
-						person = listPatient.get(0);
-						System.out.println("Strange0::::::::::::::: for "+personSourceValue.toLowerCase()+" "+person.getId());
-					}
-					if (person != null) {
-						omopId = person.getId();
-						break;
-					}
+			for (Identifier identifier : patient.getIdentifier()) {
+				String personSourceValue = personSourceValue(identifier);
+				if (personSourceValue == null)
+					continue;
+
+				// See if we have existing patient
+				// with this identifier.
+				Long personId = IdentifierIndex.getInstance().resolve(getMyFhirResourceType(), getMyOmopService(),
+						"personSourceValue", personSourceValue);
+				if (personId != null) {
+					omopId = personId;
+					break;
 				}
 			}
 		}
@@ -361,8 +392,10 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 		System.out.println("Strange2::::::::::::::: "+fperson.getId());
 		if (fperson.getId() != null) {
 			omopRecordId = getMyOmopService().update(fperson).getId();
+			IdentifierIndex.getInstance().update(getMyFhirResourceType(), fperson.getPersonSourceValue(), omopRecordId);
 		} else {
 			omopRecordId = getMyOmopService().create(fperson).getId();
+			IdentifierIndex.getInstance().put(getMyFhirResourceType(), fperson.getPersonSourceValue(), omopRecordId);
 		}
 		Long fhirRecordId = IdMapping.getFHIRfromOMOP(omopRecordId, PatientResourceProvider.getType());
 		return fhirRecordId;
@@ -379,8 +412,9 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(revIncludeparam);
 
 			List<VisitOccurrence> VisitOccurrences = visitOccurrenceService.searchWithParams(0, 0, mapList);
+			Map<Long, Long> fhirIds = OmopEncounter.getInstance().prefetchFHIRIds(VisitOccurrences);
 			for (VisitOccurrence visitOccurrence : VisitOccurrences) {
-				Long fhirId = IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType());
+				Long fhirId = fhirIds.get(visitOccurrence.getId());
 				Encounter enc = OmopEncounter.getInstance().constructFHIR(fhirId, visitOccurrence);
 				if (enc != null)
 					listResources.add(enc);
@@ -436,8 +470,11 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			return provider;
 		} else {
 			// Check source column to see if we have received this before.
-			provider = (Provider) providerService.searchByColumnString("providerSourceValue",
-					generalPractitioner.getReferenceElement().getIdPart());
+			Long providerId = IdentifierIndex.getInstance().resolve(PractitionerResourceProvider.getType(),
+					providerService, "providerSourceValue", generalPractitioner.getReferenceElement().getIdPart());
+			if (providerId != null) {
+				provider = providerService.findById(providerId);
+			}
 			if (provider != null) {
 				return provider;
 			} else {
@@ -552,11 +589,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			break;
 		case Patient.SP_FAMILY:
 			// This is family name, which is string. use like.
-			String familyString;
-			if (((StringParam) value).isExact())
-				familyString = ((StringParam) value).getValue();
-			else
-				familyString = "%" + ((StringParam) value).getValue() + "%";
+			String familyString = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("familyName"));
 			paramWrapper.setOperators(Arrays.asList("like"));
@@ -566,11 +599,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			break;
 		case Patient.SP_GIVEN:
 			// This is given name, which is string. use like.
-			String givenName;
-			if (((StringParam) value).isExact())
-				givenName = ((StringParam) value).getValue();
-			else
-				givenName = "%" + ((StringParam) value).getValue() + "%";
+			String givenName = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("givenName1", "givenName2"));
 			paramWrapper.setOperators(Arrays.asList("like", "like"));
@@ -580,11 +609,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			break;
 		case Patient.SP_NAME:
 			// This is family name, which is string. use like.
-			String nameString;
-			if (((StringParam) value).isExact())
-				nameString = ((StringParam) value).getValue();
-			else
-				nameString = "%" + ((StringParam) value).getValue() + "%";
+			String nameString = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper
 					.setParameters(Arrays.asList("familyName", "givenName1", "givenName2", "prefixName", "suffixName"));
@@ -594,7 +619,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_RES_ID:
-			String patientId = ((TokenParam) value).getValue();
+			String patientId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -603,20 +628,18 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_IDENTIFIER:
+			// Exact match on the value, with or without the MR/SS prefix that
+			// toDbase adds. lower(person_source_value) can use an index.
 			String patientIdentifier = ((TokenParam) value).getValue();
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("personSourceValue"));
-			paramWrapper.setOperators(Arrays.asList("like"));
-			paramWrapper.setValues(Arrays.asList("%" + patientIdentifier + "%"));
+			paramWrapper.setOperators(Arrays.asList("like", "like", "like"));
+			paramWrapper.setValues(Arrays.asList(patientIdentifier, "MR:" + patientIdentifier, "SS:" + patientIdentifier));
 			paramWrapper.setRelationship("or");
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_ADDRESS:
-			String addressName;
-			if (((StringParam) value).isExact())
-				addressName = ((StringParam) value).getValue();
-			else
-				addressName = "%" + ((StringParam) value).getValue() + "%";
+			String addressName = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("location.address1", "location.address2", "location.city",
 					"location.state", "location.zipCode"));
@@ -626,11 +649,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_ADDRESS_CITY:
-			String addressCityName;
-			if (((StringParam) value).isExact())
-				addressCityName = ((StringParam) value).getValue();
-			else
-				addressCityName = "%" + ((StringParam) value).getValue() + "%";
+			String addressCityName = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("location.city"));
 			paramWrapper.setOperators(Arrays.asList("like"));
@@ -639,11 +658,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_ADDRESS_STATE:
-			String addressStateName;
-			if (((StringParam) value).isExact())
-				addressStateName = ((StringParam) value).getValue();
-			else
-				addressStateName = "%" + ((StringParam) value).getValue() + "%";
+			String addressStateName = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("location.state"));
 			paramWrapper.setOperators(Arrays.asList("like"));
@@ -652,11 +667,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_ADDRESS_POSTALCODE:
-			String addressZipName;
-			if (((StringParam) value).isExact())
-				addressZipName = ((StringParam) value).getValue();
-			else
-				addressZipName = "%" + ((StringParam) value).getValue() + "%";
+			String addressZipName = stringSearchValue((StringParam) value);
 			paramWrapper.setParameterType("String");
 			paramWrapper.setParameters(Arrays.asList("location.zipCode"));
 			paramWrapper.setOperators(Arrays.asList("like"));
@@ -674,7 +685,7 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			mapList.add(paramWrapper);
 			break;
 		case "Organization:" + Organization.SP_RES_ID:
-			String orgId = (String) value;
+			String orgId = IdMapping.getOMOPfromFHIR((String) value, OrganizationResourceProvider.getType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("careSite.id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -735,9 +746,10 @@ public class OmopPatient extends BaseOmopResource<Patient, FPerson, FPersonServi
 			}
 		} else {
 			if (personSourceValue != null) {
-				List<FPerson> fPersons = getMyOmopService().searchByColumnString("personSourceValue", personSourceValue);
-				if (fPersons.size() > 0) {
-					fperson = fPersons.get(0);
+				Long personId = IdentifierIndex.getInstance().resolve(getMyFhirResourceType(), getMyOmopService(),
+						"personSourceValue", personSourceValue);
+				if (personId != null) {
+					fperson = getMyOmopService().findById(personId);
 				}
 			} 
 			
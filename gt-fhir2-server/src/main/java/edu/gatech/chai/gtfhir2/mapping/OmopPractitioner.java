@@ -131,16 +131,16 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		}
 
 		List<Identifier> identifiers = practitioner.getIdentifier();
-		Provider allreadyIdentifiedProvider = null;
 		for (Identifier identifier : identifiers) {
 			if (identifier.getValue().isEmpty() == false) {
 				String providerSourceValue = identifier.getValue();
 
 				// See if we have existing patient
 				// with this identifier.
-				allreadyIdentifiedProvider = getMyOmopService().searchByColumnString("providerSourceValue", providerSourceValue).get(0);
-				if (allreadyIdentifiedProvider != null) {
-					omopId = allreadyIdentifiedProvider.getId();
+				Long providerId = IdentifierIndex.getInstance().resolve(getMyFhirResourceType(), getMyOmopService(),
+						"providerSourceValue", providerSourceValue);
+				if (providerId != null) {
+					omopId = providerId;
 					break;
 				}
 			}
@@ -151,8 +151,10 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		Long omopRecordId = null;
 		if (omopProvider.getId() != null) {
 			omopRecordId = getMyOmopService().update(omopProvider).getId();
+			IdentifierIndex.getInstance().update(getMyFhirResourceType(), omopProvider.getProviderSourceValue(), omopRecordId);
 		} else {
 			omopRecordId = getMyOmopService().create(omopProvider).getId();
+			IdentifierIndex.getInstance().put(getMyFhirResourceType(), omopProvider.getProviderSourceValue(), omopRecordId);
 		}
 		return IdMapping.getFHIRfromOMOP(omopRecordId, PractitionerResourceProvider.getType());
 	}
@@ -233,7 +235,7 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 
 		switch (parameter) {
 		case Practitioner.SP_RES_ID:
-			String practitionerId = ((TokenParam) value).getValue();
+			String practitionerId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
@@ -133,13 +135,21 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 		return procedure;
 	}
 
+	@Override
+	protected void addReferencedIds(ProcedureOccurrence entity, Map<String, Set<Long>> referencedIds) {
+		addReferencedId(referencedIds, PatientResourceProvider.getType(), entity.getFPerson());
+		addReferencedId(referencedIds, EncounterResourceProvider.getType(), entity.getVisitOccurrence());
+		addReferencedId(referencedIds, PractitionerResourceProvider.getType(), entity.getProvider());
+	}
+
 	@Override
 	public Procedure constructFHIR(Long fhirId, ProcedureOccurrence entity) {
 		Procedure procedure = new Procedure(); //Assuming default active state
 		procedure.setId(new IdType(fhirId));
 
 		// Set subject 
-		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(), entity.getFPerson().getId()));
+		Reference patientReference = new Reference(new IdType(PatientResourceProvider.getType(),
+				IdMapping.getFHIRfromOMOP(entity.getFPerson().getId(), PatientResourceProvider.getType())));
 		patientReference.setDisplay(entity.getFPerson().getNameAsSingleString());
 		procedure.setSubject(patientReference);
 		
@@ -175,7 +185,8 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 		// Context mapping
 		VisitOccurrence visitOccurrence = entity.getVisitOccurrence();
 		if (visitOccurrence != null) {
-			Reference contextReference = new Reference(new IdType(EncounterResourceProvider.getType(), visitOccurrence.getId())); 
+			Reference contextReference = new Reference(new IdType(EncounterResourceProvider.getType(),
+					IdMapping.getFHIRfromOMOP(visitOccurrence.getId(), EncounterResourceProvider.getType()))); 
 			procedure.setContext(contextReference);
 		}
 		
@@ -225,7 +236,7 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 
 		switch (parameter) {
 		case Procedure.SP_RES_ID:
-			String procedureId = ((TokenParam) value).getValue();
+			String procedureId = IdMapping.getOMOPfromFHIR(((TokenParam) value).getValue(), getMyFhirResourceType());
 			paramWrapper.setParameterType("Long");
 			paramWrapper.setParameters(Arrays.asList("id"));
 			paramWrapper.setOperators(Arrays.asList("="));
@@ -234,6 +245,11 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 			mapList.add(paramWrapper);
 			break;
 		case Procedure.SP_CODE:
+			if (isConceptSetSearch((TokenParam) value)) {
+				setConceptSetParameter(paramWrapper, "procedureConcept.id", (TokenParam) value);
+				mapList.add(paramWrapper);
+				break;
+			}
 			String system = ((TokenParam) value).getSystem();
 			String code = ((TokenParam) value).getValue();
 			
@@ -249,7 +265,7 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 				}
 			} 
 
-			paramWrapper.setParameterType("String");
+			paramWrapper.setParameterType("Token");
 			if ("None".equals(omopVocabulary) && code != null && !code.isEmpty()) {
 				paramWrapper.setParameters(Arrays.asList("procedureConcept.conceptCode"));
 				paramWrapper.setOperators(Arrays.asList("="));
@@ -111,6 +111,7 @@ public class OmopServerOperations {
 			if (resource.getResourceType() == ResourceType.Patient) {
 				String originalId = resource.getId();
 				Long fhirId = OmopPatient.getInstance().toDbase((Patient) resource, null);
+				OmopPatient.getInstance().invalidateCache(fhirId);
 				patientMap.put(originalId, fhirId);
 				System.out.println("Adding patient info to patientMap "+originalId+"->"+fhirId);
 				responseEntries.add(addResponseEntry("201 Created", "Patient/"+fhirId));
@@ -132,6 +133,7 @@ public class OmopServerOperations {
 				observation.setSubject(new Reference(refIdType));
 				
 				Long fhirId = OmopObservation.getInstance().toDbase(observation, null);
+				OmopObservation.getInstance().invalidateCache(fhirId);
 				BundleEntryComponent newEntry;
 				if (fhirId == null || fhirId == 0L) {
 					newEntry = addResponseEntry("400 Bad Request", null);
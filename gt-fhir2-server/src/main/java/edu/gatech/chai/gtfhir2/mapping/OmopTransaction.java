@@ -115,6 +115,22 @@ public class OmopTransaction {
 		}
 	}
 	
+	/*
+	 * Patients of the bundle are looked up by identifier in one query instead
+	 * of one per patient.
+	 */
+	private void prefetchPatientIdentifiers(List<Resource> resources) {
+		List<Patient> patients = new ArrayList<Patient>();
+		for (Resource resource : resources) {
+			if (resource.getResourceType() == ResourceType.Patient) {
+				patients.add((Patient) resource);
+			}
+		}
+		if (!patients.isEmpty()) {
+			OmopPatient.getInstance().prefetchIdentifiers(patients);
+		}
+	}
+
 	public void addResponseEntry(List<BundleEntryComponent> responseEntries, String status, String location) {
 		BundleEntryComponent entryBundle = new BundleEntryComponent();
 		UUID uuid = UUID.randomUUID();
@@ -137,10 +153,12 @@ public class OmopTransaction {
 		Map<String, Long> patientMap = new HashMap<String, Long> ();
 		
 		// do patient first. 
+		prefetchPatientIdentifiers(postList);
 		for (Resource resource : postList) {
 			if (resource.getResourceType() == ResourceType.Patient) {
 				String originalId = resource.getId();
 				Long fhirId = OmopPatient.getInstance().toDbase((Patient) resource, null);
+				OmopPatient.getInstance().invalidateCache(fhirId);
 //				OmopPatient patientMappingInstance = new OmopPatient(myContext);
 //				FPerson fPerson = patientMappingInstance.constructOmop(null, (Patient) resource);
 //				FPerson retFPerson = fPersonService.create(fPerson);
@@ -166,6 +184,7 @@ public class OmopTransaction {
 				observation.setSubject(new Reference(refIdType));
 				
 				Long fhirId = OmopObservation.getInstance().toDbase(observation, null);
+				OmopObservation.getInstance().invalidateCache(fhirId);
 				if (fhirId == null)
 					addResponseEntry(responseEntries, "400 Bad Request", null);
 				else
@@ -180,6 +199,7 @@ public class OmopTransaction {
 				Patient patient = (Patient) resource;
 				IdType fhirIdType = patient.getIdElement();
 				Long fhirId = OmopPatient.getInstance().toDbase(patient, fhirIdType);
+				OmopPatient.getInstance().invalidateCache(fhirId);
 				patientMap.put(resource.getId(), fhirId);
 
 				addResponseEntry(responseEntries, "201 Created", "Patient/"+fhirId);
@@ -192,6 +212,7 @@ public class OmopTransaction {
 				
 				IdType fhirIdType = observation.getIdElement();
 				Long fhirId = OmopObservation.getInstance().toDbase(observation, fhirIdType);
+				OmopObservation.getInstance().invalidateCache(fhirId);
 
 				addResponseEntry(responseEntries, "201 Created", "Observation/"+fhirId);
 			}
@@ -222,10 +243,24 @@ public class OmopTransaction {
 		@SuppressWarnings("unchecked")
 		List<Resource> postList = (List<Resource>) entries.get(HTTPVerb.POST);
 		String keyString;
+		prefetchPatientIdentifiers(postList);
+		// lower(personSourceValue) -> new FPerson of this bundle
+		Map<String, FPerson> newPersons = new HashMap<String, FPerson>();
 		for (Resource resource : postList) {
 			switch (resource.getResourceType()) {
 			case Patient:
 				FPerson fPerson = OmopPatient.getInstance().constructOmop(null, (Patient) resource);
+				if (fPerson.getId() == null && fPerson.getPersonSourceValue() != null) {
+					// Nothing is written until the end. So, patients of this
+					// bundle with the same identifier share one FPerson.
+					String sourceValue = fPerson.getPersonSourceValue().toLowerCase();
+					FPerson sameFPerson = newPersons.get(sourceValue);
+					if (sameFPerson == null) {
+						newPersons.put(sourceValue, fPerson);
+					} else {
+						fPerson = sameFPerson;
+					}
+				}
 				keyString = resource.getId() + "^FPerson";
 				addBaseEntity(entityToCreate, keyString, fPerson);
 				System.out.println("key:" + keyString + ", fPerson");
@@ -280,6 +315,8 @@ public class OmopTransaction {
 						// This is Person table.
 						// Constructing FHIR to respond.
 						System.out.println("Created FPerson ID: " + entity.getIdAsLong());
+						IdentifierIndex.getInstance().put(PatientResourceProvider.getType(),
+								((FPerson) entity).getPersonSourceValue(), entity.getIdAsLong());
 						fhirResource = OmopPatient.getInstance().constructFHIR(
 								IdMapping.getFHIRfromOMOP(entity.getIdAsLong(), PatientResourceProvider.getType()),
 								(FPerson) entity);
@@ -0,0 +1,13 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Receives FHIR resources of {@link BaseOmopResource#scrollWithParams} one
+ * batch at a time.
+ */
+public interface ResourceBatchHandler {
+	public void handle(List<IBaseResource> resources) throws Exception;
+}
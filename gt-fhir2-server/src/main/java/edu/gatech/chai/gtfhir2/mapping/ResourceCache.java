@@ -0,0 +1,239 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.dstu3.model.Resource;
+
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * Resources built by read (toFHIR), by resource type and FHIR id. Entries are
+ * removed when the resource is created, updated or deleted through this
+ * server, and expire after the TTL to pick up changes made directly in the
+ * OMOP database (eg. ETL loads).
+ *
+ * Resources are copied in and out of the cache as HAPI and the interceptors
+ * may change the returned resource.
+ *
+ * A resource that was being built while a resource of the same type was
+ * invalidated is not cached. It may have been read before the change. When
+ * reads go to replicas, a resource type is not cached for the write grace
+ * period after it was written, as a lagging replica may still return the old
+ * rows.
+ *
+ * @author mc142
+ *
+ */
+public class ResourceCache {
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TTL = 60000L;
+
+	private static final ResourceCache instance = new ResourceCache();
+
+	private final LruCache<String, CachedResource> cache = new LruCache<String, CachedResource>(DEFAULT_MAX_SIZE);
+	private final ConcurrentMap<String, TypeStatistics> statistics = new ConcurrentHashMap<String, TypeStatistics>();
+	// resource type -> generation, incremented at each invalidation.
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	// resource type -> time of the last invalidation
+	private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile long writeGrace = 0L;
+
+	private static class CachedResource {
+		final Resource resource;
+		final long expiresAt;
+
+		CachedResource(Resource resource, long expiresAt) {
+			this.resource = resource;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public static class TypeStatistics {
+		private final String resourceType;
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong invalidations = new AtomicLong();
+
+		TypeStatistics(String resourceType) {
+			this.resourceType = resourceType;
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		public long getHitCount() {
+			return hits.get();
+		}
+
+		public long getMissCount() {
+			return misses.get();
+		}
+
+		public long getInvalidationCount() {
+			return invalidations.get();
+		}
+	}
+
+	private ResourceCache() {
+	}
+
+	public static ResourceCache getInstance() {
+		return instance;
+	}
+
+	private static String key(String resourceType, Long fhirId) {
+		return resourceType + "/" + fhirId;
+	}
+
+	private AtomicLong generation(String resourceType) {
+		AtomicLong generation = generations.get(resourceType);
+		if (generation == null) {
+			generation = new AtomicLong();
+			AtomicLong existing = generations.putIfAbsent(resourceType, generation);
+			if (existing != null) {
+				generation = existing;
+			}
+		}
+		return generation;
+	}
+
+	private TypeStatistics getStatistics(String resourceType) {
+		TypeStatistics typeStatistics = statistics.get(resourceType);
+		if (typeStatistics == null) {
+			typeStatistics = new TypeStatistics(resourceType);
+			TypeStatistics existing = statistics.putIfAbsent(resourceType, typeStatistics);
+			if (existing != null) {
+				typeStatistics = existing;
+			}
+		}
+		return typeStatistics;
+	}
+
+	public boolean isEnabled() {
+		return cache.getMaxSize() > 0;
+	}
+
+	/**
+	 * Returns a copy of the cached resource, or null.
+	 */
+	public Resource get(String resourceType, Long fhirId) {
+		if (!isEnabled())
+			return null;
+
+		CachedResource cached = cache.get(key(resourceType, fhirId));
+		if (cached != null && cached.expiresAt < System.currentTimeMillis()) {
+			cache.remove(key(resourceType, fhirId));
+			cached = null;
+		}
+
+		if (cached == null) {
+			getStatistics(resourceType).misses.incrementAndGet();
+			return null;
+		}
+		getStatistics(resourceType).hits.incrementAndGet();
+		return cached.resource.copy();
+	}
+
+	/**
+	 * Call before reading the entity. Pass the value to
+	 * {@link #put(String, Long, Resource, long)}.
+	 */
+	public long getGeneration(String resourceType) {
+		return generation(resourceType).get();
+	}
+
+	/**
+	 * False if a resource of the type was invalidated after the generation
+	 * was taken, or within the write grace period. What was read may be
+	 * older than the change then.
+	 */
+	public boolean isCacheable(String resourceType, long readGeneration) {
+		if (generation(resourceType).get() != readGeneration)
+			return false;
+
+		Long lastWrite = lastWrites.get(resourceType);
+		return lastWrite == null || lastWrite + writeGrace <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Caches a copy of the resource if {@link #isCacheable(String, long)}.
+	 */
+	public void put(String resourceType, Long fhirId, Resource resource, long readGeneration) {
+		if (!isEnabled() || resource == null || fhirId == null || !isCacheable(resourceType, readGeneration))
+			return;
+
+		cache.put(key(resourceType, fhirId), new CachedResource(resource.copy(), System.currentTimeMillis() + ttl));
+	}
+
+	public void invalidate(String resourceType, Long fhirId) {
+		generation(resourceType).incrementAndGet();
+		if (writeGrace > 0) {
+			lastWrites.put(resourceType, System.currentTimeMillis());
+		}
+		if (fhirId == null)
+			return;
+
+		if (cache.remove(key(resourceType, fhirId)) != null) {
+			getStatistics(resourceType).invalidations.incrementAndGet();
+		}
+	}
+
+	public void clear() {
+		for (AtomicLong generation : generations.values()) {
+			generation.incrementAndGet();
+		}
+		cache.clear();
+	}
+
+	public void setMaxSize(int maxSize) {
+		cache.setMaxSize(maxSize);
+	}
+
+	/**
+	 * @param ttl milliseconds. Resources changed outside of this server are
+	 *            stale for up to this long.
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param writeGrace milliseconds after a write during which the resource
+	 *                   type is not cached. Set this to the most a read
+	 *                   replica can lag behind. 0 without replicas.
+	 */
+	public void setWriteGrace(long writeGrace) {
+		this.writeGrace = writeGrace;
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public List<TypeStatistics> getStatistics() {
+		List<TypeStatistics> retVal = new ArrayList<TypeStatistics>(statistics.values());
+		Collections.sort(retVal, new Comparator<TypeStatistics>() {
+			@Override
+			public int compare(TypeStatistics o1, TypeStatistics o2) {
+				return o1.resourceType.compareTo(o2.resourceType);
+			}
+		});
+		return retVal;
+	}
+}
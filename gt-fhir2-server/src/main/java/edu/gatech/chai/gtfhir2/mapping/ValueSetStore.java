@@ -0,0 +1,526 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.hl7.fhir.dstu3.model.ValueSet.ConceptReferenceComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.ConceptSetFilterComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.FilterOperator;
+import org.hl7.fhir.dstu3.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import edu.gatech.chai.gtfhir2.utilities.TerminologyServiceClient;
+import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
+import edu.gatech.chai.omopv5.jpa.entity.Concept;
+import edu.gatech.chai.omopv5.jpa.service.ConceptHierarchyIndex;
+import edu.gatech.chai.omopv5.jpa.service.ConceptService;
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * ValueSets for the :in token modifier. ValueSets are imported from files
+ * (ValueSet or Bundle of ValueSets, JSON or XML) at start. A ValueSet that
+ * was not imported is fetched once from the terminology server, unless remote
+ * lookup is off. ValueSets that the server does not have, or that cannot be
+ * fetched, are not asked for again for the negative TTL.
+ *
+ * A ValueSet is expanded to OMOP concept_ids the first time it is searched.
+ * Expansions are cached by url and ValueSet version, and are dropped when a
+ * vocabulary_version changes.
+ *
+ * compose.include with concepts, with a system only (all the concepts of the
+ * vocabulary) and with valueSet references are supported, as are
+ * compose.exclude and pre-expanded ValueSets (expansion.contains). Of the
+ * filters, only concept is-a and descendent-of are supported.
+ *
+ * :below and :above are answered from the concept hierarchy index (built from
+ * concept_ancestor) in the same way.
+ *
+ * @author mc142
+ *
+ */
+public class ValueSetStore {
+	private static final Logger logger = LoggerFactory.getLogger(ValueSetStore.class);
+
+	public static final int DEFAULT_MAX_EXPANSION_SIZE = 10000;
+	// Each concept is a bind parameter after padding to a power of 2.
+	// PostgreSQL allows 32767 per statement.
+	public static final int MAX_EXPANSION_SIZE = 16384;
+	public static final int DEFAULT_CACHE_SIZE = 200;
+	public static final long DEFAULT_CHECK_INTERVAL = 600000L;
+	public static final long DEFAULT_NEGATIVE_TTL = 300000L;
+
+	private static final ValueSetStore instance = new ValueSetStore();
+
+	private FhirContext fhirContext;
+	private ConceptService conceptService;
+	private volatile boolean remoteLookup = true;
+	private volatile int maxExpansionSize = DEFAULT_MAX_EXPANSION_SIZE;
+	private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+	private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+	// url -> version -> ValueSet. Version is "" when the ValueSet has none.
+	private final Map<String, Map<String, ValueSet>> valueSets = new ConcurrentHashMap<String, Map<String, ValueSet>>();
+	// url -> the ValueSet imported last. Used when no version is asked for.
+	private final Map<String, ValueSet> latest = new ConcurrentHashMap<String, ValueSet>();
+	// url|version -> sorted concept_ids
+	private final LruCache<String, List<Long>> expansions = new LruCache<String, List<Long>>(DEFAULT_CACHE_SIZE);
+	// url|version -> when to ask the terminology server again
+	private final LruCache<String, Long> remoteMisses = new LruCache<String, Long>(DEFAULT_CACHE_SIZE);
+
+	private volatile String vocabularyVersion;
+	private volatile long vocabularyCheckedAt = 0L;
+
+	private ValueSetStore() {
+	}
+
+	public static ValueSetStore getInstance() {
+		return instance;
+	}
+
+	public void setFhirContext(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	public void setConceptService(ConceptService conceptService) {
+		this.conceptService = conceptService;
+	}
+
+	/**
+	 * @param remoteLookup false to use only the imported ValueSets (offline).
+	 */
+	public void setRemoteLookup(boolean remoteLookup) {
+		this.remoteLookup = remoteLookup;
+	}
+
+	/**
+	 * @param maxExpansionSize most concepts in an expansion. Up to
+	 *                         MAX_EXPANSION_SIZE.
+	 */
+	public void setMaxExpansionSize(int maxExpansionSize) {
+		this.maxExpansionSize = Math.min(maxExpansionSize, MAX_EXPANSION_SIZE);
+	}
+
+	/**
+	 * @param checkInterval milliseconds between vocabulary version checks.
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * @param negativeTtl milliseconds before a ValueSet that was not found on
+	 *                    the terminology server is asked for again.
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		remoteMisses.setMaxSize(cacheSize);
+		expansions.setMaxSize(cacheSize);
+	}
+
+	/**
+	 * Imports the ValueSet and Bundle files (*.json, *.xml) of the directory.
+	 *
+	 * @return number of ValueSets imported.
+	 */
+	public int importDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			logger.warn("ValueSet directory " + directory + " cannot be read");
+			return 0;
+		}
+
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName().toLowerCase();
+			IParser parser;
+			if (name.endsWith(".json")) {
+				parser = fhirContext.newJsonParser();
+			} else if (name.endsWith(".xml")) {
+				parser = fhirContext.newXmlParser();
+			} else {
+				continue;
+			}
+
+			try {
+				Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+				try {
+					count += importResource(parser.parseResource(reader));
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Failed to read " + file + ": " + e.getMessage());
+			} catch (Exception e) {
+				logger.warn("Failed to import " + file + ": " + e.getMessage());
+			}
+		}
+		logger.info("Imported " + count + " ValueSets from " + directory);
+		return count;
+	}
+
+	/**
+	 * Imports a ValueSet, or the ValueSets in a Bundle.
+	 *
+	 * @return number of ValueSets imported.
+	 */
+	public int importResource(IBaseResource resource) {
+		if (resource instanceof ValueSet) {
+			return addValueSet((ValueSet) resource) ? 1 : 0;
+		}
+
+		int count = 0;
+		if (resource instanceof Bundle) {
+			for (BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+				if (entry.getResource() instanceof ValueSet && addValueSet((ValueSet) entry.getResource())) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private synchronized boolean addValueSet(ValueSet valueSet) {
+		String url = valueSet.getUrl();
+		if (url == null || url.isEmpty()) {
+			logger.warn("ValueSet " + valueSet.getIdElement().getIdPart() + " has no url. Skipped.");
+			return false;
+		}
+
+		String version = valueSet.hasVersion() ? valueSet.getVersion() : "";
+		Map<String, ValueSet> versions = valueSets.get(url);
+		if (versions == null) {
+			versions = new ConcurrentHashMap<String, ValueSet>();
+			valueSets.put(url, versions);
+		}
+		versions.put(version, valueSet);
+		latest.put(url, valueSet);
+		// The ValueSet may have changed without a new version.
+		expansions.remove(url + "|" + version);
+		return true;
+	}
+
+	public int size() {
+		return latest.size();
+	}
+
+	/**
+	 * Sorted concept_ids of the ValueSet.
+	 *
+	 * @param canonical ValueSet url, optionally followed by |version.
+	 */
+	public List<Long> expand(String canonical) {
+		return expand(canonical, new HashSet<String>());
+	}
+
+	private List<Long> expand(String canonical, Set<String> expanding) {
+		String url = canonical;
+		String version = null;
+		int bar = canonical.indexOf('|');
+		if (bar >= 0) {
+			url = canonical.substring(0, bar);
+			version = canonical.substring(bar + 1);
+		}
+
+		ValueSet valueSet = findValueSet(url, version);
+		if (valueSet == null) {
+			ThrowFHIRExceptions.unprocessableEntityException("ValueSet " + canonical + " is not known to this server");
+		}
+
+		checkVocabularyVersion();
+		String key = url + "|" + (valueSet.hasVersion() ? valueSet.getVersion() : "");
+		List<Long> conceptIds = expansions.get(key);
+		if (conceptIds != null)
+			return conceptIds;
+
+		if (!expanding.add(key)) {
+			ThrowFHIRExceptions.unprocessableEntityException("ValueSet " + canonical + " includes itself");
+		}
+
+		long start = System.currentTimeMillis();
+		Set<Long> expansion = expandValueSet(valueSet, expanding);
+		expanding.remove(key);
+		checkSize(canonical, expansion.size());
+
+		conceptIds = new ArrayList<Long>(expansion);
+		Collections.sort(conceptIds);
+		conceptIds = Collections.unmodifiableList(conceptIds);
+		expansions.put(key, conceptIds);
+		logger.info("Expanded ValueSet " + key + " to " + conceptIds.size() + " concepts in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return conceptIds;
+	}
+
+	private ValueSet findValueSet(String url, String version) {
+		ValueSet valueSet;
+		if (version == null) {
+			valueSet = latest.get(url);
+		} else {
+			Map<String, ValueSet> versions = valueSets.get(url);
+			valueSet = versions == null ? null : versions.get(version);
+		}
+		if (valueSet != null || !remoteLookup)
+			return valueSet;
+
+		String missKey = url + "|" + (version == null ? "" : version);
+		Long retryAt = remoteMisses.get(missKey);
+		if (retryAt != null) {
+			if (retryAt > System.currentTimeMillis())
+				return null;
+			remoteMisses.remove(missKey);
+		}
+
+		try {
+			ValueSet remoteValueSet = TerminologyServiceClient.getInstance().getValueSet(url);
+			if (remoteValueSet != null) {
+				if (!remoteValueSet.hasUrl()) {
+					remoteValueSet.setUrl(url);
+				}
+				addValueSet(remoteValueSet);
+				if (version == null || version.equals(remoteValueSet.getVersion()))
+					return remoteValueSet;
+			}
+		} catch (Exception e) {
+			logger.warn("Failed to fetch ValueSet " + url + " from the terminology server: " + e.getMessage());
+		}
+
+		remoteMisses.put(missKey, System.currentTimeMillis() + negativeTtl);
+		return null;
+	}
+
+	/*
+	 * Expansions are made against the OMOP vocabulary. Drop them when it
+	 * changes.
+	 */
+	private void checkVocabularyVersion() {
+		long now = System.currentTimeMillis();
+		if (vocabularyCheckedAt + checkInterval > now)
+			return;
+
+		vocabularyCheckedAt = now;
+		String version = conceptService.getVocabularyVersion();
+		if (vocabularyVersion != null && !vocabularyVersion.equals(version)) {
+			logger.info("Vocabulary version changed. ValueSets will be expanded again.");
+			expansions.clear();
+		}
+		vocabularyVersion = version;
+	}
+
+	private Set<Long> expandValueSet(ValueSet valueSet, Set<String> expanding) {
+		Set<Long> conceptIds = new HashSet<Long>();
+		if (valueSet.hasCompose()) {
+			for (ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+				conceptIds.addAll(expandConceptSet(include, expanding));
+				checkSize(valueSet.getUrl(), conceptIds.size());
+			}
+			for (ConceptSetComponent exclude : valueSet.getCompose().getExclude()) {
+				conceptIds.removeAll(expandConceptSet(exclude, expanding));
+			}
+		} else if (valueSet.hasExpansion()) {
+			Map<String, Set<String>> codesBySystem = new HashMap<String, Set<String>>();
+			addContains(valueSet.getExpansion().getContains(), codesBySystem);
+			for (Map.Entry<String, Set<String>> codes : codesBySystem.entrySet()) {
+				conceptIds.addAll(conceptService
+						.findIdsByVocabularyIdAndCodes(omopVocabulary(codes.getKey()), codes.getValue()).values());
+			}
+		}
+		return conceptIds;
+	}
+
+	private static void addContains(List<ValueSetExpansionContainsComponent> containsList,
+			Map<String, Set<String>> codesBySystem) {
+		for (ValueSetExpansionContainsComponent contains : containsList) {
+			if (contains.hasSystem() && contains.hasCode() && !contains.getAbstract()) {
+				Set<String> codes = codesBySystem.get(contains.getSystem());
+				if (codes == null) {
+					codes = new HashSet<String>();
+					codesBySystem.put(contains.getSystem(), codes);
+				}
+				codes.add(contains.getCode());
+			}
+			addContains(contains.getContains(), codesBySystem);
+		}
+	}
+
+	/*
+	 * Concepts of the system, limited to the listed concepts if any. The
+	 * referenced ValueSets further limit them.
+	 */
+	private Set<Long> expandConceptSet(ConceptSetComponent conceptSet, Set<String> expanding) {
+		Set<Long> conceptIds = null;
+		if (conceptSet.hasSystem()) {
+			String vocabularyId = omopVocabulary(conceptSet.getSystem());
+			if (conceptSet.hasFilter()) {
+				for (ConceptSetFilterComponent filter : conceptSet.getFilter()) {
+					Set<Long> filtered = expandFilter(conceptSet.getSystem(), filter);
+					if (conceptIds == null) {
+						conceptIds = filtered;
+					} else {
+						conceptIds.retainAll(filtered);
+					}
+				}
+			} else if (conceptSet.hasConcept()) {
+				List<String> codes = new ArrayList<String>();
+				for (ConceptReferenceComponent concept : conceptSet.getConcept()) {
+					codes.add(concept.getCode());
+				}
+				conceptIds = new HashSet<Long>(
+						conceptService.findIdsByVocabularyIdAndCodes(vocabularyId, codes).values());
+			} else {
+				List<Long> vocabularyConceptIds = conceptService.findIdsByVocabularyId(vocabularyId, maxExpansionSize);
+				checkSize(conceptSet.getSystem(), vocabularyConceptIds.size());
+				conceptIds = new HashSet<Long>(vocabularyConceptIds);
+			}
+		}
+
+		for (UriType valueSetUri : conceptSet.getValueSet()) {
+			List<Long> referenced = expand(valueSetUri.getValue(), expanding);
+			if (conceptIds == null) {
+				conceptIds = new HashSet<Long>(referenced);
+			} else {
+				conceptIds.retainAll(referenced);
+			}
+		}
+
+		if (conceptIds == null)
+			return Collections.emptySet();
+		return conceptIds;
+	}
+
+	private Set<Long> expandFilter(String system, ConceptSetFilterComponent filter) {
+		if (!"concept".equals(filter.getProperty())
+				|| (filter.getOp() != FilterOperator.ISA && filter.getOp() != FilterOperator.DESCENDENTOF)) {
+			ThrowFHIRExceptions.unprocessableEntityException("ValueSet filter " + filter.getProperty() + " "
+					+ filter.getOp().toCode() + " is not supported. Only concept is-a and descendent-of are");
+		}
+
+		Set<Long> conceptIds = new HashSet<Long>();
+		Long conceptId = hierarchyConceptId(system, filter.getValue());
+		if (conceptId == null)
+			return conceptIds;
+
+		for (long descendantId : descendants(system + "|" + filter.getValue(), conceptId)) {
+			conceptIds.add(descendantId);
+		}
+		if (filter.getOp() == FilterOperator.DESCENDENTOF) {
+			conceptIds.remove(conceptId);
+		}
+		return conceptIds;
+	}
+
+	/**
+	 * Sorted concept_ids of the code and its descendants. Empty if the code is
+	 * not in the vocabulary.
+	 */
+	public List<Long> expandBelow(String system, String code) {
+		Long conceptId = hierarchyConceptId(system, code);
+		if (conceptId == null)
+			return Collections.emptyList();
+		return toList(descendants(system + "|" + code, conceptId));
+	}
+
+	/**
+	 * Sorted concept_ids of the code and its ancestors. Empty if the code is
+	 * not in the vocabulary.
+	 */
+	public List<Long> expandAbove(String system, String code) {
+		Long conceptId = hierarchyConceptId(system, code);
+		if (conceptId == null)
+			return Collections.emptyList();
+
+		ConceptHierarchyIndex index = hierarchyIndex();
+		checkSize(system + "|" + code, index.getAncestorCount(conceptId));
+		return toList(index.getAncestorIds(conceptId));
+	}
+
+	private long[] descendants(String name, Long conceptId) {
+		ConceptHierarchyIndex index = hierarchyIndex();
+		checkSize(name, index.getDescendantCount(conceptId));
+		return index.getDescendantIds(conceptId);
+	}
+
+	/*
+	 * The index is built in background on the first :below or :above search.
+	 * Until then, the searches get 503.
+	 */
+	private ConceptHierarchyIndex hierarchyIndex() {
+		ConceptHierarchyIndex index = conceptService.getHierarchyIndex();
+		if (index == null) {
+			throw new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Concept hierarchy index is being built. Try again later.");
+		}
+		return index;
+	}
+
+	private Long hierarchyConceptId(String system, String code) {
+		if (system == null || system.isEmpty() || code == null || code.isEmpty()) {
+			ThrowFHIRExceptions.unprocessableEntityException("system and code are required for :below and :above");
+		}
+
+		Concept concept = conceptService.findByVocabularyIdAndCode(omopVocabulary(system), code);
+		return concept == null ? null : concept.getId();
+	}
+
+	private static List<Long> toList(long[] conceptIds) {
+		List<Long> retVal = new ArrayList<Long>(conceptIds.length);
+		for (long conceptId : conceptIds) {
+			retVal.add(conceptId);
+		}
+		return retVal;
+	}
+
+	private static String omopVocabulary(String system) {
+		String vocabularyId = null;
+		try {
+			vocabularyId = OmopCodeableConceptMapping.omopVocabularyforFhirUri(system);
+		} catch (FHIRException e) {
+			logger.debug(e.getMessage());
+		}
+		if (vocabularyId == null || "None".equals(vocabularyId)) {
+			ThrowFHIRExceptions.unprocessableEntityException("We don't understand the system, " + system
+					+ ".");
+		}
+		return vocabularyId;
+	}
+
+	private void checkSize(String name, int size) {
+		if (size > maxExpansionSize) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					name + " has more than " + maxExpansionSize + " concepts. It is too large to search.");
+		}
+	}
+
+	public long getHitCount() {
+		return expansions.getHitCount();
+	}
+
+	public long getMissCount() {
+		return expansions.getMissCount();
+	}
+}
@@ -0,0 +1,59 @@
+package edu.gatech.chai.gtfhir2.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * POSTs the response bundle to the response-url. Any 2xx status is a
+ * successful delivery.
+ *
+ * @author mc142
+ *
+ */
+public class HttpMessageCallback implements MessageCallback {
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+
+	@Override
+	public void send(String responseUrl, String messageId, String response) throws IOException {
+		byte[] body = response.getBytes(StandardCharsets.UTF_8);
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(responseUrl).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		// A redirect could send the response outside the allowed prefixes.
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/fhir+json; charset=UTF-8");
+
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (in != null) {
+			// Read the body so that the connection can be reused.
+			try {
+				byte[] buffer = new byte[4096];
+				while (in.read(buffer) != -1) {
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		if (status < 200 || status >= 300) {
+			throw new IOException("Response of message " + messageId + " to " + responseUrl + " returned " + status);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package edu.gatech.chai.gtfhir2.messaging;
+
+import java.io.IOException;
+
+/**
+ * Delivers the response of an asynchronous message. The default is
+ * {@link HttpMessageCallback}. A local stub can be set with the
+ * messageCallback context parameter (class name with a no-arg constructor).
+ *
+ * @author mc142
+ *
+ */
+public interface MessageCallback {
+	/**
+	 * @param responseUrl response-url of the message.
+	 * @param messageId   id of the queued message.
+	 * @param response    response bundle in JSON.
+	 * @throws IOException if the response was not delivered. It is retried.
+	 */
+	public void send(String responseUrl, String messageId, String response) throws IOException;
+}
@@ -0,0 +1,16 @@
+package edu.gatech.chai.gtfhir2.messaging;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+
+/**
+ * Processes a queued message bundle. The returned bundle is sent to the
+ * response-url of the message. Errors of the message itself should be
+ * reported in the response MessageHeader. An exception moves the message to
+ * the failed directory without a response.
+ *
+ * @author mc142
+ *
+ */
+public interface MessageHandler {
+	public Bundle processMessage(Bundle theMessage) throws Exception;
+}
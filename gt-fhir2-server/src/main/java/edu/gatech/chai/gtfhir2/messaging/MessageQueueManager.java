@@ -0,0 +1,544 @@
+package edu.gatech.chai.gtfhir2.messaging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.MessageHeader;
+import org.hl7.fhir.dstu3.model.MessageHeader.MessageHeaderResponseComponent;
+import org.hl7.fhir.dstu3.model.MessageHeader.ResponseType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueType;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Queue of asynchronous $process-message requests. A message is written to
+ * the queue directory before it is accepted, so accepted messages survive a
+ * restart. The worker pool processes the messages with the
+ * {@link MessageHandler}, writes the response next to the message and sends
+ * it with the {@link MessageCallback}. Both files are deleted when the
+ * response is delivered. A message that already has a response is not
+ * processed again after a restart. Only the response is sent.
+ *
+ * Messages whose response cannot be delivered after the retries are moved to
+ * the failed directory. So are messages that fail in the handler, after a
+ * response with the error has been sent.
+ *
+ * Responses are only sent to the response-urls that start with one of the
+ * allowed prefixes. There are none by default, so async messages are refused
+ * until the prefixes are set.
+ *
+ * @author mc142
+ *
+ */
+public class MessageQueueManager {
+	private static final Logger logger = LoggerFactory.getLogger(MessageQueueManager.class);
+
+	public static final int DEFAULT_THREAD_COUNT = 2;
+	public static final int DEFAULT_MAX_DEPTH = 10000;
+	public static final int DEFAULT_CALLBACK_RETRIES = 3;
+	public static final long DEFAULT_RETRY_DELAY = 2000L;
+
+	private static final String MESSAGE_SUFFIX = ".msg";
+	private static final String RESPONSE_SUFFIX = ".rsp";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String FAILED_DIRECTORY = "failed";
+
+	private static final MessageQueueManager instance = new MessageQueueManager();
+
+	private FhirContext fhirContext;
+	private MessageHandler handler;
+	private volatile MessageCallback callback = new HttpMessageCallback();
+	private volatile File queueDirectory = new File(System.getProperty("java.io.tmpdir"), "gt-fhir2-messages");
+	private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+	private volatile int callbackRetries = DEFAULT_CALLBACK_RETRIES;
+	private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+	private int threadCount = DEFAULT_THREAD_COUNT;
+	private volatile List<URL> responseUrlPrefixes = Collections.emptyList();
+
+	// Messages accepted and not yet done.
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong callbackErrorCount = new AtomicLong();
+	private final AtomicLong processingNanos = new AtomicLong();
+
+	private ExecutorService executor;
+
+	private MessageQueueManager() {
+	}
+
+	public static MessageQueueManager getInstance() {
+		return instance;
+	}
+
+	public void setFhirContext(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	public synchronized void setHandler(MessageHandler handler) {
+		this.handler = handler;
+	}
+
+	public void setCallback(MessageCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Must be set before {@link #start()}.
+	 */
+	public void setQueueDirectory(File queueDirectory) {
+		this.queueDirectory = queueDirectory;
+	}
+
+	/**
+	 * Messages processed at the same time. Must be set before
+	 * {@link #start()}.
+	 */
+	public synchronized void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * @param maxDepth messages waiting or running before new messages are
+	 *                 refused.
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param callbackRetries retries of a failed delivery. The delay doubles
+	 *                        for each retry.
+	 */
+	public void setCallbackRetries(int callbackRetries) {
+		this.callbackRetries = callbackRetries;
+	}
+
+	/**
+	 * @param retryDelay milliseconds before the first retry.
+	 */
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * @param prefixes URLs that response-urls must start with (eg.
+	 *                 https://hooks.example.org/fhir/). Invalid ones are
+	 *                 ignored.
+	 */
+	public void setResponseUrlPrefixes(List<String> prefixes) {
+		List<URL> urls = new ArrayList<URL>();
+		for (String prefix : prefixes) {
+			try {
+				URL url = new URL(prefix.trim());
+				if (isHttp(url)) {
+					urls.add(url);
+					continue;
+				}
+			} catch (MalformedURLException e) {
+			}
+			logger.warn("Ignoring response-url prefix " + prefix + ". It must be an http or https URL.");
+		}
+		this.responseUrlPrefixes = Collections.unmodifiableList(urls);
+	}
+
+	/**
+	 * True if the response-url starts with an allowed prefix. Scheme, host
+	 * and port are compared as parsed, so that a host name cannot be
+	 * extended (eg. hooks.example.org.attacker.net).
+	 */
+	public boolean isAllowedResponseUrl(String responseUrl) {
+		URL url;
+		try {
+			url = new URL(responseUrl);
+		} catch (MalformedURLException e) {
+			return false;
+		}
+		if (!isHttp(url) || url.getUserInfo() != null)
+			return false;
+		// No dot segments, or the path could climb out of the prefix.
+		String path = url.getPath().toLowerCase();
+		if (path.contains("..") || path.contains("%2e"))
+			return false;
+
+		for (URL prefix : responseUrlPrefixes) {
+			if (prefix.getProtocol().equalsIgnoreCase(url.getProtocol())
+					&& prefix.getHost().equalsIgnoreCase(url.getHost())
+					&& effectivePort(prefix) == effectivePort(url)
+					&& url.getPath().startsWith(prefix.getPath()))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isHttp(URL url) {
+		return "http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol());
+	}
+
+	private static int effectivePort(URL url) {
+		return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+	}
+
+	/**
+	 * Starts the workers and queues the messages left in the queue directory.
+	 */
+	public synchronized void start() throws IOException {
+		if (executor != null)
+			return;
+		if (handler == null) {
+			throw new IllegalStateException("No message handler");
+		}
+		File failedDirectory = new File(queueDirectory, FAILED_DIRECTORY);
+		if (!failedDirectory.isDirectory() && !failedDirectory.mkdirs()) {
+			throw new IOException("Cannot create message queue directory " + failedDirectory.getAbsolutePath());
+		}
+
+		executor = Executors.newFixedThreadPool(threadCount, new DaemonThreadFactory("process-message-"));
+
+		File[] tempFiles = listFiles(TEMP_SUFFIX);
+		for (File tempFile : tempFiles) {
+			tempFile.delete();
+		}
+
+		File[] messageFiles = listFiles(MESSAGE_SUFFIX);
+		Arrays.sort(messageFiles, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File messageFile : messageFiles) {
+			String name = messageFile.getName();
+			depth.incrementAndGet();
+			execute(name.substring(0, name.length() - MESSAGE_SUFFIX.length()));
+		}
+		if (messageFiles.length > 0) {
+			logger.info("Queued " + messageFiles.length + " messages from " + queueDirectory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Writes the message to the queue and queues it for processing.
+	 *
+	 * @return message id. null if the queue is full.
+	 */
+	public String submit(Bundle theMessage, String responseUrl) throws IOException {
+		if (depth.incrementAndGet() > maxDepth) {
+			depth.decrementAndGet();
+			return null;
+		}
+
+		String messageId = UUID.randomUUID().toString();
+		try {
+			String json = getParser().encodeResourceToString(theMessage);
+			writeFile(file(messageId, MESSAGE_SUFFIX), responseUrl + "\n" + json);
+		} catch (IOException e) {
+			depth.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			depth.decrementAndGet();
+			throw e;
+		}
+
+		acceptedCount.incrementAndGet();
+		execute(messageId);
+		return messageId;
+	}
+
+	private synchronized void execute(final String messageId) {
+		if (executor == null) {
+			throw new IllegalStateException("Message queue is not started");
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				process(messageId);
+			}
+		});
+	}
+
+	private void process(String messageId) {
+		File messageFile = file(messageId, MESSAGE_SUFFIX);
+		File responseFile = file(messageId, RESPONSE_SUFFIX);
+		try {
+			String content = readFile(messageFile);
+			int newLine = content.indexOf('\n');
+			String responseUrl = content.substring(0, newLine);
+			if (!isAllowedResponseUrl(responseUrl)) {
+				// Queued before the allowed prefixes were changed.
+				logger.error("Message " + messageId + " has a response-url that is no longer allowed: " + responseUrl);
+				failedCount.incrementAndGet();
+				moveToFailed(messageFile, responseFile);
+				return;
+			}
+
+			String response;
+			if (responseFile.exists()) {
+				// Processed before the restart.
+				response = readFile(responseFile);
+			} else {
+				long start = System.nanoTime();
+				Bundle message = null;
+				Bundle responseBundle;
+				try {
+					message = getParser().parseResource(Bundle.class, content.substring(newLine + 1));
+					responseBundle = handler.processMessage(message);
+				} catch (Exception e) {
+					logger.error("Message " + messageId + " failed", e);
+					// The sender still gets a response with the error. The
+					// message is kept in the failed directory.
+					String errorResponse = getParser().encodeResourceToString(createErrorResponse(message, e));
+					boolean delivered = deliver(messageId, responseUrl, errorResponse);
+					if (delivered) {
+						deliveredCount.incrementAndGet();
+					}
+					if (delivered || !Thread.currentThread().isInterrupted()) {
+						failedCount.incrementAndGet();
+						moveToFailed(messageFile, responseFile);
+					}
+					return;
+				}
+				response = getParser().encodeResourceToString(responseBundle);
+				writeFile(responseFile, response);
+				processingNanos.addAndGet(System.nanoTime() - start);
+				processedCount.incrementAndGet();
+			}
+
+			if (deliver(messageId, responseUrl, response)) {
+				deliveredCount.incrementAndGet();
+				messageFile.delete();
+				responseFile.delete();
+			} else if (!Thread.currentThread().isInterrupted()) {
+				failedCount.incrementAndGet();
+				moveToFailed(messageFile, responseFile);
+			}
+		} catch (Exception e) {
+			logger.error("Message " + messageId + " failed", e);
+			failedCount.incrementAndGet();
+			moveToFailed(messageFile, responseFile);
+		} finally {
+			depth.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Response message for a message that could not be processed. The
+	 * MessageHeader has the fatal-error code and refers to an
+	 * OperationOutcome with the error.
+	 *
+	 * @param message the message. null if it could not be parsed.
+	 */
+	static Bundle createErrorResponse(Bundle message, Exception e) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverity.FATAL).setCode(IssueType.EXCEPTION)
+				.setDiagnostics(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+		String outcomeUrl = "urn:uuid:" + UUID.randomUUID().toString();
+
+		MessageHeader messageHeader = new MessageHeader();
+		MessageHeaderResponseComponent messageHeaderResponse = messageHeader.getResponse();
+		if (message != null && message.getEntryFirstRep().getResource() instanceof MessageHeader) {
+			MessageHeader requestHeader = (MessageHeader) message.getEntryFirstRep().getResource();
+			messageHeader.setEvent(requestHeader.getEvent());
+			messageHeaderResponse.setIdentifier(requestHeader.getIdElement().getIdPart());
+		}
+		messageHeader.setTimestamp(new Date());
+		messageHeaderResponse.setCode(ResponseType.FATALERROR);
+		messageHeaderResponse.setDetails(new Reference(outcomeUrl));
+
+		Bundle response = new Bundle();
+		response.setType(BundleType.MESSAGE);
+		response.addEntry().setFullUrl("urn:uuid:" + UUID.randomUUID().toString()).setResource(messageHeader);
+		response.addEntry().setFullUrl(outcomeUrl).setResource(outcome);
+		return response;
+	}
+
+	private boolean deliver(String messageId, String responseUrl, String response) {
+		for (int attempt = 0;; attempt++) {
+			try {
+				callback.send(responseUrl, messageId, response);
+				return true;
+			} catch (Exception e) {
+				callbackErrorCount.incrementAndGet();
+				if (attempt >= callbackRetries) {
+					logger.error("Response of message " + messageId + " not delivered to " + responseUrl + ": "
+							+ e.getMessage());
+					return false;
+				}
+				logger.warn("Response of message " + messageId + " not delivered to " + responseUrl + ": "
+						+ e.getMessage() + ". Retrying.");
+			}
+
+			try {
+				Thread.sleep(retryDelay << attempt);
+			} catch (InterruptedException e) {
+				// Shutting down. The message stays in the queue.
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	private void moveToFailed(File messageFile, File responseFile) {
+		File failedDirectory = new File(queueDirectory, FAILED_DIRECTORY);
+		if (!messageFile.renameTo(new File(failedDirectory, messageFile.getName()))) {
+			logger.warn("Failed to move " + messageFile.getAbsolutePath() + " to " + failedDirectory.getAbsolutePath());
+		}
+		if (responseFile.exists() && !responseFile.renameTo(new File(failedDirectory, responseFile.getName()))) {
+			logger.warn("Failed to move " + responseFile.getAbsolutePath() + " to " + failedDirectory.getAbsolutePath());
+		}
+	}
+
+	private IParser getParser() {
+		return fhirContext.newJsonParser().setPrettyPrint(false);
+	}
+
+	private File file(String messageId, String suffix) {
+		return new File(queueDirectory, messageId + suffix);
+	}
+
+	private File[] listFiles(final String suffix) {
+		File[] files = queueDirectory.listFiles();
+		if (files == null)
+			return new File[0];
+
+		int count = 0;
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(suffix)) {
+				files[count++] = file;
+			}
+		}
+		return Arrays.copyOf(files, count);
+	}
+
+	/*
+	 * Writes to a temporary file and renames it. So, the file either has all
+	 * the content or does not exist.
+	 */
+	private static void writeFile(File file, String content) throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			writer.write(content);
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			throw new IOException("Cannot write " + file.getAbsolutePath());
+		}
+	}
+
+	private static String readFile(File file) throws IOException {
+		StringBuilder content = new StringBuilder((int) file.length());
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				content.append(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+		return content.toString();
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Messages accepted and not yet done.
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Messages moved to the failed directory.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Failed deliveries, including the ones that were retried.
+	 */
+	public long getCallbackErrorCount() {
+		return callbackErrorCount.get();
+	}
+
+	/**
+	 * Total time in the message handler.
+	 */
+	public long getProcessingNanos() {
+		return processingNanos.get();
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
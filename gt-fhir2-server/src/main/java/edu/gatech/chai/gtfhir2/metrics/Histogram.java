@@ -0,0 +1,52 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with fixed bucket bounds. Values are longs in the unit of the
+ * bounds (eg. microseconds). The last bucket is +Inf.
+ *
+ * @author mc142
+ *
+ */
+public class Histogram {
+	private final long[] bounds;
+	private final AtomicLongArray counts;
+	private final AtomicLong sum = new AtomicLong();
+
+	public Histogram(long[] bounds) {
+		this.bounds = bounds;
+		this.counts = new AtomicLongArray(bounds.length + 1);
+	}
+
+	public void record(long value) {
+		int bucket = 0;
+		while (bucket < bounds.length && value > bounds[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		sum.addAndGet(value);
+	}
+
+	public long[] getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Cumulative counts, one for each bound and the last for +Inf.
+	 */
+	public long[] getCumulativeCounts() {
+		long[] cumulative = new long[counts.length()];
+		long total = 0L;
+		for (int i = 0; i < cumulative.length; i++) {
+			total += counts.get(i);
+			cumulative[i] = total;
+		}
+		return cumulative;
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+}
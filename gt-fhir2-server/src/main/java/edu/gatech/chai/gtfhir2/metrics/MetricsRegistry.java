@@ -0,0 +1,178 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request metrics per operation. An operation is the resource type, the
+ * interaction and the names of the search parameters (without values). So,
+ * Observation?patient=1 and Observation?patient=2 are the same operation.
+ *
+ * The number of operations is limited. Requests with new parameter names
+ * after the limit are recorded with params "other".
+ *
+ * @author mc142
+ *
+ */
+public class MetricsRegistry {
+	public static final int MAX_OPERATIONS = 1000;
+	public static final String OTHER_PARAMS = "other";
+
+	// microseconds
+	private static final long[] TIME_BOUNDS = { 1000L, 5000L, 10000L, 25000L, 50000L, 100000L, 250000L, 500000L,
+			1000000L, 2500000L, 5000000L, 10000000L, 30000000L };
+	private static final long[] BYTE_BOUNDS = { 1024L, 4096L, 16384L, 65536L, 262144L, 1048576L, 4194304L,
+			16777216L };
+	private static final long[] COUNT_BOUNDS = { 0L, 1L, 2L, 5L, 10L, 20L, 50L, 100L, 200L, 500L, 1000L, 5000L };
+
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+
+	public static class OperationMetrics {
+		private final String resource;
+		private final String interaction;
+		private final String params;
+		private final Histogram requestTime = new Histogram(TIME_BOUNDS);
+		private final Histogram serviceTime = new Histogram(TIME_BOUNDS);
+		private final Histogram mappingTime = new Histogram(TIME_BOUNDS);
+		private final Histogram responseBytes = new Histogram(BYTE_BOUNDS);
+		private final Histogram sqlStatements = new Histogram(COUNT_BOUNDS);
+		private final Histogram entitiesLoaded = new Histogram(COUNT_BOUNDS);
+		private final AtomicLong errors = new AtomicLong();
+
+		OperationMetrics(String resource, String interaction, String params) {
+			this.resource = resource;
+			this.interaction = interaction;
+			this.params = params;
+		}
+
+		void record(RequestMetrics metrics, boolean error) {
+			requestTime.record(metrics.getElapsedNanos() / 1000L);
+			serviceTime.record(metrics.getServiceNanos() / 1000L);
+			mappingTime.record(metrics.getMappingNanos() / 1000L);
+			responseBytes.record(metrics.getResponseBytes());
+			sqlStatements.record(metrics.getSqlStatements());
+			entitiesLoaded.record(metrics.getEntitiesLoaded());
+			if (error) {
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	private MetricsRegistry() {
+	}
+
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	public void record(String resource, String interaction, String params, RequestMetrics metrics, boolean error) {
+		String key = resource + " " + interaction + " " + params;
+		OperationMetrics operation = operations.get(key);
+		if (operation == null) {
+			if (operations.size() >= MAX_OPERATIONS) {
+				params = OTHER_PARAMS;
+				key = resource + " " + interaction + " " + params;
+			}
+			operation = new OperationMetrics(resource, interaction, params);
+			OperationMetrics existing = operations.putIfAbsent(key, operation);
+			if (existing != null) {
+				operation = existing;
+			}
+		}
+		operation.record(metrics, error);
+	}
+
+	public void clear() {
+		operations.clear();
+	}
+
+	/**
+	 * Writes the histograms in Prometheus text format.
+	 */
+	public void write(PrintWriter writer) {
+		List<OperationMetrics> sorted = new ArrayList<OperationMetrics>(operations.values());
+		Collections.sort(sorted, new Comparator<OperationMetrics>() {
+			@Override
+			public int compare(OperationMetrics o1, OperationMetrics o2) {
+				int result = o1.resource.compareTo(o2.resource);
+				if (result == 0)
+					result = o1.interaction.compareTo(o2.interaction);
+				if (result == 0)
+					result = o1.params.compareTo(o2.params);
+				return result;
+			}
+		});
+
+		writeHistogram(writer, sorted, "gtfhir_request_seconds", "Wall time of the request.", 0, 1e6);
+		writeHistogram(writer, sorted, "gtfhir_service_seconds", "Time in OMOP service calls.", 1, 1e6);
+		writeHistogram(writer, sorted, "gtfhir_mapping_seconds", "Time in constructFHIR.", 2, 1e6);
+		writeHistogram(writer, sorted, "gtfhir_response_bytes", "Response body size.", 3, 1.0);
+		writeHistogram(writer, sorted, "gtfhir_sql_statements", "SQL statements per request.", 4, 1.0);
+		writeHistogram(writer, sorted, "gtfhir_entities_loaded", "Entities loaded per request.", 5, 1.0);
+
+		writer.println("# HELP gtfhir_request_errors_total Requests that ended with an error.");
+		writer.println("# TYPE gtfhir_request_errors_total counter");
+		for (OperationMetrics operation : sorted) {
+			writer.println("gtfhir_request_errors_total{" + labels(operation) + "} " + operation.errors.get());
+		}
+	}
+
+	private static Histogram histogram(OperationMetrics operation, int index) {
+		switch (index) {
+		case 0:
+			return operation.requestTime;
+		case 1:
+			return operation.serviceTime;
+		case 2:
+			return operation.mappingTime;
+		case 3:
+			return operation.responseBytes;
+		case 4:
+			return operation.sqlStatements;
+		default:
+			return operation.entitiesLoaded;
+		}
+	}
+
+	private static void writeHistogram(PrintWriter writer, List<OperationMetrics> operations, String name,
+			String help, int index, double divisor) {
+		writer.println("# HELP " + name + " " + help);
+		writer.println("# TYPE " + name + " histogram");
+		for (OperationMetrics operation : operations) {
+			Histogram histogram = histogram(operation, index);
+			String labels = labels(operation);
+			long[] bounds = histogram.getBounds();
+			long[] counts = histogram.getCumulativeCounts();
+			for (int i = 0; i < bounds.length; i++) {
+				writer.println(name + "_bucket{" + labels + ",le=\"" + format(bounds[i] / divisor) + "\"} " + counts[i]);
+			}
+			long count = counts[counts.length - 1];
+			writer.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count);
+			writer.println(name + "_sum{" + labels + "} " + format(histogram.getSum() / divisor));
+			writer.println(name + "_count{" + labels + "} " + count);
+		}
+	}
+
+	private static String labels(OperationMetrics operation) {
+		return "resource=\"" + escape(operation.resource) + "\",interaction=\"" + escape(operation.interaction)
+				+ "\",params=\"" + escape(operation.params) + "\"";
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return String.valueOf((long) value);
+		return String.valueOf(value);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,96 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Records the metrics of each request in {@link MetricsRegistry}. Counters
+ * are started when the request comes in and recorded when it completes or
+ * fails. See {@link RequestMetrics} for what is counted.
+ *
+ * @author mc142
+ *
+ */
+public class PerformanceInterceptor extends InterceptorAdapter {
+	private final MetricsRegistry registry = MetricsRegistry.getInstance();
+
+	@Override
+	public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+		RequestMetrics.start();
+		return true;
+	}
+
+	@Override
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		record(theRequestDetails, false);
+	}
+
+	@Override
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+			throws ServletException, IOException {
+		record(theRequestDetails, true);
+		return true;
+	}
+
+	private void record(RequestDetails theRequestDetails, boolean error) {
+		RequestMetrics metrics = RequestMetrics.end();
+		if (metrics == null)
+			return;
+
+		String resource = theRequestDetails.getResourceName();
+		if (resource == null || resource.isEmpty()) {
+			resource = "server";
+		}
+		registry.record(resource, interaction(theRequestDetails), params(theRequestDetails), metrics, error);
+	}
+
+	private static String interaction(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+		if (operationType == null)
+			return "unknown";
+
+		if (theRequestDetails.getOperation() != null && (operationType == RestOperationTypeEnum.EXTENDED_OPERATION_SERVER
+				|| operationType == RestOperationTypeEnum.EXTENDED_OPERATION_TYPE
+				|| operationType == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE)) {
+			return operationType.getCode() + " " + theRequestDetails.getOperation();
+		}
+		return operationType.getCode();
+	}
+
+	/**
+	 * Sorted parameter names. Formatting parameters are left out.
+	 */
+	private static String params(RequestDetails theRequestDetails) {
+		if (theRequestDetails.getParameters() == null || theRequestDetails.getParameters().isEmpty())
+			return "";
+
+		List<String> names = new ArrayList<String>();
+		for (String name : theRequestDetails.getParameters().keySet()) {
+			if (name.equals("_format") || name.equals("_pretty") || name.equals("_bundletype"))
+				continue;
+			names.add(name);
+		}
+		Collections.sort(names);
+
+		StringBuilder params = new StringBuilder();
+		for (String name : names) {
+			if (params.length() > 0)
+				params.append(',');
+			params.append(name);
+		}
+		return params.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+/**
+ * Counters of the request served by the current thread. The performance
+ * interceptor starts them when a request comes in and records them when it
+ * is done. Service calls, mapping, SQL statements, entity loads and response
+ * bytes are added from where they happen. Work on other threads (eg. bulk
+ * export) is not counted.
+ *
+ * Service and mapping times count the outermost call only. So, a service
+ * called by another service is not counted twice. Mapping time includes the
+ * service calls and lazy loads done by constructFHIR.
+ *
+ * @author mc142
+ *
+ */
+public class RequestMetrics {
+	private static final ThreadLocal<RequestMetrics> current = new ThreadLocal<RequestMetrics>();
+
+	private final long startNanos = System.nanoTime();
+	private long serviceNanos;
+	private int serviceDepth;
+	private long mappingNanos;
+	private int mappingDepth;
+	private long responseBytes;
+	private long sqlStatements;
+	private long entitiesLoaded;
+
+	public static RequestMetrics start() {
+		RequestMetrics metrics = new RequestMetrics();
+		current.set(metrics);
+		return metrics;
+	}
+
+	/**
+	 * Removes the counters from this thread and returns them. Null if there
+	 * was no request.
+	 */
+	public static RequestMetrics end() {
+		RequestMetrics metrics = current.get();
+		current.remove();
+		return metrics;
+	}
+
+	public static RequestMetrics current() {
+		return current.get();
+	}
+
+	/**
+	 * Call before a service method. Pass the returned value to exitService.
+	 */
+	public static long enterService() {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || metrics.serviceDepth++ > 0)
+			return 0L;
+		return System.nanoTime();
+	}
+
+	public static void exitService(long start) {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || metrics.serviceDepth == 0)
+			return;
+		if (--metrics.serviceDepth == 0 && start != 0L) {
+			metrics.serviceNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Call before constructFHIR. Pass the returned value to exitMapping.
+	 */
+	public static long enterMapping() {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || metrics.mappingDepth++ > 0)
+			return 0L;
+		return System.nanoTime();
+	}
+
+	public static void exitMapping(long start) {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || metrics.mappingDepth == 0)
+			return;
+		if (--metrics.mappingDepth == 0 && start != 0L) {
+			metrics.mappingNanos += System.nanoTime() - start;
+		}
+	}
+
+	public static void sqlStatement() {
+		RequestMetrics metrics = current.get();
+		if (metrics != null)
+			metrics.sqlStatements++;
+	}
+
+	public static void entityLoaded() {
+		RequestMetrics metrics = current.get();
+		if (metrics != null)
+			metrics.entitiesLoaded++;
+	}
+
+	public static void bytesWritten(int count) {
+		RequestMetrics metrics = current.get();
+		if (metrics != null)
+			metrics.responseBytes += count;
+	}
+
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	public long getServiceNanos() {
+		return serviceNanos;
+	}
+
+	public long getMappingNanos() {
+		return mappingNanos;
+	}
+
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	public long getSqlStatements() {
+		return sqlStatements;
+	}
+
+	public long getEntitiesLoaded() {
+		return entitiesLoaded;
+	}
+}
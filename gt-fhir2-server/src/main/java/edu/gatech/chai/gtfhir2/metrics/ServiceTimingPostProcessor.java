@@ -0,0 +1,53 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import edu.gatech.chai.omopv5.jpa.service.IService;
+import edu.gatech.chai.omopv5.jpa.service.TransactionService;
+
+/**
+ * Adds the time of OMOP service calls to the request metrics. Services that
+ * are already proxied (eg. for @Transactional) get the timing advice first
+ * so that commit time is included. Others are wrapped in a new proxy.
+ *
+ * @author mc142
+ *
+ */
+public class ServiceTimingPostProcessor implements BeanPostProcessor {
+	private static final MethodInterceptor timingAdvice = new MethodInterceptor() {
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			long start = RequestMetrics.enterService();
+			try {
+				return invocation.proceed();
+			} finally {
+				RequestMetrics.exitService(start);
+			}
+		}
+	};
+
+	@Override
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		return bean;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		if (!(bean instanceof IService) && !(bean instanceof TransactionService))
+			return bean;
+
+		if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+			((Advised) bean).addAdvice(0, timingAdvice);
+			return bean;
+		}
+
+		ProxyFactory proxyFactory = new ProxyFactory(bean);
+		proxyFactory.addAdvice(timingAdvice);
+		return proxyFactory.getProxy(bean.getClass().getClassLoader());
+	}
+}
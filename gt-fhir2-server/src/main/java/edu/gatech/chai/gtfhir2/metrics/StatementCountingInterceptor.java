@@ -0,0 +1,32 @@
+package edu.gatech.chai.gtfhir2.metrics;
+
+import java.io.Serializable;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.type.Type;
+
+/**
+ * Counts SQL statements and loaded entities for the request of the current
+ * thread. Set as both the session factory interceptor and statement
+ * inspector. Second-level cache hits run no SQL and are not counted as
+ * statements.
+ *
+ * @author mc142
+ *
+ */
+public class StatementCountingInterceptor extends EmptyInterceptor implements StatementInspector {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public String inspect(String sql) {
+		RequestMetrics.sqlStatement();
+		return sql;
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		RequestMetrics.entityLoaded();
+		return false;
+	}
+}
@@ -0,0 +1,262 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Group;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.web.context.ContextLoaderListener;
+
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.gtfhir2.export.BulkExportJob;
+import edu.gatech.chai.gtfhir2.export.BulkExportJob.Status;
+import edu.gatech.chai.gtfhir2.export.BulkExportJob.TypeOutput;
+import edu.gatech.chai.gtfhir2.export.BulkExportManager;
+import edu.gatech.chai.omopv5.jpa.service.FPersonService;
+
+/**
+ * FHIR Bulk Data $export. The kick-off request starts a job and returns 202
+ * with Content-Location of the status URL ($export-poll-status). The status
+ * URL returns 202 with X-Progress while the job is running and the manifest
+ * when the job is done. Files are downloaded with $export-download.
+ *
+ * [base]/$export exports all the supported types. [base]/Patient/$export
+ * exports the resources in the patient compartment. [base]/Group/[id]/$export
+ * exports the resources of the patients in the OMOP cohort whose
+ * cohort_definition_id is the group id.
+ *
+ * Responses are written directly to the servlet response. See
+ * {@link ManualResponseInterceptor}.
+ *
+ * _since is not supported as OMOP tables do not record when a row was last
+ * updated.
+ *
+ * @author mc142
+ *
+ */
+public class BulkExportProvider {
+	public static final String NDJSON = "application/fhir+ndjson";
+	private static final int RETRY_AFTER = 10;
+
+	private BulkExportManager manager = BulkExportManager.getInstance();
+	private FPersonService fPersonService;
+
+	public BulkExportProvider() {
+		fPersonService = ContextLoaderListener.getCurrentWebApplicationContext().getBean(FPersonService.class);
+	}
+
+	@Operation(name = "$export", idempotent = true)
+	public Parameters systemExport(
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_since") InstantType theSince,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		kickOff(theOutputFormat, theType, theSince, false, null, theRequestDetails, theServletResponse);
+		return ManualResponseInterceptor.responseWritten(theRequestDetails);
+	}
+
+	@Operation(name = "$export", type = Patient.class, idempotent = true)
+	public Parameters patientExport(
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_since") InstantType theSince,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		kickOff(theOutputFormat, theType, theSince, true, null, theRequestDetails, theServletResponse);
+		return ManualResponseInterceptor.responseWritten(theRequestDetails);
+	}
+
+	@Operation(name = "$export", type = Group.class, idempotent = true)
+	public Parameters groupExport(
+			@IdParam IdType theId,
+			@OperationParam(name = "_outputFormat") StringType theOutputFormat,
+			@OperationParam(name = "_type") StringType theType,
+			@OperationParam(name = "_since") InstantType theSince,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		if (theId == null || !theId.isIdPartValidLong()) {
+			throw new InvalidRequestException("Group id must be an OMOP cohort_definition_id");
+		}
+
+		List<Long> patientIds = fPersonService.findIdsByCohort(theId.getIdPartAsLong());
+		if (patientIds.isEmpty()) {
+			throw new ResourceNotFoundException(theId);
+		}
+
+		kickOff(theOutputFormat, theType, theSince, true, patientIds, theRequestDetails, theServletResponse);
+		return ManualResponseInterceptor.responseWritten(theRequestDetails);
+	}
+
+	@Operation(name = "$export-poll-status", idempotent = true)
+	public Parameters exportPollStatus(
+			@OperationParam(name = "_jobId") StringType theJobId,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		BulkExportJob job = getJob(theJobId);
+
+		Status status = job.getStatus();
+		if (status == Status.ACCEPTED || status == Status.RUNNING) {
+			theServletResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+			theServletResponse.setHeader("X-Progress", job.getProgress());
+			theServletResponse.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+			return ManualResponseInterceptor.responseWritten(theRequestDetails);
+		}
+
+		if (status == Status.ERROR) {
+			OperationOutcome outcome = new OperationOutcome();
+			for (TypeOutput output : job.getOutputs()) {
+				if (output.getError() != null) {
+					CodeableConcept detailCode = new CodeableConcept();
+					detailCode.setText(output.getError());
+					outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode);
+				}
+			}
+			theServletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			theServletResponse.setContentType("application/fhir+json");
+			theServletResponse.setCharacterEncoding("UTF-8");
+			theServletResponse.getWriter().write(
+					theRequestDetails.getServer().getFhirContext().newJsonParser().encodeResourceToString(outcome));
+			return ManualResponseInterceptor.responseWritten(theRequestDetails);
+		}
+
+		String serverBase = theRequestDetails.getFhirServerBase();
+		JSONArray outputs = new JSONArray();
+		for (TypeOutput output : job.getOutputs()) {
+			JSONObject object = new JSONObject();
+			object.put("type", output.getResourceType());
+			object.put("url", serverBase + "/$export-download?_jobId=" + encode(job.getJobId()) + "&_type="
+					+ encode(output.getResourceType()));
+			object.put("count", output.getCount());
+			outputs.put(object);
+		}
+
+		JSONObject manifest = new JSONObject();
+		manifest.put("transactionTime", new InstantType(job.getTransactionTime()).getValueAsString());
+		manifest.put("request", job.getRequest());
+		manifest.put("requiresAccessToken", true);
+		manifest.put("output", outputs);
+		manifest.put("error", new JSONArray());
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType("application/json");
+		theServletResponse.setCharacterEncoding("UTF-8");
+		theServletResponse.getWriter().write(manifest.toString());
+		return ManualResponseInterceptor.responseWritten(theRequestDetails);
+	}
+
+	@Operation(name = "$export-download", idempotent = true)
+	public Parameters exportDownload(
+			@OperationParam(name = "_jobId") StringType theJobId,
+			@OperationParam(name = "_type") StringType theType,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		BulkExportJob job = getJob(theJobId);
+		TypeOutput output = theType == null ? null : job.getOutput(theType.getValue());
+		if (output == null || output.getStatus() != Status.COMPLETE || !output.getFile().exists()) {
+			throw new ResourceNotFoundException("No export file for " + (theType == null ? null : theType.getValue()));
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(NDJSON);
+		theServletResponse.setCharacterEncoding("UTF-8");
+		theServletResponse.setHeader("Content-Length", String.valueOf(output.getFile().length()));
+
+		InputStream in = new FileInputStream(output.getFile());
+		try {
+			OutputStream out = theServletResponse.getOutputStream();
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+
+		return ManualResponseInterceptor.responseWritten(theRequestDetails);
+	}
+
+	private void kickOff(StringType theOutputFormat, StringType theType, InstantType theSince,
+			boolean patientCompartment, List<Long> patientIds, RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse) throws IOException {
+		if (theOutputFormat != null && !theOutputFormat.isEmpty()) {
+			String format = theOutputFormat.getValue();
+			if (!NDJSON.equals(format) && !"application/ndjson".equals(format) && !"ndjson".equals(format)) {
+				throw new InvalidRequestException("Unsupported _outputFormat: " + format);
+			}
+		}
+
+		if (theSince != null && !theSince.isEmpty()) {
+			throw new InvalidRequestException("_since is not supported. OMOP tables do not record the last update.");
+		}
+
+		List<String> resourceTypes;
+		if (theType == null || theType.isEmpty()) {
+			resourceTypes = manager.getDefaultTypes(patientCompartment);
+		} else {
+			resourceTypes = new ArrayList<String>();
+			for (String resourceType : theType.getValue().split(",")) {
+				resourceType = resourceType.trim();
+				if (resourceType.isEmpty() || resourceTypes.contains(resourceType))
+					continue;
+				if (!manager.isSupported(resourceType, patientCompartment)) {
+					throw new InvalidRequestException("Resource type " + resourceType + " cannot be exported"
+							+ (patientCompartment ? " from the patient compartment" : ""));
+				}
+				resourceTypes.add(resourceType);
+			}
+		}
+
+		BulkExportJob job;
+		try {
+			job = manager.submit(theRequestDetails.getCompleteUrl(), resourceTypes, patientCompartment, patientIds);
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to start the export: " + e.getMessage());
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+		theServletResponse.setHeader("Content-Location",
+				theRequestDetails.getFhirServerBase() + "/$export-poll-status?_jobId=" + encode(job.getJobId()));
+	}
+
+	private BulkExportJob getJob(StringType theJobId) {
+		BulkExportJob job = manager.getJob(theJobId == null ? null : theJobId.getValue());
+		if (job == null) {
+			throw new ResourceNotFoundException("Unknown export job " + (theJobId == null ? null : theJobId.getValue()));
+		}
+		return job;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return value;
+		}
+	}
+}
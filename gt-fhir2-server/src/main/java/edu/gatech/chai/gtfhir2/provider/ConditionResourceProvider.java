@@ -2,6 +2,7 @@ package edu.gatech.chai.gtfhir2.provider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 //import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointUse;
 import edu.gatech.chai.gtfhir2.mapping.OmopCondition;
@@ -14,6 +15,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.Delete;
@@ -29,6 +31,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
@@ -46,7 +49,7 @@ import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
  * See the MyOrganization definition to see how the custom resource definition
  * works.
  */
-public class ConditionResourceProvider implements IResourceProvider {
+public class ConditionResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 	// private CareSiteService careSiteService;
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -79,16 +82,6 @@ public class ConditionResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
 	
 	/**
 	 * The "@Create" annotation indicates that this method implements
@@ -100,6 +93,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 		Long id = null;
 		try {
 			id = myMapper.toDbase(condition, null);
+			myMapper.invalidateCache(id);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -146,7 +140,9 @@ public class ConditionResourceProvider implements IResourceProvider {
 
 	@Search()
 	public IBundleProvider findConditionById(
-			@RequiredParam(name = Condition.SP_RES_ID) TokenParam theConditionId
+			@RequiredParam(name = Condition.SP_RES_ID) TokenParam theConditionId,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 
@@ -154,8 +150,8 @@ public class ConditionResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(Condition.SP_RES_ID, theConditionId, false));
 		}
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -165,7 +161,9 @@ public class ConditionResourceProvider implements IResourceProvider {
 	public IBundleProvider findConditionByParams(
 			@OptionalParam(name = Condition.SP_CODE) TokenOrListParam theOrCodes,
 			@OptionalParam(name = Condition.SP_SUBJECT) ReferenceParam theSubjectId,
-			@OptionalParam(name = Condition.SP_PATIENT) ReferenceParam thePatientId) {
+			@OptionalParam(name = Condition.SP_PATIENT) ReferenceParam thePatientId,
+
+			SearchTotalModeEnum theSearchTotalMode) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 
 		if (theOrCodes != null) {
@@ -189,8 +187,8 @@ public class ConditionResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(Condition.SP_PATIENT, thePatientId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -238,6 +236,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = myMapper.toDbase(theCondition, theId);
+			myMapper.invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -253,6 +252,14 @@ public class ConditionResourceProvider implements IResourceProvider {
 	private void validateResource(Condition theCondition) {
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		public MyBundleProvider(List<ParameterWrapper> paramList) {
 			super(paramList);
@@ -266,11 +273,7 @@ public class ConditionResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
@@ -0,0 +1,233 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.json.JSONArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PageSource;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PagingMode;
+import edu.gatech.chai.gtfhir2.provider.SearchTotalCounter.PendingCount;
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+import edu.gatech.chai.omopv5.jpa.service.FSearchService;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * Paging provider that stores search definitions (parameters, includes,
+ * total, page source and keyset cursors) in f_search table. A total that
+ * is counted in background is saved when the count is done. Resources are
+ * not kept. Pages are searched again from the definition. So, any server
+ * that shares the database can serve any page, and the number of searches
+ * we can page is not limited by memory.
+ * 
+ * Bundle providers that are not OmopFhirBundleProvider (from operations) are
+ * kept in memory as before.
+ * 
+ * @author mc142
+ *
+ */
+public class DatabasePagingProvider extends BasePagingProvider implements IPagingProvider {
+	private static final Logger logger = LoggerFactory.getLogger(DatabasePagingProvider.class);
+
+	public static final long DEFAULT_TTL = 3600000L;
+
+	// We do not need to remove expired searches on every store.
+	private static final long CLEANUP_INTERVAL = 60000L;
+
+	private final FSearchService searchService;
+	private final FifoMemoryPagingProvider memoryPagingProvider;
+	private final Map<String, OmopFhirBundleProviderFactory> factories = new HashMap<String, OmopFhirBundleProviderFactory>();
+	private long ttl = DEFAULT_TTL;
+	private volatile long lastCleanup = 0L;
+
+	public DatabasePagingProvider(FSearchService searchService, int memorySize) {
+		this.searchService = searchService;
+		this.memoryPagingProvider = new FifoMemoryPagingProvider(memorySize);
+	}
+
+	public void addBundleProviderFactory(String resourceType, OmopFhirBundleProviderFactory factory) {
+		factories.put(resourceType, factory);
+	}
+
+	/**
+	 * @param ttl time to live of stored searches in milliseconds.
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	@Override
+	public BasePagingProvider setDefaultPageSize(int theDefaultPageSize) {
+		memoryPagingProvider.setDefaultPageSize(theDefaultPageSize);
+		return super.setDefaultPageSize(theDefaultPageSize);
+	}
+
+	@Override
+	public BasePagingProvider setMaximumPageSize(int theMaximumPageSize) {
+		memoryPagingProvider.setMaximumPageSize(theMaximumPageSize);
+		return super.setMaximumPageSize(theMaximumPageSize);
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		if (!(theList instanceof OmopFhirBundleProvider)) {
+			return memoryPagingProvider.storeResultList(theList);
+		}
+
+		OmopFhirBundleProvider bundleProvider = (OmopFhirBundleProvider) theList;
+		if (bundleProvider.getResourceType() == null || !factories.containsKey(bundleProvider.getResourceType())) {
+			return memoryPagingProvider.storeResultList(theList);
+		}
+
+		String uuid = UUID.randomUUID().toString();
+		Date now = new Date();
+
+		FSearch search = new FSearch();
+		search.setSearchUuid(uuid);
+		search.setResourceType(bundleProvider.getResourceType());
+		search.setParameters(ParameterWrapper.toJson(bundleProvider.getParamList()));
+		search.setIncludes(includesToJson(bundleProvider.getIncludes()));
+		search.setReverseIncludes(includesToJson(bundleProvider.getReverseIncludes()));
+		search.setPagingMode(bundleProvider.getPagingMode().name());
+		if (bundleProvider.getPageSource() != null) {
+			search.setPageSource(bundleProvider.getPageSource().name());
+		}
+		search.setTotalSize(bundleProvider.size());
+		search.setPreferredPageSize(bundleProvider.preferredPageSize());
+		search.setCursors(FSearch.cursorsToJson(bundleProvider.getCursors()));
+		search.setCreatedAt(bundleProvider.getPublished().getValue());
+		search.setExpiresAt(new Date(now.getTime() + ttl));
+		searchService.create(search);
+
+		bundleProvider.setStored(uuid, this);
+		if (search.getTotalSize() == null) {
+			saveTotalWhenCounted(uuid, bundleProvider.getDeferredTotalSize());
+		}
+		removeExpired(now);
+
+		return uuid;
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(String theId) {
+		IBundleProvider inMemory = memoryPagingProvider.retrieveResultList(theId);
+		if (inMemory != null) {
+			return inMemory;
+		}
+
+		FSearch search = searchService.findBySearchUuid(theId);
+		if (search == null || search.getExpiresAt().before(new Date())) {
+			return null;
+		}
+
+		OmopFhirBundleProviderFactory factory = factories.get(search.getResourceType());
+		if (factory == null) {
+			logger.warn("No resource provider for the stored search of " + search.getResourceType());
+			return null;
+		}
+
+		OmopFhirBundleProvider bundleProvider = factory.createBundleProvider(
+				ParameterWrapper.fromJson(search.getParameters()), includesFromJson(search.getIncludes()),
+				includesFromJson(search.getReverseIncludes()));
+		bundleProvider.setSearchTime(new InstantType(search.getCreatedAt()));
+		bundleProvider.setTotalSize(search.getTotalSize());
+		if (search.getPreferredPageSize() != null) {
+			bundleProvider.setPreferredPageSize(search.getPreferredPageSize());
+		}
+		if (search.getPagingMode() != null) {
+			bundleProvider.setPagingMode(PagingMode.valueOf(search.getPagingMode()));
+		}
+		if (search.getPageSource() != null) {
+			bundleProvider.setPageSource(PageSource.valueOf(search.getPageSource()));
+		}
+		bundleProvider.setCursors(FSearch.cursorsFromJson(search.getCursors()));
+		bundleProvider.setStored(theId, this);
+
+		return bundleProvider;
+	}
+
+	/**
+	 * Called by the bundle provider when it has a new keyset cursor. The
+	 * cursor is added to those stored, which may have been added by other
+	 * servers since this search was retrieved.
+	 */
+	public void saveCursor(OmopFhirBundleProvider bundleProvider, int fromIndex, Long lastId) {
+		searchService.putCursor(bundleProvider.getUuid(), fromIndex, lastId);
+	}
+
+	/**
+	 * Called by the bundle provider when it has chosen the source of its
+	 * pages, so that other servers page the search from the same source.
+	 */
+	public void savePageSource(OmopFhirBundleProvider bundleProvider) {
+		searchService.updatePageSource(bundleProvider.getUuid(), bundleProvider.getPageSource().name());
+	}
+
+	private void saveTotalWhenCounted(final String uuid, final Future<Long> deferredTotalSize) {
+		if (!(deferredTotalSize instanceof PendingCount)) {
+			return;
+		}
+
+		((PendingCount) deferredTotalSize).whenDone(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					searchService.updateTotalSize(uuid, deferredTotalSize.get().intValue());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.error("Failed to count the search results", e.getCause());
+				}
+			}
+		});
+	}
+
+	private void removeExpired(Date now) {
+		if (now.getTime() - lastCleanup < CLEANUP_INTERVAL) {
+			return;
+		}
+		lastCleanup = now.getTime();
+
+		int removed = searchService.removeExpired(now);
+		if (removed > 0) {
+			logger.debug("Removed " + removed + " expired searches");
+		}
+	}
+
+	private static String includesToJson(Set<Include> includes) {
+		JSONArray array = new JSONArray();
+		if (includes != null) {
+			for (Include include : includes) {
+				array.put(include.getValue());
+			}
+		}
+		return array.toString();
+	}
+
+	private static Set<Include> includesFromJson(String json) {
+		Set<Include> includes = new HashSet<Include>();
+		if (json == null || json.isEmpty()) {
+			return includes;
+		}
+
+		JSONArray array = new JSONArray(json);
+		for (int i = 0; i < array.length(); i++) {
+			includes.add(new Include(array.getString(i)));
+		}
+		return includes;
+	}
+}
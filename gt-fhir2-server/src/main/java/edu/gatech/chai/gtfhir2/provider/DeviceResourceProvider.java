@@ -2,6 +2,7 @@ package edu.gatech.chai.gtfhir2.provider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.Device;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -11,6 +12,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.annotation.Delete;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
@@ -20,6 +22,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
@@ -30,7 +33,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopDevice;
 import edu.gatech.chai.gtfhir2.model.MyDevice;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class DeviceResourceProvider implements IResourceProvider {
+public class DeviceResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private OmopDevice myMapper;
@@ -63,17 +66,6 @@ public class DeviceResourceProvider implements IResourceProvider {
     	return myMapper;
     }
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
 	 * new instance of a resource to the server.
@@ -105,15 +97,17 @@ public class DeviceResourceProvider implements IResourceProvider {
 
 	@Search()
 	public IBundleProvider findDevicesById(
-			@RequiredParam(name=Device.SP_RES_ID) TokenParam theDeviceId) {
+			@RequiredParam(name=Device.SP_RES_ID) TokenParam theDeviceId,
+
+			SearchTotalModeEnum theSearchTotalMode) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
 		if (theDeviceId != null) {
 			paramList.addAll(getMyMapper().mapParameter (Device.SP_RES_ID, theDeviceId, false));
 		}
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -122,7 +116,9 @@ public class DeviceResourceProvider implements IResourceProvider {
 	@Search()
 	public IBundleProvider findDevicesByParams(
 			@OptionalParam(name=Device.SP_PATIENT, chainWhitelist={"", Patient.SP_NAME}) ReferenceParam thePatient, 
-			@OptionalParam(name=Device.SP_TYPE) TokenOrListParam theOrTypes
+			@OptionalParam(name=Device.SP_TYPE) TokenOrListParam theOrTypes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -151,8 +147,8 @@ public class DeviceResourceProvider implements IResourceProvider {
 			}
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -175,6 +171,7 @@ public class DeviceResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = getMyMapper().toDbase(theDevice, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -194,6 +191,14 @@ public class DeviceResourceProvider implements IResourceProvider {
 	private void validateResource(Device theDevice) {
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		public MyBundleProvider(List<ParameterWrapper> paramList) {
 			super(paramList);
@@ -207,11 +212,7 @@ public class DeviceResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(theFromIndex, theToIndex, retv, includes);
-			} else {
-				getMyMapper().searchWithParams(theFromIndex, theToIndex, paramList, retv, includes);
-			}
+			searchPage(getMyMapper(), theFromIndex, theToIndex, retv, includes);
 
 			return retv;
 		}
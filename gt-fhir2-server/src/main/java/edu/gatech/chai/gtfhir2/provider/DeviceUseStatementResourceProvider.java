@@ -31,6 +31,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -41,7 +42,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopDeviceUseStatement;
 import edu.gatech.chai.gtfhir2.model.MyDeviceUseStatement;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class DeviceUseStatementResourceProvider implements IResourceProvider {
+public class DeviceUseStatementResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private OmopDeviceUseStatement myMapper;
@@ -74,16 +75,6 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
     	return myMapper;
     }
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
 	
 	/***
 	 * 
@@ -116,6 +107,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 		Long id=null;
 		try {
 			id = getMyMapper().toDbase(theDeviceUseStatement, null);
+			getMyMapper().invalidateCache(id);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}		
@@ -136,8 +128,9 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 			@OptionalParam(name=DeviceUseStatement.SP_SUBJECT, chainWhitelist={"", Patient.SP_NAME}) ReferenceParam theSubject,
 			
 			@IncludeParam(allow={"DeviceUseStatement:device"})
-			final Set<Include> theIncludes
+			final Set<Include> theIncludes,
 
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -175,8 +168,8 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 			}
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -199,6 +192,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = getMyMapper().toDbase(theDeviceUseStatement, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -226,6 +220,14 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 		throw new UnprocessableEntityException(FhirContext.forDstu3(), outcome);		
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 
@@ -245,11 +247,7 @@ public class DeviceUseStatementResourceProvider implements IResourceProvider {
 				includes.add("DeviceUseStatement:device");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(theFromIndex, theToIndex, retv, includes);
-			} else {
-				getMyMapper().searchWithParams(theFromIndex, theToIndex, paramList, retv, includes);
-			}
+			searchPage(getMyMapper(), theFromIndex, theToIndex, retv, includes);
 
 			return retv;
 		}
@@ -24,24 +24,29 @@ import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import edu.gatech.chai.gtfhir2.mapping.OmopDocumentReference;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class DocumentReferenceResourceProvider implements IResourceProvider {
+public class DocumentReferenceResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
 	private OmopDocumentReference myMapper;
 	private int preferredPageSize = 30;
+	private int contentMaxResults = 1000;
 
 	public DocumentReferenceResourceProvider() {
 		myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
@@ -59,6 +64,12 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 				preferredPageSize = pageSize;
 			} 
 		}
+
+		// Most relevant notes kept for a _content search.
+		String contentMaxResultsStr = myAppCtx.getServletContext().getInitParameter("contentSearchMaxResults");
+		if (contentMaxResultsStr != null && !contentMaxResultsStr.trim().isEmpty()) {
+			contentMaxResults = Integer.parseInt(contentMaxResultsStr.trim());
+		}
 	}
 	
 	public static String getType() {
@@ -74,17 +85,6 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	@Create()
 	public MethodOutcome createDocumentReference(@ResourceParam DocumentReference theDocumentReference) {
 		validateResource(theDocumentReference);
@@ -92,6 +92,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		Long id = null;
 		try {
 			id = getMyMapper().toDbase(theDocumentReference, null);
+			getMyMapper().invalidateCache(id);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 			ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
@@ -124,6 +125,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = getMyMapper().toDbase(theDocumentReference, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -143,7 +145,9 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 			final Set<Include> theIncludes,
 			
 			@IncludeParam(reverse=true)
-            final Set<Include> theReverseIncludes
+            final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -151,8 +155,8 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 			paramList.addAll(getMyMapper().mapParameter (DocumentReference.SP_RES_ID, theDocumentReferenceId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -165,13 +169,16 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 			@OptionalParam(name=DocumentReference.SP_TYPE) TokenOrListParam theOrType,
 			@OptionalParam(name=DocumentReference.SP_CREATED) DateParam theCreated,
 			@OptionalParam(name=DocumentReference.SP_INDEXED) DateParam theIndexed,
+			@OptionalParam(name=Constants.PARAM_CONTENT) StringParam theContent,
 			
 			@IncludeParam(allow={"DocumentReference:patient", "DocumentReference:subject", 
 					"DocumentReference:encounter"})
 			final Set<Include> theIncludes,
 			
 			@IncludeParam(reverse=true)
-            final Set<Include> theReverseIncludes
+            final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -225,12 +232,35 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(DocumentReference.SP_ENCOUNTER, theEncounter, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		if (theContent != null) {
+			// Ranked notes from the full-text index. The other parameters
+			// only filter them.
+			List<Long> noteIds = getMyMapper().searchContent(theContent.getValue(), paramList, contentMaxResults);
+			if (noteIds.isEmpty()) {
+				return new SimpleBundleProvider();
+			}
+			paramList = new ArrayList<ParameterWrapper>();
+			paramList.add(OmopDocumentReference.idListParameter(noteIds));
+		}
+
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		if (theContent != null) {
+			// Keyset cursors follow the id order, not the rank.
+			myBundleProvider.setPagingMode(OmopFhirBundleProvider.PagingMode.OFFSET);
+		}
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;		
 	}
 	
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -262,11 +292,7 @@ public class DocumentReferenceResourceProvider implements IResourceProvider {
 				includes.add("DocumentReference:subject");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(getMyMapper(), fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
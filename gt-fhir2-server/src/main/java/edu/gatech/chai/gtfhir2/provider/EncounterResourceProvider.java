@@ -24,6 +24,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -33,7 +34,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopEncounter;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class EncounterResourceProvider implements IResourceProvider {
+public class EncounterResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -66,17 +67,6 @@ public class EncounterResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type",
 	 * which adds a new instance of a resource to the server.
@@ -88,6 +78,7 @@ public class EncounterResourceProvider implements IResourceProvider {
 		Long id = null;
 		try {
 			id = getMyMapper().toDbase(theEncounter, null);
+			getMyMapper().invalidateCache(id);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -113,7 +104,9 @@ public class EncounterResourceProvider implements IResourceProvider {
 					"Encounter:service-provider", "Encounter:patient", "Encounter:practitioner",
 					"Encounter:subject" }) final Set<Include> theIncludes,
 
-			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes) {
+			@IncludeParam(reverse = true) final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 
 		if (theEncounterId != null) {
@@ -154,8 +147,8 @@ public class EncounterResourceProvider implements IResourceProvider {
 			}
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -198,6 +191,7 @@ public class EncounterResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = getMyMapper().toDbase(theEncounter, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -217,6 +211,14 @@ public class EncounterResourceProvider implements IResourceProvider {
 		return Encounter.class;
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -276,11 +278,7 @@ public class EncounterResourceProvider implements IResourceProvider {
 				includes.add("Encounter:subject");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
@@ -0,0 +1,40 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Parameters;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Lets an operation write its own response (status code, headers and a
+ * body that is not a FHIR resource, eg. NDJSON). HAPI operations must return
+ * a resource. The operation writes to HttpServletResponse, marks the request
+ * with {@link #responseWritten(RequestDetails)} and returns its result. This
+ * interceptor then stops HAPI from writing the returned resource.
+ *
+ * @author mc142
+ *
+ */
+public class ManualResponseInterceptor extends InterceptorAdapter {
+	private static final String RESPONSE_WRITTEN = ManualResponseInterceptor.class.getName() + ".responseWritten";
+
+	/**
+	 * Marks that the response has been written by the operation.
+	 *
+	 * @return empty Parameters for the operation to return.
+	 */
+	public static Parameters responseWritten(RequestDetails theRequestDetails) {
+		theRequestDetails.getUserData().put(RESPONSE_WRITTEN, Boolean.TRUE);
+		return new Parameters();
+	}
+
+	@Override
+	public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		return !Boolean.TRUE.equals(theRequestDetails.getUserData().get(RESPONSE_WRITTEN));
+	}
+}
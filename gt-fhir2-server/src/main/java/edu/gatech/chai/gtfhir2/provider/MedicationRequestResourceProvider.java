@@ -2,6 +2,7 @@ package edu.gatech.chai.gtfhir2.provider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -13,6 +14,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.annotation.Create;
@@ -25,6 +27,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
@@ -37,7 +40,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopMedicationRequest;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class MedicationRequestResourceProvider implements IResourceProvider {
+public class MedicationRequestResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -70,17 +73,6 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
     	return myMapper;
     }
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	@Override
 	public Class<? extends IBaseResource> getResourceType() {
 		return MedicationRequest.class;
@@ -97,6 +89,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 		Long id=null;
 		try {
 			id = myMapper.toDbase(theMedicationRequest, null);
+			myMapper.invalidateCache(id);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -126,6 +119,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 		Long fhirId=null;
 		try {
 			fhirId = myMapper.toDbase(theMedicationRequest, theId);
+			myMapper.invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -149,7 +143,9 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 	
 	@Search()
 	public IBundleProvider findMedicationRequetsById(
-			@RequiredParam(name = MedicationRequest.SP_RES_ID) TokenParam theMedicationRequestId
+			@RequiredParam(name = MedicationRequest.SP_RES_ID) TokenParam theMedicationRequestId,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -157,8 +153,8 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter (MedicationRequest.SP_RES_ID, theMedicationRequestId, false));
 		}
 				
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 
 		return myBundleProvider;
@@ -170,7 +166,9 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 			@OptionalParam(name = MedicationRequest.SP_CONTEXT) ReferenceParam theContext,
 			@OptionalParam(name = MedicationRequest.SP_AUTHOREDON) DateParam theDate,
 			@OptionalParam(name = MedicationRequest.SP_PATIENT) ReferenceParam thePatient,
-			@OptionalParam(name = MedicationRequest.SP_SUBJECT) ReferenceParam theSubject
+			@OptionalParam(name = MedicationRequest.SP_SUBJECT) ReferenceParam theSubject,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 		
@@ -204,8 +202,8 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(MedicationRequest.SP_PATIENT, thePatient, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -222,6 +220,14 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 		// TODO: implement validation method
 	}
 	
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		public MyBundleProvider(List<ParameterWrapper> paramList) {
 			super(paramList);
@@ -235,11 +241,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}		
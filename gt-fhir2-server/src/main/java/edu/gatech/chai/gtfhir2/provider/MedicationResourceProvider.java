@@ -2,6 +2,7 @@ package edu.gatech.chai.gtfhir2.provider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -12,6 +13,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Delete;
 import ca.uhn.fhir.rest.annotation.IdParam;
@@ -19,6 +21,7 @@ import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.TokenOrListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -29,7 +32,7 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.gtfhir2.mapping.OmopMedication;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class MedicationResourceProvider implements IResourceProvider {
+public class MedicationResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -62,17 +65,6 @@ public class MedicationResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	@Delete()
 	public void deleteMedication(@IdParam IdType theId) {
 		throw new MethodNotAllowedException("Medication Delete is not Allowed.");
@@ -90,7 +82,9 @@ public class MedicationResourceProvider implements IResourceProvider {
 
 	@Search()
 	public IBundleProvider findMedicationById(
-			@RequiredParam(name = Medication.SP_RES_ID) TokenParam theMedicationId
+			@RequiredParam(name = Medication.SP_RES_ID) TokenParam theMedicationId,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 		
@@ -98,8 +92,8 @@ public class MedicationResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(Medication.SP_RES_ID, theMedicationId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -107,7 +101,9 @@ public class MedicationResourceProvider implements IResourceProvider {
 	
 	@Search()
 	public IBundleProvider findMedicationByParams(
-			@OptionalParam(name = Medication.SP_CODE) TokenOrListParam theOrCodes			
+			@OptionalParam(name = Medication.SP_CODE) TokenOrListParam theOrCodes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 
@@ -121,8 +117,8 @@ public class MedicationResourceProvider implements IResourceProvider {
 			}
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		
 		return myBundleProvider;
@@ -164,6 +160,14 @@ public class MedicationResourceProvider implements IResourceProvider {
 		// }
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		public MyBundleProvider(List<ParameterWrapper> paramList) {
 			super(paramList);
@@ -177,11 +181,7 @@ public class MedicationResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
@@ -2,6 +2,7 @@ package edu.gatech.chai.gtfhir2.provider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -13,6 +14,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.annotation.Create;
@@ -25,6 +27,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
@@ -37,7 +40,7 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.gtfhir2.mapping.OmopMedicationStatement;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class MedicationStatementResourceProvider implements IResourceProvider {
+public class MedicationStatementResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -71,17 +74,6 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 		
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
 	 * new instance of a resource to the server.
@@ -93,6 +85,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 		Long id=null;
 		try {
 			id = myMapper.toDbase(theMedicationStatement, null);
+			myMapper.invalidateCache(id);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -123,6 +116,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 		Long fhirId=null;
 		try {
 			fhirId = myMapper.toDbase(theMedicationStatement, theId);
+			myMapper.invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -146,7 +140,9 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 
 	@Search()
 	public IBundleProvider findMedicationStatementsById(
-			@RequiredParam(name = MedicationStatement.SP_RES_ID) TokenParam theMedicationStatementId
+			@RequiredParam(name = MedicationStatement.SP_RES_ID) TokenParam theMedicationStatementId,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -154,8 +150,8 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter (MedicationStatement.SP_RES_ID, theMedicationStatementId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -167,7 +163,9 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 			@OptionalParam(name = MedicationStatement.SP_EFFECTIVE) DateParam theDate,
 			@OptionalParam(name = MedicationStatement.SP_PATIENT) ReferenceParam thePatient,
 			@OptionalParam(name = MedicationStatement.SP_SUBJECT) ReferenceParam theSubject,
-			@OptionalParam(name = MedicationStatement.SP_SOURCE) ReferenceParam theSource
+			@OptionalParam(name = MedicationStatement.SP_SOURCE) ReferenceParam theSource,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 		
@@ -180,7 +178,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 					// We have modifier to search data in certain code value set.
 					// With this modifier, the code is URI for value set.
 					String valueSetValue = theCode.getValue();
-					if (valueSetValue.split("?").length > 1) {
+					if (valueSetValue.contains("?")) {
 						errorProcessing("code:in="+valueSetValue+" is not supported. We only support simple value set URL");
 					} 
 				}
@@ -212,8 +210,8 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter (MedicationStatement.SP_SOURCE, theSource, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, null, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 		
@@ -251,6 +249,14 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 //		}
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 
 		public MyBundleProvider(List<ParameterWrapper> paramList) {
@@ -264,11 +270,7 @@ public class MedicationStatementResourceProvider implements IResourceProvider {
 			// _Include
 			List<String> includes = new ArrayList<String>();
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
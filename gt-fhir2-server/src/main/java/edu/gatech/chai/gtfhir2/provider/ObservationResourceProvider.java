@@ -31,6 +31,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ParamPrefixEnum;
@@ -44,7 +45,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopObservation;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class ObservationResourceProvider implements IResourceProvider {
+public class ObservationResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -77,17 +78,6 @@ public class ObservationResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
@@ -100,6 +90,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 		Long id = null;
 		try {
 			id = getMyMapper().toDbase(theObservation, null);
+			getMyMapper().invalidateCache(id);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -133,7 +124,9 @@ public class ObservationResourceProvider implements IResourceProvider {
 			final Set<Include> theIncludes,
 			
 			@IncludeParam(reverse=true)
-            final Set<Include> theReverseIncludes
+            final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -141,8 +134,8 @@ public class ObservationResourceProvider implements IResourceProvider {
 			paramList.addAll(getMyMapper().mapParameter (Observation.SP_RES_ID, theObservationId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -161,7 +154,9 @@ public class ObservationResourceProvider implements IResourceProvider {
 			final Set<Include> theIncludes,
 			
 			@IncludeParam(reverse=true)
-            final Set<Include> theReverseIncludes
+            final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {		
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -209,8 +204,8 @@ public class ObservationResourceProvider implements IResourceProvider {
 			}
 		}
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -252,6 +247,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 		Long fhirId=null;
 		try {
 			fhirId = getMyMapper().toDbase(theObservation, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -293,6 +289,14 @@ public class ObservationResourceProvider implements IResourceProvider {
 		return Observation.class;
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -347,11 +351,7 @@ public class ObservationResourceProvider implements IResourceProvider {
 				includes.add("Observation:subject");
 			}
 
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(getMyMapper(), fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
@@ -1,33 +1,250 @@
 package edu.gatech.chai.gtfhir2.provider;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import edu.gatech.chai.gtfhir2.mapping.IResourceMapping;
+import edu.gatech.chai.gtfhir2.mapping.MaterializedResourceStore;
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
 public abstract class OmopFhirBundleProvider implements IBundleProvider {
+	private static final Logger logger = LoggerFactory.getLogger(OmopFhirBundleProvider.class);
+
+	/**
+	 * OFFSET pages with LIMIT/OFFSET. KEYSET pages with "id > last seen id"
+	 * so that the database does not have to scan and throw away all the rows
+	 * before the requested page.
+	 */
+	public enum PagingMode {
+		OFFSET, KEYSET
+	}
+
+	/**
+	 * Where the pages of a search come from. It is chosen at the first page
+	 * and kept for the whole search, so that a page does not skip or repeat
+	 * the rows of another page from the other source.
+	 */
+	public enum PageSource {
+		DATABASE, STORE
+	}
+
 	InstantType searchTime;
 	List<ParameterWrapper> paramList;
 	Integer preferredPageSize;
 	Integer totalSize;
+	Future<Long> deferredTotalSize;
+	PagingMode pagingMode;
+	PageSource pageSource;
+
+	// Search definition. We need this to store the search for paging.
+	String resourceType;
+	Set<Include> includes;
+	Set<Include> reverseIncludes;
+	String uuid;
+	DatabasePagingProvider pagingProvider;
+
+	// fromIndex of the next page -> OMOP id of the last row of the previous
+	// page. At most FSearch.MAX_CURSORS, those of the first pages go first.
+	private final ConcurrentSkipListMap<Integer, Long> cursors = new ConcurrentSkipListMap<Integer, Long>();
 
 	public OmopFhirBundleProvider (List<ParameterWrapper> paramList) {
 		this.searchTime = InstantType.withCurrentTime();
 		this.paramList = paramList;
+		this.pagingMode = PagingModeInterceptor.getPagingMode();
 	}
-	
+
 	public void setPreferredPageSize(Integer preferredPageSize) {
 		this.preferredPageSize = preferredPageSize;
 	}
-	
+
 	public void setTotalSize(Integer totalSize) {
 		this.totalSize = totalSize;
 	}
 
+	/**
+	 * Total is being counted in background. size() returns null until the
+	 * count is done.
+	 */
+	public void setTotalSize(Future<Long> deferredTotalSize) {
+		this.deferredTotalSize = deferredTotalSize;
+	}
+
+	/**
+	 * @return the background count, or null if there is none or it is done
+	 *         and taken by size().
+	 */
+	public Future<Long> getDeferredTotalSize() {
+		return this.deferredTotalSize;
+	}
+
+	public void setSearchDefinition(String resourceType, Set<Include> includes, Set<Include> reverseIncludes) {
+		this.resourceType = resourceType;
+		this.includes = includes;
+		this.reverseIncludes = reverseIncludes;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	public Set<Include> getIncludes() {
+		return includes;
+	}
+
+	public Set<Include> getReverseIncludes() {
+		return reverseIncludes;
+	}
+
+	public List<ParameterWrapper> getParamList() {
+		return paramList;
+	}
+
+	public void setSearchTime(InstantType searchTime) {
+		this.searchTime = searchTime;
+	}
+
+	/**
+	 * Set when the search is stored by the paging provider. New keyset
+	 * cursors are added to the stored search so that any server can continue
+	 * the search from any page that has been served.
+	 */
+	public void setStored(String uuid, DatabasePagingProvider pagingProvider) {
+		this.uuid = uuid;
+		this.pagingProvider = pagingProvider;
+	}
+
+	public Map<Integer, Long> getCursors() {
+		return Collections.unmodifiableMap(cursors);
+	}
+
+	public void setCursors(Map<Integer, Long> cursors) {
+		this.cursors.putAll(cursors);
+		trimCursors();
+	}
+
+	public PagingMode getPagingMode() {
+		return pagingMode;
+	}
+
+	public void setPagingMode(PagingMode pagingMode) {
+		this.pagingMode = pagingMode;
+	}
+
+	/**
+	 * @return null until the first page is searched.
+	 */
+	public PageSource getPageSource() {
+		return pageSource;
+	}
+
+	public void setPageSource(PageSource pageSource) {
+		this.pageSource = pageSource;
+	}
+
+	/**
+	 * Search one page with the mapper, or from the stored JSON if the search
+	 * started on it. In KEYSET mode, if we have served the page right before
+	 * this one, we continue from the last id of that page. Otherwise (first
+	 * page or random access to a page), we fall back to offset paging.
+	 */
+	protected void searchPage(IResourceMapping<?, ?> mapper, int fromIndex, int toIndex,
+			List<IBaseResource> retv, List<String> includes) {
+		Long lastId = null;
+		if (pagingMode == PagingMode.KEYSET && fromIndex > 0) {
+			lastId = cursors.get(fromIndex);
+		}
+
+		// Drop what an earlier search on this thread has left.
+		mapper.takeLastMatchedId();
+
+		if (pageSource == null) {
+			choosePageSource(includes);
+		}
+
+		Long lastMatchedId;
+		if (pageSource == PageSource.STORE) {
+			// Served from the stored JSON. There are no included resources.
+			MaterializedResourceStore.getInstance().searchPage(resourceType, lastId, fromIndex, toIndex - fromIndex,
+					retv);
+			lastMatchedId = lastStoredId(retv);
+		} else {
+			if (lastId != null) {
+				mapper.searchAfterId(lastId, toIndex - fromIndex, paramList, retv, includes);
+			} else if (paramList.size() == 0) {
+				mapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
+			} else {
+				mapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
+			}
+			lastMatchedId = mapper.takeLastMatchedId();
+		}
+
+		if (pagingMode == PagingMode.KEYSET && lastMatchedId != null) {
+			rememberCursor(toIndex, lastMatchedId);
+		}
+	}
+
+	private void choosePageSource(List<String> includes) {
+		if (paramList.size() == 0 && includes.isEmpty()
+				&& MaterializedResourceStore.getInstance().isSearchable(resourceType)) {
+			pageSource = PageSource.STORE;
+		} else {
+			pageSource = PageSource.DATABASE;
+		}
+		if (pagingProvider != null) {
+			pagingProvider.savePageSource(this);
+		}
+	}
+
+	/*
+	 * The store is searched only when FHIR ids are OMOP ids.
+	 */
+	private static Long lastStoredId(List<IBaseResource> retv) {
+		if (retv.isEmpty())
+			return null;
+
+		IBaseResource last = retv.get(retv.size() - 1);
+		if (last.getIdElement() == null || !last.getIdElement().isIdPartValidLong())
+			return null;
+
+		return last.getIdElement().getIdPartAsLong();
+	}
+
+	/*
+	 * Pages are in id order. So, the next page starts after the last id
+	 * matched by this page.
+	 */
+	private void rememberCursor(int nextFromIndex, Long lastMatchedId) {
+		if (lastMatchedId.equals(cursors.get(nextFromIndex)))
+			return;
+
+		cursors.put(nextFromIndex, lastMatchedId);
+		trimCursors();
+		if (pagingProvider != null) {
+			pagingProvider.saveCursor(this, nextFromIndex, lastMatchedId);
+		}
+	}
+
+	private void trimCursors() {
+		while (cursors.size() > FSearch.MAX_CURSORS) {
+			cursors.pollFirstEntry();
+		}
+	}
+
 	@Override
 	public IPrimitiveType<Date> getPublished() {
 		return searchTime;
@@ -35,8 +252,7 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 
 	@Override
 	public String getUuid() {
-		// TODO Auto-generated method stub
-		return null;
+		return uuid;
 	}
 
 	@Override
@@ -46,6 +262,17 @@ public abstract class OmopFhirBundleProvider implements IBundleProvider {
 
 	@Override
 	public Integer size() {
+		if (this.totalSize == null && this.deferredTotalSize != null && this.deferredTotalSize.isDone()) {
+			try {
+				this.totalSize = this.deferredTotalSize.get().intValue();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.error("Failed to count the search results", e.getCause());
+			}
+			this.deferredTotalSize = null;
+		}
+
 		return this.totalSize;
 	}
 
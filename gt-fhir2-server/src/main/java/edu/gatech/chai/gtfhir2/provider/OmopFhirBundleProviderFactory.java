@@ -0,0 +1,19 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.util.List;
+import java.util.Set;
+
+import ca.uhn.fhir.model.api.Include;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * Resource providers implement this so that a stored search can be turned
+ * back into a bundle provider on any server.
+ * 
+ * @author mc142
+ *
+ */
+public interface OmopFhirBundleProviderFactory {
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes);
+}
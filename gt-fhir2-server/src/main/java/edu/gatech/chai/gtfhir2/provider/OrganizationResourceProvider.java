@@ -33,6 +33,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -51,7 +52,7 @@ import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
  * See the MyOrganization definition to see how the custom resource definition
  * works.
  */
-public class OrganizationResourceProvider implements IResourceProvider {
+public class OrganizationResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 	// private CareSiteService careSiteService;
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -85,17 +86,6 @@ public class OrganizationResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 
 	/**
 	 * The "@Create" annotation indicates that this method implements
@@ -108,6 +98,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
 		Long id=null;
 		try {
 			id = myMapper.toDbase(theOrganization, null);
+			myMapper.invalidateCache(id);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -158,7 +149,9 @@ public class OrganizationResourceProvider implements IResourceProvider {
 			@OptionalParam(name = MyOrganization.SP_NAME) StringParam theName,
 			
 			@IncludeParam(allow={"Organization:partof"})
-			final Set<Include> theIncludes
+			final Set<Include> theIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper> ();
 
@@ -169,8 +162,8 @@ public class OrganizationResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter (MyOrganization.SP_NAME, theName, false));
 		}
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -212,6 +205,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
 		Long fhirId=null;
 		try {
 			fhirId = myMapper.toDbase(theOrganization, theId);
+			myMapper.invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -227,6 +221,14 @@ public class OrganizationResourceProvider implements IResourceProvider {
 	private void validateResource(MyOrganization theOrganization) {
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -248,11 +250,7 @@ public class OrganizationResourceProvider implements IResourceProvider {
 				includes.add("Organization:partof");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
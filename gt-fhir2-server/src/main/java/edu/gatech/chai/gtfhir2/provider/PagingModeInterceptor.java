@@ -0,0 +1,65 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PagingMode;
+
+/**
+ * Picks the paging mode for the search in this request. Default comes from
+ * the pagingMode context parameter. A client can ask for a mode with
+ * X-Paging-Mode header (offset or keyset).
+ *
+ * Bundle providers are created in the request thread. So, we keep the mode in
+ * a thread local and the bundle provider reads it when it is created.
+ *
+ * @author mc142
+ *
+ */
+public class PagingModeInterceptor extends InterceptorAdapter {
+	public static final String PAGING_MODE_HEADER = "X-Paging-Mode";
+
+	private static final ThreadLocal<PagingMode> requestPagingMode = new ThreadLocal<PagingMode>();
+	private static volatile PagingMode defaultPagingMode = PagingMode.KEYSET;
+
+	public PagingModeInterceptor(String defaultMode) {
+		PagingMode mode = parse(defaultMode);
+		if (mode != null) {
+			defaultPagingMode = mode;
+		}
+	}
+
+	public static PagingMode getPagingMode() {
+		PagingMode mode = requestPagingMode.get();
+		if (mode == null) {
+			return defaultPagingMode;
+		}
+		return mode;
+	}
+
+	private static PagingMode parse(String mode) {
+		if (mode == null || mode.isEmpty())
+			return null;
+
+		if (mode.equalsIgnoreCase("offset")) {
+			return PagingMode.OFFSET;
+		} else if (mode.equalsIgnoreCase("keyset")) {
+			return PagingMode.KEYSET;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+		// Always set so that we do not see the mode of the previous request
+		// served by this thread.
+		PagingMode mode = parse(theRequest.getHeader(PAGING_MODE_HEADER));
+		if (mode == null) {
+			mode = defaultPagingMode;
+		}
+		requestPagingMode.set(mode);
+
+		return true;
+	}
+}
@@ -29,6 +29,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
@@ -46,7 +47,7 @@ import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
  * This is a resource provider which stores Patient resources in memory using a HashMap. This is obviously not a production-ready solution for many reasons, 
  * but it is useful to help illustrate how to build a fully-functional server.
  */
-public class PatientResourceProvider implements IResourceProvider {
+public class PatientResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 private WebApplicationContext myAppCtx;
 private String myDbType;
@@ -87,17 +88,6 @@ private int preferredPageSize = 30;
 		return myMapper;
 	}
 	
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-		
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements "create=type", which adds a 
 	 * new instance of a resource to the server.
@@ -109,6 +99,7 @@ private int preferredPageSize = 30;
 		Long id=null;
 		try {
 			id = getMyMapper().toDbase(thePatient, null);
+			getMyMapper().invalidateCache(id);
 		} catch (FHIRException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -155,7 +146,9 @@ private int preferredPageSize = 30;
 			final Set<Include> theIncludes,
 			
 			@IncludeParam(allow={"Encounter:subject", "Observation:subject"}, reverse=true)
-            final Set<Include> theReverseIncludes
+            final Set<Include> theReverseIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode
 			) {
 		
 		/*
@@ -228,8 +221,8 @@ private int preferredPageSize = 30;
 			}
 		}
 		
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, theReverseIncludes);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider; 
 		
@@ -272,6 +265,7 @@ private int preferredPageSize = 30;
 		Long fhirId=null;
 		try {
 			fhirId = getMyMapper().toDbase(thePatient, theId);
+			getMyMapper().invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 		}
@@ -301,6 +295,14 @@ private int preferredPageSize = 30;
 		}
 	}
 	
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -371,11 +373,7 @@ private int preferredPageSize = 30;
 				}
 			}
 			
-			if (paramList.size() == 0) {
-				getMyMapper().searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				getMyMapper().searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(getMyMapper(), fromIndex, toIndex, retv, includes);
 			
 			return retv;
 		}
@@ -24,6 +24,7 @@ import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
@@ -35,7 +36,7 @@ import edu.gatech.chai.gtfhir2.mapping.OmopProcedure;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
-public class ProcedureResourceProvider implements IResourceProvider {
+public class ProcedureResourceProvider implements IResourceProvider, OmopFhirBundleProviderFactory {
 
 	private WebApplicationContext myAppCtx;
 	private String myDbType;
@@ -73,17 +74,6 @@ public class ProcedureResourceProvider implements IResourceProvider {
 		return myMapper;
 	}
 
-	private Integer getTotalSize(List<ParameterWrapper> paramList) {
-		final Long totalSize;
-		if (paramList.size() == 0) {
-			totalSize = getMyMapper().getSize();
-		} else {
-			totalSize = getMyMapper().getSize(paramList);
-		}
-
-		return totalSize.intValue();
-	}
-
 	/**
 	 * The "@Create" annotation indicates that this method implements
 	 * "create=type", which adds a new instance of a resource to the server.
@@ -95,6 +85,7 @@ public class ProcedureResourceProvider implements IResourceProvider {
 		Long id = null;
 		try {
 			id = myMapper.toDbase(theProcedure, null);
+			myMapper.invalidateCache(id);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 			ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
@@ -119,6 +110,7 @@ public class ProcedureResourceProvider implements IResourceProvider {
 		Long fhirId = null;
 		try {
 			fhirId = myMapper.toDbase(theProcedure, theId);
+			myMapper.invalidateCache(fhirId);
 		} catch (FHIRException e) {
 			e.printStackTrace();
 			ThrowFHIRExceptions.unprocessableEntityException(e.getMessage());
@@ -165,15 +157,17 @@ public class ProcedureResourceProvider implements IResourceProvider {
 	@Search()
 	public IBundleProvider findProcedureById(
 			@RequiredParam(name = Procedure.SP_RES_ID) TokenParam theProcedureId, @IncludeParam(allow = {
-					"Procedure:patient", "Procedure:performer", "Procedure:context" }) final Set<Include> theIncludes) {
+					"Procedure:patient", "Procedure:performer", "Procedure:context" }) final Set<Include> theIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode) {
 		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
 
 		if (theProcedureId != null) {
 			paramList.addAll(myMapper.mapParameter(Procedure.SP_RES_ID, theProcedureId, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -204,7 +198,9 @@ public class ProcedureResourceProvider implements IResourceProvider {
 			@OptionalParam(name = Procedure.SP_PERFORMER) ReferenceParam thePerformerParam,
 
 			@IncludeParam(allow = { "Procedure:patient", "Procedure:performer",
-					"Procedure:context" }) final Set<Include> theIncludes) {
+					"Procedure:context" }) final Set<Include> theIncludes,
+
+			SearchTotalModeEnum theSearchTotalMode) {
 		/*
 		 * Create parameter map, which will be used later to construct
 		 * predicate. The predicate construction should depend on the DB schema.
@@ -248,8 +244,8 @@ public class ProcedureResourceProvider implements IResourceProvider {
 			paramList.addAll(myMapper.mapParameter(Procedure.SP_PERFORMER, thePerformerParam, false));
 		}
 
-		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, null);
-		myBundleProvider.setTotalSize(getTotalSize(paramList));
+		OmopFhirBundleProvider myBundleProvider = createBundleProvider(paramList, theIncludes, null);
+		SearchTotalCounter.getInstance().setTotal(myBundleProvider, getMyMapper(), getType(), paramList, theSearchTotalMode);
 		myBundleProvider.setPreferredPageSize(preferredPageSize);
 		return myBundleProvider;
 	}
@@ -264,6 +260,14 @@ public class ProcedureResourceProvider implements IResourceProvider {
 	private void validateResource(Procedure theProcedure) {
 	}
 
+	@Override
+	public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList, Set<Include> theIncludes,
+			Set<Include> theReverseIncludes) {
+		MyBundleProvider myBundleProvider = new MyBundleProvider(paramList, theIncludes, theReverseIncludes);
+		myBundleProvider.setSearchDefinition(getType(), theIncludes, theReverseIncludes);
+		return myBundleProvider;
+	}
+
 	class MyBundleProvider extends OmopFhirBundleProvider implements IBundleProvider {
 		Set<Include> theIncludes;
 		Set<Include> theReverseIncludes;
@@ -294,11 +298,7 @@ public class ProcedureResourceProvider implements IResourceProvider {
 				includes.add("Procedure:context");
 			}
 
-			if (paramList.size() == 0) {
-				myMapper.searchWithoutParams(fromIndex, toIndex, retv, includes);
-			} else {
-				myMapper.searchWithParams(fromIndex, toIndex, paramList, retv, includes);
-			}
+			searchPage(myMapper, fromIndex, toIndex, retv, includes);
 
 			return retv;
 		}
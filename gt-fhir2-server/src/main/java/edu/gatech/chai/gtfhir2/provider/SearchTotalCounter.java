@@ -0,0 +1,311 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import edu.gatech.chai.gtfhir2.mapping.IResourceMapping;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * Sets Bundle.total of the search bundles.
+ *
+ * count(*) on OMOP tables is expensive and it runs before any resource is
+ * returned. So, we support the following modes.
+ *
+ * NONE: no total.
+ * ESTIMATED: planner estimate for the searches without parameters. For the
+ * searches with parameters, cached count if we have one. Otherwise, DEFERRED.
+ * CACHED: exact count, cached for the TTL per resource type and parameters.
+ * Counts of a resource type are dropped when the resource type is written.
+ * ETL loads are not seen until the TTL.
+ * EXACT: exact count every time. The count is cached for the others.
+ * DEFERRED: cached count if we have one. Otherwise, count is computed in
+ * background and attached to the bundle when it is done. Later pages will
+ * have the total. Stored searches get the total with
+ * {@link PendingCount#whenDone(Runnable)}.
+ *
+ * Clients select the mode with _total (none, estimate, accurate). Default mode
+ * for the searches without _total is set with searchTotalMode context param.
+ *
+ * @author mc142
+ *
+ */
+public class SearchTotalCounter {
+	public enum Mode {
+		NONE, ESTIMATED, CACHED, EXACT, DEFERRED
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SearchTotalCounter.class);
+
+	public static final int DEFAULT_CACHE_SIZE = 1000;
+	public static final long DEFAULT_CACHE_TTL = 300000L;
+
+	private static final SearchTotalCounter instance = new SearchTotalCounter();
+
+	private volatile Mode defaultMode = Mode.EXACT;
+	private volatile long cacheTtl = DEFAULT_CACHE_TTL;
+	private final LruCache<String, CachedCount> cache = new LruCache<String, CachedCount>(DEFAULT_CACHE_SIZE);
+	private final ConcurrentMap<String, Future<Long>> pendingCounts = new ConcurrentHashMap<String, Future<Long>>();
+	private final ExecutorService executor;
+
+	private static class CachedCount {
+		final Long count;
+		final long expiresAt;
+
+		CachedCount(Long count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Count that is computed in background. Listeners are called by the
+	 * counting thread when the count is done, or right away if it is done
+	 * already.
+	 */
+	public static class PendingCount extends FutureTask<Long> {
+		private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+		PendingCount(Callable<Long> callable) {
+			super(callable);
+		}
+
+		public void whenDone(Runnable listener) {
+			synchronized (listeners) {
+				if (!isDone()) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		@Override
+		protected void done() {
+			List<Runnable> doneListeners;
+			synchronized (listeners) {
+				doneListeners = new ArrayList<Runnable>(listeners);
+				listeners.clear();
+			}
+			for (Runnable listener : doneListeners) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					logger.warn("Failed to handle the search total", e);
+				}
+			}
+		}
+	}
+
+	private SearchTotalCounter() {
+		executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "search-total-counter-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static SearchTotalCounter getInstance() {
+		return instance;
+	}
+
+	public Mode getDefaultMode() {
+		return defaultMode;
+	}
+
+	public void setDefaultMode(String mode) {
+		if (mode == null || mode.isEmpty())
+			return;
+
+		try {
+			defaultMode = Mode.valueOf(mode.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			logger.warn("Unknown search total mode, " + mode + ". Using " + defaultMode);
+		}
+	}
+
+	/**
+	 * @param cacheTtl time to live of cached counts in milliseconds.
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		this.cacheTtl = cacheTtl;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		cache.setMaxSize(cacheSize);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Drops the cached counts of the resource type. Call this when the
+	 * resource type is created, updated or deleted.
+	 */
+	public void invalidate(String resourceType) {
+		String prefix = resourceType + "?";
+		for (String key : cache.asMap().keySet()) {
+			if (key.startsWith(prefix)) {
+				cache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Sets total of the bundle provider according to the _total parameter.
+	 *
+	 * @param theSearchTotalMode _total from the request. null if not in the request.
+	 */
+	public void setTotal(OmopFhirBundleProvider bundleProvider, final IResourceMapping<?, ?> mapper,
+			String resourceType, List<ParameterWrapper> paramList, SearchTotalModeEnum theSearchTotalMode) {
+		// Mappers may add their filters to the list. So, count with a copy.
+		final List<ParameterWrapper> countParams = new ArrayList<ParameterWrapper>(paramList);
+		final String key = cacheKey(resourceType, countParams);
+
+		Long cached;
+		switch (getMode(theSearchTotalMode)) {
+		case NONE:
+			return;
+		case ESTIMATED:
+			if (countParams.isEmpty()) {
+				Long estimate = mapper.getEstimatedSize();
+				if (estimate != null) {
+					bundleProvider.setTotalSize(estimate.intValue());
+					return;
+				}
+			}
+			// Fall through. We can only estimate the searches without parameters.
+		case DEFERRED:
+			cached = getCached(key);
+			if (cached != null) {
+				bundleProvider.setTotalSize(cached.intValue());
+			} else {
+				bundleProvider.setTotalSize(countInBackground(mapper, key, countParams));
+			}
+			return;
+		case CACHED:
+			cached = getCached(key);
+			if (cached == null) {
+				cached = count(mapper, key, countParams);
+			}
+			bundleProvider.setTotalSize(cached.intValue());
+			return;
+		case EXACT:
+		default:
+			bundleProvider.setTotalSize(count(mapper, key, countParams).intValue());
+		}
+	}
+
+	private Mode getMode(SearchTotalModeEnum theSearchTotalMode) {
+		if (theSearchTotalMode == null) {
+			return defaultMode;
+		}
+
+		switch (theSearchTotalMode) {
+		case NONE:
+			return Mode.NONE;
+		case ESTIMATED:
+			return Mode.ESTIMATED;
+		default:
+			return Mode.EXACT;
+		}
+	}
+
+	private Long count(IResourceMapping<?, ?> mapper, String key, List<ParameterWrapper> paramList) {
+		Long count;
+		if (paramList.isEmpty()) {
+			count = mapper.getSize();
+		} else {
+			count = mapper.getSize(paramList);
+		}
+
+		cache.put(key, new CachedCount(count, System.currentTimeMillis() + cacheTtl));
+		return count;
+	}
+
+	private Future<Long> countInBackground(final IResourceMapping<?, ?> mapper, final String key,
+			final List<ParameterWrapper> paramList) {
+		Future<Long> pending = pendingCounts.get(key);
+		if (pending != null) {
+			return pending;
+		}
+
+		synchronized (pendingCounts) {
+			pending = pendingCounts.get(key);
+			if (pending == null) {
+				PendingCount task = new PendingCount(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						try {
+							return count(mapper, key, paramList);
+						} finally {
+							pendingCounts.remove(key);
+						}
+					}
+				});
+				// Register before we run it. Otherwise, it may finish before we put it.
+				pendingCounts.put(key, task);
+				executor.execute(task);
+				pending = task;
+			}
+		}
+
+		return pending;
+	}
+
+	private Long getCached(String key) {
+		CachedCount cachedCount = cache.get(key);
+		if (cachedCount == null) {
+			return null;
+		}
+
+		if (cachedCount.expiresAt < System.currentTimeMillis()) {
+			cache.remove(key);
+			return null;
+		}
+
+		return cachedCount.count;
+	}
+
+	/*
+	 * Parameters joined with "and" can be in any order. So, we sort them to
+	 * have the same key for the same search.
+	 */
+	private static String cacheKey(String resourceType, List<ParameterWrapper> paramList) {
+		List<String> params = new ArrayList<String>();
+		boolean allAnd = true;
+		for (ParameterWrapper param : paramList) {
+			params.add(param.toString());
+			if (param.getUpperRelationship() != null && param.getUpperRelationship().equalsIgnoreCase("or")) {
+				allAnd = false;
+			}
+		}
+
+		if (allAnd) {
+			Collections.sort(params);
+		}
+
+		return resourceType + "?" + params;
+	}
+}
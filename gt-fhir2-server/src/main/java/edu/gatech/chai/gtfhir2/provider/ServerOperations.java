@@ -1,9 +1,12 @@
 package edu.gatech.chai.gtfhir2.provider;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.hl7.fhir.dstu3.model.BooleanType;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -23,12 +26,27 @@ import org.hl7.fhir.exceptions.FHIRException;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import edu.gatech.chai.gtfhir2.mapping.OmopServerOperations;
+import edu.gatech.chai.gtfhir2.messaging.MessageHandler;
+import edu.gatech.chai.gtfhir2.messaging.MessageQueueManager;
 import edu.gatech.chai.gtfhir2.model.MyBundle;
 import edu.gatech.chai.gtfhir2.utilities.CodeableConceptUtil;
 import edu.gatech.chai.gtfhir2.utilities.ThrowFHIRExceptions;
 
-public class ServerOperations {
+/**
+ * $process-message. Only observation-provided messages are supported.
+ * With async=true, the message is queued by {@link MessageQueueManager} and
+ * 202 is returned. The response bundle is POSTed to response-url when the
+ * message is processed.
+ *
+ * @author mc142
+ *
+ */
+public class ServerOperations implements MessageHandler {
 	private OmopServerOperations myMapper;
 	
 	public ServerOperations() {
@@ -39,10 +57,47 @@ public class ServerOperations {
 	public Bundle processMessageOperation(
 			@OperationParam(name="content") Bundle theContent,
 			@OperationParam(name="async") BooleanType theAsync,
-			@OperationParam(name="response-url") UriType theUri			
-			) {
-		Bundle retVal = new Bundle();
-		MessageHeader messageHeader = null;
+			@OperationParam(name="response-url") UriType theUri,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse
+			) throws IOException {
+		if (theContent == null) {
+			throw new InvalidRequestException("content is missing");
+		}
+
+		if (theAsync == null || !theAsync.booleanValue()) {
+			return processMessage(theContent);
+		}
+
+		String responseUrl = theUri == null ? null : theUri.getValue();
+		if (responseUrl == null || !(responseUrl.startsWith("http://") || responseUrl.startsWith("https://"))
+				|| responseUrl.contains("\n") || responseUrl.contains("\r")) {
+			throw new InvalidRequestException("response-url must be an http or https URL for async messages");
+		}
+		if (!MessageQueueManager.getInstance().isAllowedResponseUrl(responseUrl)) {
+			throw new UnprocessableEntityException("response-url " + responseUrl + " is not an allowed callback URL");
+		}
+
+		// Reject unsupported messages now, with a 4xx. Errors in processing are
+		// sent later to response-url as a fatal-error response message.
+		getMessageResources(theContent);
+
+		String messageId = MessageQueueManager.getInstance().submit(theContent, responseUrl);
+		if (messageId == null) {
+			throw new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Message queue is full");
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+		theServletResponse.setHeader("X-Message-Id", messageId);
+		ManualResponseInterceptor.responseWritten(theRequestDetails);
+		return new Bundle();
+	}
+
+	/*
+	 * Resources of the message after the MessageHeader.
+	 */
+	private List<Resource> getMessageResources(Bundle theContent) {
 		List<Resource> resources = new ArrayList<Resource>();
 		
 		if (theContent.getType() == BundleType.MESSAGE) {
@@ -53,7 +108,7 @@ public class ServerOperations {
 			if (entries != null && entries.size() > 0 && 
 					entries.get(0).getResource() != null &&
 					entries.get(0).getResource().getResourceType() == ResourceType.MessageHeader) {
-				messageHeader = (MessageHeader) entries.get(0).getResource();
+				MessageHeader messageHeader = (MessageHeader) entries.get(0).getResource();
 				// We handle observation-type.
 				// TODO: Add other types later.
 				Coding event = messageHeader.getEvent();
@@ -67,11 +122,27 @@ public class ServerOperations {
 					ThrowFHIRExceptions.unprocessableEntityException(
 							"We currently support only observation-provided Message event");
 				}
+			} else {
+				ThrowFHIRExceptions.unprocessableEntityException(
+						"The first entry of the message must be a MessageHeader");
 			}
 		} else {
 			ThrowFHIRExceptions.unprocessableEntityException(
 					"The bundle must be a MESSAGE type");
 		}
+		return resources;
+	}
+
+	/**
+	 * Processes the message and returns the response message. Called in the
+	 * request for synchronous messages and by the queue workers for async.
+	 */
+	@Override
+	public Bundle processMessage(Bundle theContent) {
+		Bundle retVal = new Bundle();
+		List<Resource> resources = getMessageResources(theContent);
+		MessageHeader messageHeader = (MessageHeader) theContent.getEntryFirstRep().getResource();
+
 		MessageHeaderResponseComponent messageHeaderResponse = new MessageHeaderResponseComponent();
 		messageHeaderResponse.setId(messageHeader.getId());
 
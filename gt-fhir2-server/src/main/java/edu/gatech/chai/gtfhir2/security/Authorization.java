@@ -11,6 +11,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,6 +25,8 @@ import org.apache.oltu.oauth2.common.message.types.ParameterStyle;
 import org.apache.oltu.oauth2.rs.request.OAuthAccessResourceRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -42,6 +45,11 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
  *
  */
 public class Authorization {
+	private static final Logger logger = LoggerFactory.getLogger(Authorization.class);
+
+	// seconds
+	public static final int DEFAULT_TIME_SKEW_ALLOWANCE = 300;
+
 	private String url;
 	private String clientId;
 	private String clientSecret;
@@ -49,11 +57,12 @@ public class Authorization {
 	private String userId;
 	private String password;
 	private String token_type;
-	private int myTimeSkewAllowance = 300;
+	private int myTimeSkewAllowance = DEFAULT_TIME_SKEW_ALLOWANCE;
 	private boolean active = false;
 	private boolean expired = true;
 	private boolean is_admin = false;
 	private Set<String> scopeSet;
+	private TokenIntrospectionCache tokenCache;
 
 	public Authorization(String url) {
 		this.url = url;
@@ -66,6 +75,11 @@ public class Authorization {
 		this.clientId = clientId;
 		this.clientSecret = clientSecret;
 	}
+
+	public Authorization(String url, String clientId, String clientSecret, TokenIntrospectionCache tokenCache) {
+		this(url, clientId, clientSecret);
+		this.tokenCache = tokenCache;
+	}
 	
 	public String getClientId() {
 		return clientId;
@@ -107,7 +121,7 @@ public class Authorization {
 			}
 									
 		} catch (OAuthSystemException | OAuthProblemException e) {
-			e.printStackTrace();
+			logger.error("Invalid auth request", e);
 			return "Invalid Auth Request";
 		}
 
@@ -123,16 +137,68 @@ public class Authorization {
 		// Save the token for a future use.
 		this.token = token;
 		
+		TokenIntrospection introspection;
+		if (tokenCache == null) {
+			introspection = introspectRemote(token);
+		} else {
+			final String myToken = token;
+			try {
+				introspection = tokenCache.get(token, new Callable<TokenIntrospection>() {
+					@Override
+					public TokenIntrospection call() throws Exception {
+						return introspectRemote(myToken);
+					}
+				});
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				logger.error("Token introspection failed", e);
+				return false;
+			}
+		}
+
+		active = introspection.isActive();
+		if (active == false) {
+			return false;
+		}
+
+		// Cached result may have been expired since we cached it.
+		Date minAllowableExpirationTime = new Date(System.currentTimeMillis()-(myTimeSkewAllowance * 1000L));
+		if (introspection.getExpiresAt() < minAllowableExpirationTime.getTime()) {
+			expired = true;
+			return false;
+		}
+		expired = false;
+
+		// Store the received information such as scope, user_id, client_id, etc...
+		userId = introspection.getUserId();
+		clientId = introspection.getClientId();
+		token_type = introspection.getTokenType();
+		scopeSet = introspection.getScopeSet();
+		if (scopeSet.isEmpty()) return false;
+		
+		if (scopeSet.contains("user/*.*")) {
+			is_admin = true;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Call introspection endpoint. Inactive, or expired tokens are returned as
+	 * an inactive introspection.
+	 */
+	private TokenIntrospection introspectRemote(String token) {
 		// Introspect the token
 		RestTemplate restTemplate = new RestTemplate();
 		HttpEntity<String> reqAuth = new HttpEntity<String>(createHeaders());
 		ResponseEntity<String> response;
 		
-		String introspectTokenUrl = url+"?token="+this.token;
+		String introspectTokenUrl = url+"?token="+token;
 		response = restTemplate.exchange(introspectTokenUrl, HttpMethod.POST, reqAuth, String.class);
 		HttpStatus statusCode = response.getStatusCode();
 		if (statusCode.is2xxSuccessful() == false) {
-			return false;
+			return TokenIntrospection.inactive();
 		}
 		
 		System.out.println("IntrospectToken: "+response.getBody());
@@ -141,10 +207,8 @@ public class Authorization {
 		JSONObject jsonObject = new JSONObject(response.getBody());
 		if (jsonObject.getBoolean("active") != true) {
 			// This is not active token.
-			active = false;
-			return false;
+			return TokenIntrospection.inactive();
 		}
-		active = true;
 		
 		// Get the expiration time.
 //		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
@@ -154,35 +218,23 @@ public class Authorization {
 			expDate = new java.util.Date((long)exp_ts*1000);
 //			expDate = df.parse(exp_str);
 		} catch (JSONException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			expired = true;
-			return false;
+			logger.error("Token introspection response has no valid exp", e);
+			return TokenIntrospection.inactive();
 		}
 	
 		Date minAllowableExpirationTime = new Date(System.currentTimeMillis()-(myTimeSkewAllowance * 1000L));
 		if (expDate != null && expDate.before(minAllowableExpirationTime)) {
 			// expired.
-			expired = true;
-			return false;
+			return TokenIntrospection.inactive();
 		}
 		
-		// Store the received information such as scope, user_id, client_id, etc...
-		userId = jsonObject.getString("sub");
-		clientId = jsonObject.getString("client_id");
-		token_type = jsonObject.getString("token_type");
-
 		String[] scopeValues = jsonObject.getString("scope")
 				.trim().replaceAll("\\+", " ")
 				.split(" ");
-		scopeSet = new HashSet<String>(Arrays.asList(scopeValues));
-		if (scopeSet.isEmpty()) return false;
-		
-		if (scopeSet.contains("user/*.*")) {
-			is_admin = true;
-		}
-		
-		return true;
+
+		return new TokenIntrospection(true, jsonObject.getString("sub"), jsonObject.getString("client_id"),
+				jsonObject.getString("token_type"), new HashSet<String>(Arrays.asList(scopeValues)),
+				expDate.getTime());
 	}
 	
 	public boolean checkBearer() {
@@ -294,7 +346,7 @@ public class Authorization {
 	        String accessToken = oauthRequest.getAccessToken();
 	        return introspectToken(accessToken);
 		} catch (OAuthSystemException | OAuthProblemException e) {
-			e.printStackTrace();
+			logger.error("Invalid auth request", e);
 			return false;
 		}
 	}
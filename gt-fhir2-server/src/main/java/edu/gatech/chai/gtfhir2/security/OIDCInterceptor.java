@@ -28,6 +28,9 @@ public class OIDCInterceptor extends InterceptorAdapter {
 	private String localByPass;
 	private String readOnly;
 
+	// Shared by all the requests. Introspection results are cached per token.
+	private final TokenIntrospectionCache tokenCache = new TokenIntrospectionCache();
+
 	public OIDCInterceptor() {
 	}
 
@@ -106,7 +109,7 @@ public class OIDCInterceptor extends InterceptorAdapter {
 		// checking Auth
 		System.out.println("IntrospectURL:" + getIntrospectUrl() + " clientID:" + getClientId() + " clientSecret:"
 				+ getClientSecret());
-		Authorization myAuth = new Authorization(getIntrospectUrl(), getClientId(), getClientSecret());
+		Authorization myAuth = new Authorization(getIntrospectUrl(), getClientId(), getClientSecret(), tokenCache);
 
 		String err_msg = myAuth.introspectToken(theRequest);
 		if (err_msg.isEmpty() == false) {
@@ -122,6 +125,10 @@ public class OIDCInterceptor extends InterceptorAdapter {
 		return myAuth.allowRequest(theRequestDetails);
 	}
 
+	public TokenIntrospectionCache getTokenCache() {
+		return tokenCache;
+	}
+
 	public String getEnableOAuth() {
 		return enableOAuth;
 	}
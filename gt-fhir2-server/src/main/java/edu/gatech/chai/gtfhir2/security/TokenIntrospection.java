@@ -0,0 +1,62 @@
+package edu.gatech.chai.gtfhir2.security;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Result of the token introspection. This is immutable so that the same
+ * result can be shared by the requests with the same access token.
+ * 
+ * @author mc142
+ *
+ */
+public class TokenIntrospection {
+	private final boolean active;
+	private final String userId;
+	private final String clientId;
+	private final String tokenType;
+	private final Set<String> scopeSet;
+	// exp claim in milliseconds. 0 if not known.
+	private final long expiresAt;
+
+	private static final TokenIntrospection INACTIVE = new TokenIntrospection(false, null, null, null,
+			Collections.<String>emptySet(), 0L);
+
+	public TokenIntrospection(boolean active, String userId, String clientId, String tokenType, Set<String> scopeSet,
+			long expiresAt) {
+		this.active = active;
+		this.userId = userId;
+		this.clientId = clientId;
+		this.tokenType = tokenType;
+		this.scopeSet = Collections.unmodifiableSet(scopeSet);
+		this.expiresAt = expiresAt;
+	}
+
+	public static TokenIntrospection inactive() {
+		return INACTIVE;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public String getTokenType() {
+		return tokenType;
+	}
+
+	public Set<String> getScopeSet() {
+		return scopeSet;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+}
@@ -0,0 +1,185 @@
+package edu.gatech.chai.gtfhir2.security;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.jpa.utility.LruCache;
+
+/**
+ * Cache of token introspection results. Without this, every FHIR request
+ * makes a call to the introspection endpoint.
+ *
+ * Tokens are not kept in memory. Key is SHA-256 hash of the access token.
+ *
+ * Active tokens are cached until their exp claim plus the time skew
+ * allowance. Inactive or expired tokens are cached for a short period
+ * (negative caching) so that a client with a bad token does not flood the
+ * introspection endpoint.
+ *
+ * If the same token is being introspected by another request, we wait for
+ * that call instead of making another one.
+ *
+ * @author mc142
+ *
+ */
+public class TokenIntrospectionCache {
+	private static final Logger logger = LoggerFactory.getLogger(TokenIntrospectionCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_NEGATIVE_TTL = 10000L;
+
+	private final LruCache<String, CachedIntrospection> cache;
+	private final ConcurrentMap<String, FutureTask<TokenIntrospection>> inFlight = new ConcurrentHashMap<String, FutureTask<TokenIntrospection>>();
+	private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+	private volatile long timeSkewAllowance = Authorization.DEFAULT_TIME_SKEW_ALLOWANCE * 1000L;
+
+	private final AtomicLong introspectionCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	private static class CachedIntrospection {
+		final TokenIntrospection introspection;
+		final long cachedUntil;
+
+		CachedIntrospection(TokenIntrospection introspection, long cachedUntil) {
+			this.introspection = introspection;
+			this.cachedUntil = cachedUntil;
+		}
+	}
+
+	public TokenIntrospectionCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public TokenIntrospectionCache(int maxSize) {
+		cache = new LruCache<String, CachedIntrospection>(maxSize);
+	}
+
+	/**
+	 * @param negativeTtl milliseconds to keep inactive token results.
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @param timeSkewAllowance milliseconds. Must match the allowance used to
+	 *                          validate the exp claim.
+	 */
+	public void setTimeSkewAllowance(long timeSkewAllowance) {
+		this.timeSkewAllowance = timeSkewAllowance;
+	}
+
+	public void setMaxSize(int maxSize) {
+		cache.setMaxSize(maxSize);
+	}
+
+	/**
+	 * Returns the cached introspection of the token. If not cached or expired,
+	 * introspector is called once for all the concurrent requests with this
+	 * token.
+	 */
+	public TokenIntrospection get(String token, Callable<TokenIntrospection> introspector) throws Exception {
+		String key = DigestUtils.sha256Hex(token);
+
+		CachedIntrospection cached = cache.get(key);
+		if (cached != null) {
+			if (cached.cachedUntil >= System.currentTimeMillis()) {
+				return cached.introspection;
+			}
+			cache.remove(key);
+			expiredCount.incrementAndGet();
+		}
+
+		FutureTask<TokenIntrospection> task = new FutureTask<TokenIntrospection>(introspector);
+		FutureTask<TokenIntrospection> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			introspectionCount.incrementAndGet();
+			try {
+				task.run();
+				TokenIntrospection introspection = task.get();
+				cache.put(key, new CachedIntrospection(introspection, cachedUntil(introspection)));
+			} catch (ExecutionException e) {
+				// Failed to reach the introspection endpoint. We do not cache this.
+				logger.warn("Token introspection failed", e.getCause());
+			} finally {
+				inFlight.remove(key, task);
+			}
+		} else {
+			coalescedCount.incrementAndGet();
+		}
+
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	private long cachedUntil(TokenIntrospection introspection) {
+		long now = System.currentTimeMillis();
+		if (!introspection.isActive() || introspection.getExpiresAt() <= 0L) {
+			return now + negativeTtl;
+		}
+
+		return introspection.getExpiresAt() + timeSkewAllowance;
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount() - expiredCount.get();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount() + expiredCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		if (total == 0)
+			return 0.0;
+		return (double) hits / total;
+	}
+
+	/**
+	 * Number of calls made to the introspection endpoint.
+	 */
+	public long getIntrospectionCount() {
+		return introspectionCount.get();
+	}
+
+	/**
+	 * Number of requests that waited for another request's introspection.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", hitRatio="
+				+ getHitRatio() + ", introspections=" + getIntrospectionCount() + ", coalesced="
+				+ getCoalescedCount();
+	}
+}
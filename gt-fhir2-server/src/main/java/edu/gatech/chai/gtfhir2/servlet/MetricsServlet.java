@@ -0,0 +1,175 @@
+package edu.gatech.chai.gtfhir2.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hibernate.stat.Statistics;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+
+import edu.gatech.chai.gtfhir2.mapping.IdMapping;
+import edu.gatech.chai.gtfhir2.mapping.IdentifierIndex;
+import edu.gatech.chai.gtfhir2.mapping.MaterializedResourceStore;
+import edu.gatech.chai.gtfhir2.mapping.ResourceCache;
+import edu.gatech.chai.gtfhir2.mapping.ValueSetStore;
+import edu.gatech.chai.gtfhir2.messaging.MessageQueueManager;
+import edu.gatech.chai.gtfhir2.metrics.MetricsRegistry;
+import edu.gatech.chai.omopv5.jpa.service.CacheStatisticsService;
+import edu.gatech.chai.omopv5.jpa.service.SearchPredicateCompiler;
+
+/**
+ * Request metrics in Prometheus text format. Hibernate totals are added when
+ * hibernate.generate_statistics is true. Only requests from this host are
+ * served unless allowRemote init param is true.
+ *
+ * Async message queue depth and counts are included. Throughput is the rate
+ * of gtfhir_messages_processed_total.
+ *
+ * Resource cache hits, misses and invalidations are labelled by resource
+ * type. Materialized resource reads are counted as hits and misses.
+ * ValueSet expansions, id mapping and identifier lookups are counted the
+ * same way.
+ *
+ * DELETE clears the request metrics.
+ *
+ * @author mc142
+ *
+ */
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	private CacheStatisticsService cacheStatisticsService;
+	private boolean allowRemote = false;
+
+	@Override
+	public void init() throws ServletException {
+		WebApplicationContext myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
+		cacheStatisticsService = myAppCtx.getBean(CacheStatisticsService.class);
+		allowRemote = Boolean.parseBoolean(getServletConfig().getInitParameter("allowRemote"));
+	}
+
+	private boolean isAllowed(HttpServletRequest request) throws IOException {
+		if (allowRemote)
+			return true;
+		return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		if (!isAllowed(request)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		PrintWriter writer = response.getWriter();
+		MetricsRegistry.getInstance().write(writer);
+		writeMessageQueueMetrics(writer, MessageQueueManager.getInstance());
+		writeResourceCacheMetrics(writer, ResourceCache.getInstance());
+		writeMaterializedResourceMetrics(writer, MaterializedResourceStore.getInstance());
+		writeSearchPredicateMetrics(writer, SearchPredicateCompiler.getInstance());
+		counter(writer, "gtfhir_valueset_expansion_hits_total", ValueSetStore.getInstance().getHitCount());
+		counter(writer, "gtfhir_valueset_expansion_misses_total", ValueSetStore.getInstance().getMissCount());
+		counter(writer, "gtfhir_id_mapping_hits_total", IdMapping.getHitCount());
+		counter(writer, "gtfhir_id_mapping_misses_total", IdMapping.getMissCount());
+		counter(writer, "gtfhir_identifier_index_hits_total", IdentifierIndex.getInstance().getHitCount());
+		counter(writer, "gtfhir_identifier_index_misses_total", IdentifierIndex.getInstance().getMissCount());
+		if (cacheStatisticsService.isEnabled()) {
+			writeHibernateStatistics(writer, cacheStatisticsService.getStatistics());
+		}
+		writer.flush();
+	}
+
+	@Override
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		if (!isAllowed(request)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		MetricsRegistry.getInstance().clear();
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	private void writeMessageQueueMetrics(PrintWriter writer, MessageQueueManager messageQueueManager) {
+		writer.println("# HELP gtfhir_message_queue_depth Async messages accepted and not yet done.");
+		writer.println("# TYPE gtfhir_message_queue_depth gauge");
+		writer.println("gtfhir_message_queue_depth " + messageQueueManager.getDepth());
+		counter(writer, "gtfhir_messages_accepted_total", messageQueueManager.getAcceptedCount());
+		counter(writer, "gtfhir_messages_processed_total", messageQueueManager.getProcessedCount());
+		counter(writer, "gtfhir_messages_delivered_total", messageQueueManager.getDeliveredCount());
+		counter(writer, "gtfhir_messages_failed_total", messageQueueManager.getFailedCount());
+		counter(writer, "gtfhir_message_callback_errors_total", messageQueueManager.getCallbackErrorCount());
+		counter(writer, "gtfhir_message_processing_seconds_total", messageQueueManager.getProcessingNanos() / 1e9);
+	}
+
+	private void writeResourceCacheMetrics(PrintWriter writer, ResourceCache resourceCache) {
+		writer.println("# TYPE gtfhir_resource_cache_size gauge");
+		writer.println("gtfhir_resource_cache_size " + resourceCache.size());
+		counter(writer, "gtfhir_resource_cache_evictions_total", resourceCache.getEvictionCount());
+
+		List<ResourceCache.TypeStatistics> statistics = resourceCache.getStatistics();
+		writer.println("# TYPE gtfhir_resource_cache_hits_total counter");
+		for (ResourceCache.TypeStatistics typeStatistics : statistics) {
+			writer.println("gtfhir_resource_cache_hits_total{resource=\"" + typeStatistics.getResourceType() + "\"} "
+					+ typeStatistics.getHitCount());
+		}
+		writer.println("# TYPE gtfhir_resource_cache_misses_total counter");
+		for (ResourceCache.TypeStatistics typeStatistics : statistics) {
+			writer.println("gtfhir_resource_cache_misses_total{resource=\"" + typeStatistics.getResourceType() + "\"} "
+					+ typeStatistics.getMissCount());
+		}
+		writer.println("# TYPE gtfhir_resource_cache_invalidations_total counter");
+		for (ResourceCache.TypeStatistics typeStatistics : statistics) {
+			writer.println("gtfhir_resource_cache_invalidations_total{resource=\"" + typeStatistics.getResourceType()
+					+ "\"} " + typeStatistics.getInvalidationCount());
+		}
+	}
+
+	private void writeMaterializedResourceMetrics(PrintWriter writer, MaterializedResourceStore store) {
+		counter(writer, "gtfhir_materialized_hits_total", store.getHitCount());
+		counter(writer, "gtfhir_materialized_misses_total", store.getMissCount());
+		counter(writer, "gtfhir_materialized_rendered_total", store.getRenderedCount());
+	}
+
+	private void writeSearchPredicateMetrics(PrintWriter writer, SearchPredicateCompiler compiler) {
+		writer.println("# TYPE gtfhir_search_predicate_cache_size gauge");
+		writer.println("gtfhir_search_predicate_cache_size " + compiler.size());
+		counter(writer, "gtfhir_search_predicate_cache_hits_total", compiler.getHitCount());
+		counter(writer, "gtfhir_search_predicate_cache_misses_total", compiler.getMissCount());
+	}
+
+	private void writeHibernateStatistics(PrintWriter writer, Statistics statistics) {
+		counter(writer, "hibernate_prepare_statement_total", statistics.getPrepareStatementCount());
+		counter(writer, "hibernate_query_execution_total", statistics.getQueryExecutionCount());
+		counter(writer, "hibernate_entity_load_total", statistics.getEntityLoadCount());
+		counter(writer, "hibernate_entity_fetch_total", statistics.getEntityFetchCount());
+		counter(writer, "hibernate_collection_load_total", statistics.getCollectionLoadCount());
+		counter(writer, "hibernate_collection_fetch_total", statistics.getCollectionFetchCount());
+		counter(writer, "hibernate_second_level_cache_hit_total", statistics.getSecondLevelCacheHitCount());
+		counter(writer, "hibernate_second_level_cache_miss_total", statistics.getSecondLevelCacheMissCount());
+		counter(writer, "hibernate_query_cache_hit_total", statistics.getQueryCacheHitCount());
+		counter(writer, "hibernate_query_cache_miss_total", statistics.getQueryCacheMissCount());
+		writer.println("# TYPE hibernate_query_execution_max_seconds gauge");
+		writer.println("hibernate_query_execution_max_seconds " + statistics.getQueryExecutionMaxTime() / 1000.0);
+	}
+
+	private static void counter(PrintWriter writer, String name, long value) {
+		writer.println("# TYPE " + name + " counter");
+		writer.println(name + " " + value);
+	}
+
+	private static void counter(PrintWriter writer, String name, double value) {
+		writer.println("# TYPE " + name + " counter");
+		writer.println(name + " " + value);
+	}
+}
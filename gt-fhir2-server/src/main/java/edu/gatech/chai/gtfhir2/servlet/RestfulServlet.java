@@ -1,11 +1,35 @@
 package edu.gatech.chai.gtfhir2.servlet;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.gatech.chai.gtfhir2.config.ReplicaRoutingDataSource;
+import edu.gatech.chai.gtfhir2.export.BulkExportManager;
+import edu.gatech.chai.gtfhir2.mapping.IdMapping;
+import edu.gatech.chai.gtfhir2.mapping.IdentifierIndex;
+import edu.gatech.chai.gtfhir2.mapping.MaterializedResourceStore;
+import edu.gatech.chai.gtfhir2.mapping.ResourceCache;
+import edu.gatech.chai.gtfhir2.mapping.ValueSetStore;
+import edu.gatech.chai.gtfhir2.messaging.MessageCallback;
+import edu.gatech.chai.gtfhir2.messaging.MessageQueueManager;
+import edu.gatech.chai.gtfhir2.metrics.CountingResponseWrapper;
+import edu.gatech.chai.gtfhir2.metrics.PerformanceInterceptor;
 import edu.gatech.chai.gtfhir2.provider.*;
 import edu.gatech.chai.gtfhir2.security.OIDCInterceptor;
 import edu.gatech.chai.gtfhir2.security.SMARTonFHIRConformanceStatement;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
@@ -13,11 +37,17 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
 import ca.uhn.fhir.rest.api.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import edu.gatech.chai.omopv5.jpa.service.ConceptService;
+import edu.gatech.chai.omopv5.jpa.service.FResourcesService;
+import edu.gatech.chai.omopv5.jpa.service.FSearchService;
+import edu.gatech.chai.omopv5.jpa.service.IdMappingService;
+import edu.gatech.chai.omopv5.jpa.service.NoteService;
+import edu.gatech.chai.omopv5.jpa.service.TransactionService;
 
 /**
  * This servlet is the actual FHIR server itself
@@ -25,7 +55,10 @@ import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 public class RestfulServlet extends RestfulServer {
 
 	private static final long serialVersionUID = 1L;
+	private static final Logger logger = LoggerFactory.getLogger(RestfulServlet.class);
 	private WebApplicationContext myAppCtx;
+	private boolean performanceMetrics = false;
+	private ScheduledExecutorService noteTextIndexer;
 
 	/**
 	 * Constructor
@@ -42,12 +75,27 @@ public class RestfulServlet extends RestfulServer {
 		// Set server name
 		setServerName("GT-FHIR2 for OMOPv5");
 		
+		myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
+
+		/*
+		 * Concept cache that is shared by all the mappers.
+		 */
+		initializeConceptCache();
+		initializeIdMapping();
+		initializeIdentifierIndex();
+		initializeIngredientIndex();
+		initializeHierarchyIndex();
+		initializeTransactionWrite();
+		initializeResourceCache();
+		initializeNoteTextIndex();
+
 		/*
 		 * Set non resource provider.
 		 */
 		List<Object> plainProviders = new ArrayList<Object>();
 		SystemTransactionProvider systemTransactionProvider = new SystemTransactionProvider();
 		ServerOperations serverOperations = new ServerOperations();
+		BulkExportProvider bulkExportProvider = new BulkExportProvider();
 
 		/*
 		 * Define resource providers 
@@ -107,11 +155,60 @@ public class RestfulServlet extends RestfulServer {
 		
 		setResourceProviders(providers);
 
+		/*
+		 * Resource types for $export.
+		 */
+		initializeBulkExport();
+		BulkExportManager bulkExportManager = BulkExportManager.getInstance();
+		bulkExportManager.addSupportedMapper(ConditionResourceProvider.getType(), conditionResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(EncounterResourceProvider.getType(), encounterResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(MedicationResourceProvider.getType(), medicationResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(MedicationStatementResourceProvider.getType(), medicationStatementResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(MedicationRequestResourceProvider.getType(), medicationRequestResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(ObservationResourceProvider.getType(), observationResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(OrganizationResourceProvider.getType(), organizationResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(PractitionerResourceProvider.getType(), practitionerResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(PatientResourceProvider.getType(), patientResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(ProcedureResourceProvider.getType(), procedureResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(DeviceResourceProvider.getType(), deviceResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(DeviceUseStatementResourceProvider.getType(), deviceUseStatementResourceProvider.getMyMapper());
+		bulkExportManager.addSupportedMapper(DocumentReferenceResourceProvider.getType(), documentReferenceResourceProvider.getMyMapper());
+
+		/*
+		 * Resource types that can be stored as JSON in f_resources.
+		 */
+		MaterializedResourceStore materializedResourceStore = MaterializedResourceStore.getInstance();
+		materializedResourceStore.addSupportedMapper(ConditionResourceProvider.getType(), conditionResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(EncounterResourceProvider.getType(), encounterResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(MedicationResourceProvider.getType(), medicationResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(MedicationStatementResourceProvider.getType(), medicationStatementResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(MedicationRequestResourceProvider.getType(), medicationRequestResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(ObservationResourceProvider.getType(), observationResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(OrganizationResourceProvider.getType(), organizationResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(PractitionerResourceProvider.getType(), practitionerResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(PatientResourceProvider.getType(), patientResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(ProcedureResourceProvider.getType(), procedureResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(DeviceResourceProvider.getType(), deviceResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(DeviceUseStatementResourceProvider.getType(), deviceUseStatementResourceProvider.getMyMapper());
+		materializedResourceStore.addSupportedMapper(DocumentReferenceResourceProvider.getType(), documentReferenceResourceProvider.getMyMapper());
+		initializeMaterializedResources();
+
+		/*
+		 * ValueSets for :in searches are expanded here against the vocabulary.
+		 */
+		initializeValueSets();
+
+		/*
+		 * Queue for async $process-message.
+		 */
+		initializeMessageQueue(serverOperations);
+
 		/*
 		 * add system transaction provider to the plain provider.
 		 */
 		plainProviders.add(systemTransactionProvider);
 		plainProviders.add(serverOperations);
+		plainProviders.add(bulkExportProvider);
 		
 		setPlainProviders(plainProviders);
 		
@@ -124,13 +221,45 @@ public class RestfulServlet extends RestfulServer {
 		setServerConformanceProvider(capbilityProvider);
 		
 		/*
-		 * Add page provider. Use memory based on for now.
+		 * Add page provider. Search definitions are stored in the database so that
+		 * any server can continue the paging.
 		 */
-		FifoMemoryPagingProvider pp = new FifoMemoryPagingProvider(5);
+		DatabasePagingProvider pp = new DatabasePagingProvider(myAppCtx.getBean(FSearchService.class), 5);
 		pp.setDefaultPageSize(50);
 		pp.setMaximumPageSize(200);
+		String searchTtlStr = getServletContext().getInitParameter("searchTtl");
+		if (searchTtlStr != null && searchTtlStr.isEmpty() == false) {
+			pp.setTtl(Long.parseLong(searchTtlStr.trim()) * 1000L);
+		}
+		for (IResourceProvider provider : providers) {
+			if (provider instanceof OmopFhirBundleProviderFactory) {
+				String resourceType = getFhirContext().getResourceDefinition(provider.getResourceType()).getName();
+				pp.addBundleProviderFactory(resourceType, (OmopFhirBundleProviderFactory) provider);
+			}
+		}
 		setPagingProvider(pp);
 
+		/*
+		 * Per-request timings and SQL counts. Served by MetricsServlet.
+		 */
+		initializePerformanceMetrics();
+
+		/*
+		 * Paging mode (keyset or offset) for the searches. Clients can
+		 * override this with X-Paging-Mode header.
+		 */
+		registerInterceptor(new PagingModeInterceptor(getServletContext().getInitParameter("pagingMode")));
+
+		/*
+		 * $export operations write their own responses.
+		 */
+		registerInterceptor(new ManualResponseInterceptor());
+
+		/*
+		 * How to count Bundle.total when _total is not in the search.
+		 */
+		initializeSearchTotalCounter();
+
 		/*
 		 * Use a narrative generator. This is a completely optional step, but
 		 * can be useful as it causes HAPI to generate narratives for resources
@@ -184,4 +313,440 @@ public class RestfulServlet extends RestfulServer {
 		
 	}
 
+	/**
+	 * Stops the background threads. Otherwise, they outlive the web
+	 * application on undeploy and redeploy.
+	 */
+	@Override
+	public void destroy() {
+		MessageQueueManager.getInstance().shutdown();
+		BulkExportManager.getInstance().shutdown();
+		MaterializedResourceStore.getInstance().shutdown();
+		if (myAppCtx != null) {
+			myAppCtx.getBean(ConceptService.class).shutdown();
+		}
+		if (noteTextIndexer != null) {
+			noteTextIndexer.shutdownNow();
+			noteTextIndexer = null;
+		}
+
+		super.destroy();
+	}
+
+	/*
+	 * Registered first so that the time of the other interceptors is
+	 * included. performanceMetrics context param "false" turns it off.
+	 */
+	private void initializePerformanceMetrics() {
+		String enabledStr = getServletContext().getInitParameter("performanceMetrics");
+		if (enabledStr != null && enabledStr.trim().equalsIgnoreCase("false")) {
+			return;
+		}
+
+		performanceMetrics = true;
+		registerInterceptor(new PerformanceInterceptor());
+	}
+
+	/**
+	 * Counts the response bytes for the performance metrics.
+	 */
+	@Override
+	protected void handleRequest(RequestTypeEnum theRequestType, HttpServletRequest theRequest,
+			HttpServletResponse theResponse) throws ServletException, IOException {
+		if (performanceMetrics) {
+			theResponse = new CountingResponseWrapper(theResponse);
+		}
+		super.handleRequest(theRequestType, theRequest, theResponse);
+	}
+
+	private void initializeSearchTotalCounter() {
+		SearchTotalCounter searchTotalCounter = SearchTotalCounter.getInstance();
+		searchTotalCounter.setDefaultMode(getServletContext().getInitParameter("searchTotalMode"));
+
+		String ttlStr = getServletContext().getInitParameter("searchTotalCacheTtl");
+		if (ttlStr != null && ttlStr.isEmpty() == false) {
+			searchTotalCounter.setCacheTtl(Long.parseLong(ttlStr.trim()) * 1000L);
+		}
+	}
+
+	private void initializeConceptCache() {
+		final ConceptService conceptService = myAppCtx.getBean(ConceptService.class);
+
+		String cacheSizeStr = getServletContext().getInitParameter("conceptCacheSize");
+		if (cacheSizeStr != null && !cacheSizeStr.trim().isEmpty()) {
+			conceptService.getConceptCache().setMaxSize(Integer.parseInt(cacheSizeStr.trim()));
+		}
+
+		// Warm-up is optional. We do this in the background so that we do not
+		// hold up the server start.
+		String vocabulariesStr = getServletContext().getInitParameter("conceptCacheWarmUpVocabularies");
+		if (vocabulariesStr == null || vocabulariesStr.trim().isEmpty()) {
+			return;
+		}
+
+		final List<String> vocabularies = new ArrayList<String>();
+		for (String vocabulary : vocabulariesStr.split(",")) {
+			if (!vocabulary.trim().isEmpty()) {
+				vocabularies.add(vocabulary.trim());
+			}
+		}
+
+		Thread warmUpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					conceptService.warmUpCache(vocabularies);
+				} catch (Exception e) {
+					logger.warn("Concept cache warm-up failed: " + e.getMessage());
+				}
+			}
+		}, "concept-cache-warmup");
+		warmUpThread.setDaemon(true);
+		warmUpThread.start();
+	}
+
+	private void initializeBulkExport() {
+		BulkExportManager bulkExportManager = BulkExportManager.getInstance();
+		bulkExportManager.setFhirContext(getFhirContext());
+
+		String directory = getServletContext().getInitParameter("bulkExportDirectory");
+		if (directory != null && !directory.trim().isEmpty()) {
+			bulkExportManager.setExportDirectory(new File(directory.trim()));
+		}
+
+		String threadCountStr = getServletContext().getInitParameter("bulkExportThreads");
+		if (threadCountStr != null && !threadCountStr.trim().isEmpty()) {
+			bulkExportManager.setThreadCount(Integer.parseInt(threadCountStr.trim()));
+		}
+
+		String batchSizeStr = getServletContext().getInitParameter("bulkExportBatchSize");
+		if (batchSizeStr != null && !batchSizeStr.trim().isEmpty()) {
+			bulkExportManager.setBatchSize(Integer.parseInt(batchSizeStr.trim()));
+		}
+
+		String ttlStr = getServletContext().getInitParameter("bulkExportTtl");
+		if (ttlStr != null && !ttlStr.trim().isEmpty()) {
+			bulkExportManager.setTtl(Long.parseLong(ttlStr.trim()) * 1000L);
+		}
+	}
+
+	/*
+	 * Async $process-message. messageCallback is the class name of a
+	 * MessageCallback to replace the HTTP POST to response-url (eg. a local
+	 * stub for testing). messageResponseUrlPrefixes lists the URL prefixes
+	 * that response-url must start with.
+	 */
+	private void initializeMessageQueue(ServerOperations serverOperations) {
+		MessageQueueManager messageQueueManager = MessageQueueManager.getInstance();
+		messageQueueManager.setFhirContext(getFhirContext());
+		messageQueueManager.setHandler(serverOperations);
+
+		String directory = getServletContext().getInitParameter("messageQueueDirectory");
+		if (directory != null && !directory.trim().isEmpty()) {
+			messageQueueManager.setQueueDirectory(new File(directory.trim()));
+		}
+
+		String threadCountStr = getServletContext().getInitParameter("messageQueueThreads");
+		if (threadCountStr != null && !threadCountStr.trim().isEmpty()) {
+			messageQueueManager.setThreadCount(Integer.parseInt(threadCountStr.trim()));
+		}
+
+		String maxDepthStr = getServletContext().getInitParameter("messageQueueMaxDepth");
+		if (maxDepthStr != null && !maxDepthStr.trim().isEmpty()) {
+			messageQueueManager.setMaxDepth(Integer.parseInt(maxDepthStr.trim()));
+		}
+
+		String retriesStr = getServletContext().getInitParameter("messageCallbackRetries");
+		if (retriesStr != null && !retriesStr.trim().isEmpty()) {
+			messageQueueManager.setCallbackRetries(Integer.parseInt(retriesStr.trim()));
+		}
+
+		String prefixesStr = getServletContext().getInitParameter("messageResponseUrlPrefixes");
+		if (prefixesStr != null && !prefixesStr.trim().isEmpty()) {
+			List<String> prefixes = new ArrayList<String>();
+			for (String prefix : prefixesStr.split(",")) {
+				if (!prefix.trim().isEmpty())
+					prefixes.add(prefix.trim());
+			}
+			messageQueueManager.setResponseUrlPrefixes(prefixes);
+		}
+
+		String callbackClass = getServletContext().getInitParameter("messageCallback");
+		if (callbackClass != null && !callbackClass.trim().isEmpty()) {
+			try {
+				messageQueueManager.setCallback((MessageCallback) Class.forName(callbackClass.trim()).newInstance());
+			} catch (Exception e) {
+				logger.error("Cannot create message callback " + callbackClass + ": " + e.getMessage());
+			}
+		}
+
+		try {
+			messageQueueManager.start();
+		} catch (IOException e) {
+			logger.error("Message queue is not started: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Ingredient index is built in background, starting on the first
+	 * Medication request unless ingredientIndex is "startup". Ingredients are
+	 * queried from the vocabulary tables until it is built.
+	 * ingredientIndexCheckInterval (seconds) enables the rebuild when the
+	 * RxNorm or NDC vocabulary version changes.
+	 */
+	private void initializeIngredientIndex() {
+		final ConceptService conceptService = myAppCtx.getBean(ConceptService.class);
+
+		String checkIntervalStr = getServletContext().getInitParameter("ingredientIndexCheckInterval");
+		if (checkIntervalStr != null && !checkIntervalStr.trim().isEmpty()) {
+			conceptService.setIngredientIndexCheckInterval(Long.parseLong(checkIntervalStr.trim()) * 1000L);
+		}
+
+		String buildAt = getServletContext().getInitParameter("ingredientIndex");
+		if (!"startup".equalsIgnoreCase(buildAt == null ? null : buildAt.trim())) {
+			return;
+		}
+
+		// Starts the build in background.
+		conceptService.getIngredientIndex();
+	}
+
+	/*
+	 * idMapping "table" sends out FHIR ids from the id_mapping table instead
+	 * of the OMOP ids. idMappingCacheSize is the most mappings cached per
+	 * resource type.
+	 */
+	private void initializeIdMapping() {
+		String cacheSizeStr = getServletContext().getInitParameter("idMappingCacheSize");
+		if (cacheSizeStr != null && !cacheSizeStr.trim().isEmpty()) {
+			IdMapping.setCacheSize(Integer.parseInt(cacheSizeStr.trim()));
+		}
+
+		String mode = getServletContext().getInitParameter("idMapping");
+		if ("table".equalsIgnoreCase(mode == null ? null : mode.trim())) {
+			IdMapping.setIdMappingService(myAppCtx.getBean(IdMappingService.class));
+			logger.info("FHIR ids are mapped with the id_mapping table");
+		}
+	}
+
+	/*
+	 * Identifiers of Patient, Practitioner and Organization are resolved to
+	 * OMOP ids through an in-process cache of identifierIndexSize entries per
+	 * type. identifierIndexNegativeTtl (seconds) is how long an identifier
+	 * that is not in the database is remembered.
+	 */
+	private void initializeIdentifierIndex() {
+		IdentifierIndex identifierIndex = IdentifierIndex.getInstance();
+
+		String sizeStr = getServletContext().getInitParameter("identifierIndexSize");
+		if (sizeStr != null && !sizeStr.trim().isEmpty()) {
+			identifierIndex.setMaxSize(Integer.parseInt(sizeStr.trim()));
+		}
+
+		String ttlStr = getServletContext().getInitParameter("identifierIndexNegativeTtl");
+		if (ttlStr != null && !ttlStr.trim().isEmpty()) {
+			identifierIndex.setNegativeTtl(Long.parseLong(ttlStr.trim()) * 1000L);
+		}
+	}
+
+	/*
+	 * Hierarchy index for :below and :above is built in background, starting
+	 * on the first such search unless hierarchyIndex is "startup". Those
+	 * searches get 503 until it is built. hierarchyIndexVocabularies limits it
+	 * to the comma separated vocabularies. hierarchyIndexCheckInterval
+	 * (seconds) enables the rebuild when a vocabulary version changes.
+	 */
+	private void initializeHierarchyIndex() {
+		final ConceptService conceptService = myAppCtx.getBean(ConceptService.class);
+
+		String vocabulariesStr = getServletContext().getInitParameter("hierarchyIndexVocabularies");
+		if (vocabulariesStr != null && !vocabulariesStr.trim().isEmpty()) {
+			List<String> vocabularyIds = new ArrayList<String>();
+			for (String vocabularyId : vocabulariesStr.split(",")) {
+				if (!vocabularyId.trim().isEmpty()) {
+					vocabularyIds.add(vocabularyId.trim());
+				}
+			}
+			conceptService.setHierarchyIndexVocabularies(vocabularyIds);
+		}
+
+		String checkIntervalStr = getServletContext().getInitParameter("hierarchyIndexCheckInterval");
+		if (checkIntervalStr != null && !checkIntervalStr.trim().isEmpty()) {
+			conceptService.setHierarchyIndexCheckInterval(Long.parseLong(checkIntervalStr.trim()) * 1000L);
+		}
+
+		String buildAt = getServletContext().getInitParameter("hierarchyIndex");
+		if (!"startup".equalsIgnoreCase(buildAt == null ? null : buildAt.trim())) {
+			return;
+		}
+
+		// Starts the build in background.
+		conceptService.getHierarchyIndex();
+	}
+
+	/*
+	 * Transaction bundles flush the inserts and clear the persistence context
+	 * every transactionFlushInterval entities.
+	 */
+	private void initializeTransactionWrite() {
+		String flushIntervalStr = getServletContext().getInitParameter("transactionFlushInterval");
+		if (flushIntervalStr != null && !flushIntervalStr.trim().isEmpty()) {
+			myAppCtx.getBean(TransactionService.class).setFlushInterval(Integer.parseInt(flushIntervalStr.trim()));
+		}
+	}
+
+	/*
+	 * Resources built for read are cached for resourceCacheTtl seconds.
+	 * resourceCacheSize 0 disables the cache. With read replicas, a resource
+	 * type is not cached while a replica can still have the rows from before
+	 * its last write.
+	 */
+	private void initializeResourceCache() {
+		ResourceCache resourceCache = ResourceCache.getInstance();
+
+		String cacheSizeStr = getServletContext().getInitParameter("resourceCacheSize");
+		if (cacheSizeStr != null && !cacheSizeStr.trim().isEmpty()) {
+			resourceCache.setMaxSize(Integer.parseInt(cacheSizeStr.trim()));
+		}
+
+		String ttlStr = getServletContext().getInitParameter("resourceCacheTtl");
+		if (ttlStr != null && !ttlStr.trim().isEmpty()) {
+			resourceCache.setTtl(Long.parseLong(ttlStr.trim()) * 1000L);
+		}
+
+		resourceCache.setWriteGrace(myAppCtx.getBean(ReplicaRoutingDataSource.class).getMaxStaleness());
+	}
+
+	/*
+	 * materializedResources is the comma separated resource types to store as
+	 * JSON. Empty disables the store. The stored resources are rendered again
+	 * when the vocabulary version changes (checked every
+	 * materializeCheckInterval seconds) and every materializeRefreshInterval
+	 * seconds.
+	 */
+	private void initializeMaterializedResources() {
+		String typesStr = getServletContext().getInitParameter("materializedResources");
+		if (typesStr == null || typesStr.trim().isEmpty()) {
+			return;
+		}
+
+		List<String> resourceTypes = new ArrayList<String>();
+		for (String resourceType : typesStr.split(",")) {
+			if (!resourceType.trim().isEmpty()) {
+				resourceTypes.add(resourceType.trim());
+			}
+		}
+
+		MaterializedResourceStore materializedResourceStore = MaterializedResourceStore.getInstance();
+		materializedResourceStore.setFhirContext(getFhirContext());
+		materializedResourceStore.setResourcesService(myAppCtx.getBean(FResourcesService.class));
+		materializedResourceStore.setConceptService(myAppCtx.getBean(ConceptService.class));
+		materializedResourceStore.setResourceTypes(resourceTypes);
+
+		String batchSizeStr = getServletContext().getInitParameter("materializeBatchSize");
+		if (batchSizeStr != null && !batchSizeStr.trim().isEmpty()) {
+			materializedResourceStore.setBatchSize(Integer.parseInt(batchSizeStr.trim()));
+		}
+
+		String checkIntervalStr = getServletContext().getInitParameter("materializeCheckInterval");
+		if (checkIntervalStr != null && !checkIntervalStr.trim().isEmpty()) {
+			materializedResourceStore.setCheckInterval(Long.parseLong(checkIntervalStr.trim()) * 1000L);
+		}
+
+		String refreshIntervalStr = getServletContext().getInitParameter("materializeRefreshInterval");
+		if (refreshIntervalStr != null && !refreshIntervalStr.trim().isEmpty()) {
+			materializedResourceStore.setRefreshInterval(Long.parseLong(refreshIntervalStr.trim()) * 1000L);
+		}
+
+		materializedResourceStore.start();
+	}
+
+	/*
+	 * valueSetDirectory holds ValueSet (or Bundle of ValueSets) files that are
+	 * imported at start. ValueSets not found there are fetched once from the
+	 * terminology server unless valueSetRemoteLookup is false.
+	 * valueSetNegativeTtl (seconds) is how long a ValueSet that the server
+	 * does not have is not asked for again.
+	 */
+	private void initializeValueSets() {
+		ValueSetStore valueSetStore = ValueSetStore.getInstance();
+		valueSetStore.setFhirContext(getFhirContext());
+		valueSetStore.setConceptService(myAppCtx.getBean(ConceptService.class));
+
+		String remoteLookupStr = getServletContext().getInitParameter("valueSetRemoteLookup");
+		if (remoteLookupStr != null && !remoteLookupStr.trim().isEmpty()) {
+			valueSetStore.setRemoteLookup(Boolean.parseBoolean(remoteLookupStr.trim()));
+		}
+
+		String negativeTtlStr = getServletContext().getInitParameter("valueSetNegativeTtl");
+		if (negativeTtlStr != null && !negativeTtlStr.trim().isEmpty()) {
+			valueSetStore.setNegativeTtl(Long.parseLong(negativeTtlStr.trim()) * 1000L);
+		}
+
+		String maxSizeStr = getServletContext().getInitParameter("valueSetMaxExpansionSize");
+		if (maxSizeStr != null && !maxSizeStr.trim().isEmpty()) {
+			valueSetStore.setMaxExpansionSize(Integer.parseInt(maxSizeStr.trim()));
+		}
+
+		String checkIntervalStr = getServletContext().getInitParameter("valueSetCheckInterval");
+		if (checkIntervalStr != null && !checkIntervalStr.trim().isEmpty()) {
+			valueSetStore.setCheckInterval(Long.parseLong(checkIntervalStr.trim()) * 1000L);
+		}
+
+		String directoryStr = getServletContext().getInitParameter("valueSetDirectory");
+		if (directoryStr != null && !directoryStr.trim().isEmpty()) {
+			int count = valueSetStore.importDirectory(new File(directoryStr.trim()));
+			logger.info("Imported " + count + " ValueSets from " + directoryStr.trim());
+		}
+	}
+
+	/*
+	 * Notes written through the server are indexed right away. Notes loaded
+	 * directly into the database are indexed when the index is rebuilt:
+	 * at start if noteTextIndex is "startup", and every
+	 * noteTextIndexRebuildInterval seconds.
+	 */
+	private void initializeNoteTextIndex() {
+		final NoteService noteService = myAppCtx.getBean(NoteService.class);
+
+		long rebuildInterval = 0L;
+		String rebuildIntervalStr = getServletContext().getInitParameter("noteTextIndexRebuildInterval");
+		if (rebuildIntervalStr != null && !rebuildIntervalStr.trim().isEmpty()) {
+			rebuildInterval = Long.parseLong(rebuildIntervalStr.trim());
+		}
+
+		String buildAt = getServletContext().getInitParameter("noteTextIndex");
+		boolean atStartup = "startup".equalsIgnoreCase(buildAt == null ? null : buildAt.trim());
+		if (!atStartup && rebuildInterval <= 0L) {
+			return;
+		}
+
+		noteTextIndexer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "note-text-index-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Runnable rebuild = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					noteService.rebuildTextIndex();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					logger.warn("Note text index rebuild failed: " + e.getMessage());
+				}
+			}
+		};
+		if (rebuildInterval > 0L) {
+			noteTextIndexer.scheduleWithFixedDelay(rebuild, atStartup ? 0L : rebuildInterval, rebuildInterval, TimeUnit.SECONDS);
+		} else {
+			noteTextIndexer.execute(rebuild);
+			noteTextIndexer.shutdown();
+		}
+	}
+
 }
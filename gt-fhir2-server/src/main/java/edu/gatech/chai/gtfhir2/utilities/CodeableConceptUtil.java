@@ -1,10 +1,6 @@
 package edu.gatech.chai.gtfhir2.utilities;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
@@ -13,7 +9,6 @@ import org.hl7.fhir.exceptions.FHIRException;
 import edu.gatech.chai.gtfhir2.mapping.OmopCodeableConceptMapping;
 import edu.gatech.chai.omopv5.jpa.entity.Concept;
 import edu.gatech.chai.omopv5.jpa.service.ConceptService;
-import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
 
 public class CodeableConceptUtil {
 	public static void addCodingFromOmopConcept(CodeableConcept codeableConcept, Concept concept) throws FHIRException {
@@ -36,24 +31,9 @@ public class CodeableConceptUtil {
 	public static Concept getOmopConceptWithOmopVacabIdAndCode(ConceptService conceptService, String omopVocabularyId, String code) {
 		if (omopVocabularyId == null) return null;
 		
-		ParameterWrapper param = new ParameterWrapper(
-				"String",
-				Arrays.asList("vocabulary.id", "conceptCode"),
-				Arrays.asList("like", "like"),
-				Arrays.asList(omopVocabularyId, code),
-				"and"
-				);
-		
-		List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
-		params.add(param);
-
-		List<Concept> conceptIds = conceptService.searchWithParams(0, 0, params);
-		if (conceptIds.isEmpty()) {
-			return null;
-		}
-		
-		// We should have only one entry... so... 
-		return conceptIds.get(0);
+		// ConceptService keeps the concepts in its concept cache. So, we do not
+		// go to database for the codes that we have seen already.
+		return conceptService.findByVocabularyIdAndCode(omopVocabularyId, code);
 	}
 	
 	public static Concept getOmopConceptWithFhirConcept(ConceptService conceptService, Coding fhirCoding) throws FHIRException {
@@ -42,6 +42,36 @@ public class TerminologyServiceClient {
 		client = ctx.newRestfulGenericClient(terminologyServerUrl);
 	}
 	
+	/**
+	 * Fetches the ValueSet from the terminology server. null if the server does
+	 * not have it.
+	 */
+	public ValueSet getValueSet(String url) {
+		Bundle results = client
+				.search()
+				.forResource(ValueSet.class)
+				.where(ValueSet.URL.matches().value(url))
+				.returnBundle(Bundle.class)
+				.execute();
+
+		ValueSet candidate = null;
+		for (BundleEntryComponent entry : results.getEntry()) {
+			Resource resource = entry.getResource();
+			if (resource == null || resource.getResourceType() != ResourceType.ValueSet)
+				continue;
+
+			ValueSet valueSet = (ValueSet) resource;
+			if (url.equals(valueSet.getUrl()))
+				return valueSet;
+			// For the servers that do not return the canonical url, take the
+			// ValueSet whose id ends the url (eg. .../ValueSet/123).
+			String idPart = valueSet.getIdElement().getIdPart();
+			if (candidate == null && idPart != null && url.endsWith("/" + idPart))
+				candidate = valueSet;
+		}
+		return candidate;
+	}
+
 	public Map<String, List<ConceptSetComponent>> getValueSetByUrl(String url) {
 		Map<String, List<ConceptSetComponent>> retVal = new HashMap<String, List<ConceptSetComponent>>();
 		Bundle results = client
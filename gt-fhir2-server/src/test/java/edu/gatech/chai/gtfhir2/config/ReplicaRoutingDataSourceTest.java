@@ -0,0 +1,161 @@
+package edu.gatech.chai.gtfhir2.config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import junit.framework.TestCase;
+
+public class ReplicaRoutingDataSourceTest extends TestCase {
+
+	/*
+	 * Connections are proxies whose toString() is the name of their pool. The
+	 * lag query returns the lag of the pool.
+	 */
+	private static Connection connection(final String name, final double lag) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("toString"))
+							return name;
+						if (method.getName().equals("createStatement"))
+							return result(Statement.class, lag);
+						return null;
+					}
+				});
+	}
+
+	private static <T> T result(Class<T> type, final double lag) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("executeQuery"))
+							return result(ResultSet.class, lag);
+						if (method.getName().equals("next"))
+							return true;
+						if (method.getName().equals("getDouble"))
+							return lag;
+						return null;
+					}
+				}));
+	}
+
+	private static DataSource primary() {
+		return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+				new Class<?>[] { DataSource.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getConnection"))
+							return connection("primary", 0.0);
+						return null;
+					}
+				});
+	}
+
+	private static class ReplicaPool extends BasicDataSource {
+		private final String name;
+		volatile double lag;
+		volatile boolean down;
+
+		ReplicaPool(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			if (down)
+				throw new SQLException("Connection refused");
+			return connection(name, lag);
+		}
+	}
+
+	private ReplicaRoutingDataSource dataSource;
+	private ReplicaPool replica1;
+	private ReplicaPool replica2;
+
+	@Override
+	protected void setUp() throws Exception {
+		replica1 = new ReplicaPool("replica1");
+		replica2 = new ReplicaPool("replica2");
+		dataSource = new ReplicaRoutingDataSource(primary());
+		dataSource.addReplica("jdbc:postgresql://replica1/omop", replica1);
+		dataSource.addReplica("jdbc:postgresql://replica2/omop", replica2);
+		dataSource.setMaxLag(30.0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+	}
+
+	private String connect(boolean readOnly) throws SQLException {
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+		return dataSource.getConnection().toString();
+	}
+
+	public void testReadOnlyGoesToTheReplicasInTurn() throws SQLException {
+		dataSource.checkHealth();
+
+		String first = connect(true);
+		String second = connect(true);
+		assertTrue(first.startsWith("replica"));
+		assertTrue(second.startsWith("replica"));
+		assertFalse(first.equals(second));
+		assertEquals(2, dataSource.getReplicaConnectionCount());
+	}
+
+	public void testReadWriteGoesToThePrimary() throws SQLException {
+		dataSource.checkHealth();
+
+		// As the stored search and id mapping lookups, which are not
+		// read-only.
+		assertEquals("primary", connect(false));
+		assertEquals(1, dataSource.getPrimaryConnectionCount());
+		assertEquals(0, dataSource.getReplicaConnectionCount());
+	}
+
+	public void testReplicasAreNotUsedBeforeTheHealthCheck() throws SQLException {
+		assertEquals("primary", connect(true));
+		assertEquals(1, dataSource.getFallbackConnectionCount());
+	}
+
+	public void testLaggingReplicaIsSkipped() throws SQLException {
+		replica1.lag = 31.0;
+		dataSource.checkHealth();
+
+		assertEquals("replica2", connect(true));
+		assertEquals("replica2", connect(true));
+		assertFalse(dataSource.getReplicas().get(0).isHealthy());
+		assertEquals(31.0, dataSource.getReplicas().get(0).getLag(), 0.0);
+	}
+
+	public void testFailedReplicaIsSkippedUntilTheNextCheck() throws SQLException {
+		dataSource.checkHealth();
+		replica1.down = true;
+		replica2.down = true;
+
+		assertEquals("primary", connect(true));
+		assertFalse(dataSource.getReplicas().get(0).isHealthy());
+		assertFalse(dataSource.getReplicas().get(1).isHealthy());
+
+		replica1.down = false;
+		dataSource.checkHealth();
+		assertEquals("replica1", connect(true));
+	}
+
+	public void testMaxStaleness() {
+		assertEquals(30000L, dataSource.getMaxStaleness());
+		assertEquals(0L, new ReplicaRoutingDataSource(primary()).getMaxStaleness());
+	}
+}
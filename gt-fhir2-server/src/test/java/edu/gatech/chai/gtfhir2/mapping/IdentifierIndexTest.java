@@ -0,0 +1,133 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.gatech.chai.omopv5.jpa.service.IService;
+import junit.framework.TestCase;
+
+public class IdentifierIndexTest extends TestCase {
+
+	private static final String TYPE = "Patient";
+	private static final String COLUMN = "personSourceValue";
+
+	/*
+	 * The person table, as lower(person_source_value) -> person_id. Only
+	 * findIdsBySourceValues is implemented.
+	 */
+	private final Map<String, Long> table = new HashMap<String, Long>();
+	private int queryCount;
+	private IService<?> service;
+
+	@Override
+	protected void setUp() throws Exception {
+		IdentifierIndex.getInstance().invalidate(TYPE);
+		IdentifierIndex.getInstance().setNegativeTtl(IdentifierIndex.DEFAULT_NEGATIVE_TTL);
+		service = (IService<?>) Proxy.newProxyInstance(IService.class.getClassLoader(),
+				new Class<?>[] { IService.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (!method.getName().equals("findIdsBySourceValues"))
+							throw new UnsupportedOperationException(method.getName());
+						queryCount++;
+						Map<String, Long> found = new HashMap<String, Long>();
+						for (Object value : (Collection<?>) args[1]) {
+							if (table.containsKey(value)) {
+								found.put((String) value, table.get(value));
+							}
+						}
+						return found;
+					}
+				});
+	}
+
+	private Long resolve(String value) {
+		return IdentifierIndex.getInstance().resolve(TYPE, service, COLUMN, value);
+	}
+
+	public void testFoundIdIsCachedIgnoringCase() {
+		table.put("mr:123", 10L);
+
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+		assertEquals(Long.valueOf(10L), resolve("mr:123"));
+		assertEquals(1, queryCount);
+	}
+
+	public void testCreatedValueIsFoundWithoutQuery() {
+		assertNull(resolve("MR:123"));
+		table.put("mr:123", 10L);
+		IdentifierIndex.getInstance().put(TYPE, "MR:123", 10L);
+
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+		assertEquals(1, queryCount);
+	}
+
+	public void testCreateWithOldValueAfterUpdateIsNew() {
+		table.put("mr:123", 10L);
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+
+		// Patient 10 is updated to MR:456.
+		table.remove("mr:123");
+		table.put("mr:456", 10L);
+		IdentifierIndex.getInstance().update(TYPE, "MR:456", 10L);
+
+		// A create with MR:123 must not update patient 10.
+		assertNull(resolve("MR:123"));
+		assertEquals(Long.valueOf(10L), resolve("MR:456"));
+		assertEquals(2, queryCount);
+
+		table.put("mr:123", 11L);
+		IdentifierIndex.getInstance().put(TYPE, "MR:123", 11L);
+		assertEquals(Long.valueOf(11L), resolve("MR:123"));
+		assertEquals(Long.valueOf(10L), resolve("MR:456"));
+	}
+
+	public void testUpdateWithoutValueRemovesTheOldOne() {
+		table.put("mr:123", 10L);
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+
+		table.remove("mr:123");
+		IdentifierIndex.getInstance().update(TYPE, null, 10L);
+
+		assertNull(resolve("MR:123"));
+		assertEquals(2, queryCount);
+	}
+
+	public void testUpdateWithSameValueKeepsIt() {
+		table.put("mr:123", 10L);
+		table.put("mr:456", 20L);
+		resolve("MR:123");
+		resolve("MR:456");
+
+		IdentifierIndex.getInstance().update(TYPE, "mr:123", 10L);
+
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+		assertEquals(Long.valueOf(20L), resolve("MR:456"));
+		assertEquals(2, queryCount);
+	}
+
+	public void testNotFoundExpires() throws InterruptedException {
+		IdentifierIndex.getInstance().setNegativeTtl(0L);
+		assertNull(resolve("MR:123"));
+
+		// Loaded by ETL.
+		table.put("mr:123", 10L);
+		Thread.sleep(2L);
+		assertEquals(Long.valueOf(10L), resolve("MR:123"));
+		assertEquals(2, queryCount);
+	}
+
+	public void testDeleteClearsTheType() {
+		table.put("mr:123", 10L);
+		resolve("MR:123");
+
+		table.remove("mr:123");
+		IdentifierIndex.getInstance().invalidate(TYPE);
+		assertNull(resolve("MR:123"));
+		assertEquals(2, queryCount);
+	}
+}
@@ -0,0 +1,223 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.springframework.web.context.WebApplicationContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.omopv5.jpa.entity.FPerson;
+import edu.gatech.chai.omopv5.jpa.service.EntityBatchHandler;
+import edu.gatech.chai.omopv5.jpa.service.FPersonService;
+import edu.gatech.chai.omopv5.jpa.service.FResourcesService;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * A person table and an f_resources table in memory, with a Patient mapper
+ * over them, for the tests of the materialized store and of paging. FHIR ids
+ * are the OMOP ids. The family name of a patient is the name its row had
+ * when it was mapped.
+ */
+public class InMemoryPatientStore {
+	public static final FhirContext fhirContext = FhirContext.forDstu3();
+
+	// person_id -> family name
+	public final TreeMap<Long, String> persons = new TreeMap<Long, String>();
+	// resource id -> (JSON, rendered at)
+	public final TreeMap<Long, Object[]> stored = new TreeMap<Long, Object[]>();
+
+	public int databaseSearchCount;
+	// Last ids of the keyset searches, in order.
+	public final List<Long> keysetSearches = new ArrayList<Long>();
+	public int storeSearchCount;
+	public Date lastRenderedAfter;
+	public int findCount;
+	// Run by findById after the row is read, as a write that commits then.
+	public Runnable afterFind;
+
+	public final FPersonService personService;
+	public final FResourcesService resourcesService;
+	public final Mapper mapper;
+
+	public class Mapper extends BaseOmopResource<Patient, FPerson, FPersonService> {
+		Mapper(WebApplicationContext context, String resourceType) {
+			super(context, FPerson.class, FPersonService.class, resourceType);
+		}
+
+		@Override
+		public Long toDbase(Patient fhirResource, IdType fhirId) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<ParameterWrapper> mapParameter(String parameter, Object value, boolean or) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Patient constructFHIR(Long fhirId, FPerson entity) {
+			Patient patient = new Patient();
+			patient.setId(new IdType(getMyFhirResourceType(), fhirId));
+			patient.addName().setFamily(entity.getFamilyName());
+			return patient;
+		}
+
+		@Override
+		public FPerson constructOmop(Long omopId, Patient fhirResource) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public InMemoryPatientStore(String resourceType) {
+		personService = proxy(FPersonService.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("findById")) {
+					findCount++;
+					List<FPerson> found = page((Long) args[0] - 1, 0, 1);
+					if (afterFind != null) {
+						afterFind.run();
+					}
+					return found.isEmpty() || !found.get(0).getId().equals(args[0]) ? null : found.get(0);
+				}
+				if (name.equals("getMaxId"))
+					return persons.isEmpty() ? null : persons.lastKey();
+				if (name.equals("searchWithoutParams")) {
+					databaseSearchCount++;
+					return page(null, (Integer) args[0], (Integer) args[1]);
+				}
+				if (name.equals("searchWithParams")) {
+					databaseSearchCount++;
+					return page(null, (Integer) args[0], (Integer) args[1]);
+				}
+				if (name.equals("searchAfterId")) {
+					databaseSearchCount++;
+					keysetSearches.add((Long) args[0]);
+					return page((Long) args[0], 0, (Integer) args[1]);
+				}
+				if (name.equals("scrollWithParams")) {
+					@SuppressWarnings("unchecked")
+					EntityBatchHandler<FPerson> handler = (EntityBatchHandler<FPerson>) args[2];
+					List<FPerson> all = page(null, 0, persons.size());
+					handler.handle(all);
+					return (long) all.size();
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+
+		resourcesService = proxy(FResourcesService.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("findFhirData")) {
+					lastRenderedAfter = (Date) args[2];
+					Object[] row = stored.get(args[1]);
+					if (row == null || (lastRenderedAfter != null && !((Date) row[1]).after(lastRenderedAfter)))
+						return null;
+					return row[0];
+				}
+				if (name.equals("searchFhirData")) {
+					storeSearchCount++;
+					Long afterId = (Long) args[1];
+					List<String> page = new ArrayList<String>();
+					int index = 0;
+					for (Map.Entry<Long, Object[]> entry : stored.entrySet()) {
+						if (afterId != null ? entry.getKey() > afterId : index++ >= (Integer) args[2]) {
+							page.add((String) entry.getValue()[0]);
+						}
+						if (page.size() == (Integer) args[3])
+							break;
+					}
+					return page;
+				}
+				if (name.equals("save")) {
+					@SuppressWarnings("unchecked")
+					Map<Long, String> fhirData = (Map<Long, String>) args[1];
+					for (Map.Entry<Long, String> entry : fhirData.entrySet()) {
+						stored.put(entry.getKey(), new Object[] { entry.getValue(), args[3] });
+					}
+					return fhirData.size();
+				}
+				if (name.equals("removeRenderedBefore")) {
+					int removed = 0;
+					for (Iterator<Object[]> iter = stored.values().iterator(); iter.hasNext();) {
+						if (((Date) iter.next()[1]).before((Date) args[1])) {
+							iter.remove();
+							removed++;
+						}
+					}
+					return removed;
+				}
+				if (name.equals("remove"))
+					return stored.remove(args[1]) == null ? 0 : 1;
+				throw new UnsupportedOperationException(name);
+			}
+		});
+
+		WebApplicationContext context = proxy(WebApplicationContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getBean") && args[0] == FPersonService.class)
+					return personService;
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		mapper = new Mapper(context, resourceType);
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private List<FPerson> page(Long afterId, int fromIndex, int toIndex) {
+		List<FPerson> retVal = new ArrayList<FPerson>();
+		int index = 0;
+		for (Map.Entry<Long, String> entry : persons.entrySet()) {
+			if (afterId != null ? entry.getKey() <= afterId : index++ < fromIndex)
+				continue;
+			if (retVal.size() == toIndex - fromIndex)
+				break;
+			FPerson person = new FPerson();
+			person.setId(entry.getKey());
+			person.setFamilyName(entry.getValue());
+			retVal.add(person);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Sets up the materialized store with this mapper and renders the type.
+	 */
+	public void materialize() {
+		MaterializedResourceStore store = MaterializedResourceStore.getInstance();
+		store.setFhirContext(fhirContext);
+		store.setResourcesService(resourcesService);
+		store.addSupportedMapper(mapper.getMyFhirResourceType(), mapper);
+		List<String> resourceTypes = new ArrayList<String>();
+		resourceTypes.add(mapper.getMyFhirResourceType());
+		store.setResourceTypes(resourceTypes);
+		store.renderType(mapper.getMyFhirResourceType());
+	}
+
+	/**
+	 * Family names of the patients, in order.
+	 */
+	public static List<String> familyNames(List<?> resources) {
+		List<String> names = new ArrayList<String>();
+		for (Object resource : resources) {
+			names.add(((Patient) resource).getNameFirstRep().getFamily());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,113 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import edu.gatech.chai.omopv5.jpa.service.IdMappingService;
+import junit.framework.TestCase;
+
+public class MaterializedResourceStoreTest extends TestCase {
+
+	private InMemoryPatientStore patients;
+
+	@Override
+	protected void setUp() throws Exception {
+		MaterializedResourceStore store = MaterializedResourceStore.getInstance();
+		store.setCheckInterval(600000L);
+		store.setRefreshInterval(86400000L);
+
+		patients = new InMemoryPatientStore("Patient");
+		patients.persons.put(1L, "Smith");
+		patients.persons.put(2L, "Jones");
+		patients.materialize();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MaterializedResourceStore.getInstance().setRefreshInterval(0L);
+		MaterializedResourceStore.getInstance().setResourceTypes(new ArrayList<String>());
+		IdMapping.setIdMappingService(null);
+	}
+
+	public void testRenderStoresAllRows() {
+		assertEquals(Arrays.asList(1L, 2L), new ArrayList<Long>(patients.stored.keySet()));
+		assertTrue(MaterializedResourceStore.getInstance().isComplete("Patient"));
+	}
+
+	public void testReadIsFreshForTheRefreshInterval() {
+		long now = System.currentTimeMillis();
+		Patient patient = (Patient) MaterializedResourceStore.getInstance().read("Patient", 1L);
+		assertEquals("Smith", patient.getNameFirstRep().getFamily());
+
+		// Not the read cache TTL (a minute). A render a day keeps the JSON.
+		long oldest = now - patients.lastRenderedAfter.getTime();
+		assertTrue(oldest >= 86400000L + 600000L);
+		assertTrue(oldest < 86400000L + 600000L + 10000L);
+	}
+
+	public void testReadMissesJsonThatMissedTheLastRender() {
+		// Rendered two days ago.
+		patients.stored.get(1L)[1] = new Date(System.currentTimeMillis() - 2 * 86400000L);
+
+		assertNull(MaterializedResourceStore.getInstance().read("Patient", 1L));
+		assertNotNull(MaterializedResourceStore.getInstance().read("Patient", 2L));
+	}
+
+	public void testReadWithoutRefreshHasNoAgeLimit() {
+		MaterializedResourceStore.getInstance().setRefreshInterval(0L);
+		patients.stored.get(1L)[1] = new Date(0L);
+
+		assertNotNull(MaterializedResourceStore.getInstance().read("Patient", 1L));
+		assertNull(patients.lastRenderedAfter);
+	}
+
+	public void testSearchableWhileNoRowIsAdded() {
+		MaterializedResourceStore store = MaterializedResourceStore.getInstance();
+		assertTrue(store.isSearchable("Patient"));
+
+		// Loaded by ETL.
+		patients.persons.put(3L, "Brown");
+		assertFalse(store.isSearchable("Patient"));
+
+		store.renderType("Patient");
+		assertTrue(store.isSearchable("Patient"));
+	}
+
+	public void testNotSearchableWithIdMapping() {
+		// Not called. Only enabled.
+		IdMapping.setIdMappingService((IdMappingService) Proxy.newProxyInstance(
+				IdMappingService.class.getClassLoader(), new Class<?>[] { IdMappingService.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+				}));
+
+		// Stored JSON is in FHIR id order. Pages from the table are in OMOP
+		// id order.
+		assertFalse(MaterializedResourceStore.getInstance().isSearchable("Patient"));
+	}
+
+	public void testSearchPageByOffsetAndKeyset() {
+		patients.persons.put(3L, "Brown");
+		MaterializedResourceStore store = MaterializedResourceStore.getInstance();
+		store.renderType("Patient");
+
+		List<IBaseResource> page = new ArrayList<IBaseResource>();
+		store.searchPage("Patient", null, 1, 1, page);
+		assertEquals(Arrays.asList("Jones"), InMemoryPatientStore.familyNames(page));
+
+		page.clear();
+		store.searchPage("Patient", 1L, 0, 2, page);
+		assertEquals(Arrays.asList("Jones", "Brown"), InMemoryPatientStore.familyNames(page));
+	}
+}
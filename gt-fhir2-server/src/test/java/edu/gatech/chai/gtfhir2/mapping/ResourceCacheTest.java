@@ -0,0 +1,154 @@
+package edu.gatech.chai.gtfhir2.mapping;
+
+import java.util.ArrayList;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import junit.framework.TestCase;
+
+public class ResourceCacheTest extends TestCase {
+
+	private InMemoryPatientStore patients;
+
+	@Override
+	protected void setUp() throws Exception {
+		MaterializedResourceStore.getInstance().setResourceTypes(new ArrayList<String>());
+		patients = new InMemoryPatientStore("Patient");
+		patients.persons.put(1L, "Smith");
+		patients.persons.put(2L, "Jones");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ResourceCache cache = ResourceCache.getInstance();
+		cache.clear();
+		cache.setMaxSize(ResourceCache.DEFAULT_MAX_SIZE);
+		cache.setTtl(ResourceCache.DEFAULT_TTL);
+		cache.setWriteGrace(0L);
+	}
+
+	private static Patient patient(String family) {
+		Patient patient = new Patient();
+		patient.addName().setFamily(family);
+		return patient;
+	}
+
+	private static String family(Object patient) {
+		return ((Patient) patient).getNameFirstRep().getFamily();
+	}
+
+	private String read(Long fhirId) {
+		return family(patients.mapper.toFHIR(new IdType("Patient", fhirId)));
+	}
+
+	public void testResourceIsCopiedInAndOut() {
+		ResourceCache cache = ResourceCache.getInstance();
+		Patient patient = patient("Smith");
+		cache.put("Patient", 1L, patient, cache.getGeneration("Patient"));
+		patient.getNameFirstRep().setFamily("Changed");
+
+		Patient cached = (Patient) cache.get("Patient", 1L);
+		assertEquals("Smith", family(cached));
+		cached.getNameFirstRep().setFamily("Changed");
+		assertEquals("Smith", family(cache.get("Patient", 1L)));
+	}
+
+	public void testInvalidateRemovesOnlyTheResource() {
+		ResourceCache cache = ResourceCache.getInstance();
+		cache.put("Patient", 1L, patient("Smith"), cache.getGeneration("Patient"));
+		cache.put("Patient", 2L, patient("Jones"), cache.getGeneration("Patient"));
+
+		cache.invalidate("Patient", 1L);
+		assertNull(cache.get("Patient", 1L));
+		assertNotNull(cache.get("Patient", 2L));
+	}
+
+	public void testResourceReadBeforeAWriteIsNotCached() {
+		ResourceCache cache = ResourceCache.getInstance();
+		long generation = cache.getGeneration("Patient");
+		long otherGeneration = cache.getGeneration("Observation");
+		// Another resource of the type. The write may have changed what
+		// this one references.
+		cache.invalidate("Patient", 2L);
+
+		assertFalse(cache.isCacheable("Patient", generation));
+		cache.put("Patient", 1L, patient("Smith"), generation);
+		assertNull(cache.get("Patient", 1L));
+
+		// Other types go on.
+		assertTrue(cache.isCacheable("Observation", otherGeneration));
+	}
+
+	public void testTypeIsNotCachedForTheWriteGrace() {
+		ResourceCache cache = ResourceCache.getInstance();
+		cache.setWriteGrace(60000L);
+		cache.invalidate("Patient", 2L);
+
+		// Read after the write, but a replica may not have it yet.
+		long generation = cache.getGeneration("Patient");
+		assertFalse(cache.isCacheable("Patient", generation));
+		cache.put("Patient", 1L, patient("Smith"), generation);
+		assertNull(cache.get("Patient", 1L));
+	}
+
+	public void testTypeIsCachedRightAfterAWriteWithoutGrace() {
+		ResourceCache cache = ResourceCache.getInstance();
+		cache.invalidate("Patient", 2L);
+
+		long generation = cache.getGeneration("Patient");
+		cache.put("Patient", 1L, patient("Smith"), generation);
+		assertNotNull(cache.get("Patient", 1L));
+	}
+
+	public void testExpiredResourceIsNotReturned() {
+		ResourceCache cache = ResourceCache.getInstance();
+		cache.setTtl(-1L);
+		cache.put("Patient", 1L, patient("Smith"), cache.getGeneration("Patient"));
+
+		assertNull(cache.get("Patient", 1L));
+		assertEquals(0, cache.size());
+	}
+
+	public void testClearStopsReadsInProgress() {
+		ResourceCache cache = ResourceCache.getInstance();
+		long generation = cache.getGeneration("Patient");
+		cache.clear();
+
+		cache.put("Patient", 1L, patient("Smith"), generation);
+		assertNull(cache.get("Patient", 1L));
+	}
+
+	public void testReadIsCachedUntilTheMapperWrites() {
+		assertEquals("Smith", read(1L));
+		assertEquals("Smith", read(1L));
+		assertEquals(1, patients.findCount);
+
+		patients.persons.put(1L, "Brown");
+		patients.mapper.invalidateCache(1L);
+		assertEquals("Brown", read(1L));
+		assertEquals(2, patients.findCount);
+	}
+
+	public void testWriteDuringTheReadIsNotHidden() {
+		patients.afterFind = new Runnable() {
+			@Override
+			public void run() {
+				patients.afterFind = null;
+				patients.persons.put(1L, "Brown");
+				patients.mapper.invalidateCache(1L);
+			}
+		};
+
+		// Read the row before the write.
+		assertEquals("Smith", read(1L));
+		assertEquals("Brown", read(1L));
+	}
+
+	public void testDisabledCacheReadsEveryTime() {
+		ResourceCache.getInstance().setMaxSize(0);
+		read(1L);
+		read(1L);
+		assertEquals(2, patients.findCount);
+	}
+}
@@ -0,0 +1,124 @@
+package edu.gatech.chai.gtfhir2.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.MessageHeader;
+import org.hl7.fhir.dstu3.model.MessageHeader.ResponseType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+
+import ca.uhn.fhir.context.FhirContext;
+import junit.framework.TestCase;
+
+public class MessageQueueManagerTest extends TestCase {
+
+	private static final FhirContext fhirContext = FhirContext.forDstu3();
+
+	private File queueDirectory;
+	private RecordingCallback callback;
+
+	private static class RecordingCallback implements MessageCallback {
+		final CountDownLatch sent = new CountDownLatch(1);
+		volatile String responseUrl;
+		volatile String messageId;
+		volatile String response;
+
+		@Override
+		public void send(String responseUrl, String messageId, String response) throws IOException {
+			this.responseUrl = responseUrl;
+			this.messageId = messageId;
+			this.response = response;
+			sent.countDown();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		queueDirectory = Files.createTempDirectory("message-queue").toFile();
+		callback = new RecordingCallback();
+
+		MessageQueueManager manager = MessageQueueManager.getInstance();
+		manager.setFhirContext(fhirContext);
+		manager.setQueueDirectory(queueDirectory);
+		manager.setCallback(callback);
+		manager.setCallbackRetries(0);
+		manager.setResponseUrlPrefixes(Arrays.asList("http://localhost/hook/"));
+		manager.setHandler(new MessageHandler() {
+			@Override
+			public Bundle processMessage(Bundle theMessage) {
+				throw new IllegalStateException("Observation has no code");
+			}
+		});
+		manager.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MessageQueueManager.getInstance().shutdown();
+	}
+
+	private static Bundle message() {
+		MessageHeader messageHeader = new MessageHeader();
+		messageHeader.setId("header-1");
+		messageHeader.setEvent(new Coding("http://hl7.org/fhir/message-events", "observation-provide", null));
+		Bundle message = new Bundle();
+		message.setType(BundleType.MESSAGE);
+		message.addEntry().setResource(messageHeader);
+		return message;
+	}
+
+	private static void awaitEmpty(MessageQueueManager manager) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (manager.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10L);
+		}
+		assertEquals(0, manager.getDepth());
+	}
+
+	public void testHandlerErrorIsSentToTheSender() throws Exception {
+		MessageQueueManager manager = MessageQueueManager.getInstance();
+		long failed = manager.getFailedCount();
+		String messageId = manager.submit(message(), "http://localhost/hook/1");
+		assertNotNull(messageId);
+
+		assertTrue(callback.sent.await(10, TimeUnit.SECONDS));
+		assertEquals("http://localhost/hook/1", callback.responseUrl);
+		assertEquals(messageId, callback.messageId);
+
+		Bundle response = fhirContext.newJsonParser().parseResource(Bundle.class, callback.response);
+		assertEquals(BundleType.MESSAGE, response.getType());
+		MessageHeader messageHeader = (MessageHeader) response.getEntry().get(0).getResource();
+		assertEquals(ResponseType.FATALERROR, messageHeader.getResponse().getCode());
+		assertEquals("header-1", messageHeader.getResponse().getIdentifier());
+		assertEquals("observation-provide", messageHeader.getEvent().getCode());
+
+		OperationOutcome outcome = (OperationOutcome) response.getEntry().get(1).getResource();
+		assertEquals(response.getEntry().get(1).getFullUrl(), messageHeader.getResponse().getDetails().getReference());
+		assertEquals(IssueSeverity.FATAL, outcome.getIssueFirstRep().getSeverity());
+		assertEquals("Observation has no code", outcome.getIssueFirstRep().getDiagnostics());
+
+		// Still kept as failed.
+		awaitEmpty(manager);
+		assertEquals(failed + 1, manager.getFailedCount());
+		assertTrue(new File(new File(queueDirectory, "failed"), messageId + ".msg").exists());
+		assertFalse(new File(queueDirectory, messageId + ".msg").exists());
+	}
+
+	public void testErrorResponseWithoutMessage() {
+		Bundle response = MessageQueueManager.createErrorResponse(null, new IllegalArgumentException());
+
+		MessageHeader messageHeader = (MessageHeader) response.getEntry().get(0).getResource();
+		assertEquals(ResponseType.FATALERROR, messageHeader.getResponse().getCode());
+		assertNull(messageHeader.getResponse().getIdentifier());
+		OperationOutcome outcome = (OperationOutcome) response.getEntry().get(1).getResource();
+		assertEquals("IllegalArgumentException", outcome.getIssueFirstRep().getDiagnostics());
+	}
+}
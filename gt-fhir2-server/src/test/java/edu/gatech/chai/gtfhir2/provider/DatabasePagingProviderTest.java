@@ -0,0 +1,124 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import ca.uhn.fhir.model.api.Include;
+import edu.gatech.chai.gtfhir2.mapping.InMemoryPatientStore;
+import edu.gatech.chai.gtfhir2.mapping.MaterializedResourceStore;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PageSource;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PagingMode;
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+import edu.gatech.chai.omopv5.jpa.service.FSearchService;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+import junit.framework.TestCase;
+
+/**
+ * Two paging providers over one f_search table, as two servers that share
+ * the database.
+ */
+public class DatabasePagingProviderTest extends TestCase {
+
+	private InMemoryPatientStore patients;
+	private final Map<String, FSearch> searches = new HashMap<String, FSearch>();
+
+	@Override
+	protected void setUp() throws Exception {
+		patients = new InMemoryPatientStore("Patient");
+		for (long id = 1; id <= 5; id++) {
+			patients.persons.put(id, String.valueOf((char) ('A' + id - 1)));
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MaterializedResourceStore.getInstance().setResourceTypes(new ArrayList<String>());
+	}
+
+	/*
+	 * f_search rows by uuid. putCursor merges like the service does under
+	 * its row lock.
+	 */
+	private FSearchService searchService() {
+		return (FSearchService) Proxy.newProxyInstance(FSearchService.class.getClassLoader(),
+				new Class<?>[] { FSearchService.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("create")) {
+							FSearch search = (FSearch) args[0];
+							searches.put(search.getSearchUuid(), search);
+							return search;
+						}
+						if (name.equals("findBySearchUuid"))
+							return searches.get(args[0]);
+						if (name.equals("putCursor")) {
+							FSearch search = searches.get(args[0]);
+							SortedMap<Integer, Long> cursors = FSearch.cursorsFromJson(search.getCursors());
+							cursors.put((Integer) args[1], (Long) args[2]);
+							search.setCursors(FSearch.cursorsToJson(cursors));
+							return 1;
+						}
+						if (name.equals("updatePageSource")) {
+							searches.get(args[0]).setPageSource((String) args[1]);
+							return 1;
+						}
+						if (name.equals("removeExpired"))
+							return 0;
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	private DatabasePagingProvider newServer(FSearchService searchService) {
+		DatabasePagingProvider pagingProvider = new DatabasePagingProvider(searchService, 10);
+		pagingProvider.addBundleProviderFactory("Patient", new OmopFhirBundleProviderFactory() {
+			@Override
+			public OmopFhirBundleProvider createBundleProvider(List<ParameterWrapper> paramList,
+					Set<Include> theIncludes, Set<Include> theReverseIncludes) {
+				return new PatientBundleProvider(patients, paramList, PagingMode.OFFSET);
+			}
+		});
+		return pagingProvider;
+	}
+
+	public void testAnyServerContinuesTheSearch() {
+		FSearchService searchService = searchService();
+		DatabasePagingProvider serverA = newServer(searchService);
+		DatabasePagingProvider serverB = newServer(searchService);
+
+		PatientBundleProvider onA = new PatientBundleProvider(patients, new ArrayList<ParameterWrapper>(),
+				PagingMode.KEYSET);
+		String uuid = serverA.storeResultList(onA);
+		assertEquals(Arrays.asList("A", "B"), onA.page(0, 2));
+		assertEquals(PageSource.DATABASE.name(), searches.get(uuid).getPageSource());
+
+		PatientBundleProvider onB = (PatientBundleProvider) serverB.retrieveResultList(uuid);
+		assertEquals(PagingMode.KEYSET, onB.getPagingMode());
+		assertEquals(PageSource.DATABASE, onB.getPageSource());
+		assertEquals(Arrays.asList("C", "D"), onB.page(2, 4));
+		assertEquals(Arrays.asList(2L), patients.keysetSearches);
+
+		// A does not have the cursor that B added. Its own cursor is added
+		// to the stored ones.
+		assertEquals(Arrays.asList("E"), onA.page(4, 6));
+		SortedMap<Integer, Long> expected = new TreeMap<Integer, Long>();
+		expected.put(2, 2L);
+		expected.put(4, 4L);
+		expected.put(6, 5L);
+		assertEquals(expected, FSearch.cursorsFromJson(searches.get(uuid).getCursors()));
+
+		PatientBundleProvider again = (PatientBundleProvider) serverA.retrieveResultList(uuid);
+		assertEquals(Arrays.asList("E"), again.page(4, 6));
+		assertEquals(Arrays.asList(2L, 4L), patients.keysetSearches);
+	}
+}
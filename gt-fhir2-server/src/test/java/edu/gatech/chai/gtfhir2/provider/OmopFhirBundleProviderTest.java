@@ -0,0 +1,155 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.gatech.chai.gtfhir2.mapping.InMemoryPatientStore;
+import edu.gatech.chai.gtfhir2.mapping.MaterializedResourceStore;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PageSource;
+import edu.gatech.chai.gtfhir2.provider.OmopFhirBundleProvider.PagingMode;
+import edu.gatech.chai.omopv5.jpa.entity.FSearch;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+import junit.framework.TestCase;
+
+/**
+ * Paging of searches without parameters, which can come from the
+ * materialized store or from the person table.
+ */
+public class OmopFhirBundleProviderTest extends TestCase {
+
+	private InMemoryPatientStore patients;
+
+	@Override
+	protected void setUp() throws Exception {
+		MaterializedResourceStore.getInstance().setRefreshInterval(0L);
+		patients = new InMemoryPatientStore("Patient");
+		patients.persons.put(1L, "A");
+		patients.persons.put(2L, "B");
+		patients.persons.put(3L, "C");
+		patients.persons.put(4L, "D");
+		patients.materialize();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MaterializedResourceStore.getInstance().setResourceTypes(new ArrayList<String>());
+	}
+
+	private PatientBundleProvider newProvider(PagingMode pagingMode) {
+		return new PatientBundleProvider(patients, new ArrayList<ParameterWrapper>(), pagingMode);
+	}
+
+	private void assertSearchStaysOnTheStore(PagingMode pagingMode) {
+		PatientBundleProvider provider = newProvider(pagingMode);
+		assertEquals(Arrays.asList("A", "B"), provider.page(0, 2));
+		assertEquals(PageSource.STORE, provider.getPageSource());
+
+		// ETL changes the table between the pages. The store is not current
+		// any more, but the search goes on with it.
+		patients.persons.put(2L, "B2");
+		patients.persons.put(5L, "E");
+		assertFalse(MaterializedResourceStore.getInstance().isSearchable("Patient"));
+
+		assertEquals(Arrays.asList("C", "D"), provider.page(2, 4));
+		assertEquals(Arrays.asList(), provider.page(4, 6));
+		assertEquals(0, patients.databaseSearchCount);
+		assertEquals(3, patients.storeSearchCount);
+	}
+
+	public void testKeysetSearchThatStartsOnTheStoreStaysOnIt() {
+		assertSearchStaysOnTheStore(PagingMode.KEYSET);
+	}
+
+	public void testOffsetSearchThatStartsOnTheStoreStaysOnIt() {
+		assertSearchStaysOnTheStore(PagingMode.OFFSET);
+	}
+
+	public void testSearchThatStartsOnTheDatabaseStaysOnIt() {
+		patients.persons.put(5L, "E");
+		PatientBundleProvider provider = newProvider(PagingMode.KEYSET);
+		assertEquals(Arrays.asList("A", "B"), provider.page(0, 2));
+		assertEquals(PageSource.DATABASE, provider.getPageSource());
+
+		// The store is current again, but it does not have what the table
+		// had at the first page.
+		MaterializedResourceStore.getInstance().renderType("Patient");
+		patients.persons.remove(3L);
+		assertTrue(MaterializedResourceStore.getInstance().isSearchable("Patient"));
+
+		assertEquals(Arrays.asList("D", "E"), provider.page(2, 4));
+		assertEquals(0, patients.storeSearchCount);
+		assertEquals(2, patients.databaseSearchCount);
+	}
+
+	public void testStoredPageSourceIsKept() {
+		// As restored from f_search by another server.
+		PatientBundleProvider provider = newProvider(PagingMode.OFFSET);
+		provider.setPageSource(PageSource.DATABASE);
+
+		assertEquals(Arrays.asList("C", "D"), provider.page(2, 4));
+		assertEquals(0, patients.storeSearchCount);
+	}
+
+	public void testSearchWithParametersUsesTheDatabase() {
+		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
+		paramList.add(new ParameterWrapper("String", Arrays.asList("familyName"), Arrays.asList("like"),
+				Arrays.asList("%"), "or"));
+		PatientBundleProvider provider = new PatientBundleProvider(patients, paramList, PagingMode.KEYSET);
+
+		assertEquals(Arrays.asList("A", "B"), provider.page(0, 2));
+		assertEquals(Arrays.asList("C", "D"), provider.page(2, 4));
+		assertEquals(PageSource.DATABASE, provider.getPageSource());
+		assertEquals(0, patients.storeSearchCount);
+	}
+
+	public void testKeysetPageContinuesAfterTheLastId() {
+		PatientBundleProvider provider = newProvider(PagingMode.KEYSET);
+		provider.setPageSource(PageSource.DATABASE);
+		assertEquals(Arrays.asList("A", "B"), provider.page(0, 2));
+		assertEquals(Long.valueOf(2L), provider.getCursors().get(2));
+
+		// An offset page would now start at D.
+		patients.persons.remove(1L);
+
+		assertEquals(Arrays.asList("C", "D"), provider.page(2, 4));
+		assertEquals(Arrays.asList(2L), patients.keysetSearches);
+		assertEquals(Long.valueOf(4L), provider.getCursors().get(4));
+	}
+
+	public void testPageWithoutCursorIsSearchedByOffset() {
+		PatientBundleProvider provider = newProvider(PagingMode.KEYSET);
+		provider.setPageSource(PageSource.DATABASE);
+
+		assertEquals(Arrays.asList("C", "D"), provider.page(2, 4));
+		assertTrue(patients.keysetSearches.isEmpty());
+		assertEquals(Long.valueOf(4L), provider.getCursors().get(4));
+	}
+
+	public void testRestoredCursorIsUsed() {
+		PatientBundleProvider provider = newProvider(PagingMode.KEYSET);
+		provider.setPageSource(PageSource.DATABASE);
+		Map<Integer, Long> cursors = new TreeMap<Integer, Long>();
+		cursors.put(2, 3L);
+		provider.setCursors(cursors);
+
+		assertEquals(Arrays.asList("D"), provider.page(2, 4));
+		assertEquals(Arrays.asList(3L), patients.keysetSearches);
+	}
+
+	public void testCursorsOfTheFirstPagesAreDroppedFirst() {
+		PatientBundleProvider provider = newProvider(PagingMode.KEYSET);
+		Map<Integer, Long> cursors = new TreeMap<Integer, Long>();
+		for (int page = 1; page <= FSearch.MAX_CURSORS + 2; page++) {
+			cursors.put(page * 10, page * 100L);
+		}
+		provider.setCursors(cursors);
+
+		assertEquals(FSearch.MAX_CURSORS, provider.getCursors().size());
+		assertNull(provider.getCursors().get(10));
+		assertNull(provider.getCursors().get(20));
+		assertEquals(Long.valueOf(300L), provider.getCursors().get(30));
+	}
+}
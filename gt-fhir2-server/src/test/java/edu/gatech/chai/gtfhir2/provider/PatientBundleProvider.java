@@ -0,0 +1,39 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.model.api.Include;
+import edu.gatech.chai.gtfhir2.mapping.InMemoryPatientStore;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+
+/**
+ * Bundle provider of a Patient search over an {@link InMemoryPatientStore}.
+ */
+class PatientBundleProvider extends OmopFhirBundleProvider {
+	private final InMemoryPatientStore patients;
+
+	PatientBundleProvider(InMemoryPatientStore patients, List<ParameterWrapper> paramList, PagingMode pagingMode) {
+		super(paramList);
+		this.patients = patients;
+		setPagingMode(pagingMode);
+		setSearchDefinition("Patient", new HashSet<Include>(), new HashSet<Include>());
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+		List<IBaseResource> retv = new ArrayList<IBaseResource>();
+		searchPage(patients.mapper, fromIndex, toIndex, retv, new ArrayList<String>());
+		return retv;
+	}
+
+	/**
+	 * Family names of the patients of the page.
+	 */
+	List<String> page(int fromIndex, int toIndex) {
+		return InMemoryPatientStore.familyNames(getResources(fromIndex, toIndex));
+	}
+}
@@ -0,0 +1,168 @@
+package edu.gatech.chai.gtfhir2.provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import edu.gatech.chai.gtfhir2.mapping.IResourceMapping;
+import edu.gatech.chai.gtfhir2.mapping.InMemoryPatientStore;
+import edu.gatech.chai.omopv5.jpa.service.ParameterWrapper;
+import junit.framework.TestCase;
+
+public class SearchTotalCounterTest extends TestCase {
+
+	private long size = 4L;
+	private int countCount;
+	private IResourceMapping<?, ?> mapper;
+
+	@Override
+	protected void setUp() throws Exception {
+		mapper = (IResourceMapping<?, ?>) Proxy.newProxyInstance(IResourceMapping.class.getClassLoader(),
+				new Class<?>[] { IResourceMapping.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getSize")) {
+							countCount++;
+							return size;
+						}
+						if (name.equals("getEstimatedSize"))
+							return 1000L;
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		SearchTotalCounter.getInstance().clear();
+		SearchTotalCounter.getInstance().setDefaultMode("exact");
+		SearchTotalCounter.getInstance().setCacheTtl(SearchTotalCounter.DEFAULT_CACHE_TTL);
+	}
+
+	private static class EmptyBundleProvider extends OmopFhirBundleProvider {
+		EmptyBundleProvider() {
+			super(new ArrayList<ParameterWrapper>());
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+			return new ArrayList<IBaseResource>();
+		}
+	}
+
+	private Integer total(String resourceType, List<ParameterWrapper> paramList, SearchTotalModeEnum mode) {
+		OmopFhirBundleProvider bundleProvider = new EmptyBundleProvider();
+		SearchTotalCounter.getInstance().setTotal(bundleProvider, mapper, resourceType, paramList, mode);
+		return bundleProvider.size();
+	}
+
+	private Integer total(String resourceType, List<ParameterWrapper> paramList) {
+		return total(resourceType, paramList, null);
+	}
+
+	private static List<ParameterWrapper> params(String... families) {
+		List<ParameterWrapper> paramList = new ArrayList<ParameterWrapper>();
+		for (String family : families) {
+			paramList.add(new ParameterWrapper("String", Arrays.asList("familyName"), Arrays.asList("like"),
+					Arrays.asList(family), "or"));
+		}
+		return paramList;
+	}
+
+	public void testExactCountsEveryTime() {
+		assertEquals(Integer.valueOf(4), total("Patient", params()));
+		size = 5L;
+		assertEquals(Integer.valueOf(5), total("Patient", params()));
+		assertEquals(2, countCount);
+	}
+
+	public void testCachedCountIsReused() {
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		assertEquals(Integer.valueOf(4), total("Patient", params()));
+		size = 5L;
+
+		assertEquals(Integer.valueOf(4), total("Patient", params()));
+		assertEquals(1, countCount);
+		// _total=accurate
+		assertEquals(Integer.valueOf(5), total("Patient", params(), SearchTotalModeEnum.ACCURATE));
+	}
+
+	public void testWriteDropsTheCountsOfTheType() {
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		assertEquals(Integer.valueOf(4), total("Patient", params()));
+		assertEquals(Integer.valueOf(4), total("Patient", params("Smith")));
+		assertEquals(Integer.valueOf(4), total("Observation", params()));
+		size = 5L;
+
+		SearchTotalCounter.getInstance().invalidate("Patient");
+		assertEquals(Integer.valueOf(5), total("Patient", params()));
+		assertEquals(Integer.valueOf(5), total("Patient", params("Smith")));
+		assertEquals(Integer.valueOf(4), total("Observation", params()));
+		assertEquals(5, countCount);
+	}
+
+	public void testMapperWriteDropsTheCounts() {
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		total("Patient", params());
+		size = 5L;
+
+		// As after create, update or delete through the mapper.
+		new InMemoryPatientStore("Patient").mapper.invalidateCache(1L);
+		assertEquals(Integer.valueOf(5), total("Patient", params()));
+	}
+
+	public void testCountsAreKeyedByTheParameters() {
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		total("Patient", params("Smith", "Jones"));
+		total("Patient", params("Jones", "Smith"));
+		assertEquals(1, countCount);
+
+		total("Patient", params("Smith"));
+		assertEquals(2, countCount);
+	}
+
+	public void testExpiredCountIsCountedAgain() {
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		SearchTotalCounter.getInstance().setCacheTtl(-1L);
+		total("Patient", params());
+		total("Patient", params());
+		assertEquals(2, countCount);
+	}
+
+	public void testDeferredCountIsSetWhenDone() throws Exception {
+		SearchTotalCounter.getInstance().setDefaultMode("deferred");
+		OmopFhirBundleProvider bundleProvider = new EmptyBundleProvider();
+		SearchTotalCounter.getInstance().setTotal(bundleProvider, mapper, "Patient", params(), null);
+
+		assertEquals(Long.valueOf(4L), bundleProvider.getDeferredTotalSize().get(10, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(4), bundleProvider.size());
+		assertNull(bundleProvider.getDeferredTotalSize());
+
+		// Counted once. The next search has it right away.
+		assertEquals(Integer.valueOf(4), total("Patient", params()));
+		assertEquals(1, countCount);
+	}
+
+	public void testEstimateIsOnlyForSearchesWithoutParameters() {
+		assertEquals(Integer.valueOf(1000), total("Patient", params(), SearchTotalModeEnum.ESTIMATED));
+		assertEquals(0, countCount);
+
+		SearchTotalCounter.getInstance().setDefaultMode("cached");
+		total("Patient", params("Smith"));
+		assertEquals(Integer.valueOf(4), total("Patient", params("Smith"), SearchTotalModeEnum.ESTIMATED));
+		assertEquals(1, countCount);
+	}
+
+	public void testNoTotal() {
+		assertNull(total("Patient", params(), SearchTotalModeEnum.NONE));
+		assertEquals(0, countCount);
+	}
+}